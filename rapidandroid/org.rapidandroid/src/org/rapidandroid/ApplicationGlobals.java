@@ -38,6 +38,14 @@ import android.util.Log;
  */
 public class ApplicationGlobals {
 
+	public static final int DEFAULT_DEDUP_WINDOW_SECONDS = 600;
+	
+	public static final int DEFAULT_FLOOD_BURST = 10;
+	
+	public static final int DEFAULT_FLOOD_REFILL_PER_HOUR = 60;
+	
+	public static final String DEFAULT_UPLOAD_URL = "http://192.168.7.127:8160/upload/upload";
+	
 	private static boolean globalsLoaded = false;
 	
 	private static boolean mActive = false; 
@@ -47,6 +55,11 @@ public class ApplicationGlobals {
 	private static String mReplyParseText = "";
 	private static String mReplyFailText = "";
 	
+	private static int mDedupWindowSeconds = DEFAULT_DEDUP_WINDOW_SECONDS;
+	private static int mFloodBurst = DEFAULT_FLOOD_BURST;
+	private static int mFloodRefillPerHour = DEFAULT_FLOOD_REFILL_PER_HOUR;
+	private static String mUploadUrl = DEFAULT_UPLOAD_URL;
+	
 	
 	public static void initGlobals(Context context) {
 		if(!globalsLoaded) {
@@ -63,6 +76,10 @@ public class ApplicationGlobals {
 				mReplyFail = globals.getBoolean(KEY_FAILED_REPLY);
 				mReplyParseText = globals.getString(KEY_PARSE_REPLY_TEXT);
 				mReplyFailText = globals.getString(KEY_FAILED_REPLY_TEXT);
+				mDedupWindowSeconds = globals.optInt(KEY_DEDUP_WINDOW, DEFAULT_DEDUP_WINDOW_SECONDS);
+				mFloodBurst = globals.optInt(KEY_FLOOD_BURST, DEFAULT_FLOOD_BURST);
+				mFloodRefillPerHour = globals.optInt(KEY_FLOOD_REFILL, DEFAULT_FLOOD_REFILL_PER_HOUR);
+				mUploadUrl = globals.optString(KEY_UPLOAD_URL, DEFAULT_UPLOAD_URL);
 				globalsLoaded = true;
 			} catch (JSONException e) {
 				// TODO Auto-generated catch block
@@ -96,6 +113,36 @@ public class ApplicationGlobals {
 		return mReplyFailText;
 	}
 	
+	/**
+	 * How far apart two identical messages from the same phone can be and
+	 * still count as one. 0 turns duplicate suppression off.
+	 */
+	public static int getDedupWindowSeconds() {
+		return mDedupWindowSeconds;
+	}
+	
+	/**
+	 * How many messages a single phone can send back to back before it gets
+	 * flood controlled. 0 turns flood control off.
+	 */
+	public static int getFloodBurst() {
+		return mFloodBurst;
+	}
+	
+	/**
+	 * How fast a flood controlled phone earns its messages back.
+	 */
+	public static int getFloodRefillPerHour() {
+		return mFloodRefillPerHour;
+	}
+	
+	/**
+	 * Where report files get uploaded to.
+	 */
+	public static String getUploadUrl() {
+		return mUploadUrl;
+	}
+	
 	
 	public static void checkGlobals(Context context) {		
 		File f = context.getFileStreamPath(SETTINGS_FILE);
@@ -134,6 +181,26 @@ public class ApplicationGlobals {
 	 */
 	public static final String KEY_PARSE_REPLY = "ParseReply";
 	
+	/**
+	 * 
+	 */
+	public static final String KEY_DEDUP_WINDOW = "DedupWindow";
+	
+	/**
+	 * 
+	 */
+	public static final String KEY_FLOOD_BURST = "FloodBurst";
+	
+	/**
+	 * 
+	 */
+	public static final String KEY_FLOOD_REFILL = "FloodRefillPerHour";
+	
+	/**
+	 * 
+	 */
+	public static final String KEY_UPLOAD_URL = "UploadUrl";
+	
 	/**
 	 * 
 	 */
@@ -202,8 +269,10 @@ public class ApplicationGlobals {
 	 * 
 	 */
 	public static void saveGlobalSettings(Context context,boolean activateAll, boolean parseReply, String parseReplyText, boolean failedReply, String failedReplyText) {		
-		JSONObject settingsObj = new JSONObject();
-		FileOutputStream fos = null;
+		JSONObject settingsObj = loadSettingsFromFile(context);
+		if (settingsObj == null) {
+			settingsObj = new JSONObject();
+		}
 		try {
 			settingsObj.put(KEY_ACTIVE_ALL, activateAll);
 			settingsObj.put(KEY_PARSE_REPLY, parseReply);
@@ -213,7 +282,30 @@ public class ApplicationGlobals {
 		} catch (JSONException e1) {
 			e1.printStackTrace();
 		}
-		
+		writeSettings(context, settingsObj);
+	}
+	
+	/**
+	 * Save the settings of the ingestion pipeline, keeping everything else in
+	 * the settings file as it is.
+	 */
+	public static void saveIngestSettings(Context context, int dedupWindowSeconds, int floodBurst, int floodRefillPerHour) {
+		JSONObject settingsObj = loadSettingsFromFile(context);
+		if (settingsObj == null) {
+			settingsObj = new JSONObject();
+		}
+		try {
+			settingsObj.put(KEY_DEDUP_WINDOW, dedupWindowSeconds);
+			settingsObj.put(KEY_FLOOD_BURST, floodBurst);
+			settingsObj.put(KEY_FLOOD_REFILL, floodRefillPerHour);
+		} catch (JSONException e1) {
+			e1.printStackTrace();
+		}
+		writeSettings(context, settingsObj);
+	}
+	
+	private static void writeSettings(Context context, JSONObject settingsObj) {
+		FileOutputStream fos = null;
 		try {
 			fos = context.openFileOutput(SETTINGS_FILE, Context.MODE_PRIVATE);
 			fos.write(settingsObj.toString().getBytes());
@@ -26,6 +26,7 @@ import org.rapidandroid.activity.chart.message.MessageDataBroker;
 import org.rapidandroid.content.translation.ModelTranslator;
 import org.rapidandroid.data.controller.MessageDataReporter;
 import org.rapidandroid.data.controller.ParsedDataReporter;
+import org.rapidandroid.view.ChartView;
 import org.rapidsms.java.core.Constants;
 import org.rapidsms.java.core.model.Form;
 
@@ -39,6 +40,7 @@ import android.os.Bundle;
 import android.view.Display;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.View;
 import android.webkit.WebView;
 
 /**
@@ -63,9 +65,12 @@ public class ChartData extends Activity {
 	private static final String STATE_GRAPH_DATA = "graphdata";
 	private static final String STATE_GRAPH_OPTION = "graphoption";
 
+	private static final String PREF_NATIVE_RENDERER = "nativerenderer";
+
 	private static final int MENU_DONE = Menu.FIRST;
 	private static final int MENU_CHANGE_VARIABLE = Menu.FIRST + 1;
 	private static final int MENU_CHANGE_DATERANGE = Menu.FIRST + 2;
+	private static final int MENU_SWITCH_RENDERER = Menu.FIRST + 3;
 
 	private static final int ACTIVITY_DATERANGE = 7;
 	private static final int THINKING_DIALOG = 160;
@@ -77,7 +82,9 @@ public class ChartData extends Activity {
 
 	private Form mForm;
 	ChartBroker mBroker;
-	private WebView mWebView;	
+	private WebView mWebView;
+	private ChartView mChartView;
+	private boolean mNativeRenderer;
 
 	/*
 	 * (non-Javadoc)
@@ -97,6 +104,8 @@ public class ChartData extends Activity {
 		setContentView(org.rapidandroid.R.layout.data_chart);
 		mWebView = (WebView) findViewById(org.rapidandroid.R.id.wv1);
 		mWebView.getSettings().setJavaScriptEnabled(true);		
+		mChartView = (ChartView) findViewById(org.rapidandroid.R.id.chart_native);
+		mNativeRenderer = getPreferences(MODE_PRIVATE).getBoolean(PREF_NATIVE_RENDERER, false);
 
 		Bundle extras = getIntent().getExtras();
 		if (extras != null) {
@@ -118,7 +127,7 @@ public class ChartData extends Activity {
 
 			}
 			if (savedInstanceState == null) {
-				mBroker.bindChartToHTML();
+				bindChart();
 			} 
 		}
 	}
@@ -157,7 +166,41 @@ public class ChartData extends Activity {
 			mBroker.setGraphData(savedInstanceState.getString(STATE_GRAPH_DATA));
 			mBroker.setGraphOptions(savedInstanceState.getString(STATE_GRAPH_OPTION));
 		}
-		mBroker.bindChartToHTML();		
+		bindChart();
+	}
+
+	/**
+	 * Shows the chart in whichever of the WebView and the ChartView was last
+	 * picked.
+	 */
+	private void bindChart() {
+		if (mNativeRenderer) {
+			mWebView.setVisibility(View.GONE);
+			mChartView.setVisibility(View.VISIBLE);
+			mBroker.bindChartToView(mChartView);
+		} else {
+			mChartView.setVisibility(View.GONE);
+			mBroker.bindChartToHTML();
+		}
+	}
+
+	@Override
+	protected void onResume() {
+		super.onResume();
+		if (mBroker != null) {
+			mBroker.startLiveUpdates();
+			// also picks up a new range coming back from DateRange
+			mBroker.startPrefetch();
+		}
+	}
+
+	@Override
+	protected void onPause() {
+		super.onPause();
+		if (mBroker != null) {
+			mBroker.stopLiveUpdates();
+			mBroker.stopPrefetch();
+		}
 	}
 
 	/*
@@ -261,6 +304,8 @@ public class ChartData extends Activity {
 			.setIcon(android.R.drawable.ic_menu_preferences);
 		menu.add(0, MENU_CHANGE_DATERANGE, 0, R.string.chart_menu_change_parameters)
 			.setIcon(android.R.drawable.ic_menu_recent_history);
+		menu.add(0, MENU_SWITCH_RENDERER, 0, R.string.chart_menu_switch_renderer)
+			.setIcon(android.R.drawable.ic_menu_view);
 		return true;
 	}
 
@@ -278,6 +323,11 @@ public class ChartData extends Activity {
 			case MENU_CHANGE_DATERANGE:
 				startDateRangeActivity();
 				return true;
+			case MENU_SWITCH_RENDERER:
+				mNativeRenderer = !mNativeRenderer;
+				getPreferences(MODE_PRIVATE).edit().putBoolean(PREF_NATIVE_RENDERER, mNativeRenderer).commit();
+				bindChart();
+				return true;
 		}
 		return true;
 	}
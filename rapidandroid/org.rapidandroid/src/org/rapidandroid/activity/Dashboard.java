@@ -20,6 +20,9 @@
  */
 package org.rapidandroid.activity;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.text.ParseException;
 import java.util.Calendar;
 import java.util.Date;
@@ -28,9 +31,11 @@ import org.rapidandroid.R;
 import org.rapidandroid.content.translation.ModelTranslator;
 import org.rapidandroid.content.translation.XMLTranslator;
 import org.rapidandroid.data.RapidSmsDBConstants;
+import org.rapidandroid.data.controller.CorpusImporter;
 import org.rapidandroid.data.controller.DashboardDataLayer;
 import org.rapidandroid.data.controller.MessageDataReporter;
 import org.rapidandroid.data.controller.ParsedDataReporter;
+import org.rapidandroid.data.controller.SubmissionWorker;
 import org.rapidandroid.view.SingleRowHeaderView;
 import org.rapidandroid.view.adapter.FormDataGridCursorAdapter;
 import org.rapidandroid.view.adapter.MessageCursorAdapter;
@@ -39,14 +44,17 @@ import org.rapidsms.java.core.Constants;
 import org.rapidsms.java.core.model.Field;
 import org.rapidsms.java.core.model.Form;
 import org.rapidsms.java.core.model.Message;
+import org.rapidsms.java.core.upload.SubmissionMetrics;
 
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.AlertDialog.Builder;
+import android.app.ProgressDialog;
 import android.content.ComponentName;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
@@ -71,6 +79,7 @@ import android.widget.RadioButton;
 import android.widget.Spinner;
 import android.widget.TableLayout;
 import android.widget.TextView;
+import android.widget.Toast;
 import android.widget.ViewSwitcher;
 
 /**
@@ -226,12 +235,15 @@ public class Dashboard extends Activity {
 	// private static final int ACTIVITY_DATERANGE = 2;
 	private static final int ACTIVITY_CHARTS = 3; // this and ACTIVITY_CHARTS
 	private static final int ACTIVITY_GLOBALSETTINGS = 4;
+	private static final int ACTIVITY_IMPORT = 5;
 
 	private static final int MENU_CREATE_ID = Menu.FIRST;
 	private static final int MENU_FORM_REVIEW_ID = Menu.FIRST + 1;
 	private static final int MENU_CHANGE_DATERANGE = Menu.FIRST + 2;
 	private static final int MENU_CHARTS_ID = Menu.FIRST + 3;
 	private static final int MENU_GLOBAL_SETTINGS = Menu.FIRST + 4;
+	private static final int MENU_SUBMIT_INSTANCES = Menu.FIRST + 5;
+	private static final int MENU_IMPORT_MESSAGES = Menu.FIRST + 6;
 	// private static final int MENU_SHOW_REPORTS = Menu.FIRST + 3;
 	// private static final int MENU_EXIT = Menu.FIRST + 3; //waitaminute, we
 	// don't want to exit this thing, do we?
@@ -655,6 +667,11 @@ public class Dashboard extends Activity {
 					resetCursor = true;
 					beginListViewReload();
 					break;
+				case ACTIVITY_IMPORT:
+					if (extras != null && extras.getString("filename") != null) {
+						importMessages(extras.getString("filename"));
+					}
+					break;
 				// case ACTIVITY_DATERANGE:
 				// if (extras != null) {
 				// mStartDate = new
@@ -680,6 +697,8 @@ public class Dashboard extends Activity {
 		// R.string.chart_menu_change_parameters.setIcon(android.R.drawable.ic_menu_recent_history);
 		menu.add(0, MENU_CHARTS_ID, 0, R.string.dashboard_menu_view).setIcon(android.R.drawable.ic_menu_sort_by_size);
 		menu.add(0, MENU_GLOBAL_SETTINGS, 0, "Change Settings").setIcon(android.R.drawable.ic_menu_preferences);
+		menu.add(0, MENU_SUBMIT_INSTANCES, 0, R.string.dashboard_menu_submit).setIcon(android.R.drawable.ic_menu_upload);
+		menu.add(0, MENU_IMPORT_MESSAGES, 0, R.string.dashboard_menu_import).setIcon(android.R.drawable.ic_menu_save);
 		// menu.add(0, MENU_SHOW_REPORTS, 0,
 		// R.string.dashboard_menu_show_reports);
 		return true;
@@ -706,6 +725,12 @@ public class Dashboard extends Activity {
 			case MENU_GLOBAL_SETTINGS:
 				startActivityGlobalSettings();
 				return true;
+			case MENU_SUBMIT_INSTANCES:
+				submitInstances();
+				return true;
+			case MENU_IMPORT_MESSAGES:
+				startActivityForResult(new Intent(this, FileBrowser.class), ACTIVITY_IMPORT);
+				return true;
 		}
 		return true;
 	}
@@ -787,6 +812,100 @@ public class Dashboard extends Activity {
 		
 	}
 	
+	/**
+	 * Send every finalized report that hasn't gone out yet.
+	 */
+	private void submitInstances() {
+		Toast.makeText(getApplicationContext(), "Submitting reports", Toast.LENGTH_SHORT).show();
+		new Thread(new Runnable() {
+			public void run() {
+				mSubmitted = new SubmissionWorker(getBaseContext()).run();
+				mSubmitBacklog = SubmissionWorker.getBacklog(getBaseContext());
+				mDashboardHandler.post(mSubmitFinished);
+			}
+		}).start();
+	}
+
+	private int mSubmitted;
+	private int mSubmitBacklog;
+	final Runnable mSubmitFinished = new Runnable() {
+		public void run() {
+			SubmissionMetrics metrics = SubmissionWorker.getMetrics();
+			Toast.makeText(getApplicationContext(),
+							"Submitted " + mSubmitted + " reports, " + mSubmitBacklog + " still waiting ("
+									+ Math.round(metrics.getSubmissionsPerMinute()) + " per minute)",
+							Toast.LENGTH_LONG).show();
+		}
+	};
+
+	/**
+	 * Import a CSV of old messages off the sdcard, with a progress dialog
+	 * that can cancel it.
+	 */
+	private void importMessages(final String filename) {
+		final File f = new File(filename);
+		final CorpusImporter importer = new CorpusImporter(getBaseContext());
+		mImportProgressDialog = new ProgressDialog(this);
+		mImportProgressDialog.setTitle("Please wait");
+		mImportProgressDialog.setMessage("Importing " + f.getName() + "...");
+		mImportProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+		mImportProgressDialog.setMax(100);
+		mImportProgressDialog.setCancelable(false);
+		mImportProgressDialog.setButton("Cancel", new DialogInterface.OnClickListener() {
+			public void onClick(DialogInterface dialog, int which) {
+				importer.cancel();
+			}
+		});
+		mImportProgressDialog.show();
+		importer.setListener(new CorpusImporter.ImportProgressListener() {
+			public void onProgress(int imported, long bytesRead, long totalBytes) {
+				mImportPercent = totalBytes > 0 ? (int) (bytesRead * 100 / totalBytes) : 0;
+				mDashboardHandler.post(mImportProgress);
+			}
+		});
+
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					mImportFinished = importer.run(new FileInputStream(f), f.length());
+				} catch (IOException e) {
+					Log.e("Dashboard", "Import of " + f + " failed", e);
+					mImportFinished = false;
+				}
+				mImported = importer.getImported();
+				mImportRejected = importer.getRejected();
+				mDashboardHandler.post(mImportDone);
+			}
+		}).start();
+	}
+
+	private ProgressDialog mImportProgressDialog;
+	private volatile int mImportPercent;
+	private boolean mImportFinished;
+	private int mImported;
+	private int mImportRejected;
+	final Runnable mImportProgress = new Runnable() {
+		public void run() {
+			if (mImportProgressDialog != null) {
+				mImportProgressDialog.setProgress(mImportPercent);
+			}
+		}
+	};
+	final Runnable mImportDone = new Runnable() {
+		public void run() {
+			if (mImportProgressDialog != null) {
+				mImportProgressDialog.dismiss();
+				mImportProgressDialog = null;
+			}
+			Toast.makeText(getApplicationContext(),
+							(mImportFinished ? "Imported " : "Import stopped after ") + mImported + " messages"
+									+ (mImportRejected > 0 ? ", skipped " + mImportRejected + " bad rows" : ""),
+							Toast.LENGTH_LONG).show();
+			resetCursor = true;
+			beginListViewReload();
+		}
+	};
+
 	// Start the form edit/create activity
 	private void startActivityFormReview() {
 		Intent i;
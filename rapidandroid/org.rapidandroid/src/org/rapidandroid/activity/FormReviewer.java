@@ -20,48 +20,40 @@
  */
 package org.rapidandroid.activity;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringReader;
-import java.text.ParseException;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Random;
-import java.util.StringTokenizer;
-import java.util.Vector;
-
-import org.apache.http.HttpResponse;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.mime.MultipartEntity;
-import org.apache.http.entity.mime.content.FileBody;
-import org.apache.http.entity.mime.content.StringBody;
-import org.apache.http.impl.client.DefaultHttpClient;
+
+import org.rapidandroid.ApplicationGlobals;
 import org.rapidandroid.R;
-import org.rapidandroid.content.translation.MessageTranslator;
 import org.rapidandroid.content.translation.ModelTranslator;
-import org.rapidandroid.content.translation.ParsedDataTranslator;
-import org.rapidandroid.data.RapidSmsDBConstants;
+import org.rapidandroid.data.controller.CorpusImporter;
+import org.rapidandroid.data.controller.InstanceExportJob;
 import org.rapidandroid.data.controller.ParsedDataReporter;
+import org.rapidandroid.data.controller.RollupDataLayer;
+import org.rapidandroid.data.controller.SketchDataLayer;
+import org.rapidandroid.data.controller.TallyDataLayer;
+import org.rapidandroid.data.controller.UploadSessionDataLayer;
 import org.rapidandroid.view.adapter.FieldViewAdapter;
 import org.rapidsms.java.core.Constants;
 import org.rapidsms.java.core.model.Field;
 import org.rapidsms.java.core.model.Form;
 import org.rapidsms.java.core.model.Message;
-import org.rapidsms.java.core.model.Monitor;
-import org.rapidsms.java.core.parser.IParseResult;
-import org.rapidsms.java.core.parser.service.ParsingService;
+import org.rapidsms.java.core.upload.ChunkedUploader;
+import org.rapidsms.java.core.upload.UploadSession;
 
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
+import android.app.ProgressDialog;
 import android.app.AlertDialog.Builder;
-import android.content.ContentValues;
+import android.content.DialogInterface;
 import android.content.Intent;
-import android.net.Uri;
 import android.os.Bundle;
-import android.os.Debug;
 import android.os.Handler;
 import android.util.Log;
 import android.view.Menu;
@@ -91,10 +83,15 @@ public class FormReviewer extends Activity {
 	private static final int MENU_DUMP_CSV = Menu.FIRST + 2;
 	private static final int MENU_HTTP_UPLOAD = Menu.FIRST + 3;
 	private static final int MENU_INJECT_DEBUG = Menu.FIRST + 4;
+	private static final int MENU_REBUILD_TALLY = Menu.FIRST + 5;
+	private static final int MENU_EXPORT_XFORMS = Menu.FIRST + 6;
+	private static final int MENU_DUMP_CSV_GZIP = Menu.FIRST + 7;
+	private static final int MENU_DUMP_COLUMNAR = Menu.FIRST + 8;
 
 	public static final int ACTIVITY_FILE_BROWSE = 0;
 
 	boolean success = false;
+	private boolean mUploadResumable = false;
 
 	private Form mForm;
 	final Handler mDebugHandler = new Handler();
@@ -105,12 +102,49 @@ public class FormReviewer extends Activity {
 		}
 	};
 
+	private ProgressDialog mCsvProgressDialog;
+	private volatile int mCsvRowsWritten = 0;
+	private volatile int mCsvRowsTotal = 0;
+	private File mCsvFile;
+	private boolean mCsvIncremental = false;
+
+	final Runnable mCsvProgress = new Runnable() {
+		public void run() {
+			if (mCsvProgressDialog != null) {
+				mCsvProgressDialog.setMax(mCsvRowsTotal);
+				mCsvProgressDialog.setProgress(mCsvRowsWritten);
+			}
+		}
+	};
+
 	final Runnable mUpdateResults = new Runnable() {
 		public void run() {
 			updateResultsInUi();
 		}
 	};
 
+	final Runnable mTallyRebuilt = new Runnable() {
+		public void run() {
+			Toast.makeText(getApplicationContext(), "Reply tallies, chart rollups and field statistics rebuilt", Toast.LENGTH_LONG).show();
+		}
+	};
+
+	private boolean mXformExportFinished = false;
+	private int mXformExportCount = 0;
+
+	final Runnable mXformsExported = new Runnable() {
+		public void run() {
+			if (mXformExportFinished) {
+				Toast.makeText(getApplicationContext(), "XForm export complete, " + mXformExportCount + " instances",
+								Toast.LENGTH_LONG).show();
+			} else {
+				Toast.makeText(getApplicationContext(),
+								"XForm export stopped after " + mXformExportCount + " instances, run it again to resume",
+								Toast.LENGTH_LONG).show();
+			}
+		}
+	};
+
 	final Runnable mFinishUpload = new Runnable() {
 		public void run() {
 			alertUploadStatus();
@@ -161,6 +195,11 @@ public class FormReviewer extends Activity {
 		menu.add(0, MENU_FORMAT, 0, R.string.formreview_menu_format).setIcon(android.R.drawable.ic_menu_info_details);
 
 		menu.add(0, MENU_DUMP_CSV, 0, R.string.formreview_dump_csv).setIcon(android.R.drawable.ic_menu_save);
+		menu.add(0, MENU_DUMP_CSV_GZIP, 0, R.string.formreview_dump_csv_gzip).setIcon(android.R.drawable.ic_menu_save);
+		menu.add(0, MENU_DUMP_COLUMNAR, 0, R.string.formreview_dump_columnar).setIcon(android.R.drawable.ic_menu_save);
+
+		menu.add(0, MENU_REBUILD_TALLY, 0, R.string.formreview_rebuild_tally).setIcon(android.R.drawable.ic_menu_rotate);
+		menu.add(0, MENU_EXPORT_XFORMS, 0, R.string.formreview_export_xforms).setIcon(android.R.drawable.ic_menu_upload);
 
 //		menu.add(0, MENU_HTTP_UPLOAD, 0, R.string.formreview_upload_csv).setIcon(android.R.drawable.ic_menu_upload);
 
@@ -191,6 +230,8 @@ public class FormReviewer extends Activity {
 				showDialog(0);
 				return true;
 			case MENU_DUMP_CSV:
+			case MENU_DUMP_CSV_GZIP:
+			case MENU_DUMP_COLUMNAR:
 				if (ParsedDataReporter.getOldestMessageDate(this, mForm).equals(Constants.NULLDATE)) {
 					Builder noDateDialog = new AlertDialog.Builder(this);
 					noDateDialog.setPositiveButton("Ok", null);
@@ -200,7 +241,7 @@ public class FormReviewer extends Activity {
 					return true;
 				}
 
-				outputCSV();
+				chooseExportScope(item.getItemId());
 				break;
 			case MENU_HTTP_UPLOAD:
 				chooseFile();
@@ -208,6 +249,12 @@ public class FormReviewer extends Activity {
 			case MENU_INJECT_DEBUG:
 				injectMessages();
 				break;
+			case MENU_REBUILD_TALLY:
+				rebuildTallies();
+				break;
+			case MENU_EXPORT_XFORMS:
+				chooseExportScope(item.getItemId());
+				break;
 
 		}
 		return true;
@@ -254,14 +301,25 @@ public class FormReviewer extends Activity {
 		if (success) {
 			Toast.makeText(getApplicationContext(), "File upload successful", Toast.LENGTH_LONG).show();
 		} else {
-			Toast.makeText(getApplicationContext(), "File upload failed", Toast.LENGTH_LONG).show();
+			Toast.makeText(getApplicationContext(),
+							mUploadResumable ? "File upload interrupted, upload it again to resume" : "File upload failed",
+							Toast.LENGTH_LONG).show();
 		}
 	}
 
 	private void alertCSVStatus() {
-
-		Toast.makeText(getApplicationContext(), "CSV Save Complete", Toast.LENGTH_LONG).show();
-
+		if (mCsvProgressDialog != null) {
+			mCsvProgressDialog.dismiss();
+			mCsvProgressDialog = null;
+		}
+		if (mCsvFile != null) {
+			Toast.makeText(getApplicationContext(), "Export Complete: " + mCsvFile.getName(), Toast.LENGTH_LONG)
+					.show();
+		} else if (mCsvIncremental && mCsvRowsTotal == 0) {
+			Toast.makeText(getApplicationContext(), "No new rows since the last export", Toast.LENGTH_LONG).show();
+		} else {
+			Toast.makeText(getApplicationContext(), "Export Failed", Toast.LENGTH_LONG).show();
+		}
 	}
 
 	private void updateResultsInUi() {
@@ -277,39 +335,21 @@ public class FormReviewer extends Activity {
 		// on activity return do the upload
 	}
 
+	/**
+	 * Upload a file in chunks, resuming its earlier upload if one was cut off.
+	 */
 	private void uploadFile(final String filename) {
 		Toast.makeText(getApplicationContext(), "File upload begun", Toast.LENGTH_LONG).show();
 		Thread t = new Thread() {
 			@Override
 			public void run() {
+				UploadSessionDataLayer sessions = new UploadSessionDataLayer(getBaseContext());
 				try {
-					DefaultHttpClient httpclient = new DefaultHttpClient();
-
-					File f = new File(filename);
-
-					HttpPost httpost = new HttpPost("http://192.168.7.127:8160/upload/upload");
-					MultipartEntity entity = new MultipartEntity();
-					entity.addPart("myIdentifier", new StringBody("somevalue"));
-					entity.addPart("myFile", new FileBody(f));
-					httpost.setEntity(entity);
-
-					HttpResponse response;
-
-					// Post, check and show the result (not really spectacular,
-					// but works):
-					response = httpclient.execute(httpost);
-
-					Log.d("httpPost", "Login form get: " + response.getStatusLine());
-
-					if (entity != null) {
-						entity.consumeContent();
-					}
-
-					success = true;
-				} catch (Exception ex) {
-					Log.d("FormReviewer", "Upload failed: " + ex.getMessage() + " Stacktrace: " + ex.getStackTrace());
-					success = false;
+					UploadSession session = sessions.getSession(new File(filename), ApplicationGlobals.getUploadUrl());
+					success = new ChunkedUploader(sessions).upload(session);
+					mUploadResumable = session.getStatus() == UploadSession.STATUS_PENDING;
 				} finally {
+					sessions.close();
 					mDebugHandler.post(mFinishUpload);
 				}
 			}
@@ -317,11 +357,41 @@ public class FormReviewer extends Activity {
 		t.start();
 	}
 
+	/**
+	 * Ask whether an export should only take the rows that came in since the
+	 * last one, or everything, then start it.
+	 * 
+	 * @param menuId
+	 *            the export menu item picked
+	 */
+	private void chooseExportScope(final int menuId) {
+		new AlertDialog.Builder(this).setTitle("Export")
+										.setItems(new String[] { "New rows only", "Everything" },
+													new DialogInterface.OnClickListener() {
+														public void onClick(DialogInterface dialog, int which) {
+															boolean incremental = which == 0;
+															if (menuId == MENU_EXPORT_XFORMS) {
+																exportXforms(incremental);
+															} else {
+																outputCSV(menuId, incremental);
+															}
+														}
+													}).show();
+	}
+
 	/**
 	 * 
 	 */
-	private void outputCSV() {
-		Toast.makeText(getApplicationContext(), "CSV output job has begun", Toast.LENGTH_LONG).show();
+	private void outputCSV(final int menuId, final boolean incremental) {
+		mCsvIncremental = incremental;
+		mCsvRowsWritten = 0;
+		mCsvRowsTotal = 0;
+		mCsvProgressDialog = new ProgressDialog(this);
+		mCsvProgressDialog.setTitle("Please wait");
+		mCsvProgressDialog.setMessage(menuId == MENU_DUMP_COLUMNAR ? "Writing export..." : "Writing CSV...");
+		mCsvProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+		mCsvProgressDialog.setCancelable(false);
+		mCsvProgressDialog.show();
 		// Fire off a thread to do some work that we shouldn't do directly in
 		// the UI thread
 		Thread t = new Thread() {
@@ -330,7 +400,21 @@ public class FormReviewer extends Activity {
 				Calendar now = Calendar.getInstance();
 				Calendar then = Calendar.getInstance();
 				then.set(Calendar.YEAR, 1990);
-				ParsedDataReporter.exportFormDataToCSV(getBaseContext(), mForm, then, now);
+				ParsedDataReporter.ExportProgressListener listener = new ParsedDataReporter.ExportProgressListener() {
+					public void onProgress(int rowsWritten, int totalRows) {
+						mCsvRowsWritten = rowsWritten;
+						mCsvRowsTotal = totalRows;
+						mDebugHandler.post(mCsvProgress);
+					}
+				};
+				if (menuId == MENU_DUMP_COLUMNAR) {
+					mCsvFile = ParsedDataReporter.exportFormDataToColumnar(getBaseContext(), mForm, then, now,
+																			incremental, listener);
+				} else {
+					mCsvFile = ParsedDataReporter.exportFormDataToCSV(getBaseContext(), mForm, then, now,
+																		menuId == MENU_DUMP_CSV_GZIP, incremental,
+																		listener);
+				}
 				mDebugHandler.post(mCsvSaveCompleted);
 
 			}
@@ -338,6 +422,43 @@ public class FormReviewer extends Activity {
 		t.start();
 	}
 
+	/**
+	 * Regenerate the ODK instances of every message this form has received,
+	 * or only of those received since the last XForm export.
+	 */
+	private void exportXforms(final boolean incremental) {
+		Toast.makeText(getApplicationContext(), "XForm export has begun", Toast.LENGTH_LONG).show();
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				Calendar then = Calendar.getInstance();
+				then.set(Calendar.YEAR, 1990);
+				InstanceExportJob job = new InstanceExportJob(getBaseContext(), mForm, then.getTime(), new Date());
+				job.setIncremental(incremental);
+				mXformExportFinished = job.run();
+				mXformExportCount = job.getExportedCount();
+				mDebugHandler.post(mXformsExported);
+			}
+		};
+		t.start();
+	}
+
+	/**
+	 * Recount the survey reply tallies for this form from its formdata table.
+	 */
+	private void rebuildTallies() {
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				TallyDataLayer.rebuildTallies(getBaseContext(), mForm);
+				RollupDataLayer.rebuildRollups(getBaseContext(), mForm);
+				SketchDataLayer.rebuildSketches(getBaseContext(), mForm);
+				mDebugHandler.post(mTallyRebuilt);
+			}
+		};
+		t.start();
+	}
+
 	/**
 	 * 
 	 */
@@ -360,138 +481,32 @@ public class FormReviewer extends Activity {
 	}
 
 	
+	/**
+	 * The bednets corpus goes through the same bulk importer as any other
+	 * message log.
+	 */
 	private void doCsvDirectBednetsInjection() {
-		String rawMessageText = "";
-		
 		try {
 			InputStream is = this.getAssets().open("testdata/rawdata.csv");
-
-			int size = is.available();
-
-			// Read the entire asset into a local byte buffer.
-			byte[] buffer = new byte[size];
-			is.read(buffer);
-			is.close();
-
-			// Convert the buffer into a Java string.
-			String text = new String(buffer);
-
-			rawMessageText = text;
-
+			new CorpusImporter(this).run(is, -1);
 		} catch (IOException e) {
 			// Should never happen!
 			throw new RuntimeException(e);
 		}
-
-		
-		StringReader sr = new StringReader(rawMessageText);
-		BufferedReader bufRdr = new BufferedReader(sr);
-
-		String line = null;
-		int row = 0;
-		int col = 0;
-		Vector<String[]> lines = new Vector<String[]>();
-		// read each line of text file
-		try {
-			while ((line = bufRdr.readLine()) != null) {
-				StringTokenizer st = new StringTokenizer(line, ",");
-				int tokCount = st.countTokens();
-
-				String[] tokenizedLine = new String[tokCount];
-				int toki = 0;
-				while (st.hasMoreTokens()) {
-					tokenizedLine[toki] = st.nextToken();
-					toki++;
-				}
-				lines.add(tokenizedLine);
-			}
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} finally {
-
-			try {
-				sr.close();
-				bufRdr.close();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-		}
-		int len = lines.size();
-
-		for (int i = 0; i < len; i++) {
-			String[] csvline = lines.get(i);
-
-			String datestr = csvline[0];
-
-			Date dateval = new Date();
-			try {
-				dateval = Message.SQLDateFormatter.parse(datestr);
-			} catch (ParseException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-				
-			}
-			String sender = csvline[1];
-			String text = csvline[2];
-			
-			Monitor monitor = MessageTranslator.GetMonitorAndInsertIfNew(this, sender);
-
-			ContentValues messageValues = new ContentValues();
-			messageValues.put(RapidSmsDBConstants.Message.MESSAGE, text);
-			messageValues.put(RapidSmsDBConstants.Message.MONITOR, monitor.getID());
-
-			messageValues.put(RapidSmsDBConstants.Message.TIME, Message.SQLDateFormatter.format(dateval));
-			messageValues.put(RapidSmsDBConstants.Message.RECEIVE_TIME, Message.SQLDateFormatter.format(dateval));
-			messageValues.put(RapidSmsDBConstants.Message.IS_OUTGOING, false);
-
-			Uri msgUri = null;
-			
-			msgUri = this.getContentResolver().insert(RapidSmsDBConstants.Message.CONTENT_URI, messageValues);
-			Vector<IParseResult> results = ParsingService.ParseMessage(mForm, text);
-			ParsedDataTranslator.InsertFormData(this, mForm, Integer.valueOf(msgUri.getPathSegments().get(1))
-																			.intValue(), results);
-		}
-
-
-
 	}
-	
-	private void doRandomizedInjection() {
-		Random r = new Random();
 
-		// Debug.startMethodTracing("injection");
+	private void doRandomizedInjection() {
+		StringBuilder csv = new StringBuilder();
 		for (int i = 0; i < 100; i++) {
-
-			// first, let's get the
-			String token = phones[r.nextInt(phones.length)];// Long.toString(Math.abs(r.nextLong()),
-															// 36);
-			Monitor monitor = MessageTranslator.GetMonitorAndInsertIfNew(this, token);
-
-			Uri writeMessageUri = RapidSmsDBConstants.Message.CONTENT_URI;
-
-			StringBuilder sb = this.generateRandomMessage();
-			ContentValues messageValues = new ContentValues();
-			messageValues.put(RapidSmsDBConstants.Message.MESSAGE, sb.toString());
-			messageValues.put(RapidSmsDBConstants.Message.MONITOR, monitor.getID());
-
-			Date now = getRandomDate();
-
-			messageValues.put(RapidSmsDBConstants.Message.TIME, Message.SQLDateFormatter.format(now));
-			messageValues.put(RapidSmsDBConstants.Message.IS_OUTGOING, false);
-
-			Uri msgUri = null;
-
-			msgUri = getContentResolver().insert(writeMessageUri, messageValues);
-
-			Vector<IParseResult> results = ParsingService.ParseMessage(mForm, sb.toString());
-			ParsedDataTranslator.InsertFormData(this, mForm, Integer.valueOf(msgUri.getPathSegments().get(1))
-																	.intValue(), results);
+			String phone = phones[r.nextInt(phones.length)];
+			csv.append(Message.SQLDateFormatter.format(getRandomDate())).append(',').append(phone).append(',');
+			csv.append(this.generateRandomMessage().toString().trim()).append('\n');
+		}
+		try {
+			new CorpusImporter(this).run(new ByteArrayInputStream(csv.toString().getBytes("UTF-8")), -1);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
 		}
-
-		Debug.stopMethodTracing();
-
 	}
 
 	private Date getRandomDate() {
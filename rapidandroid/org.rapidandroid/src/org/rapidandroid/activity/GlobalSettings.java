@@ -28,6 +28,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.rapidandroid.ApplicationGlobals;
 import org.rapidandroid.R;
+import org.rapidandroid.receiver.FloodControl;
 
 import android.app.Activity;
 import android.content.Context;
@@ -39,6 +40,7 @@ import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.CheckBox;
 import android.widget.EditText;
+import android.widget.TextView;
 
 /**
  * @author Daniel Myung dmyung@dimagi.com
@@ -64,6 +66,10 @@ public class GlobalSettings extends Activity {
 	private EditText mParseReplyText;
 	private CheckBox mNoparseCheckBox;
 	private EditText mNoparseReplyText;
+	private EditText mDedupWindowText;
+	private EditText mFloodBurstText;
+	private EditText mFloodRefillText;
+	private TextView mFloodStatus;
 	
 	
 	private OnClickListener mCheckChangeListener = new OnClickListener() {
@@ -112,6 +118,11 @@ public class GlobalSettings extends Activity {
 		mNoparseCheckBox.setOnClickListener(mCheckChangeListener);
 		this.mNoparseReplyText = (EditText) findViewById(R.id.glb_etx_failed);
 		
+		mDedupWindowText = (EditText) findViewById(R.id.glb_etx_dedupwindow);
+		mFloodBurstText = (EditText) findViewById(R.id.glb_etx_floodburst);
+		mFloodRefillText = (EditText) findViewById(R.id.glb_etx_floodrefill);
+		mFloodStatus = (TextView) findViewById(R.id.glb_txv_floodstatus);
+		
 		loadSettingsFromGlobals();
 		
 		mParseReplyText.setEnabled(mActiveSwitch.isChecked());
@@ -133,6 +144,15 @@ public class GlobalSettings extends Activity {
 			mParseReplyText.setText(globals.getString(ApplicationGlobals.KEY_PARSE_REPLY_TEXT));
 			mNoparseCheckBox.setChecked(globals.getBoolean(ApplicationGlobals.KEY_FAILED_REPLY));
 			mNoparseReplyText.setText(globals.getString(ApplicationGlobals.KEY_FAILED_REPLY_TEXT));
+			mDedupWindowText.setText(String.valueOf(globals.optInt(ApplicationGlobals.KEY_DEDUP_WINDOW,
+																	ApplicationGlobals.DEFAULT_DEDUP_WINDOW_SECONDS)));
+			mFloodBurstText.setText(String.valueOf(globals.optInt(ApplicationGlobals.KEY_FLOOD_BURST,
+																	ApplicationGlobals.DEFAULT_FLOOD_BURST)));
+			mFloodRefillText.setText(String.valueOf(globals.optInt(ApplicationGlobals.KEY_FLOOD_REFILL,
+																	ApplicationGlobals.DEFAULT_FLOOD_REFILL_PER_HOUR)));
+			mFloodStatus.setText(FloodControl.getThrottledCount() + " of "
+					+ (FloodControl.getThrottledCount() + FloodControl.getAcceptedCount())
+					+ " messages deferred, from " + FloodControl.getThrottledByMonitor().size() + " phones");
 		} catch (JSONException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -179,8 +199,21 @@ public class GlobalSettings extends Activity {
 		                                      mParseReplyText.getText().toString(), 
 		                                      mNoparseCheckBox.isChecked(), 
 		                                      mNoparseReplyText.getText().toString());
+		ApplicationGlobals.saveIngestSettings(this, parseSetting(mDedupWindowText,
+		                                                         ApplicationGlobals.DEFAULT_DEDUP_WINDOW_SECONDS),
+		                                      parseSetting(mFloodBurstText, ApplicationGlobals.DEFAULT_FLOOD_BURST),
+		                                      parseSetting(mFloodRefillText,
+		                                                   ApplicationGlobals.DEFAULT_FLOOD_REFILL_PER_HOUR));
 		
 	}
+	
+	private static int parseSetting(EditText text, int defaultValue) {
+		try {
+			return Integer.parseInt(text.getText().toString().trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
 
 	
 
@@ -4,6 +4,8 @@ package org.rapidandroid.activity;
  * Pulls up the question bank and displays the questions on the screen
  * in text views
  */
+import java.util.Vector;
+
 import org.rapidandroid.content.translation.ModelTranslator;
 import org.rapidandroid.data.RapidSmsDBConstants;
 import org.rapidandroid.data.SurveyCreationConstants;
@@ -302,6 +304,19 @@ public class QuestionChooser extends Activity {
 							Log.i("qnum", ""+questionNumber);
 							Question question = questionBank2.getQuestions().get(i);
 							question.setQuestionText(newQuestionText);
+							
+							// multiple choice lines are laid out as number, entry, punctuation.
+							// keep the entries as the choices, up to the first blank one
+							Vector<String> choices = new Vector<String>();
+							if (question.getQuestionType() == SurveyCreationConstants.QuestionTypes.MULTIPLECHOICE) {
+								for (int line = 1; line < v.getChildCount(); line++) {
+									String choice = ((TextView) ((ViewGroup) v.getChildAt(line)).getChildAt(1)).getText().toString();
+									if (choice.equals("")) {
+										break;
+									}
+									choices.add(choice);
+								}
+							}
 							questions[questionNumber] = question;
 							questionNumber++;
 
@@ -368,16 +383,9 @@ public class QuestionChooser extends Activity {
 							}
 							Log.i("QuestionChooser", "updating form db");
 
-							ContentValues cv = new ContentValues();
-							cv.put("survey_id", surveyId);
-							cv.put("sequence", questionNumber);
-							cv.put("question_type", question.getQuestionType());
-							String[] args = {prefix};
-							int affected = resolver.update(RapidSmsDBConstants.Form.CONTENT_URI, 
-												cv, 
-												"prefix = ?", 
-												args);
-							Log.i("affected rows", "" +affected);
+							ModelTranslator.setSurveyQuestion(formToSave, surveyId, questionNumber, 
+															question.getQuestionType(), 
+															choices.toArray(new String[choices.size()]));
 						//}
 					}
 				}
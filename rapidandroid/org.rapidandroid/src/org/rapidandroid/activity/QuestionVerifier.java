@@ -10,6 +10,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 
+import org.rapidandroid.content.translation.ModelTranslator;
 import org.rapidandroid.data.RapidSmsDBConstants;
 import org.rapidandroid.data.SurveyCreationConstants;
 
@@ -168,45 +169,13 @@ public class QuestionVerifier extends Activity {
 					} else if (questionType == SurveyCreationConstants.QuestionTypes.MULTIPLECHOICE) {
 						
 						
-						String[] selects = new String[4];
+						// the field prompt is the question followed by its numbered
+						// choices, the choices themselves come from the registry
 						String shortprompt = prompt.substring(0, prompt.indexOf("1. "));
-						for (int j = 1; j <= 4; j++) {
-							if (prompt.contains(j + ". ")) {
-								int k = j + 1;
-								Log.i("QuestionVerifier", "j = " + j);
-								Log.i("prompt", prompt);
-								if (prompt.contains(k + ".")) {
-									
-									Log.i("QuestionVerifier", "prompt contains " + k + ".");
-									
-									String startString = "" + j + ". ";
-									String endString = ",  " + k; //todo need to trim whitespace off each input if this is gonna work
-									int start = prompt.indexOf(startString);
-									int end = prompt.indexOf(endString);
-									
-									Log.i("QuestionVerifier", "start index " + start + " start string " + startString);
-									Log.i("QuestionVerifier", "end index " + end + " end string " + endString);
-
-									selects[j-1] = prompt.substring(start, end);
-								} else {
-									Log.i("QuestionVerifier", "prompt doesn't contain " + k + ".");
-									selects[j-1] = prompt.substring(prompt.indexOf("" + j + "."), 
-											prompt.indexOf(".", prompt.indexOf("" + j + ".") +3));
-									//selects[j-1].replace(",", "");
-									//selects[j-1].replace(".", "");
-								}
-							}
-						}
-						int k = 0;
-						while (k < 4 && selects[k] != null) {
-							k++;
-						}
-						Log.i("label",""+ k);
-						String[] labels = new String[k];
-						for (int i = 0; i < k; i++) {
-							
-							labels[i] = selects[i];
-							Log.i("label", labels[i]);
+						String[] choices = ModelTranslator.getChoicesForForm(questions.getInt(questions.getColumnIndex("_id")));
+						String[] labels = new String[choices.length];
+						for (int i = 0; i < choices.length; i++) {
+							labels[i] = (i + 1) + ". " + choices[i];
 						}
 						
 						fields += SurveyCreationConstants.xForm.getSelectFieldXml(1, shortprompt, labels);
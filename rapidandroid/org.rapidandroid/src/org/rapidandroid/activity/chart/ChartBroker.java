@@ -20,18 +20,33 @@ package org.rapidandroid.activity.chart;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.rapidandroid.data.RapidSmsDBConstants;
 import org.rapidandroid.data.SmsDbHelper;
+import org.rapidandroid.data.controller.RollupDataLayer;
+import org.rapidandroid.data.controller.SketchDataLayer;
+import org.rapidandroid.view.ChartView;
 import org.rapidsms.java.core.Constants;
+import org.rapidsms.java.core.chart.LttbDownsampler;
+import org.rapidsms.java.core.stats.DistinctCountSketch;
 import android.app.Activity;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.os.Handler;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Display;
 import android.webkit.WebView;
@@ -44,6 +59,27 @@ import android.webkit.WebView;
  * Java object that the WebView will need to call, specifically the method
  * jsLoadGraph().
  * 
+ * doLoadGraph() runs on a background thread shared by all brokers. Every
+ * jsLoadGraph(), setVariable() and setRange() starts a new request, and work
+ * for an older one is dropped as soon as it's noticed. The finished series
+ * are handed to the page one at a time through jsNextChunk(), so the first
+ * one can be drawn before the rest have crossed the bridge.
+ * 
+ * Between startLiveUpdates() and stopLiveUpdates() the broker watches
+ * rapidandroid_changelog. New rows for its table only reload the display
+ * buckets from the earliest of them on, through loadDelta(), and the page
+ * swaps those points in with UpdateGraph().
+ * 
+ * Bound to a ChartView with bindChartToView() instead, the same series are
+ * turned into a NativeChart on the loader thread and drawn without the page.
+ * Both ways log how long the first paint took.
+ * 
+ * startPrefetch() loads the broker's other variables for the same range into
+ * the ChartCache on a low priority thread, so switching variables doesn't
+ * wait on the database. It works through a copy of the broker from
+ * newPrefetchBroker(), and gives up whatever it's loading as soon as a chart
+ * is asked for in the foreground, picking it up again once that's done.
+ * 
  * @author Daniel Myung dmyung@dimagi.com
  * @created Jan 29, 2009
  * 
@@ -53,6 +89,41 @@ public abstract class ChartBroker {
 	private static final String CHART_FILE = "file:///android_asset/flot/html/basechart.html";
 	private static final String JAVASCRIPT_PROPERTYNAME = "graphdata";
 	private static final String EMPTY_FILE = "file:///android_asset/flot/html/empty.html";
+	private static final String TAG = "ChartBroker";
+
+	/**
+	 * one thread for every broker, a chart being abandoned finishes before the
+	 * next one starts instead of competing with it for the database
+	 */
+	private static final ExecutorService sLoader = Executors.newSingleThreadExecutor();
+
+	/**
+	 * runs startPrefetch() work, only while nothing is queued on sLoader
+	 */
+	private static final ExecutorService sPrefetcher = Executors.newSingleThreadExecutor();
+
+	/**
+	 * loads and updates queued or running on sLoader
+	 */
+	private static final AtomicInteger sForegroundLoads = new AtomicInteger();
+
+	/**
+	 * bumped by every startPrefetch() and stopPrefetch(), a prefetch under an
+	 * older one stops
+	 */
+	private static final AtomicInteger sPrefetchGeneration = new AtomicInteger();
+
+	/**
+	 * how long the prefetcher sleeps before looking again while the
+	 * foreground is loading
+	 */
+	private static final long PREFETCH_BACKOFF = 100;
+
+	/**
+	 * a chart whose range ended this close to when it was loaded keeps its
+	 * end at now as messages come in
+	 */
+	private static final long FOLLOW_WINDOW = 10 * 60 * 1000;
 
 	/**
 	 * Enumeration for display types (date) for level of bucketization
@@ -74,6 +145,7 @@ public abstract class ChartBroker {
 
 	protected SmsDbHelper rawDB;
 	protected WebView mAppView;
+	private volatile ChartView mChartView;
 
 	private int traceCount = 0;
 
@@ -86,6 +158,29 @@ public abstract class ChartBroker {
 	protected JSONArray mGraphData;
 	protected JSONObject mGraphOptions;
 
+	/**
+	 * the latest request, anything loading or delivering under an older one is
+	 * stale
+	 */
+	private final AtomicInteger mRequest = new AtomicInteger();
+	private volatile int mLoadingRequest;
+	private long mRequestStarted;
+	private int mChunkRequest;
+	private int mNextChunk;
+
+	/**
+	 * the sPrefetchGeneration a prefetch copy is working for, 0 for the
+	 * broker on display
+	 */
+	private volatile int mPrefetching;
+
+	/**
+	 * the last rapidandroid_changelog row the chart has caught up with
+	 */
+	private long mChangeSeq;
+	private boolean mFollowing;
+	private final AtomicBoolean mUpdateQueued = new AtomicBoolean();
+
 	protected final Handler mTitleHandler = new Handler();
 	protected final Runnable mUpdateActivityTitle = new Runnable() {
 		public void run() {
@@ -115,6 +210,13 @@ public abstract class ChartBroker {
 	// private boolean mAlreadyLoading;
 	private final DateFormat sqlDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
+	private final ContentObserver mChangeObserver = new ContentObserver(mDialogHandler) {
+		@Override
+		public void onChange(boolean selfChange) {
+			queueUpdate();
+		}
+	};
+
 	protected ChartBroker(Activity activity, WebView appView, Date startDate, Date endDate) {
 		mParentActivity = activity;
 		mAppView = appView;
@@ -134,7 +236,7 @@ public abstract class ChartBroker {
 	}
 
 	public synchronized void jsPrintDebug(String debugstring) {
-		Log.d("ChartBroker", "JavaScript Debug Printout: " + debugstring);
+		Log.d(TAG, "JavaScript Debug Printout: " + debugstring);
 	}
 	
 	public synchronized void setGraphData(String jsonarr) {
@@ -171,21 +273,545 @@ public abstract class ChartBroker {
 	 * This is the primary method that the JavaScript in our HTML form will need
 	 * access to in order to display graph data.
 	 * 
-	 * This SHOULD NOT be called from java, javascript should call it.
+	 * Only queues the work, the page is called back with BeginGraph() once the
+	 * chart is ready.
 	 */
-	public synchronized final void jsLoadGraph() {		
-		// Debug.startMethodTracing("graphing_" + this.getClass().getName() +
-		// traceCount++);
-		// trying to get this to work, but it's quite annoying
-		// if (!mAlreadyLoading) {
+	public synchronized final void jsLoadGraph() {
+		final int request = mRequest.incrementAndGet();
+		mRequestStarted = SystemClock.uptimeMillis();
 		mDialogHandler.post(mStartThinker);
-		if (mGraphData == null && mGraphOptions == null) {
-			doLoadGraph();
+		sForegroundLoads.incrementAndGet();
+		sLoader.execute(new Runnable() {
+			public void run() {
+				try {
+					loadGraph(request);
+				} finally {
+					sForegroundLoads.decrementAndGet();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs on the loader thread.
+	 */
+	private void loadGraph(final int request) {
+		if (isStale(request)) {
+			// superseded while it was queued
+			return;
 		}
-		loadGraphFinish();
-		// } else {
-		// mAlreadyLoading = false;
-		// }
+		mLoadingRequest = request;
+		long started = SystemClock.uptimeMillis();
+		// taken before loading, anything that comes in meanwhile gets picked
+		// up by the next update
+		long changeSeq = getLatestChange();
+		String cacheKey = null;
+		boolean needsLoad;
+		synchronized (this) {
+			needsLoad = mGraphData == null || mGraphOptions == null;
+			if (needsLoad) {
+				// the key is taken before loading, if data comes in meanwhile
+				// the result is filed under the old generation and never hit
+				// again
+				cacheKey = getCacheKey();
+				JSONGraphData cached = ChartCache.get(cacheKey);
+				if (cached != null) {
+					mGraphData = cached.getData();
+					mGraphOptions = cached.getOptions();
+					needsLoad = false;
+				}
+			}
+		}
+		if (needsLoad) {
+			try {
+				doLoadGraph();
+			} catch (RuntimeException e) {
+				Log.e(TAG, "loading the graph failed", e);
+			}
+			synchronized (this) {
+				if (isStale(request)) {
+					// whatever was loaded is for the old variable or range
+					mGraphData = null;
+					mGraphOptions = null;
+					Log.d(TAG, "dropped request " + request + " after "
+							+ (SystemClock.uptimeMillis() - started) + "ms");
+					return;
+				}
+				if (mGraphData != null && mGraphOptions != null) {
+					ChartCache.put(cacheKey, new JSONGraphData(mGraphData, mGraphOptions));
+				} else {
+					mGraphData = getEmptyData();
+					mGraphOptions = new JSONObject();
+				}
+			}
+			Log.d(TAG, "loaded request " + request + " in " + (SystemClock.uptimeMillis() - started) + "ms");
+		}
+		final NativeChart chart;
+		synchronized (this) {
+			mChangeSeq = changeSeq;
+			mFollowing = mEndDate.getTime() >= System.currentTimeMillis() - FOLLOW_WINDOW;
+			chart = mChartView != null ? NativeChart.fromFlot(mGraphData, mGraphOptions) : null;
+		}
+		mDialogHandler.post(new Runnable() {
+			public void run() {
+				if (chart != null) {
+					showNativeChart(request, chart);
+				} else {
+					loadGraphFinish(request);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Starts following new data, call it from the activity's onResume().
+	 */
+	public void startLiveUpdates() {
+		mAppView.getContext().getContentResolver().registerContentObserver(RapidSmsDBConstants.Change.CONTENT_URI,
+																			false, mChangeObserver);
+		// catch up with anything that came in while we weren't watching
+		queueUpdate();
+	}
+
+	/**
+	 * Stops following new data, call it from the activity's onPause().
+	 */
+	public void stopLiveUpdates() {
+		mAppView.getContext().getContentResolver().unregisterContentObserver(mChangeObserver);
+	}
+
+	private void queueUpdate() {
+		if (!mUpdateQueued.compareAndSet(false, true)) {
+			// the queued one will see these changes too
+			return;
+		}
+		final int request = mRequest.get();
+		sForegroundLoads.incrementAndGet();
+		sLoader.execute(new Runnable() {
+			public void run() {
+				mUpdateQueued.set(false);
+				try {
+					updateGraph(request);
+				} finally {
+					sForegroundLoads.decrementAndGet();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Brings the chart up to date with the changelog, on the loader thread.
+	 * Only the display buckets from the earliest new row on are read again,
+	 * anything but inserts reloads the whole chart.
+	 */
+	private void updateGraph(final int request) {
+		long since;
+		JSONArray graphData;
+		synchronized (this) {
+			if (isStale(request) || mGraphData == null || mGraphOptions == null) {
+				return;
+			}
+			since = mChangeSeq;
+			graphData = mGraphData;
+		}
+		long started = SystemClock.uptimeMillis();
+		SQLiteDatabase db = rawDB.getReadableDatabase();
+		Cursor cr = db.rawQuery("select max(_id), min(_id) from " + RapidSmsDBConstants.Change.TABLE, null);
+		cr.moveToFirst();
+		long latest = cr.getLong(0);
+		long oldest = cr.getLong(1);
+		cr.close();
+		if (latest <= since) {
+			return;
+		}
+		if (oldest > since + 1) {
+			// the log was trimmed past us, there's no telling what changed
+			reloadGraph(request);
+			return;
+		}
+
+		String changes = " from " + RapidSmsDBConstants.Change.TABLE + " where _id > " + since + " and _id <= "
+				+ latest + " and " + RapidSmsDBConstants.Change.TABLE_NAME + " = '" + getChangeTable() + "'";
+		String reloadOps = RapidSmsDBConstants.Change.OP + " = '" + RapidSmsDBConstants.Change.OP_DELETE + "'";
+		if (updatesChangeChart()) {
+			reloadOps += " or " + RapidSmsDBConstants.Change.OP + " = '" + RapidSmsDBConstants.Change.OP_UPDATE + "'";
+		}
+		cr = db.rawQuery("select count(*), sum(" + reloadOps + ")" + changes, null);
+		cr.moveToFirst();
+		int changed = cr.getInt(0);
+		int reloadRows = cr.getInt(1);
+		cr.close();
+		synchronized (this) {
+			mChangeSeq = latest;
+		}
+		if (changed == 0) {
+			return;
+		}
+		if (reloadRows > 0 || !hasData()) {
+			reloadGraph(request);
+			return;
+		}
+
+		Date earliest = null;
+		cr = db.rawQuery(getEarliestChangeQuery("select " + RapidSmsDBConstants.Change.ROW + changes), null);
+		if (cr.moveToFirst() && !cr.isNull(0)) {
+			try {
+				earliest = sqlDateFormat.parse(cr.getString(0));
+			} catch (ParseException e) {
+				Log.d(TAG, "unparseable change time: " + cr.getString(0));
+			}
+		}
+		cr.close();
+		if (earliest == null) {
+			return;
+		}
+
+		DateDisplayTypes displayType = getChartDisplayType();
+		synchronized (this) {
+			if (mFollowing && mEndDate.getTime() < System.currentTimeMillis()) {
+				// the same Date the activity holds, so it saves the new end
+				mEndDate.setTime(System.currentTimeMillis());
+			}
+		}
+		if (displayType != getChartDisplayType()) {
+			// the range grew into a coarser chart
+			reloadGraph(request);
+			return;
+		}
+		if (earliest.after(mEndDate)) {
+			return;
+		}
+
+		long fromX = Long.MIN_VALUE;
+		Date deltaStart = null;
+		if (displayType != null) {
+			fromX = getDate(displayType, sqlDateFormat.format(earliest)).getTime();
+			// from the last point drawn, so the gap up to the new ones gets its
+			// zeros
+			fromX = Math.min(fromX, getLastX(graphData, fromX));
+			deltaStart = new Date(Math.max(fromX, mStartDate.getTime()));
+		}
+		JSONGraphData delta = loadDelta(displayType, deltaStart);
+		if (delta == null) {
+			reloadGraph(request);
+			return;
+		}
+		if (getEmptyData().toString().equals(delta.getData().toString())) {
+			// nothing inside the range
+			return;
+		}
+
+		synchronized (this) {
+			if (isStale(request)) {
+				return;
+			}
+			JSONArray merged = mergeDelta(mGraphData, delta.getData(), fromX);
+			if (merged == null) {
+				reloadGraph(request);
+				return;
+			}
+			mGraphData = merged;
+			getPrettyTitleString();
+			if (mChartView != null) {
+				postNativeUpdate(request, NativeChart.fromFlot(mGraphData, mGraphOptions));
+				Log.d(TAG, "updated request " + request + " with " + changed + " new rows in "
+						+ (SystemClock.uptimeMillis() - started) + "ms");
+				return;
+			}
+		}
+		Log.d(TAG, "updated request " + request + " with " + changed + " new rows in "
+				+ (SystemClock.uptimeMillis() - started) + "ms");
+
+		final String update = "javascript:UpdateGraph(" + request + "," + fromX + "," + delta.getData().toString()
+				+ ")";
+		mDialogHandler.post(new Runnable() {
+			public void run() {
+				if (!isStale(request)) {
+					mAppView.loadUrl(update);
+					mParentActivity.setTitle(mGraphTitle);
+				}
+			}
+		});
+	}
+
+	private void postNativeUpdate(final int request, final NativeChart chart) {
+		mDialogHandler.post(new Runnable() {
+			public void run() {
+				ChartView view = mChartView;
+				if (!isStale(request) && view != null) {
+					view.updateChart(chart);
+					mParentActivity.setTitle(mGraphTitle);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Throws the chart away and loads it again, for changes a delta can't
+	 * cover.
+	 */
+	private void reloadGraph(final int request) {
+		mDialogHandler.post(new Runnable() {
+			public void run() {
+				synchronized (ChartBroker.this) {
+					if (isStale(request)) {
+						return;
+					}
+					mGraphData = null;
+					mGraphOptions = null;
+				}
+				jsLoadGraph();
+			}
+		});
+	}
+
+	private long getLatestChange() {
+		SQLiteDatabase db = rawDB.getReadableDatabase();
+		Cursor cr = db.rawQuery("select max(_id) from " + RapidSmsDBConstants.Change.TABLE, null);
+		long latest = cr.moveToFirst() ? cr.getLong(0) : 0;
+		cr.close();
+		return latest;
+	}
+
+	/**
+	 * Swaps the points from fromX on in each series for the delta's.
+	 * 
+	 * @return the new series, null if the delta doesn't line up with them
+	 */
+	private static JSONArray mergeDelta(JSONArray current, JSONArray delta, long fromX) {
+		if (current.length() != delta.length()) {
+			return null;
+		}
+		JSONArray merged = new JSONArray();
+		try {
+			for (int i = 0; i < current.length(); i++) {
+				JSONObject series = current.optJSONObject(i);
+				JSONObject deltaSeries = delta.optJSONObject(i);
+				if (series == null || deltaSeries == null) {
+					return null;
+				}
+				JSONArray data = series.getJSONArray("data");
+				JSONArray mergedData = new JSONArray();
+				for (int j = 0; j < data.length(); j++) {
+					JSONArray point = data.getJSONArray(j);
+					if (point.getLong(0) < fromX) {
+						mergedData.put(point);
+					}
+				}
+				JSONArray deltaData = deltaSeries.getJSONArray("data");
+				for (int j = 0; j < deltaData.length(); j++) {
+					mergedData.put(deltaData.get(j));
+				}
+				JSONObject mergedSeries = new JSONObject();
+				Iterator<?> keys = series.keys();
+				while (keys.hasNext()) {
+					String key = (String) keys.next();
+					mergedSeries.put(key, series.get(key));
+				}
+				mergedSeries.put("data", mergedData);
+				merged.put(mergedSeries);
+			}
+		} catch (JSONException e) {
+			return null;
+		}
+		return merged;
+	}
+
+	/**
+	 * @return the last x of any series, or notFound
+	 */
+	private static long getLastX(JSONArray graphData, long notFound) {
+		long lastX = Long.MIN_VALUE;
+		for (int i = 0; i < graphData.length(); i++) {
+			JSONObject series = graphData.optJSONObject(i);
+			JSONArray data = series == null ? null : series.optJSONArray("data");
+			if (data != null && data.length() > 0) {
+				JSONArray point = data.optJSONArray(data.length() - 1);
+				if (point != null) {
+					lastX = Math.max(lastX, point.optLong(0, Long.MIN_VALUE));
+				}
+			}
+		}
+		return lastX == Long.MIN_VALUE ? notFound : lastX;
+	}
+
+	/**
+	 * The table whose rows this chart is drawn from, for following the
+	 * changelog
+	 */
+	protected String getChangeTable() {
+		return RapidSmsDBConstants.Message.TABLE;
+	}
+
+	/**
+	 * @return true if an update to a row of getChangeTable() can change the
+	 *         chart, messages are only charted by their time which doesn't
+	 *         change
+	 */
+	protected boolean updatesChangeChart() {
+		return false;
+	}
+
+	/**
+	 * @param changedRows
+	 *            a select of the _ids of the new rows in getChangeTable()
+	 * @return a query for the earliest message time of those rows
+	 */
+	protected String getEarliestChangeQuery(String changedRows) {
+		return "select min(" + RapidSmsDBConstants.Message.TIME + ") from " + RapidSmsDBConstants.Message.TABLE
+				+ " where _id in (" + changedRows + ")";
+	}
+
+	/**
+	 * @return how the chart on display is bucketed, null if it isn't over
+	 *         time
+	 */
+	protected DateDisplayTypes getChartDisplayType() {
+		return getDisplayType(mStartDate, mEndDate);
+	}
+
+	/**
+	 * Loads the same series doLoadGraph() does for the chart on display, only
+	 * from since on.
+	 * 
+	 * @param displayType
+	 *            the chart's, from getChartDisplayType()
+	 * @param since
+	 *            start of the first display bucket to load, null if the chart
+	 *            isn't over time and the series are to be replaced whole
+	 * @return null if the chart can only be reloaded whole
+	 */
+	protected JSONGraphData loadDelta(DateDisplayTypes displayType, Date since) {
+		return null;
+	}
+
+	private boolean isStale(int request) {
+		return request != mRequest.get();
+	}
+
+	/**
+	 * Checkpoint for long running doLoadGraph() work, once it's true whatever
+	 * is being loaded will be thrown away.
+	 */
+	protected boolean isCancelled() {
+		if (mPrefetching != 0
+				&& (mPrefetching != sPrefetchGeneration.get() || sForegroundLoads.get() > 0)) {
+			return true;
+		}
+		return isStale(mLoadingRequest);
+	}
+
+	/**
+	 * Starts loading every variable of this broker for its current range into
+	 * the ChartCache in the background, call it from the activity's onResume()
+	 * and after a new range. Anything a previous call was still loading is
+	 * dropped.<br>
+	 * <br>
+	 * The variables go in menu order starting after the one on display, that
+	 * being the way people tend to look through them. No more are loaded than
+	 * the cache can hold next to the chart on display.
+	 */
+	public void startPrefetch() {
+		final int generation = sPrefetchGeneration.incrementAndGet();
+		final ChartBroker prefetcher;
+		final int[] order;
+		synchronized (this) {
+			prefetcher = newPrefetchBroker(new Date(mStartDate.getTime()), new Date(mEndDate.getTime()));
+			if (prefetcher == null) {
+				return;
+			}
+			order = new int[Math.min(mVariableStrings.length - 1, ChartCache.MAX_ENTRIES - 1)];
+			for (int i = 0; i < order.length; i++) {
+				order[i] = (mChosenVariable + 1 + i) % mVariableStrings.length;
+			}
+		}
+		prefetcher.mPrefetching = generation;
+		sPrefetcher.execute(new Runnable() {
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				prefetcher.prefetch(generation, order);
+			}
+		});
+	}
+
+	/**
+	 * Drops whatever startPrefetch() was still loading, call it from the
+	 * activity's onPause().
+	 */
+	public void stopPrefetch() {
+		sPrefetchGeneration.incrementAndGet();
+	}
+
+	/**
+	 * A copy of this broker for startPrefetch() to load variables with, so the
+	 * chart on display is left alone. Called on the UI thread.
+	 * 
+	 * @return null if this broker's variables aren't worth prefetching
+	 */
+	protected ChartBroker newPrefetchBroker(Date startDate, Date endDate) {
+		return null;
+	}
+
+	/**
+	 * Runs on the prefetch thread, in the copy from newPrefetchBroker().
+	 */
+	private void prefetch(int generation, int[] order) {
+		long started = SystemClock.uptimeMillis();
+		int loaded = 0;
+		int i = 0;
+		while (i < order.length) {
+			if (generation != sPrefetchGeneration.get()) {
+				Log.d(TAG, "prefetch " + generation + " dropped after " + loaded + " variables");
+				return;
+			}
+			if (sForegroundLoads.get() > 0) {
+				SystemClock.sleep(PREFETCH_BACKOFF);
+				continue;
+			}
+			setVariable(order[i]);
+			String cacheKey = getCacheKey();
+			if (ChartCache.get(cacheKey) != null) {
+				i++;
+				continue;
+			}
+			mLoadingRequest = mRequest.get();
+			try {
+				doLoadGraph();
+			} catch (RuntimeException e) {
+				Log.e(TAG, "prefetching variable " + order[i] + " failed", e);
+			}
+			if (isCancelled()) {
+				// given up for the foreground, it's loaded again from scratch
+				continue;
+			}
+			synchronized (this) {
+				if (mGraphData != null && mGraphOptions != null) {
+					ChartCache.put(cacheKey, new JSONGraphData(mGraphData, mGraphOptions));
+					loaded++;
+				}
+			}
+			i++;
+		}
+		Log.d(TAG, "prefetched " + loaded + " variables in " + (SystemClock.uptimeMillis() - started) + "ms");
+	}
+
+	/**
+	 * The form whose data this broker charts, for the ChartCache
+	 * 
+	 * @return a form id, or RapidSmsDBConstants.Rollup.ALL_MESSAGES
+	 */
+	protected int getCacheForm() {
+		return RapidSmsDBConstants.Rollup.ALL_MESSAGES;
+	}
+
+	private String getCacheKey() {
+		int formId = getCacheForm();
+		StringBuilder key = new StringBuilder();
+		key.append(getName()).append('/').append(formId).append('/').append(mChosenVariable);
+		key.append('/').append(mStartDate.getTime()).append('/').append(mEndDate.getTime());
+		key.append('/').append(getDisplayType(mStartDate, mEndDate)).append('/').append(getTargetPoints());
+		key.append('/').append(RollupDataLayer.getGeneration(formId));
+		return key.toString();
 	}
 
 	protected void getPrettyTitleString() {
@@ -211,29 +837,75 @@ public abstract class ChartBroker {
 		tl.append(df.format(mStartDate)).append(" - ");
 		tl.append(df.format(mEndDate));
 		mGraphTitle = tl.toString();
-		Log.d("ChartBroker", "end getPrettyTitleString");
+		Log.d(TAG, "end getPrettyTitleString");
 
 	}
 
-	protected void loadGraphFinish() {		
+	/**
+	 * Sizes the chart and tells the page how many series to pull, on the UI
+	 * thread.
+	 */
+	protected void loadGraphFinish(int request) {
+		synchronized (this) {
+			if (isStale(request)) {
+				return;
+			}
+			mChunkRequest = request;
+			mNextChunk = 0;
+		}
 		Display display = this.mParentActivity.getWindowManager().getDefaultDisplay();
 		//Get the screen orientation
 			
 		int width = display.getWidth();
 		int height = display.getHeight();	
 		
-		Log.d("ChartBroker", "getWidth: " + width);
-		Log.d("ChartBroker", "getHeight: " + height);
+		Log.d(TAG, "getWidth: " + width);
+		Log.d(TAG, "getHeight: " + height);
 				
 		height = height - 50;
 		mAppView.loadUrl("javascript:SetGraph(\"" + width + "px\", \"" + height + "px\")");
-		Log.d("ChartBroker", "javascript:SetGraph(\"" + width + "px\", \"" + height + "px\")");
-		
-		mAppView.loadUrl("javascript:GotGraph(" + mGraphData.toString() + "," + mGraphOptions.toString() + ")");
-		Log.d("ChartBroker", "javascript:GotGraph(" + mGraphData.toString() + "," + mGraphOptions.toString() + ")");
+		Log.d(TAG, "javascript:SetGraph(\"" + width + "px\", \"" + height + "px\")");
+
+		// the options are small, the series come through jsNextChunk()
+		mAppView.loadUrl("javascript:BeginGraph(" + request + "," + mGraphOptions.toString() + ")");
+		Log.d(TAG, "javascript:BeginGraph(" + request + "," + mGraphOptions.toString() + ")");
+	}
+
+	/**
+	 * Hands a loaded chart to the ChartView, on the UI thread.
+	 */
+	private void showNativeChart(int request, NativeChart chart) {
+		ChartView view = mChartView;
+		if (isStale(request) || view == null) {
+			return;
+		}
+		view.setChart(request, chart);
 	}
 
-	private boolean hasData() {
+	/**
+	 * Called by the page until it returns null, one series of the chart at a
+	 * time.
+	 * 
+	 * @return the next series as JSON, null once they've all been handed out
+	 *         or if the request has been superseded
+	 */
+	public synchronized String jsNextChunk(int request) {
+		if (request != mChunkRequest || isStale(request) || mGraphData == null
+				|| mNextChunk >= mGraphData.length()) {
+			return null;
+		}
+		return mGraphData.opt(mNextChunk++).toString();
+	}
+
+	/**
+	 * Called by the page once the first series has been drawn.
+	 */
+	public void jsFirstPaint(int request) {
+		Log.d(TAG, "first paint of request " + request + " after " + (SystemClock.uptimeMillis() - mRequestStarted)
+				+ "ms (flot)");
+	}
+
+	private synchronized boolean hasData() {
 		if (mGraphData == null || this.getEmptyData().toString().equals(mGraphData.toString())) {
 			return false;
 		}
@@ -244,10 +916,27 @@ public abstract class ChartBroker {
 	 * Register this ChartBroker to the WebView as a javascript interface.
 	 */
 	public void bindChartToHTML() {
+		mChartView = null;
 		mAppView.addJavascriptInterface(this, JAVASCRIPT_PROPERTYNAME);
-		Log.d("ChartBroker", "addJavascriptInterface: " + JAVASCRIPT_PROPERTYNAME);
+		Log.d(TAG, "addJavascriptInterface: " + JAVASCRIPT_PROPERTYNAME);
 		mAppView.loadUrl(CHART_FILE);
-		Log.d("ChartBroker", "loadUrl: " + CHART_FILE);
+		Log.d(TAG, "loadUrl: " + CHART_FILE);
+	}
+
+	/**
+	 * Draws this broker's charts in a ChartView instead of the WebView, and
+	 * loads the current one into it.
+	 */
+	public void bindChartToView(ChartView view) {
+		mChartView = view;
+		view.setOnChartDrawnListener(new ChartView.OnChartDrawnListener() {
+			public void onChartDrawn(ChartView drawn, int request) {
+				Log.d(TAG, "first paint of request " + request + " after "
+						+ (SystemClock.uptimeMillis() - mRequestStarted) + "ms (native)");
+				finishGraph();
+			}
+		});
+		jsLoadGraph();
 	}
 
 	/**
@@ -297,23 +986,102 @@ public abstract class ChartBroker {
 	}
 
 	protected String getSelectionString(DateDisplayTypes displayType) {
+		return getSelectionString(displayType, "time");
+	}
+
+	protected String getSelectionString(DateDisplayTypes displayType, String column) {
 		switch (displayType) {
 			case Hourly:
-				return "  strftime('%Y-%m-%d %H',time) ";
+				return "  strftime('%Y-%m-%d %H'," + column + ") ";
 			case Daily:
-				return " strftime('%Y-%m-%d', time) ";
+				return " strftime('%Y-%m-%d', " + column + ") ";
 			case Weekly:
-				return " strftime('%Y-%W', time) ";
+				return " strftime('%Y-%W', " + column + ") ";
 			case Monthly:
-				return " strftime('%Y-%m',time) ";
+				return " strftime('%Y-%m'," + column + ") ";
 			case Yearly:
-				return " strftime('%Y',time) ";
+				return " strftime('%Y'," + column + ") ";
 			default:
 				return "";
 
 		}
 	}
 
+	/**
+	 * Hourly charts read the hourly rollups, everything coarser sums up the
+	 * daily ones.
+	 */
+	protected String getRollupPeriod(DateDisplayTypes displayType) {
+		if (displayType == DateDisplayTypes.Hourly) {
+			return RapidSmsDBConstants.Rollup.PERIOD_HOUR;
+		}
+		return RapidSmsDBConstants.Rollup.PERIOD_DAY;
+	}
+
+	/**
+	 * Builds a query over rapidandroid_rollup returning the start of each
+	 * displayType bucket in column 0 followed by the given aggregates, in
+	 * date order. The range is widened to whole rollup buckets, so the first
+	 * and last points include the whole hour or day they fall in.
+	 * 
+	 * @param aggregates
+	 *            ie "sum(value_count)"
+	 * @param formId
+	 *            or RapidSmsDBConstants.Rollup.ALL_MESSAGES
+	 * @param field
+	 *            the field name, or "" for the message counts
+	 */
+	protected String getRollupQuery(String aggregates, int formId, String field, DateDisplayTypes displayType,
+			Date startDate, Date endDate) {
+		String period = getRollupPeriod(displayType);
+		StringBuilder rawQuery = new StringBuilder();
+		rawQuery.append("select min(").append(RapidSmsDBConstants.Rollup.BUCKET).append("), ").append(aggregates);
+		rawQuery.append(" from ").append(RapidSmsDBConstants.Rollup.TABLE);
+		rawQuery.append(" where ").append(RapidSmsDBConstants.Rollup.FORM).append(" = ").append(formId);
+		rawQuery.append(" and ").append(RapidSmsDBConstants.Rollup.PERIOD).append(" = '").append(period).append("'");
+		rawQuery.append(" and ").append(RapidSmsDBConstants.Rollup.FIELD).append(" = '").append(field).append("'");
+		if (startDate.compareTo(Constants.NULLDATE) != 0 && endDate.compareTo(Constants.NULLDATE) != 0) {
+			rawQuery.append(" and ").append(RapidSmsDBConstants.Rollup.BUCKET).append(" >= '");
+			rawQuery.append(RollupDataLayer.getBucket(period, sqlDateFormat.format(startDate))).append("'");
+			rawQuery.append(" and ").append(RapidSmsDBConstants.Rollup.BUCKET).append(" < '");
+			rawQuery.append(sqlDateFormat.format(endDate)).append("'");
+		}
+		String selectionArg = getSelectionString(displayType, RapidSmsDBConstants.Rollup.BUCKET);
+		rawQuery.append(" group by ").append(selectionArg);
+		rawQuery.append(" order by ").append(selectionArg).append(" ASC");
+		return rawQuery.toString();
+	}
+
+	/**
+	 * @param formId
+	 *            or RapidSmsDBConstants.Rollup.ALL_MESSAGES
+	 * @return the start of the first hour with a message in it, NULLDATE if
+	 *         there are none
+	 */
+	protected Date getOldestRollupDate(int formId) {
+		long generation = RollupDataLayer.getGeneration(formId);
+		Date cached = ChartCache.getOldestDate(formId, generation);
+		if (cached != null) {
+			return cached;
+		}
+		SQLiteDatabase db = rawDB.getReadableDatabase();
+		Cursor cr = db.rawQuery("select min(" + RapidSmsDBConstants.Rollup.BUCKET + ") from "
+				+ RapidSmsDBConstants.Rollup.TABLE + " where " + RapidSmsDBConstants.Rollup.FORM + " = " + formId
+				+ " and " + RapidSmsDBConstants.Rollup.PERIOD + " = '" + RapidSmsDBConstants.Rollup.PERIOD_HOUR
+				+ "' and " + RapidSmsDBConstants.Rollup.FIELD + " = ''", null);
+		Date toReturn = Constants.NULLDATE;
+		if (cr.moveToFirst() && !cr.isNull(0)) {
+			try {
+				toReturn = sqlDateFormat.parse(cr.getString(0));
+			} catch (ParseException e) {
+				Log.d(TAG, "unparseable rollup bucket: " + cr.getString(0));
+			}
+		}
+		cr.close();
+		ChartCache.putOldestDate(formId, generation, toReturn);
+		return toReturn;
+	}
+
 	protected String getLegendString(DateDisplayTypes displayType) {
 		switch (displayType) {
 			case Hourly:
@@ -423,7 +1191,7 @@ public abstract class ChartBroker {
 		try {
 			rawDate = sqlDateFormat.parse(string);
 		} catch (ParseException e) {
-			Log.d("ChartBroker", "unparseable date: " + string);
+			Log.d(TAG, "unparseable date: " + string);
 			// this is actually a hard failure. Just not sure what to do
 			return Constants.NULLDATE;
 		}
@@ -504,8 +1272,85 @@ public abstract class ChartBroker {
 		return new JSONGraphData(getEmptyData(), new JSONObject());
 	}
 
+	/**
+	 * Reporters are only sketched by day, so a range short enough to chart by
+	 * hour gets charted by day.
+	 */
+	protected DateDisplayTypes getReporterDisplayType(DateDisplayTypes displayType) {
+		if (displayType == DateDisplayTypes.Hourly) {
+			return DateDisplayTypes.Daily;
+		}
+		return displayType;
+	}
+
+	/**
+	 * How many monitors reported in each display bucket, from merging the
+	 * daily reporter sketches of its days.
+	 * 
+	 * @param formId
+	 *            or RapidSmsDBConstants.Rollup.ALL_MESSAGES
+	 * @param displayType
+	 *            from getReporterDisplayType()
+	 */
+	protected JSONGraphData loadReporters(int formId, DateDisplayTypes displayType, Date startDate) {
+		ArrayList<Date> buckets = new ArrayList<Date>();
+		ArrayList<Integer> counts = new ArrayList<Integer>();
+		SQLiteDatabase db = rawDB.getReadableDatabase();
+		Cursor cr = SketchDataLayer.queryReporterDays(db, formId, startDate, mEndDate);
+		DistinctCountSketch bucket = null;
+		Date bucketDate = null;
+		while (cr.moveToNext()) {
+			if (isCancelled()) {
+				break;
+			}
+			DistinctCountSketch day = SketchDataLayer.parseReporterDay(cr);
+			if (day == null) {
+				continue;
+			}
+			Date date = getDate(displayType, cr.getString(0));
+			if (bucket != null && !date.equals(bucketDate)) {
+				buckets.add(bucketDate);
+				counts.add(Integer.valueOf((int) bucket.getEstimate()));
+				bucket = null;
+			}
+			if (bucket == null) {
+				bucket = day;
+				bucketDate = date;
+			} else {
+				bucket.merge(day);
+			}
+		}
+		cr.close();
+		db.close();
+		if (bucket != null) {
+			buckets.add(bucketDate);
+			counts.add(Integer.valueOf((int) bucket.getEstimate()));
+		}
+		if (buckets.size() == 0) {
+			return new JSONGraphData(getEmptyData(), new JSONObject());
+		}
+
+		Date[] xVals = buckets.toArray(new Date[buckets.size()]);
+		int[] yVals = new int[counts.size()];
+		for (int i = 0; i < yVals.length; i++) {
+			yVals[i] = counts.get(i).intValue();
+		}
+		try {
+			return new JSONGraphData(prepareDateHistogramData(displayType, xVals, yVals, "Reporters"),
+										loadOptionsForDateGraph(xVals, true, displayType));
+		} catch (JSONException ex) {
+			Log.e(TAG, "Unable to build the reporters chart: " + ex.getMessage());
+			return new JSONGraphData(getEmptyData(), new JSONObject());
+		}
+	}
+
 	protected JSONObject loadOptionsForDateGraph(Date[] vals, boolean displayLegend, DateDisplayTypes displayType)
 			throws JSONException {
+		return loadOptionsForDateGraph(vals.length, displayLegend, displayType);
+	}
+
+	protected JSONObject loadOptionsForDateGraph(int pointCount, boolean displayLegend, DateDisplayTypes displayType)
+			throws JSONException {
 
 		JSONObject toReturn = new JSONObject();
 		// bars: { show: true }, points: { show: false }, xaxis: { mode: "time",
@@ -513,7 +1358,7 @@ public abstract class ChartBroker {
 		toReturn.put("bars", getShowFalse());
 		toReturn.put("lines", getShowTrue());
 		// if just a couple points, show them
-		if (vals.length < 10) {
+		if (pointCount < 10) {
 			toReturn.put("points", getShowTrue());
 		} else {
 			toReturn.put("points", getShowFalse());
@@ -605,8 +1450,25 @@ public abstract class ChartBroker {
 		return outerArray;
 	}
 
+	/**
+	 * The date series with the empty buckets filled in with zeros, downsampled
+	 * to the width of the screen.
+	 */
 	protected JSONArray getJSONArrayForValues(DateDisplayTypes displayType, Date[] xvals, int[] yvals) {
-		JSONArray toReturn = new JSONArray();
+		LttbDownsampler lttb = new LttbDownsampler(getTargetPoints(), fillGaps(displayType, xvals, yvals, null));
+		fillGaps(displayType, xvals, yvals, lttb);
+		return getJSONArrayForValues(lttb);
+	}
+
+	/**
+	 * Walks the series adding a zero for every bucket between two values.
+	 * 
+	 * @param out
+	 *            gets the points, null to only count them
+	 * @return the number of points, zeros included
+	 */
+	private int fillGaps(DateDisplayTypes displayType, Date[] xvals, int[] yvals, LttbDownsampler out) {
+		int count = 0;
 		int datalen = xvals.length;
 		Date prevVal = null;
 		for (int i = 0; i < datalen; i++) {
@@ -615,22 +1477,70 @@ public abstract class ChartBroker {
 				// add logic to fill in zeros
 				Date nextInSeries = getNextValue(displayType, prevVal);
 				while (isBefore(displayType, nextInSeries, thisVal)) {
-					JSONArray elem = new JSONArray();
-					elem.put(nextInSeries.getTime());
-					elem.put(0);
-					toReturn.put(elem);
+					if (out != null) {
+						out.add(nextInSeries.getTime(), 0);
+					}
+					count++;
 					nextInSeries = getNextValue(displayType, nextInSeries);
 				}
 			}
-			JSONArray elem = new JSONArray();
-			elem.put(xvals[i].getTime());
-			elem.put(yvals[i]);
-			toReturn.put(elem);
+			if (out != null) {
+				out.add(xvals[i].getTime(), yvals[i]);
+			}
+			count++;
 			prevVal = thisVal;
 		}
+		return count;
+	}
+
+	/**
+	 * Line charts never get more points than there are pixels across the
+	 * screen, see LttbDownsampler.
+	 */
+	protected int getTargetPoints() {
+		return mParentActivity.getWindowManager().getDefaultDisplay().getWidth();
+	}
+
+	/**
+	 * @return the points kept by the downsampler as flot [x, y] pairs
+	 */
+	protected JSONArray getJSONArrayForValues(LttbDownsampler lttb) {
+		JSONArray toReturn = new JSONArray();
+		int datalen = lttb.size();
+		for (int i = 0; i < datalen; i++) {
+			toReturn.put(getPoint(lttb.getX(i), lttb.getY(i)));
+		}
 		return toReturn;
 	}
 
+	/**
+	 * @param upper
+	 *            true for the highest value of each bucket, false for the
+	 *            lowest
+	 * @return one edge of the envelope around the downsampled line, as flot
+	 *         [x, y] pairs
+	 */
+	protected JSONArray getEnvelopeForValues(LttbDownsampler lttb, boolean upper) {
+		JSONArray toReturn = new JSONArray();
+		int datalen = lttb.size();
+		for (int i = 0; i < datalen; i++) {
+			toReturn.put(getPoint(lttb.getX(i), upper ? lttb.getMaxY(i) : lttb.getMinY(i)));
+		}
+		return toReturn;
+	}
+
+	private static JSONArray getPoint(double x, double y) {
+		JSONArray elem = new JSONArray();
+		elem.put((long) x);
+		try {
+			elem.put(y);
+		} catch (JSONException e) {
+			// NaN or infinite, flot skips nulls
+			elem.put(JSONObject.NULL);
+		}
+		return elem;
+	}
+
 	protected JSONArray getEmptyData() {
 		JSONArray toReturn = new JSONArray();
 		JSONArray innerArray = new JSONArray();
@@ -644,29 +1554,40 @@ public abstract class ChartBroker {
 	 * This gets called by the javascript file after the graph is done plotting
 	 */
 	public void jsFinishGraph() {
-		Log.d("ChartBroker", "begin finishGraph");
+		Log.d(TAG, "graph drawn " + (SystemClock.uptimeMillis() - mRequestStarted) + "ms after it was asked for");
+		finishGraph();
+	}
+
+	/**
+	 * Titles the activity and puts the thinker away once either renderer has
+	 * drawn the chart.
+	 */
+	private void finishGraph() {
 		getPrettyTitleString();
 		mDialogHandler.post(mStopThinker);
-		Log.d("ChartBroker", "stopped thinker");
+		Log.d(TAG, "stopped thinker");
 		mTitleHandler.post(mUpdateActivityTitle);
 		if (!hasData()) {
 			mDialogHandler.post(mEmptyData);
 		}
-		Log.d("ChartBroker", "end finishGraph");
+		Log.d(TAG, "end finishGraph");
 		this.isShowing = true;
-		this.mAppView.setVisibility(0);
-		
+		if (mChartView == null) {
+			this.mAppView.setVisibility(0);
+		}
 	}
 
 	public abstract String getGraphTitle();
 
 	public synchronized void setVariable(int id) {
+		mRequest.incrementAndGet();
 		mChosenVariable = id;
 		mGraphData = null;
 		mGraphOptions = null;
 	}
 
 	public synchronized void setRange(Date startTime, Date endTime) {
+		mRequest.incrementAndGet();
 		mStartDate = startTime;
 		mEndDate = endTime;
 
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidandroid.activity.chart;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the most recently drawn charts, so flipping between variables or
+ * ranges that were already shown doesn't go back to the database.<br>
+ * <br>
+ * The keys include the RollupDataLayer generation of the chart's form, so a
+ * chart stops matching as soon as new data for its form is committed and just
+ * ages out. Shared by every ChartBroker in the process, brokers are recreated
+ * with each ChartData activity.
+ *
+ */
+public class ChartCache {
+
+	public static final int MAX_ENTRIES = 24;
+
+	private static final LinkedHashMap<String, JSONGraphData> results = new LinkedHashMap<String, JSONGraphData>(
+			MAX_ENTRIES, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, JSONGraphData> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	/**
+	 * oldest message date and the generation it was read at, by form id
+	 */
+	private static final HashMap<Integer, Date> oldestDates = new HashMap<Integer, Date>();
+	private static final HashMap<Integer, Long> oldestGenerations = new HashMap<Integer, Long>();
+
+	public static synchronized JSONGraphData get(String key) {
+		return results.get(key);
+	}
+
+	public static synchronized void put(String key, JSONGraphData data) {
+		results.put(key, data);
+	}
+
+	/**
+	 * @return the oldest date stored for the form at this generation, null if
+	 *         there isn't one
+	 */
+	public static synchronized Date getOldestDate(int formId, long generation) {
+		Integer formInt = Integer.valueOf(formId);
+		Long stored = oldestGenerations.get(formInt);
+		if (stored == null || stored.longValue() != generation) {
+			return null;
+		}
+		return oldestDates.get(formInt);
+	}
+
+	public static synchronized void putOldestDate(int formId, long generation, Date date) {
+		Integer formInt = Integer.valueOf(formId);
+		oldestDates.put(formInt, date);
+		oldestGenerations.put(formInt, Long.valueOf(generation));
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidandroid.activity.chart;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A chart as plain arrays for ChartView to draw, converted once on the
+ * loader thread from the series and options a ChartBroker hands to flot.<br>
+ * <br>
+ * Only the parts of the flot format the brokers use are read: each series'
+ * data, label and bars/lines, and the options' bars, points, legend and
+ * xaxis (time mode and format, or ticks naming the categories).
+ * 
+ */
+public class NativeChart {
+
+	public enum Style {
+		LINES, BARS
+	}
+
+	public static class Series {
+		private final String mLabel;
+		private final Style mStyle;
+		private final double[] mXs;
+		private final double[] mYs;
+
+		Series(String label, Style style, double[] xs, double[] ys) {
+			mLabel = label;
+			mStyle = style;
+			mXs = xs;
+			mYs = ys;
+		}
+
+		/**
+		 * @return null if the series isn't named
+		 */
+		public String getLabel() {
+			return mLabel;
+		}
+
+		public Style getStyle() {
+			return mStyle;
+		}
+
+		/**
+		 * @return ascending, ms since the epoch for a time axis
+		 */
+		public double[] getXs() {
+			return mXs;
+		}
+
+		/**
+		 * @return NaN where there's a gap
+		 */
+		public double[] getYs() {
+			return mYs;
+		}
+
+		public int size() {
+			return mXs.length;
+		}
+	}
+
+	private final Series[] mSeries;
+	private final boolean mTimeAxis;
+	private final String mTimeFormat;
+	private final String[] mCategories;
+	private final boolean mPoints;
+	private final boolean mLegend;
+	private double mMinX = Double.NaN;
+	private double mMaxX = Double.NaN;
+	private double mMinGap = Double.NaN;
+
+	private NativeChart(Series[] series, boolean timeAxis, String timeFormat, String[] categories, boolean points,
+			boolean legend) {
+		mSeries = series;
+		mTimeAxis = timeAxis;
+		mTimeFormat = timeFormat;
+		mCategories = categories;
+		mPoints = points;
+		mLegend = legend;
+		for (int i = 0; i < series.length; i++) {
+			double[] xs = series[i].getXs();
+			for (int j = 0; j < xs.length; j++) {
+				if (Double.isNaN(mMinX) || xs[j] < mMinX) {
+					mMinX = xs[j];
+				}
+				if (Double.isNaN(mMaxX) || xs[j] > mMaxX) {
+					mMaxX = xs[j];
+				}
+				if (j > 0 && xs[j] > xs[j - 1] && (Double.isNaN(mMinGap) || xs[j] - xs[j - 1] < mMinGap)) {
+					mMinGap = xs[j] - xs[j - 1];
+				}
+			}
+		}
+		if (Double.isNaN(mMinGap)) {
+			// single points, ie a bar per category
+			mMinGap = 1;
+		}
+	}
+
+	/**
+	 * @param data
+	 *            a broker's graph data
+	 * @param options
+	 *            its graph options
+	 */
+	public static NativeChart fromFlot(JSONArray data, JSONObject options) {
+		boolean barsByDefault = isShown(options, "bars");
+		Series[] series = new Series[data.length()];
+		int count = 0;
+		for (int i = 0; i < data.length(); i++) {
+			JSONObject s = data.optJSONObject(i);
+			if (s == null) {
+				// the bare [[0, 0]] of an empty chart
+				continue;
+			}
+			JSONArray points = s.optJSONArray("data");
+			if (points == null) {
+				continue;
+			}
+			double[] xs = new double[points.length()];
+			double[] ys = new double[points.length()];
+			for (int j = 0; j < xs.length; j++) {
+				JSONArray point = points.optJSONArray(j);
+				xs[j] = point.optDouble(0);
+				ys[j] = point.isNull(1) ? Double.NaN : point.optDouble(1);
+			}
+			boolean bars = s.has("bars") ? isShown(s, "bars") : barsByDefault && !isShown(s, "lines");
+			series[count++] = new Series(s.has("label") ? s.optString("label") : null, bars ? Style.BARS
+					: Style.LINES, xs, ys);
+		}
+		Series[] trimmed = new Series[count];
+		System.arraycopy(series, 0, trimmed, 0, count);
+
+		JSONObject xaxis = options.optJSONObject("xaxis");
+		boolean timeAxis = xaxis != null && "time".equals(xaxis.optString("mode"));
+		String timeFormat = timeAxis ? toDateFormat(xaxis.optString("timeformat", "%m/%d/%y")) : null;
+		String[] categories = null;
+		JSONArray ticks = xaxis != null ? xaxis.optJSONArray("ticks") : null;
+		if (ticks != null) {
+			categories = new String[ticks.length()];
+			for (int i = 0; i < ticks.length(); i++) {
+				JSONArray tick = ticks.optJSONArray(i);
+				int at = tick.optInt(0);
+				if (at >= 0 && at < categories.length) {
+					categories[at] = tick.optString(1);
+				}
+			}
+		}
+		return new NativeChart(trimmed, timeAxis, timeFormat, categories, isShown(options, "points"), isShown(
+				options, "legend"));
+	}
+
+	private static boolean isShown(JSONObject parent, String name) {
+		JSONObject o = parent.optJSONObject(name);
+		return o != null && o.optBoolean("show");
+	}
+
+	/**
+	 * flot's strftime style "%m/%d %H:%M" as a SimpleDateFormat pattern
+	 */
+	static String toDateFormat(String timeformat) {
+		StringBuilder pattern = new StringBuilder();
+		for (int i = 0; i < timeformat.length(); i++) {
+			char c = timeformat.charAt(i);
+			if (c != '%' || i + 1 == timeformat.length()) {
+				pattern.append(c == '\'' ? "''" : String.valueOf(c));
+				continue;
+			}
+			switch (timeformat.charAt(++i)) {
+				case 'Y':
+					pattern.append("yyyy");
+					break;
+				case 'y':
+					pattern.append("yy");
+					break;
+				case 'm':
+					pattern.append("MM");
+					break;
+				case 'b':
+					pattern.append("MMM");
+					break;
+				case 'd':
+					pattern.append("dd");
+					break;
+				case 'H':
+					pattern.append("HH");
+					break;
+				case 'M':
+					pattern.append("mm");
+					break;
+				default:
+					pattern.append(timeformat.charAt(i));
+			}
+		}
+		return pattern.toString();
+	}
+
+	public Series[] getSeries() {
+		return mSeries;
+	}
+
+	public boolean isEmpty() {
+		return mSeries.length == 0 || Double.isNaN(mMinX);
+	}
+
+	/**
+	 * @return true if the x values are times, false for categories or plain
+	 *         numbers
+	 */
+	public boolean isTimeAxis() {
+		return mTimeAxis;
+	}
+
+	/**
+	 * @return a SimpleDateFormat pattern for the x labels of a time axis
+	 */
+	public String getTimeFormat() {
+		return mTimeFormat;
+	}
+
+	/**
+	 * @return the name of the category at each whole x, null if the x axis
+	 *         isn't categories
+	 */
+	public String[] getCategories() {
+		return mCategories;
+	}
+
+	/**
+	 * @return true if the points of the lines should be marked
+	 */
+	public boolean showsPoints() {
+		return mPoints;
+	}
+
+	public boolean showsLegend() {
+		return mLegend;
+	}
+
+	public double getMinX() {
+		return mMinX;
+	}
+
+	public double getMaxX() {
+		return mMaxX;
+	}
+
+	/**
+	 * @return the smallest step between two x values, how wide a bar can be
+	 */
+	public double getMinGap() {
+		return mMinGap;
+	}
+}
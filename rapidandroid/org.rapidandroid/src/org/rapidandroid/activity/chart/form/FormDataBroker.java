@@ -19,18 +19,19 @@ package org.rapidandroid.activity.chart.form;
 
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.List;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.rapidandroid.activity.chart.ChartBroker;
 import org.rapidandroid.activity.chart.JSONGraphData;
 import org.rapidandroid.data.RapidSmsDBConstants;
-import org.rapidandroid.data.controller.ParsedDataReporter;
-import org.rapidsms.java.core.Constants;
+import org.rapidandroid.data.controller.RollupDataLayer;
+import org.rapidandroid.data.controller.SketchDataLayer;
+import org.rapidsms.java.core.chart.LttbDownsampler;
 import org.rapidsms.java.core.model.Field;
 import org.rapidsms.java.core.model.Form;
-import org.rapidsms.java.core.model.Message;
+import org.rapidsms.java.core.stats.QuantileSketch;
+import org.rapidsms.java.core.stats.TopValuesSketch;
 
 import android.app.Activity;
 import android.database.Cursor;
@@ -45,18 +46,25 @@ public class FormDataBroker extends ChartBroker {
 	public static final int PLOT_WORD_HISTOGRAM = 3;
 	public static final int PLOT_NUMERIC_FIELD_COUNT_HISTOGRAM = 4;
 
+	/**
+	 * Bars a word histogram shows before lumping the rest into "Other"
+	 */
+	public static final int TOP_VALUES = 10;
+
 	private Form mForm;
 	private Field fieldToPlot;
+	private boolean mPlotReporters;
 
 	public FormDataBroker(Activity parentActivity, WebView appView, Form form, Date startDate, Date endDate) {
 		super(parentActivity, appView, startDate, endDate);
 		mForm = form;
-		mVariableStrings = new String[mForm.getFields().length + 1];
+		mVariableStrings = new String[mForm.getFields().length + 2];
 		mVariableStrings[0] = "Messages over time";
-		for (int i = 1; i < mVariableStrings.length; i++) {
+		for (int i = 1; i < mVariableStrings.length - 1; i++) {
 			Field f = mForm.getFields()[i - 1];
 			mVariableStrings[i] = f.getName() + "  [" + f.getFieldType().getParsedDataType() + "]";
 		}
+		mVariableStrings[mVariableStrings.length - 1] = "Distinct reporters";
 	}
 
 	@Override
@@ -65,17 +73,10 @@ public class FormDataBroker extends ChartBroker {
 		// "Rendering Graph...", "Please Wait",true,false);
 		JSONGraphData allData = null;
 
-		if (fieldToPlot == null) {
-			// we're going to do all messages over timereturn;
-			allData = loadMessageOverTimeHistogram();
-		} else if (fieldToPlot.getFieldType().getParsedDataType().toLowerCase().equals("word")) {
-			allData = loadHistogramFromField();
-		} else if (fieldToPlot.getFieldType().getParsedDataType().toLowerCase().equals("boolean")
-				|| fieldToPlot.getFieldType().getParsedDataType().toLowerCase().equals("yes/no")) {
-			allData = loadBooleanPlot();
+		if (isWordField()) {
+			allData = loadTopValues();
 		} else {
-			allData = loadNumericLine();
-			// data.put(loadNumericLine());
+			allData = loadDateChart(getChartDisplayType(), getStartDate());
 		}
 		if (allData != null) {
 			mGraphData = allData.getData();
@@ -85,77 +86,93 @@ public class FormDataBroker extends ChartBroker {
 		Log.d("FormDataBroker", mGraphOptions.toString());
 	}
 
-	private JSONGraphData loadBooleanPlot() {
+	private boolean isWordField() {
+		return fieldToPlot != null && RollupDataLayer.isWord(fieldToPlot.getFieldType().getParsedDataType());
+	}
 
-		Date startDateToUse = getStartDate();
-		DateDisplayTypes displayType = this.getDisplayType(startDateToUse, mEndDate);
+	/**
+	 * Every chart but the word histogram is over time.
+	 */
+	private JSONGraphData loadDateChart(DateDisplayTypes displayType, Date startDateToUse) {
+		if (mPlotReporters) {
+			return loadReporters(mForm.getFormId(), displayType, startDateToUse);
+		} else if (fieldToPlot == null) {
+			// we're going to do all messages over time
+			return loadMessageOverTimeHistogram(displayType, startDateToUse);
+		} else if (RollupDataLayer.isBoolean(fieldToPlot.getFieldType().getParsedDataType())) {
+			return loadBooleanPlot(displayType, startDateToUse);
+		} else {
+			return loadNumericLine(displayType, startDateToUse);
+		}
+	}
 
-		String selectionArg = getSelectionString(displayType);
+	@Override
+	protected DateDisplayTypes getChartDisplayType() {
+		if (isWordField()) {
+			return null;
+		} else if (mPlotReporters) {
+			return getReporterDisplayType(getDisplayType(getStartDate(), mEndDate));
+		}
+		return getDisplayType(getStartDate(), mEndDate);
+	}
 
-		StringBuilder rawQuery = new StringBuilder();
+	@Override
+	protected JSONGraphData loadDelta(DateDisplayTypes displayType, Date since) {
+		if (displayType == null) {
+			// the word counts are merged over the whole range, reloading is
+			// just as cheap as patching
+			return null;
+		}
+		return loadDateChart(displayType, since);
+	}
 
-		String fieldcol = RapidSmsDBConstants.FormData.COLUMN_PREFIX + fieldToPlot.getName();
+	@Override
+	protected String getChangeTable() {
+		return RapidSmsDBConstants.FormData.TABLE_PREFIX + mForm.getPrefix().replace("@", "");
+	}
 
-		rawQuery.append("select time, " + fieldcol + ", count(*) from  ");
-		rawQuery.append(RapidSmsDBConstants.FormData.TABLE_PREFIX + mForm.getPrefix());
+	@Override
+	protected boolean updatesChangeChart() {
+		return true;
+	}
 
-		rawQuery.append(" join rapidandroid_message on (");
-		rawQuery.append(RapidSmsDBConstants.FormData.TABLE_PREFIX + mForm.getPrefix());
-		rawQuery.append(".message_id = rapidandroid_message._id");
-		rawQuery.append(") ");
-		if (startDateToUse.compareTo(Constants.NULLDATE) != 0 && mEndDate.compareTo(Constants.NULLDATE) != 0) {
-			rawQuery.append(" WHERE rapidandroid_message.time > '" + Message.SQLDateFormatter.format(startDateToUse)
-					+ "' AND rapidandroid_message.time < '" + Message.SQLDateFormatter.format(mEndDate) + "' ");
-		}
+	@Override
+	protected String getEarliestChangeQuery(String changedRows) {
+		String table = getChangeTable();
+		return "select min(rapidandroid_message.time) from " + table + " join rapidandroid_message on (" + table
+				+ ".message_id = rapidandroid_message._id) where " + table + "._id in (" + changedRows + ")";
+	}
 
-		rawQuery.append(" group by ").append(selectionArg).append(", " + fieldcol);
-		rawQuery.append(" order by ").append("time").append(" ASC");
+	private JSONGraphData loadBooleanPlot(DateDisplayTypes displayType, Date startDateToUse) {
+		String rawQuery = getRollupQuery("sum(" + RapidSmsDBConstants.Rollup.TRUE_COUNT + "), sum("
+				+ RapidSmsDBConstants.Rollup.FALSE_COUNT + ")", mForm.getFormId(), fieldToPlot.getName(), displayType,
+											startDateToUse, mEndDate);
 
 		SQLiteDatabase db = rawDB.getReadableDatabase();
-		// the string value is column 0
-		// the magnitude is column 1
-		Log.d("query", rawQuery.toString());
-		Cursor cr = db.rawQuery(rawQuery.toString(), null);
-		// TODO Auto-generated method stub
+		// the bucket is column 0
+		// the yes and no counts are columns 1 and 2
+		Log.d("query", rawQuery);
+		Cursor cr = db.rawQuery(rawQuery, null);
 		int barCount = cr.getCount();
-		Date[] allDates = new Date[barCount];
 		if (barCount == 0) {
 			db.close();
 			cr.close();
 		} else {
-			List<Date> xValsTrue = new ArrayList<Date>();
-			// Date[] xValsTrue = new Date[barCount];
-			List<Integer> yValsTrue = new ArrayList<Integer>();
-			List<Date> xValsFalse = new ArrayList<Date>();
-			// Date[] xValsTrue = new Date[barCount];
-			List<Integer> yValsFalse = new ArrayList<Integer>();
+			Date[] allDates = new Date[barCount];
+			int[] yValsTrue = new int[barCount];
+			int[] yValsFalse = new int[barCount];
 			cr.moveToFirst();
 			int i = 0;
 			do {
-				String trueFalse = cr.getString(1);
-				// int trueFalse2 = cr.getInt(fieldcol);
-				// String trueFalseStr = cr.getString(1);
-
-				Date thisDate = getDate(displayType, cr.getString(0));
-				Log.d("FormDataBroker: ", cr.getString(0) + ", " + trueFalse + " , " + cr.getInt(2));
-
-				if (trueFalse.equals("true")) {
-					xValsFalse.add(thisDate);
-					yValsFalse.add(new Integer(cr.getInt(2)));
-				} else {
-					xValsTrue.add(thisDate);
-					yValsTrue.add(new Integer(cr.getInt(2)));
-				}
-				allDates[i] = thisDate;
+				allDates[i] = getDate(displayType, cr.getString(0));
+				yValsTrue[i] = cr.getInt(1);
+				yValsFalse[i] = cr.getInt(2);
 				i++;
 			} while (cr.moveToNext());
 
 			try {
-				String legend = this.getLegendString(displayType);
-				int[] yVals = getIntsFromList(yValsTrue);
-				JSONArray trueArray = getJSONArrayForValues(displayType, xValsTrue.toArray(new Date[0]), yVals);
-				yVals = getIntsFromList(yValsFalse);
-				JSONArray falseArray = getJSONArrayForValues(displayType, xValsFalse.toArray(new Date[0]), yVals);
+				JSONArray trueArray = getJSONArrayForValues(displayType, allDates, yValsTrue);
+				JSONArray falseArray = getJSONArrayForValues(displayType, allDates, yValsFalse);
 				JSONArray finalValues = new JSONArray();
 				JSONObject trueElem = new JSONObject();
 				trueElem.put("data", trueArray);
@@ -185,66 +202,51 @@ public class FormDataBroker extends ChartBroker {
 		return new JSONGraphData(getEmptyData(), new JSONObject());
 	}
 
-	private int[] getIntsFromList(List<Integer> values) {
-		int[] toReturn = new int[values.size()];
-		for (int i = 0; i < values.size(); i++) {
-			toReturn[i] = values.get(i);
-		}
-		return toReturn;
-	}
-
-	private JSONGraphData loadNumericLine() {
-		Date startDateToUse = getStartDate();
+	/**
+	 * Plots the average of the field per bucket, with the lowest and highest
+	 * values on either side.
+	 */
+	private JSONGraphData loadNumericLine(DateDisplayTypes displayType, Date startDateToUse) {
+		String rawQuery = getRollupQuery("sum(" + RapidSmsDBConstants.Rollup.SUM + "), sum("
+				+ RapidSmsDBConstants.Rollup.COUNT + "), min(" + RapidSmsDBConstants.Rollup.MIN + "), max("
+				+ RapidSmsDBConstants.Rollup.MAX + ")", mForm.getFormId(), fieldToPlot.getName(), displayType,
+											startDateToUse, mEndDate);
 
 		SQLiteDatabase db = rawDB.getReadableDatabase();
-
-		String fieldcol = RapidSmsDBConstants.FormData.COLUMN_PREFIX + fieldToPlot.getName();
-		StringBuilder rawQuery = new StringBuilder();
-		rawQuery.append("select rapidandroid_message.time, " + fieldcol);
-		rawQuery.append(" from ");
-		rawQuery.append(RapidSmsDBConstants.FormData.TABLE_PREFIX + mForm.getPrefix());
-
-		rawQuery.append(" join rapidandroid_message on (");
-		rawQuery.append(RapidSmsDBConstants.FormData.TABLE_PREFIX + mForm.getPrefix());
-		rawQuery.append(".message_id = rapidandroid_message._id");
-		rawQuery.append(") ");
-
-		if (startDateToUse.compareTo(Constants.NULLDATE) != 0 && mEndDate.compareTo(Constants.NULLDATE) != 0) {
-			rawQuery.append(" WHERE rapidandroid_message.time > '" + Message.SQLDateFormatter.format(startDateToUse)
-					+ "' AND rapidandroid_message.time < '" + Message.SQLDateFormatter.format(mEndDate) + "' ");
-		}
-
-		rawQuery.append(" order by rapidandroid_message.time ASC");
-
-		// the string value is column 0
-		// the magnitude is column 1
-
-		Cursor cr = db.rawQuery(rawQuery.toString(), null);
+		Cursor cr = db.rawQuery(rawQuery, null);
 		int barCount = cr.getCount();
 
 		if (barCount == 0) {
 			cr.close();
 		} else {
-			Date[] xVals = new Date[barCount];
-			int[] yVals = new int[barCount];
-			cr.moveToFirst();
-			int i = 0;
-			do {
-				try {
-					xVals[i] = Message.SQLDateFormatter.parse(cr.getString(0));
-					yVals[i] = cr.getInt(1);
-				} catch (Exception ex) {
-
+			// straight from the cursor into the downsamplers, the lowest and
+			// highest lines keep the extremes of whatever they drop
+			int target = getTargetPoints();
+			LttbDownsampler averages = new LttbDownsampler(target, barCount);
+			LttbDownsampler mins = new LttbDownsampler(target, barCount);
+			LttbDownsampler maxes = new LttbDownsampler(target, barCount);
+			while (cr.moveToNext()) {
+				if (isCancelled()) {
+					// a newer chart was asked for, this one gets thrown away
+					break;
 				}
-				i++;
-			} while (cr.moveToNext());
-
-			// xaxis: { ticks: [0, [Math.PI/2, "\u03c0/2"], [Math.PI, "\u03c0"],
-			// [Math.PI * 3/2, "3\u03c0/2"], [Math.PI * 2, "2\u03c0"]]},
+				long x = getDate(displayType, cr.getString(0)).getTime();
+				averages.add(x, cr.getDouble(1) / Math.max(1, cr.getInt(2)));
+				mins.add(x, cr.getDouble(3));
+				maxes.add(x, cr.getDouble(4));
+			}
 
 			try {
-				return new JSONGraphData(prepareDateData(xVals, yVals), loadOptionsForDateGraph(xVals, false,
-																								DateDisplayTypes.Daily));
+				JSONArray finalValues = new JSONArray();
+				finalValues.put(prepareDateData(getJSONArrayForValues(averages), "Average"));
+				finalValues.put(prepareDateData(getEnvelopeForValues(mins, false), "Lowest"));
+				finalValues.put(prepareDateData(getEnvelopeForValues(maxes, true), "Highest"));
+				if (displayType != DateDisplayTypes.Hourly) {
+					// the medians come from the daily sketches, hourly charts
+					// go without
+					finalValues.put(prepareDateData(loadMedians(db, displayType, startDateToUse), "Median"));
+				}
+				return new JSONGraphData(finalValues, loadOptionsForDateGraph(averages.size(), true, displayType));
 			} catch (Exception ex) {
 
 			} finally {
@@ -258,54 +260,68 @@ public class FormDataBroker extends ChartBroker {
 		return new JSONGraphData(getEmptyData(), new JSONObject());
 	}
 
-	private JSONArray prepareDateData(Date[] xvals, int[] yvals) {
-		JSONArray outerArray = new JSONArray();
-		JSONArray innerArray = new JSONArray();
-		int datalen = xvals.length;
-		for (int i = 0; i < datalen; i++) {
-			JSONArray elem = new JSONArray();
-			elem.put(xvals[i].getTime());
-			elem.put(yvals[i]);
-			innerArray.put(elem);
+	/**
+	 * The median of each display bucket, from merging the daily sketches of
+	 * its days.
+	 */
+	private JSONArray loadMedians(SQLiteDatabase db, DateDisplayTypes displayType, Date startDateToUse) {
+		ArrayList<double[]> points = new ArrayList<double[]>();
+		Cursor cr = SketchDataLayer.queryDays(db, mForm.getFormId(), fieldToPlot.getName(), startDateToUse, mEndDate);
+		QuantileSketch bucket = null;
+		long bucketX = 0;
+		while (cr.moveToNext()) {
+			if (isCancelled()) {
+				break;
+			}
+			QuantileSketch day = SketchDataLayer.parseDay(cr);
+			if (day == null) {
+				continue;
+			}
+			long x = getDate(displayType, cr.getString(0)).getTime();
+			if (bucket != null && x != bucketX) {
+				points.add(new double[] { bucketX, bucket.getQuantile(0.5) });
+				bucket = null;
+			}
+			if (bucket == null) {
+				bucket = day;
+				bucketX = x;
+			} else {
+				bucket.merge(day);
+			}
+		}
+		cr.close();
+		if (bucket != null) {
+			points.add(new double[] { bucketX, bucket.getQuantile(0.5) });
 		}
-		outerArray.put(innerArray);
-		return outerArray;
-	}
-
-	private JSONGraphData loadMessageOverTimeHistogram() {
-		Date startDateToUse = getStartDate();
-		DateDisplayTypes displayType = this.getDisplayType(startDateToUse, mEndDate);
-
-		String selectionArg = getSelectionString(displayType);
-
-		StringBuilder rawQuery = new StringBuilder();
-
-		rawQuery.append("select time, count(*) from  ");
-		rawQuery.append(RapidSmsDBConstants.FormData.TABLE_PREFIX + mForm.getPrefix());
 
-		rawQuery.append(" join rapidandroid_message on (");
-		rawQuery.append(RapidSmsDBConstants.FormData.TABLE_PREFIX + mForm.getPrefix());
-		rawQuery.append(".message_id = rapidandroid_message._id");
-		rawQuery.append(") ");
-		if (startDateToUse.compareTo(Constants.NULLDATE) != 0 && mEndDate.compareTo(Constants.NULLDATE) != 0) {
-			rawQuery.append(" WHERE rapidandroid_message.time > '" + Message.SQLDateFormatter.format(startDateToUse)
-					+ "' AND rapidandroid_message.time < '" + Message.SQLDateFormatter.format(mEndDate) + "' ");
+		LttbDownsampler medians = new LttbDownsampler(getTargetPoints(), points.size());
+		for (int i = 0; i < points.size(); i++) {
+			medians.add(points.get(i)[0], points.get(i)[1]);
 		}
+		return getJSONArrayForValues(medians);
+	}
+
+	private JSONObject prepareDateData(JSONArray data, String label) throws JSONException {
+		JSONObject series = new JSONObject();
+		series.put("data", data);
+		series.put("label", label);
+		return series;
+	}
 
-		rawQuery.append(" group by ").append(selectionArg);
-		rawQuery.append("order by ").append(selectionArg).append(" ASC");
+	private JSONGraphData loadMessageOverTimeHistogram(DateDisplayTypes displayType, Date startDateToUse) {
+		String rawQuery = getRollupQuery("sum(" + RapidSmsDBConstants.Rollup.COUNT + ")", mForm.getFormId(), "",
+											displayType, startDateToUse, mEndDate);
 
 		// the X date value is column 0
 		// the y value magnitude is column 1
 		SQLiteDatabase db = rawDB.getReadableDatabase();
-		Cursor cr = db.rawQuery(rawQuery.toString(), null);
+		Cursor cr = db.rawQuery(rawQuery, null);
 		return getDateQuery(displayType, cr, db);
 
 	}
 
 	private Date getStartDate() {
-		// TODO Auto-generated method stub
-		Date firstDateFromForm = ParsedDataReporter.getOldestMessageDate(rawDB, mForm);
+		Date firstDateFromForm = getOldestRollupDate(mForm.getFormId());
 		if (firstDateFromForm.after(mStartDate)) {
 			// first date in the form is more recent than the start date, so
 			// just go with that.
@@ -316,73 +332,46 @@ public class FormDataBroker extends ChartBroker {
 	}
 
 	/**
-	 * Should return a two element array - the first element is the data, the
-	 * second are the options
-	 * 
-	 * @return
+	 * A bar for each of the most common answers to the word field, and one for
+	 * everything else, from the field's daily TopValuesSketches.
 	 */
-	private JSONGraphData loadHistogramFromField() {
-		// JSONObject result = new JSONObject();
+	private JSONGraphData loadTopValues() {
 		SQLiteDatabase db = rawDB.getReadableDatabase();
-
-		String fieldcol = RapidSmsDBConstants.FormData.COLUMN_PREFIX + fieldToPlot.getName();
-		StringBuilder rawQuery = new StringBuilder();
-		rawQuery.append("select " + fieldcol);
-		rawQuery.append(", count(*) from ");
-		rawQuery.append(RapidSmsDBConstants.FormData.TABLE_PREFIX + mForm.getPrefix());
-
-		rawQuery.append(" join rapidandroid_message on (");
-		rawQuery.append(RapidSmsDBConstants.FormData.TABLE_PREFIX + mForm.getPrefix());
-		rawQuery.append(".message_id = rapidandroid_message._id");
-		rawQuery.append(") ");
-
-		if (mStartDate.compareTo(Constants.NULLDATE) != 0 && mEndDate.compareTo(Constants.NULLDATE) != 0) {
-			rawQuery.append(" WHERE rapidandroid_message.time > '" + Message.SQLDateFormatter.format(mStartDate)
-					+ "' AND rapidandroid_message.time < '" + Message.SQLDateFormatter.format(mEndDate) + "' ");
+		TopValuesSketch sketch;
+		try {
+			sketch = SketchDataLayer.getTopValues(db, mForm.getFormId(), fieldToPlot.getName(), getStartDate(),
+													mEndDate);
+		} finally {
+			db.close();
+		}
+		TopValuesSketch.Entry[] top = sketch.getTop(TOP_VALUES);
+		if (top.length == 0) {
+			return new JSONGraphData(getEmptyData(), new JSONObject());
 		}
 
-		rawQuery.append(" group by " + fieldcol);
-		rawQuery.append(" order by " + fieldcol);
-
-		// the string value is column 0
-		// the magnitude is column 1
-
-		Cursor cr = db.rawQuery(rawQuery.toString(), null);
-		int barCount = cr.getCount();
-
-		if (barCount != 0) {
-			String[] xVals = new String[barCount];
-			int[] yVals = new int[barCount];
-			cr.moveToFirst();
-			int i = 0;
-			do {
-				xVals[i] = cr.getString(0);
-				yVals[i] = cr.getInt(1);
-				i++;
-			} while (cr.moveToNext());
-
-			// xaxis: { ticks: [0, [Math.PI/2, "\u03c0/2"], [Math.PI, "\u03c0"],
-			// [Math.PI * 3/2, "3\u03c0/2"], [Math.PI * 2, "2\u03c0"]]},
-
-			try {
-				// result.put("label", fieldToPlot.getName());
-				// result.put("data", prepareData(xVals, yVals));
-				// result.put("bars", getShowTrue());
-				// result.put("xaxis", getXaxisOptions(xVals));
-				return new JSONGraphData(prepareHistogramData(xVals, yVals), loadOptionsForHistogram(xVals));
-			} catch (Exception ex) {
-
-			} finally {
-				if (!cr.isClosed()) {
-					cr.close();
-				}
-				if (db.isOpen()) {
-					db.close();
-				}
-			}
+		// the counts may overstate a little once a day has more distinct
+		// answers than the sketch keeps, so other can't go below nothing
+		long other = sketch.getTotal();
+		for (int i = 0; i < top.length; i++) {
+			other -= top[i].getCount();
+		}
+		int barCount = other > 0 ? top.length + 1 : top.length;
+		String[] xVals = new String[barCount];
+		int[] yVals = new int[barCount];
+		for (int i = 0; i < top.length; i++) {
+			xVals[i] = top[i].getValue();
+			yVals[i] = (int) top[i].getCount();
+		}
+		if (other > 0) {
+			xVals[top.length] = "Other";
+			yVals[top.length] = (int) other;
+		}
+		try {
+			return new JSONGraphData(prepareHistogramData(xVals, yVals), loadOptionsForHistogram(xVals));
+		} catch (JSONException ex) {
+			Log.e("FormDataBroker", "Unable to build the histogram: " + ex.getMessage());
+			return new JSONGraphData(getEmptyData(), new JSONObject());
 		}
-		// either there was no data or something bad happened
-		return new JSONGraphData(getEmptyData(), new JSONObject());
 	}
 
 	private JSONArray prepareHistogramData(String[] names, int[] counts) throws JSONException {
@@ -411,6 +400,16 @@ public class FormDataBroker extends ChartBroker {
 		return "Form Data";
 	}
 
+	@Override
+	protected int getCacheForm() {
+		return mForm.getFormId();
+	}
+
+	@Override
+	protected ChartBroker newPrefetchBroker(Date startDate, Date endDate) {
+		return new FormDataBroker(mParentActivity, mAppView, mForm, startDate, endDate);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -418,16 +417,14 @@ public class FormDataBroker extends ChartBroker {
 	 */
 
 	@Override
-	public void setVariable(int id) {
-		// TODO Auto-generated method stub
-		if (id == 0) {
+	public synchronized void setVariable(int id) {
+		mPlotReporters = id > mForm.getFields().length;
+		if (id == 0 || mPlotReporters) {
 			this.fieldToPlot = null;
 		} else {
 			this.fieldToPlot = mForm.getFields()[id - 1];
 		}
-		mChosenVariable = id;
-		this.mGraphData = null;
-		this.mGraphOptions = null;
+		super.setVariable(id);
 	}
 
 	/*
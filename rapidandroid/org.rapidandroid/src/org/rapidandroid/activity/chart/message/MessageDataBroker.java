@@ -23,8 +23,7 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 import org.rapidandroid.activity.chart.ChartBroker;
 import org.rapidandroid.activity.chart.JSONGraphData;
-import org.rapidsms.java.core.Constants;
-import org.rapidsms.java.core.model.Message;
+import org.rapidandroid.data.RapidSmsDBConstants;
 
 import android.app.Activity;
 import android.database.Cursor;
@@ -38,7 +37,7 @@ import android.webkit.WebView;
 public class MessageDataBroker extends ChartBroker {
 	public MessageDataBroker(Activity activity, WebView appView, Date startDate, Date endDate) {
 		super(activity, appView, startDate, endDate);
-		mVariableStrings = new String[] { "Trends by day", "Receipt time of day" };
+		mVariableStrings = new String[] { "Trends by day", "Receipt time of day", "Distinct reporters" };
 	}
 
 	/*
@@ -69,9 +68,11 @@ public class MessageDataBroker extends ChartBroker {
 			// this is a count of messages per day
 			// select date(time), count(*) from rapidandroid_message group by
 			// date(time)
-			allData = loadMessageTrends();
+			allData = loadMessageTrends(getChartDisplayType(), mStartDate);
 		} else if (mChosenVariable == 1) {
 			allData = chartMessagesPerHour();
+		} else if (mChosenVariable == 2) {
+			allData = loadReporters(RapidSmsDBConstants.Rollup.ALL_MESSAGES, getChartDisplayType(), mStartDate);
 		}
 		if (allData != null) {
 			mGraphData = allData.getData();
@@ -83,32 +84,47 @@ public class MessageDataBroker extends ChartBroker {
 
 	}
 
-	private JSONGraphData loadMessageTrends() {
+	@Override
+	protected DateDisplayTypes getChartDisplayType() {
+		if (mChosenVariable == 1) {
+			// receipt time of day
+			return null;
+		} else if (mChosenVariable == 2) {
+			return getReporterDisplayType(getDisplayType(mStartDate, mEndDate));
+		}
+		return getDisplayType(mStartDate, mEndDate);
+	}
+
+	@Override
+	protected JSONGraphData loadDelta(DateDisplayTypes displayType, Date since) {
+		if (mChosenVariable == 0) {
+			return loadMessageTrends(displayType, since);
+		} else if (mChosenVariable == 1) {
+			// only 24 rollup rows, they're replaced whole
+			return chartMessagesPerHour();
+		} else if (mChosenVariable == 2) {
+			return loadReporters(RapidSmsDBConstants.Rollup.ALL_MESSAGES, displayType, since);
+		}
+		return null;
+	}
+
+	private JSONGraphData loadMessageTrends(DateDisplayTypes displayType, Date startDateToUse) {
 		SQLiteDatabase db = rawDB.getReadableDatabase();
 
-		Date startDateToUse = mStartDate;
 		// if (firstDateFromForm.after(mStartDate)) {
 		// // first date in the form is more recent than the start date, so just
 		// go with that.
 		// startDateToUse = firstDateFromForm;
 		// }
-		DateDisplayTypes displayType = this.getDisplayType(startDateToUse, mEndDate);
 
-		String selectionArg = getSelectionString(displayType);
-
-		StringBuilder rawQuery = new StringBuilder();
-		rawQuery.append("select time, count(*) from rapidandroid_message ");
-		if (startDateToUse.compareTo(Constants.NULLDATE) != 0 && mEndDate.compareTo(Constants.NULLDATE) != 0) {
-			rawQuery.append(" WHERE rapidandroid_message.time > '" + Message.SQLDateFormatter.format(startDateToUse)
-					+ "' AND rapidandroid_message.time < '" + Message.SQLDateFormatter.format(mEndDate) + "' ");
-		}
-		rawQuery.append(" group by ").append(selectionArg);
-		rawQuery.append(" order by ").append(selectionArg).append(" ASC");
+		String rawQuery = getRollupQuery("sum(" + RapidSmsDBConstants.Rollup.COUNT + ")",
+											RapidSmsDBConstants.Rollup.ALL_MESSAGES, "", displayType, startDateToUse,
+											mEndDate);
 
 		// the X date value is column 0
 		// the y value magnitude is column 1
 
-		Cursor cr = db.rawQuery(rawQuery.toString(), null);
+		Cursor cr = db.rawQuery(rawQuery, null);
 		return this.getDateQuery(displayType, cr, db);
 	}
 
@@ -116,7 +132,11 @@ public class MessageDataBroker extends ChartBroker {
 		JSONObject result = new JSONObject();
 		SQLiteDatabase db = rawDB.getReadableDatabase();
 
-		String rawQuery = "select strftime('%H',time), count(*) from rapidandroid_message group by strftime('%H',time) order by strftime('%H',time)";
+		String rawQuery = "select " + RapidSmsDBConstants.Rollup.BUCKET + ", " + RapidSmsDBConstants.Rollup.COUNT
+				+ " from " + RapidSmsDBConstants.Rollup.TABLE + " where " + RapidSmsDBConstants.Rollup.FORM + " = "
+				+ RapidSmsDBConstants.Rollup.ALL_MESSAGES + " and " + RapidSmsDBConstants.Rollup.PERIOD + " = '"
+				+ RapidSmsDBConstants.Rollup.PERIOD_HOUR_OF_DAY + "' and " + RapidSmsDBConstants.Rollup.FIELD
+				+ " = '' order by " + RapidSmsDBConstants.Rollup.BUCKET;
 
 		// the string value is column 0
 		// the magnitude is column 1
@@ -164,6 +184,11 @@ public class MessageDataBroker extends ChartBroker {
 		return arr;
 	}
 
+	@Override
+	protected ChartBroker newPrefetchBroker(Date startDate, Date endDate) {
+		return new MessageDataBroker(mParentActivity, mAppView, startDate, endDate);
+	}
+
 	@Override
 	public String getName() {
 		return "graph_msg";
@@ -23,6 +23,9 @@ import org.rapidandroid.content.translation.MessageTranslator;
 import org.rapidandroid.content.translation.ModelTranslator;
 import org.rapidandroid.data.RapidSmsDBConstants;
 import org.rapidandroid.data.SmsDbHelper;
+import org.rapidandroid.data.controller.RollupDataLayer;
+import org.rapidandroid.data.controller.SketchDataLayer;
+import org.rapidandroid.data.controller.TallyDataLayer;
 import org.rapidsms.java.core.model.Form;
 
 import android.content.ContentProvider;
@@ -98,6 +101,10 @@ public class RapidSmsContentProvider extends ContentProvider {
 	private static final int FORMDATA_ID = 12;
 	// private static final int FORMDATA_ID = 13;
 
+	private static final int TALLY_ID = 15;
+	private static final int CHOICE = 16;
+	private static final int CHANGES = 17;
+
 	private static final UriMatcher sUriMatcher;
 
 	static {
@@ -121,6 +128,9 @@ public class RapidSmsContentProvider extends ContentProvider {
 
 		// actual form data
 		sUriMatcher.addURI(RapidSmsDBConstants.AUTHORITY, RapidSmsDBConstants.FormData.URI_PART + "/#", FORMDATA_ID);
+		sUriMatcher.addURI(RapidSmsDBConstants.AUTHORITY, RapidSmsDBConstants.Tally.URI_PART + "/#", TALLY_ID);
+		sUriMatcher.addURI(RapidSmsDBConstants.AUTHORITY, RapidSmsDBConstants.Choice.URI_PART, CHOICE);
+		sUriMatcher.addURI(RapidSmsDBConstants.AUTHORITY, RapidSmsDBConstants.Change.URI_PART, CHANGES);
 	
 		sUriMatcher.addURI(RapidSmsDBConstants.AUTHORITY, RapidSmsDBConstants.Project.URI_PART, PROJECT);
 		sUriMatcher.addURI(RapidSmsDBConstants.AUTHORITY, RapidSmsDBConstants.Survey.URI_PART, SURVEY);
@@ -167,6 +177,12 @@ public class RapidSmsContentProvider extends ContentProvider {
 
 			case FORMDATA_ID:
 				return RapidSmsDBConstants.FormData.CONTENT_TYPE;
+			case TALLY_ID:
+				return RapidSmsDBConstants.Tally.CONTENT_TYPE;
+			case CHOICE:
+				return RapidSmsDBConstants.Choice.CONTENT_TYPE;
+			case CHANGES:
+				return RapidSmsDBConstants.Change.CONTENT_TYPE;
 			default:
 				throw new IllegalArgumentException("Unknown URI " + uri);
 				// return sUriMatcher.match(uri)+"";
@@ -211,6 +227,8 @@ public class RapidSmsContentProvider extends ContentProvider {
 				return insertForm(uri, values);
 			case FORMDATA_ID:
 				return insertFormData(uri, values);
+			case CHOICE:
+				return doInsert(uri, values, RapidSmsDBConstants.Choice.TABLE, RapidSmsDBConstants.Choice.LABEL);
 				// other stuffs not implemented for insertion yet.
 
 			default:
@@ -222,7 +240,8 @@ public class RapidSmsContentProvider extends ContentProvider {
 	private Uri insertFormData(Uri uri, ContentValues values) {
 		// sanity check, see if the table exists
 		String formid = uri.getPathSegments().get(1);
-		String formprefix = ModelTranslator.getFormById(Integer.valueOf(formid).intValue()).getPrefix().replace("@", "");
+		Form f = ModelTranslator.getFormById(Integer.valueOf(formid).intValue());
+		String formprefix = f.getPrefix().replace("@", "");
 		// SQLiteDatabase dbr = mOpenHelper.getReadableDatabase();
 		// Cursor table_exists = dbr.rawQuery("select count(*) from formdata_"
 		// + formprefix, null);
@@ -233,12 +252,29 @@ public class RapidSmsContentProvider extends ContentProvider {
 		// table_exists.close();
 
 		// doInsert doesn't apply well here.
+		// the answer tallies go in with the row, so they can never disagree
+		// with the formdata table.
 		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-		long rowId = db.insert(RapidSmsDBConstants.FormData.TABLE_PREFIX + formprefix,
+		long rowId;
+		db.beginTransaction();
+		try {
+			rowId = db.insert(RapidSmsDBConstants.FormData.TABLE_PREFIX + formprefix,
 								RapidSmsDBConstants.FormData.MESSAGE, values);
+			if (rowId > 0) {
+				TallyDataLayer.recordAnswer(db, f, values);
+				String time = RollupDataLayer.getMessageTime(db, values);
+				RollupDataLayer.recordFormData(db, f, time, values);
+				SketchDataLayer.recordFormData(db, f, time, values);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
 		if (rowId > 0) {
+			RollupDataLayer.invalidate(f.getFormId());
 			Uri fieldUri = ContentUris.withAppendedId(RapidSmsDBConstants.Form.CONTENT_URI, rowId);
 			getContext().getContentResolver().notifyChange(fieldUri, null);
+			notifyChanges();
 			return Uri.parse(uri.toString() + "/" + rowId);
 		} else {
 			throw new SQLException("Failed to insert row into " + uri);
@@ -272,6 +308,7 @@ public class RapidSmsContentProvider extends ContentProvider {
 		if (rowId > 0) {
 			Uri retUri = ContentUris.withAppendedId(uri, rowId);
 			getContext().getContentResolver().notifyChange(retUri, null);
+			notifyChanges();
 			return retUri;
 		} else {
 			throw new SQLException("Failed to insert row into " + uri);
@@ -368,7 +405,33 @@ public class RapidSmsContentProvider extends ContentProvider {
 			values.put(RapidSmsDBConstants.Message.IS_VIRTUAL, false);
 		}
 
-		return doInsert(uri, values, RapidSmsDBConstants.Message.TABLE, RapidSmsDBConstants.Message.MESSAGE);
+		// the chart rollups go in with the message, like the tallies do with
+		// formdata
+		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		long rowId;
+		db.beginTransaction();
+		try {
+			rowId = db.insert(RapidSmsDBConstants.Message.TABLE, RapidSmsDBConstants.Message.MESSAGE, values);
+			if (rowId > 0) {
+				RollupDataLayer.recordMessage(db, values.getAsString(RapidSmsDBConstants.Message.TIME));
+				SketchDataLayer.recordMessage(db, values);
+				if (rowId % RapidSmsDBConstants.Change.TRIM_EVERY == 0) {
+					SmsDbHelper.trimChangelog(db);
+				}
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		if (rowId > 0) {
+			RollupDataLayer.invalidate(RapidSmsDBConstants.Rollup.ALL_MESSAGES);
+			Uri retUri = ContentUris.withAppendedId(uri, rowId);
+			getContext().getContentResolver().notifyChange(retUri, null);
+			notifyChanges();
+			return retUri;
+		} else {
+			throw new SQLException("Failed to insert row into " + uri);
+		}
 	}
 	
 	
@@ -556,6 +619,11 @@ public class RapidSmsContentProvider extends ContentProvider {
 				Form f = ModelTranslator.getFormById(Integer.valueOf(formid).intValue());
 				table = RapidSmsDBConstants.FormData.TABLE_PREFIX + f.getPrefix().replace("@", "");
 				break;
+			case CHANGES:
+				// trimming the log, consumers that are further behind than
+				// this have to start over from a full read
+				table = RapidSmsDBConstants.Change.TABLE;
+				break;
 			default:
 				throw new IllegalArgumentException("Unknown URI " + uri);
 		}
@@ -565,8 +633,32 @@ public class RapidSmsContentProvider extends ContentProvider {
 		}
 
 		SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-		int result = db.delete(table, finalWhere, whereArgs);
-
+		int result;
+		db.beginTransaction();
+		try {
+			result = db.delete(table, finalWhere, whereArgs);
+			if (result > 0) {
+				// deletes are rare, recount what they touched rather than
+				// trying to subtract from the rollups and tallies
+				if (table.equals(RapidSmsDBConstants.Message.TABLE)) {
+					RollupDataLayer.rebuildAllRollups(db);
+					SketchDataLayer.rebuildAllSketches(db);
+				} else if (table.startsWith(RapidSmsDBConstants.FormData.TABLE_PREFIX)) {
+					Form deletedFrom = ModelTranslator.getFormById(Integer.valueOf(uri.getPathSegments().get(1))
+																		.intValue());
+					RollupDataLayer.rebuildRollups(db, deletedFrom);
+					SketchDataLayer.rebuildSketches(db, deletedFrom);
+					TallyDataLayer.rebuildTallies(db, deletedFrom);
+				}
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		if (result > 0) {
+			RollupDataLayer.invalidateAll();
+			notifyChanges();
+		}
 		return result;
 	}
 
@@ -673,6 +765,16 @@ public class RapidSmsContentProvider extends ContentProvider {
 				// throw new IllegalArgumentException(uri +
 				// " query handler not implemented.");
 
+			case TALLY_ID:
+				qb.setTables(RapidSmsDBConstants.Tally.TABLE);
+				qb.appendWhere(RapidSmsDBConstants.Tally.FORM + "=" + uri.getPathSegments().get(1));
+				break;
+			case CHOICE:
+				qb.setTables(RapidSmsDBConstants.Choice.TABLE);
+				break;
+			case CHANGES:
+				return queryChanges(uri, projection, selection, selectionArgs);
+
 			default:
 				throw new IllegalArgumentException("Unknown URI " + uri);
 		}
@@ -704,6 +806,41 @@ public class RapidSmsContentProvider extends ContentProvider {
 		return c;
 	}
 
+	/**
+	 * The changes after the caller's sequence number, oldest first. Callers
+	 * keep the _id of the last row they got and pass it as since next time,
+	 * so each poll only reads what's new.
+	 * 
+	 * @param uri
+	 *            changes?since=[seq]&limit=[n], both optional
+	 * @return
+	 */
+	private Cursor queryChanges(Uri uri, String[] projection, String selection, String[] selectionArgs) {
+		long since = 0;
+		int limit = RapidSmsDBConstants.Change.DEFAULT_LIMIT;
+		try {
+			String param = uri.getQueryParameter(RapidSmsDBConstants.Change.PARAM_SINCE);
+			if (param != null) {
+				since = Long.parseLong(param);
+			}
+			param = uri.getQueryParameter(RapidSmsDBConstants.Change.PARAM_LIMIT);
+			if (param != null) {
+				limit = Integer.parseInt(param);
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad since or limit in " + uri);
+		}
+
+		SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+		qb.setTables(RapidSmsDBConstants.Change.TABLE);
+		qb.appendWhere(BaseColumns._ID + " > " + since);
+		SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+		Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, BaseColumns._ID + " asc", String
+				.valueOf(limit));
+		c.setNotificationUri(getContext().getContentResolver(), RapidSmsDBConstants.Change.CONTENT_URI);
+		return c;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -773,7 +910,20 @@ public class RapidSmsContentProvider extends ContentProvider {
 		
 		SQLiteDatabase db = mOpenHelper.getReadableDatabase();
 		Log.i("RapidSmsContentProvider", "update: selection " + selection);
-		return db.update(table, valuesToChange, selection, selectionArgs);
+		int result = db.update(table, valuesToChange, selection, selectionArgs);
+		if (result > 0) {
+			notifyChanges();
+		}
+		return result;
+	}
+
+	/**
+	 * Wake up whoever is watching the changes uri. Writes that go straight
+	 * to the database still land in the log, their readers just find out on
+	 * their next poll.
+	 */
+	private void notifyChanges() {
+		getContext().getContentResolver().notifyChange(RapidSmsDBConstants.Change.CONTENT_URI, null);
 	}
 
 	/*
@@ -22,6 +22,7 @@ import java.util.Vector;
 
 import org.rapidandroid.data.RapidSmsDBConstants;
 import org.rapidandroid.data.SmsDbHelper;
+import org.rapidandroid.receiver.ReplyTemplate;
 import org.rapidandroid.receiver.SmsParseReceiver;
 import org.rapidsms.java.core.model.Field;
 import org.rapidsms.java.core.model.Form;
@@ -60,6 +61,10 @@ public class ModelTranslator {
 	private static HashMap<Integer, Vector<Field>> fieldToFormHash = new HashMap<Integer, Vector<Field>>();
 	private static HashMap<Integer, SimpleFieldType> fieldTypeHash = new HashMap<Integer, SimpleFieldType>();
 
+	private static HashMap<Integer, Integer> questionTypeHash = new HashMap<Integer, Integer>();
+	private static HashMap<Integer, String[]> choiceHash = new HashMap<Integer, String[]>();
+	private static HashMap<Integer, ReplyTemplate> replyTemplateHash = new HashMap<Integer, ReplyTemplate>();
+
 	private static SmsDbHelper mDbHelper;
 
 	/**
@@ -175,6 +180,112 @@ public class ModelTranslator {
 		SmsParseReceiver.initFormCache();
 	}
 
+	/**
+	 * Attach a form that was just added with addFormToDatabase to its survey,
+	 * storing the question type and, for multiple choice questions, the answer
+	 * choices in the order they are numbered.
+	 * 
+	 * @param f
+	 * @param surveyId
+	 * @param sequence
+	 * @param questionType
+	 * @param choices
+	 */
+	public static void setSurveyQuestion(Form f, int surveyId, int sequence, int questionType, String[] choices) {
+		ContentValues cv = new ContentValues();
+		cv.put("survey_id", surveyId);
+		cv.put("sequence", sequence);
+		cv.put("question_type", questionType);
+		String[] args = { f.getPrefix() };
+		int affected = mContext.getContentResolver().update(RapidSmsDBConstants.Form.CONTENT_URI, cv, "prefix = ?",
+																args);
+		Log.i("ModelTranslator", "survey question rows updated: " + affected);
+
+		for (int i = 0; i < choices.length; i++) {
+			ContentValues choicecv = new ContentValues();
+			choicecv.put(RapidSmsDBConstants.Choice.FORM, f.getFormId());
+			choicecv.put(RapidSmsDBConstants.Choice.SEQUENCE, i + 1);
+			choicecv.put(RapidSmsDBConstants.Choice.LABEL, choices[i]);
+			mContext.getContentResolver().insert(RapidSmsDBConstants.Choice.CONTENT_URI, choicecv);
+		}
+
+		Integer formInt = Integer.valueOf(f.getFormId());
+		questionTypeHash.remove(formInt);
+		choiceHash.remove(formInt);
+		replyTemplateHash.remove(formInt);
+		OpenRosaInstanceWriter.invalidatePlan(f.getFormId());
+	}
+
+	/**
+	 * The survey question type of a form (see
+	 * SurveyCreationConstants.QuestionTypes), 0 if the form isn't part of a
+	 * survey.
+	 * 
+	 * @param formId
+	 * @return
+	 */
+	public static int getQuestionType(int formId) {
+		Integer formInt = Integer.valueOf(formId);
+		if (questionTypeHash.containsKey(formInt)) {
+			return questionTypeHash.get(formInt).intValue();
+		}
+
+		int questionType = 0;
+		Cursor formCursor = mContext.getContentResolver().query(RapidSmsDBConstants.Form.CONTENT_URI,
+																new String[] { "question_type" }, "_id = " + formId,
+																null, null);
+		if (formCursor.moveToFirst() && !formCursor.isNull(0)) {
+			questionType = formCursor.getInt(0);
+		}
+		formCursor.close();
+		questionTypeHash.put(formInt, Integer.valueOf(questionType));
+		return questionType;
+	}
+
+	/**
+	 * The answer choices of a multiple choice form. Index i is the label for
+	 * the reply "i+1". Empty for every other kind of form.
+	 * 
+	 * @param formId
+	 * @return
+	 */
+	public static String[] getChoicesForForm(int formId) {
+		Integer formInt = Integer.valueOf(formId);
+		if (choiceHash.containsKey(formInt)) {
+			return choiceHash.get(formInt);
+		}
+
+		Cursor choiceCursor = mContext.getContentResolver().query(RapidSmsDBConstants.Choice.CONTENT_URI,
+																	new String[] { RapidSmsDBConstants.Choice.LABEL },
+																	RapidSmsDBConstants.Choice.FORM + "=" + formId,
+																	null, RapidSmsDBConstants.Choice.SEQUENCE + " ASC");
+		String[] choices = new String[choiceCursor.getCount()];
+		int i = 0;
+		while (choiceCursor.moveToNext()) {
+			choices[i++] = choiceCursor.getString(0);
+		}
+		choiceCursor.close();
+		choiceHash.put(formInt, choices);
+		return choices;
+	}
+
+	/**
+	 * The compiled auto reply for a survey question form.
+	 * 
+	 * @param formId
+	 * @return
+	 */
+	public static ReplyTemplate getReplyTemplate(int formId) {
+		Integer formInt = Integer.valueOf(formId);
+		if (replyTemplateHash.containsKey(formInt)) {
+			return replyTemplateHash.get(formInt);
+		}
+
+		ReplyTemplate template = new ReplyTemplate(getQuestionType(formId), getChoicesForForm(formId));
+		replyTemplateHash.put(formInt, template);
+		return template;
+	}
+
 	/**
 	 * Startup procedure to give this class access to the main DBHelper.
 	 * 
@@ -532,6 +643,7 @@ public class ModelTranslator {
 		sb.append(" );");
 
 		db.execSQL(sb.toString());
+		SmsDbHelper.createChangeTriggers(db, RapidSmsDBConstants.FormData.TABLE_PREFIX + form.getPrefix().replace("@", ""));
 	}
 
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidandroid.content.translation;
+
+import java.util.ArrayList;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Build;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * Writes to ODK Collect's instances provider in as few calls as the platform
+ * allows.<br>
+ * <br>
+ * ContentProviderOperation and applyBatch only exist from Android 2.0 (API 5)
+ * on. There the rows go in one batch, on 1.6 they go one call at a time. The
+ * batch code lives in its own class so 1.6 never loads it.
+ *
+ */
+public class OdkInstanceBatch {
+
+	private static final String TAG = "OdkInstanceBatch";
+
+	private static final int BATCH_SDK = 5;
+
+	private OdkInstanceBatch() {
+	}
+
+	/**
+	 * @param resolver
+	 * @param values
+	 *            one instance row each
+	 * @return the new instances' uris in the same order, null if ODK Collect
+	 *         refused them or went away
+	 */
+	public static Uri[] insert(ContentResolver resolver, ArrayList<ContentValues> values) {
+		Uri odkUri = Uri.parse(OpenRosaInstanceWriter.ODK_INSTANCES);
+		if (Build.VERSION.SDK_INT >= BATCH_SDK) {
+			return Batch.insert(resolver, odkUri, values);
+		}
+		Uri[] uris = new Uri[values.size()];
+		for (int i = 0; i < uris.length; i++) {
+			uris[i] = resolver.insert(odkUri, values.get(i));
+			if (uris[i] == null) {
+				Log.e(TAG, "ODK Collect rejected instance " + i + " of " + uris.length);
+				return null;
+			}
+		}
+		return uris;
+	}
+
+	/**
+	 * Set the same values on several instances.
+	 *
+	 * @param resolver
+	 * @param instanceIds
+	 *            ODK instance _ids
+	 * @param values
+	 * @return false if ODK Collect refused the update or went away
+	 */
+	public static boolean update(ContentResolver resolver, ArrayList<String> instanceIds, ContentValues values) {
+		Uri odkUri = Uri.parse(OpenRosaInstanceWriter.ODK_INSTANCES);
+		if (Build.VERSION.SDK_INT >= BATCH_SDK) {
+			return Batch.update(resolver, odkUri, instanceIds, values);
+		}
+		for (int i = 0; i < instanceIds.size(); i++) {
+			resolver.update(Uri.withAppendedPath(odkUri, instanceIds.get(i)), values, null, null);
+		}
+		return true;
+	}
+
+	/**
+	 * Only loaded on API 5 and later.
+	 */
+	private static class Batch {
+		static Uri[] insert(ContentResolver resolver, Uri odkUri, ArrayList<ContentValues> values) {
+			ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>(values.size());
+			for (int i = 0; i < values.size(); i++) {
+				ops.add(ContentProviderOperation.newInsert(odkUri).withValues(values.get(i)).build());
+			}
+			ContentProviderResult[] results = apply(resolver, ops);
+			if (results == null) {
+				return null;
+			}
+			Uri[] uris = new Uri[results.length];
+			for (int i = 0; i < results.length; i++) {
+				uris[i] = results[i].uri;
+			}
+			return uris;
+		}
+
+		static boolean update(ContentResolver resolver, Uri odkUri, ArrayList<String> instanceIds,
+				ContentValues values) {
+			ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>(instanceIds.size());
+			for (int i = 0; i < instanceIds.size(); i++) {
+				ops.add(ContentProviderOperation.newUpdate(Uri.withAppendedPath(odkUri, instanceIds.get(i)))
+												.withValues(values).build());
+			}
+			return apply(resolver, ops) != null;
+		}
+
+		private static ContentProviderResult[] apply(ContentResolver resolver,
+				ArrayList<ContentProviderOperation> ops) {
+			try {
+				return resolver.applyBatch(OpenRosaInstanceWriter.ODK_AUTHORITY, ops);
+			} catch (RemoteException e) {
+				Log.e(TAG, "ODK Collect went away: " + e.getMessage());
+			} catch (OperationApplicationException e) {
+				Log.e(TAG, "ODK Collect rejected the batch: " + e.getMessage());
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,504 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidandroid.content.translation;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+
+import org.rapidandroid.data.RapidSmsDBConstants;
+import org.rapidandroid.data.SurveyCreationConstants;
+import org.rapidsms.java.core.model.Field;
+import org.rapidsms.java.core.model.Form;
+import org.rapidsms.java.core.parser.MessageNormalizer;
+import org.xmlpull.v1.XmlSerializer;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Environment;
+import android.util.Log;
+import android.util.Xml;
+
+/**
+ * Writes the OpenRosa instance for a parsed message and registers it with ODK
+ * Collect.<br>
+ * <br>
+ * Everything about a form that doesn't change from one message to the next
+ * (field kinds, multiple choice labels, survey and project names, location)
+ * is worked out once into a FormPlan and cached. An instance then costs a
+ * fixed number of queries no matter how many fields the form has:
+ * <ul>
+ * <li>the message row</li>
+ * <li>the formdata row</li>
+ * <li>the ODK instance insert</li>
+ * <li>the form_uri/is_finalized update of the message</li>
+ * </ul>
+ * where XMLTranslator used to make 6 queries up front, 3 more per field, and 2
+ * more afterwards. The XML itself is streamed through an XmlSerializer into a
+ * buffered file, so values are escaped properly and the document is never held
+ * in memory.
+ *
+ */
+public class OpenRosaInstanceWriter {
+
+	private static final String TAG = "OpenRosaInstanceWriter";
+
+	public static final String PROJECT_NAME = "capstone_report";
+	public static final String ODK_AUTHORITY = "org.odk.collect.android.provider.odk.instances";
+	public static final String ODK_INSTANCES = "content://" + ODK_AUTHORITY + "/instances";
+	public static final String SUBMISSION_URI = "https://capstone-wereport.appspot.com/submission";
+
+	/**
+	 * The instance template has this many of each text, num and select
+	 * element, the ones a form doesn't fill are written empty.
+	 */
+	private static final int TEMPLATE_SLOTS = 5;
+
+	private static final int KIND_TEXT = 0;
+	private static final int KIND_YESNO = 1;
+	private static final int KIND_CHOICE = 2;
+	private static final int KIND_RATING = 3;
+
+	/**
+	 * Message columns an instance needs, in the order readInstanceRow expects
+	 * them.
+	 */
+	public static final String[] MESSAGE_PROJECTION = { RapidSmsDBConstants.Message._ID,
+			RapidSmsDBConstants.Message.PHONE, RapidSmsDBConstants.Message.TIME,
+			RapidSmsDBConstants.Message.RECEIVE_TIME, RapidSmsDBConstants.Message.MESSAGE,
+			RapidSmsDBConstants.Message.NORMALIZED };
+
+	private static HashMap<Integer, FormPlan> planCache = new HashMap<Integer, FormPlan>();
+
+	/**
+	 * The per form part of an instance, computed once.
+	 */
+	public static class FormPlan {
+		final int formId;
+		final String formName;
+		final String surveyName;
+		final String projectName;
+		final String location;
+		final int[] kinds;
+		final String[] choices;
+		final String[] columns;
+
+		FormPlan(int formId, String formName, String projectName, String location, int[] kinds, String[] choices,
+				String[] columns) {
+			this.formId = formId;
+			this.formName = formName;
+			this.surveyName = formName.replace(" ", "_");
+			this.projectName = projectName;
+			this.location = location;
+			this.kinds = kinds;
+			this.choices = choices;
+			this.columns = columns;
+		}
+
+		public int getFormId() {
+			return formId;
+		}
+
+		public String getFormName() {
+			return formName;
+		}
+
+		/**
+		 * @return the formdata columns of the form, in field order
+		 */
+		public String[] getColumns() {
+			return columns;
+		}
+	}
+
+	/**
+	 * What an instance needs from the message and formdata rows, copied out
+	 * of the cursors so it can be rendered off the thread that queried them.
+	 */
+	public static class InstanceRow {
+		public int messageId;
+		public String phone;
+		public String time;
+		public String receiveTime;
+		public String message;
+		public String normalized;
+		public String[] values;
+	}
+
+	private OpenRosaInstanceWriter() {
+	}
+
+	/**
+	 * @param context
+	 * @param f
+	 * @return the cached plan for the form, building it if needed
+	 */
+	public static synchronized FormPlan getPlan(Context context, Form f) {
+		Integer formInt = Integer.valueOf(f.getFormId());
+		FormPlan plan = planCache.get(formInt);
+		if (plan != null) {
+			return plan;
+		}
+
+		int questionType = ModelTranslator.getQuestionType(f.getFormId());
+		Field[] fields = f.getFields();
+		int[] kinds = new int[fields.length];
+		String[] columns = new String[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			String type = fields[i].getFieldType().getParsedDataType();
+			if (type.equals("word")) {
+				kinds[i] = KIND_TEXT;
+			} else if (type.equals("boolean")) {
+				kinds[i] = KIND_YESNO;
+			} else if (questionType == SurveyCreationConstants.QuestionTypes.MULTIPLECHOICE) {
+				kinds[i] = KIND_CHOICE;
+			} else {
+				kinds[i] = KIND_RATING;
+			}
+			columns[i] = RapidSmsDBConstants.FormData.COLUMN_PREFIX + fields[i].getName();
+		}
+
+		String projectName = "";
+		String location = null;
+		Cursor formRow = context.getContentResolver().query(RapidSmsDBConstants.Form.CONTENT_URI,
+															new String[] { "survey_id" }, "_id = " + f.getFormId(),
+															null, null);
+		String surveyId = formRow.moveToFirst() ? formRow.getString(0) : null;
+		formRow.close();
+		if (surveyId != null) {
+			// survey.project_id holds the project's name
+			Cursor surveyRow = context.getContentResolver().query(RapidSmsDBConstants.Survey.CONTENT_URI,
+																	new String[] { "project_id" }, "_id = " + surveyId,
+																	null, null);
+			if (surveyRow.moveToFirst() && surveyRow.getString(0) != null) {
+				projectName = surveyRow.getString(0);
+			}
+			surveyRow.close();
+		}
+		if (projectName.length() > 0) {
+			Cursor projectRow = context.getContentResolver().query(RapidSmsDBConstants.Project.CONTENT_URI,
+																	new String[] { "location" }, "name = ?",
+																	new String[] { projectName }, null);
+			if (projectRow.moveToFirst()) {
+				location = projectRow.getString(0);
+			}
+			projectRow.close();
+		}
+
+		plan = new FormPlan(f.getFormId(), f.getFormName(), projectName, location, kinds,
+							ModelTranslator.getChoicesForForm(f.getFormId()), columns);
+		planCache.put(formInt, plan);
+		return plan;
+	}
+
+	/**
+	 * Drop the cached plan of a form whose survey setup changed.
+	 *
+	 * @param formId
+	 */
+	public static synchronized void invalidatePlan(int formId) {
+		planCache.remove(Integer.valueOf(formId));
+	}
+
+	/**
+	 * Copy an instance's data out of a message row queried with
+	 * MESSAGE_PROJECTION and a formdata row queried with plan.getColumns().
+	 *
+	 * @param messageRow
+	 * @param formdataRow
+	 *            may be null if the message has no formdata
+	 * @return
+	 */
+	public static InstanceRow readInstanceRow(Cursor messageRow, Cursor formdataRow) {
+		InstanceRow row = readMessageColumns(messageRow);
+		row.values = formdataRow == null ? new String[0] : readValues(formdataRow, 0);
+		return row;
+	}
+
+	/**
+	 * Copy an instance's data out of a row that has the MESSAGE_PROJECTION
+	 * columns followed by plan.getColumns(), ie a join of the message and
+	 * formdata tables.
+	 *
+	 * @param joinedRow
+	 * @return
+	 */
+	public static InstanceRow readJoinedRow(Cursor joinedRow) {
+		InstanceRow row = readMessageColumns(joinedRow);
+		row.values = readValues(joinedRow, MESSAGE_PROJECTION.length);
+		return row;
+	}
+
+	private static InstanceRow readMessageColumns(Cursor cr) {
+		InstanceRow row = new InstanceRow();
+		row.messageId = cr.getInt(0);
+		row.phone = cr.getString(1);
+		row.time = cr.getString(2);
+		row.receiveTime = cr.getString(3);
+		row.message = cr.getString(4);
+		row.normalized = cr.getString(5);
+		if (row.normalized == null) {
+			row.normalized = MessageNormalizer.normalize(cr.getString(4));
+		}
+		return row;
+	}
+
+	private static String[] readValues(Cursor cr, int offset) {
+		String[] values = new String[cr.getColumnCount() - offset];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = cr.getString(offset + i);
+		}
+		return values;
+	}
+
+	/**
+	 * Stream the instance document.
+	 *
+	 * @param plan
+	 * @param row
+	 * @param out
+	 * @return true if the response was complete, false if the instance should
+	 *         be marked incomplete
+	 * @throws IOException
+	 */
+	public static boolean render(FormPlan plan, InstanceRow row, Writer out) throws IOException {
+		boolean wellFormed = true;
+		XmlSerializer xml = Xml.newSerializer();
+		xml.setOutput(out);
+		xml.startDocument(null, null);
+		xml.startTag(null, "data").attribute(null, "id", PROJECT_NAME);
+		xml.startTag(null, "meta");
+		element(xml, "instanceID", "uuid:" + row.messageId);
+		xml.endTag(null, "meta");
+		element(xml, "rawtext", row.message);
+
+		int text = 1;
+		int num = 1;
+		int select = 1;
+		for (int i = 0; i < plan.kinds.length; i++) {
+			String value = i < row.values.length ? row.values[i] : null;
+			switch (plan.kinds[i]) {
+				case KIND_TEXT:
+					element(xml, "text" + text++, value == null ? "" : value);
+					break;
+				case KIND_YESNO:
+					element(xml, "select" + select++, "true".equalsIgnoreCase(value) ? "Yes" : "No");
+					break;
+				case KIND_CHOICE:
+					int choice = parseInt(value);
+					if (choice >= 1 && choice <= plan.choices.length) {
+						element(xml, "select" + select++, plan.choices[choice - 1]);
+					} else {
+						wellFormed = false;
+					}
+					break;
+				default:
+					int rating = parseInt(value);
+					if (rating >= 0 && rating <= 10) {
+						element(xml, "num" + num++, value);
+					} else {
+						wellFormed = false;
+					}
+					break;
+			}
+		}
+
+		// fill out the rest of the template
+		for (int i = 1; i <= TEMPLATE_SLOTS; i++) {
+			if (text == i) {
+				element(xml, "text" + text++, null);
+			}
+			if (num == i) {
+				element(xml, "num" + num++, null);
+			}
+			if (select == i) {
+				element(xml, "select" + select++, null);
+			}
+		}
+
+		element(xml, "volunteer_name", null);
+		element(xml, "survey_name", plan.surveyName);
+		element(xml, "project_name", plan.projectName);
+		element(xml, "location", plan.location);
+		element(xml, "phone_number", encryptPhonenumber(row.phone));
+		element(xml, "time", row.receiveTime);
+		xml.endTag(null, "data");
+		xml.endDocument();
+
+		// If the response didn't include exactly the number of items we
+		// expected, it's malformed.
+		if (MessageNormalizer.countTokens(row.normalized) != plan.kinds.length + 1) {
+			wellFormed = false;
+		}
+		return wellFormed;
+	}
+
+	/**
+	 * @param plan
+	 * @param row
+	 * @return where the instance for this message goes under odk/instances
+	 */
+	public static File getInstanceFile(FormPlan plan, InstanceRow row) {
+		String instanceName = plan.formName + "_" + row.time + "_" + row.messageId;
+		instanceName = instanceName.replace(" ", "_").replace(":", "_");
+		File folder = new File(Environment.getExternalStorageDirectory().getAbsoluteFile() + "/odk/instances/"
+				+ instanceName);
+		return new File(folder, instanceName + ".xml");
+	}
+
+	/**
+	 * Render the instance into its file.
+	 *
+	 * @param plan
+	 * @param row
+	 * @param file
+	 * @return whether the instance is complete
+	 * @throws IOException
+	 */
+	public static boolean writeInstanceFile(FormPlan plan, InstanceRow row, File file) throws IOException {
+		file.getParentFile().mkdirs();
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 8192);
+		try {
+			return render(plan, row, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @param plan
+	 * @param file
+	 * @param wellFormed
+	 * @return the values of the ODK Collect instances row for an instance file
+	 */
+	public static ContentValues getOdkInstanceValues(FormPlan plan, File file, boolean wellFormed) {
+		ContentValues values = new ContentValues();
+		values.put("displayName", plan.formName);
+		values.put("status", wellFormed ? "complete" : "incomplete");
+		values.put("canEditWhenComplete", Boolean.toString(true));
+		values.put("instanceFilePath", file.getPath());
+		values.put("jrFormId", PROJECT_NAME);
+		values.put("submissionUri", SUBMISSION_URI);
+		values.put("jrFormName", plan.formName);
+		return values;
+	}
+
+	/**
+	 * @param odkInstanceUri
+	 *            the uri ODK Collect returned for the instance
+	 * @param wellFormed
+	 * @return the message columns that link it to its instance
+	 */
+	public static ContentValues getMessageValues(Uri odkInstanceUri, boolean wellFormed) {
+		ContentValues values = new ContentValues();
+		values.put(RapidSmsDBConstants.Message.FORM_URI, odkInstanceUri.getLastPathSegment());
+		values.put(RapidSmsDBConstants.Message.IS_SENT, 0);
+		values.put(RapidSmsDBConstants.Message.IS_FINALIZED, wellFormed ? 1 : 0);
+		return values;
+	}
+
+	/**
+	 * Write the instance for one message, hand it to ODK Collect, and point
+	 * the message at it.
+	 *
+	 * @param context
+	 * @param msgid
+	 * @param f
+	 * @return the ODK instance uri, or null if nothing was written
+	 */
+	public static Uri buildInstance(Context context, int msgid, Form f) {
+		FormPlan plan = getPlan(context, f);
+
+		Cursor messageRow = context.getContentResolver().query(RapidSmsDBConstants.Message.CONTENT_URI,
+																MESSAGE_PROJECTION, "_id = " + msgid, null, null);
+		if (!messageRow.moveToFirst()) {
+			messageRow.close();
+			Log.e(TAG, "No message " + msgid);
+			return null;
+		}
+		Cursor formdataRow = context.getContentResolver().query(
+																Uri.parse(RapidSmsDBConstants.FormData.CONTENT_URI_PREFIX
+																		+ f.getFormId()), plan.getColumns(),
+																RapidSmsDBConstants.FormData.MESSAGE + " = " + msgid,
+																null, null);
+		InstanceRow row = readInstanceRow(messageRow, formdataRow.moveToFirst() ? formdataRow : null);
+		messageRow.close();
+		formdataRow.close();
+
+		File file = getInstanceFile(plan, row);
+		boolean wellFormed;
+		try {
+			wellFormed = writeInstanceFile(plan, row, file);
+		} catch (IOException e) {
+			Log.e(TAG, "Error writing XML file " + file + ": " + e.getMessage());
+			return null;
+		}
+
+		Uri instanceUri = context.getContentResolver().insert(Uri.parse(ODK_INSTANCES),
+																getOdkInstanceValues(plan, file, wellFormed));
+		if (instanceUri == null) {
+			Log.e(TAG, "ODK Collect didn't take instance " + file);
+			return null;
+		}
+		context.getContentResolver().update(RapidSmsDBConstants.Message.CONTENT_URI,
+											getMessageValues(instanceUri, wellFormed), "_id = " + msgid, null);
+		return instanceUri;
+	}
+
+	/**
+	 * Empty or null text writes a self closing element.
+	 */
+	private static void element(XmlSerializer xml, String name, String text) throws IOException {
+		xml.startTag(null, name);
+		if (text != null && text.length() > 0) {
+			xml.text(text);
+		}
+		xml.endTag(null, name);
+	}
+
+	private static int parseInt(String value) {
+		if (value == null) {
+			return Integer.MIN_VALUE;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			return Integer.MIN_VALUE;
+		}
+	}
+
+	private static String encryptPhonenumber(String phonenumber) {
+		if (phonenumber == null || phonenumber.length() == 0) {
+			return null;
+		}
+		try {
+			return String.valueOf(Integer.parseInt(phonenumber) + 12345);
+		} catch (NumberFormatException e) {
+			// doesn't fit the scheme, leave it out rather than lose the
+			// whole instance
+			Log.w(TAG, "Can't encode phone number for instance");
+			return null;
+		}
+	}
+}
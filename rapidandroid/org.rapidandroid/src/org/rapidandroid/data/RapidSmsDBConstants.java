@@ -68,6 +68,32 @@ public final class RapidSmsDBConstants {
 		public static final String IS_OUTGOING = "is_outgoing";
 		public static final String IS_VIRTUAL = "is_virtual";
 		public static final String RECEIVE_TIME = "receive_time";
+		public static final String IS_SENT = "is_sent";
+		public static final String IS_FINALIZED = "is_finalized";
+		/**
+		 * Id of the message's instance in the ODK Collect instances provider.
+		 */
+		public static final String FORM_URI = "form_uri";
+		/**
+		 * MessageFingerprint of the sender and body, indexed for the dedup
+		 * lookup.
+		 */
+		public static final String HASH = "hash";
+		/**
+		 * If this message is a redelivery or resend, the _id of the message it
+		 * duplicates. Duplicates are stored but never parsed.
+		 */
+		public static final String DUPLICATE_OF = "duplicate_of";
+		/**
+		 * Set when the sender was over its flood control limit. The message is
+		 * parsed and stored, but gets no auto reply or XForm.
+		 */
+		public static final String IS_DEFERRED = "is_deferred";
+		/**
+		 * The body as it comes out of MessageNormalizer, computed once when
+		 * the message is saved.
+		 */
+		public static final String NORMALIZED = "normalized";
 	}
 
 	/**
@@ -224,6 +250,274 @@ public final class RapidSmsDBConstants {
 
 	}
 
+	/**
+	 * The answer choices of a multiple choice survey question, in the order
+	 * they are numbered in the question.
+	 */
+	public static final class Choice implements BaseColumns {
+		// Structural stuffs
+		public static final String TABLE = "rapidandroid_choice";
+
+		public static final String CONTENT_TYPE = "vnd.android.cursor.dir/org.rapidandroid.data.choice";
+
+		public static final String URI_PART = "choice";
+		public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/" + URI_PART);
+
+		// Section Table columns ##########################################
+		public static final String FORM = "form_id";
+		/**
+		 * 1 based, this is the number a respondent replies with
+		 */
+		public static final String SEQUENCE = "sequence";
+		public static final String LABEL = "label";
+	}
+
+	/**
+	 * Running answer counters for survey questions, one row per form and
+	 * distinct answer. Maintained alongside every formdata insert so auto
+	 * replies never have to rescan the formdata tables.
+	 */
+	public static final class Tally implements BaseColumns {
+		// Structural stuffs
+		public static final String TABLE = "rapidandroid_tally";
+
+		public static final String CONTENT_TYPE = "vnd.android.cursor.dir/org.rapidandroid.data.tally";
+
+		/**
+		 * Query by appending the form id, ie tally/[form_id]
+		 */
+		public static final String URI_PART = "tally";
+		public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/" + URI_PART);
+		public static final String CONTENT_URI_PREFIX = "content://" + AUTHORITY + "/" + URI_PART + "/";
+
+		// Section Table columns ##########################################
+		public static final String FORM = "form_id";
+		/**
+		 * The lowercased, trimmed value of the form's first field
+		 */
+		public static final String ANSWER = "answer";
+		public static final String COUNT = "answer_count";
+		/**
+		 * Running sum of the in range values, only kept for rating questions
+		 */
+		public static final String SUM = "answer_sum";
+	}
+
+	/**
+	 * Progress of bulk XForm instance exports, one row per form and date
+	 * range that hasn't finished. A job that gets interrupted picks up after
+	 * the last message it committed.
+	 */
+	public static final class ExportCheckpoint implements BaseColumns {
+		public static final String TABLE = "rapidandroid_export_checkpoint";
+
+		// Section Table columns ##########################################
+		/**
+		 * Identifies the form and date range, see InstanceExportJob
+		 */
+		public static final String JOB = "job";
+		public static final String FORM = "form_id";
+		/**
+		 * Highest message _id whose instance has been registered with ODK
+		 */
+		public static final String LAST_MESSAGE = "last_message_id";
+		public static final String EXPORTED = "exported";
+		public static final String UPDATED = "updated";
+	}
+
+	/**
+	 * How far each form has been exported to each destination, so repeated
+	 * exports can pick up where the last one left off.
+	 */
+	public static final class ExportWatermark implements BaseColumns {
+		public static final String TABLE = "rapidandroid_export_watermark";
+
+		public static final String DESTINATION_CSV = "csv";
+		public static final String DESTINATION_XFORM = "xform";
+		public static final String DESTINATION_COLUMNAR = "columnar";
+
+		// Section Table columns ##########################################
+		public static final String FORM = "form_id";
+		/**
+		 * One of the DESTINATION_ constants
+		 */
+		public static final String DESTINATION = "destination";
+		/**
+		 * Highest message _id exported to the destination
+		 */
+		public static final String LAST_MESSAGE = "last_message_id";
+		/**
+		 * Time of that message
+		 */
+		public static final String LAST_TIME = "last_time";
+		public static final String UPDATED = "updated";
+	}
+
+	/**
+	 * Files being uploaded in chunks, with how much of each the server has
+	 * acknowledged.
+	 */
+	public static final class UploadSession implements BaseColumns {
+		public static final String TABLE = "rapidandroid_upload_session";
+
+		// Section Table columns ##########################################
+		/**
+		 * Identifies the upload to the server across retries and restarts
+		 */
+		public static final String TOKEN = "token";
+		public static final String PATH = "path";
+		public static final String URL = "url";
+		public static final String LENGTH = "length";
+		public static final String CHUNK_SIZE = "chunk_size";
+		public static final String ACKED_OFFSET = "acked_offset";
+		/**
+		 * One of the org.rapidsms.java.core.upload.UploadSession.STATUS_
+		 * constants
+		 */
+		public static final String STATUS = "status";
+		public static final String ATTEMPTS = "attempts";
+		public static final String CREATED = "created";
+		public static final String UPDATED = "updated";
+	}
+
+	/**
+	 * Every insert, update and delete on the message, monitor and formdata
+	 * tables, in the order they committed. Written by triggers, so a row
+	 * lands in the same transaction as the change it records. The _id is the
+	 * change's sequence number and only ever grows. Only the newest RETAINED
+	 * changes are kept, a consumer whose sequence number is older than the
+	 * oldest change left has to start over from a full read.
+	 */
+	public static final class Change implements BaseColumns {
+		public static final String TABLE = "rapidandroid_changelog";
+
+		public static final String CONTENT_TYPE = "vnd.android.cursor.dir/org.rapidandroid.data.change";
+
+		/**
+		 * Query as changes?since=[seq]&limit=[n], since is the last sequence
+		 * number the caller has seen
+		 */
+		public static final String URI_PART = "changes";
+		public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/" + URI_PART);
+		public static final String PARAM_SINCE = "since";
+		public static final String PARAM_LIMIT = "limit";
+		public static final int DEFAULT_LIMIT = 500;
+
+		public static final int RETAINED = 20000;
+		/**
+		 * Messages inserted between trims of the log
+		 */
+		public static final int TRIM_EVERY = 500;
+
+		public static final String OP_INSERT = "I";
+		public static final String OP_UPDATE = "U";
+		public static final String OP_DELETE = "D";
+
+		// Section Table columns ##########################################
+		/**
+		 * The table that changed, ie rapidandroid_message or formdata_[prefix]
+		 */
+		public static final String TABLE_NAME = "table_name";
+		/**
+		 * _id of the changed row
+		 */
+		public static final String ROW = "row_id";
+		/**
+		 * One of the OP_ constants
+		 */
+		public static final String OP = "op";
+		public static final String TIME = "time";
+	}
+
+	/**
+	 * Pre-aggregated message counts and field statistics per time bucket,
+	 * for the charts. One row per form, period, field and bucket, bumped in
+	 * the same transaction as the message or formdata insert, see
+	 * RollupDataLayer.
+	 */
+	public static final class Rollup implements BaseColumns {
+		public static final String TABLE = "rapidandroid_rollup";
+
+		/**
+		 * form_id of the rows counting every message, not just parsed ones
+		 */
+		public static final int ALL_MESSAGES = 0;
+
+		/**
+		 * Buckets are "yyyy-MM-dd HH:00:00"
+		 */
+		public static final String PERIOD_HOUR = "H";
+		/**
+		 * Buckets are "yyyy-MM-dd 00:00:00"
+		 */
+		public static final String PERIOD_DAY = "D";
+		/**
+		 * Buckets are the hour of the day, "00" to "23", over all time
+		 */
+		public static final String PERIOD_HOUR_OF_DAY = "O";
+
+		// Section Table columns ##########################################
+		public static final String FORM = "form_id";
+		/**
+		 * One of the PERIOD_ constants
+		 */
+		public static final String PERIOD = "period";
+		public static final String BUCKET = "bucket";
+		/**
+		 * Field name, empty for the message counts
+		 */
+		public static final String FIELD = "field";
+		/**
+		 * Messages in the bucket, or the number of them with a usable value
+		 * for the field
+		 */
+		public static final String COUNT = "value_count";
+		public static final String TRUE_COUNT = "true_count";
+		public static final String FALSE_COUNT = "false_count";
+		public static final String SUM = "value_sum";
+		public static final String MIN = "value_min";
+		public static final String MAX = "value_max";
+	}
+
+	/**
+	 * Mergeable per day summaries of the formdata fields, serialized by the
+	 * classes in org.rapidsms.java.core.stats. A range of days is answered by
+	 * merging its rows, see SketchDataLayer.
+	 */
+	public static final class Sketch implements BaseColumns {
+		public static final String TABLE = "rapidandroid_sketch";
+
+		/**
+		 * The values of a numeric field, a QuantileSketch
+		 */
+		public static final String KIND_QUANTILE = "Q";
+		/**
+		 * The values of a word field, a TopValuesSketch
+		 */
+		public static final String KIND_TOP_VALUES = "T";
+		/**
+		 * The monitors that sent the form, or any message for ALL_MESSAGES, a
+		 * DistinctCountSketch under the field ""
+		 */
+		public static final String KIND_REPORTERS = "R";
+
+		// Section Table columns ##########################################
+		/**
+		 * or Rollup.ALL_MESSAGES for the reporters of every message
+		 */
+		public static final String FORM = "form_id";
+		public static final String FIELD = "field";
+		/**
+		 * One of the KIND_ constants
+		 */
+		public static final String KIND = "kind";
+		/**
+		 * "yyyy-MM-dd 00:00:00", the same as the daily rollup buckets
+		 */
+		public static final String DAY = "day";
+		public static final String SKETCH = "sketch";
+	}
+
 	/**
 	 * Helper constants for accessing the FormData tables. You must have access
 	 * to the Form object for these to be userul
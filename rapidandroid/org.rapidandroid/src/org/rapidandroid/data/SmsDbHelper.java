@@ -20,8 +20,14 @@ package org.rapidandroid.data;
 import java.io.File;
 
 import org.rapidandroid.content.translation.*;
+import org.rapidandroid.data.controller.RollupDataLayer;
+import org.rapidandroid.data.controller.SketchDataLayer;
+import org.rapidandroid.data.controller.TallyDataLayer;
+import org.rapidsms.java.core.parser.MessageNormalizer;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
@@ -49,14 +55,47 @@ public class SmsDbHelper extends SQLiteOpenHelper {
 	private static final String DATABASE_PATH_EXTERNAL = "/sdcard/rapidandroid/rapidandroid.db";
 	private static final String DATABASE_PATH_LOCAL = "rapidandroid.db";
 
+	/**
+	 * Left behind by DeviceDatabaseMerger, whose output has its rollups and
+	 * sketches cleared. The first writable open rebuilds them from the merged
+	 * data and drops it.
+	 */
+	public static final String REBUILD_MARKER_TABLE = "rapidandroid_rebuild_pending";
+
 	private boolean useLocal = false;
 	private String dbPathToUse = DATABASE_PATH_EXTERNAL;
 
 	// private static final String DATABASE_NAME = "rapidandroid.db";
 	// private static final int DATABASE_VERSION = 1; //version 1: initial
 	// version 1/22/2009
-	private static final int DATABASE_VERSION = 2; // 2/6/2007, add receive_time
-													// column to message table
+	// private static final int DATABASE_VERSION = 2; // 2/6/2007, add
+	// receive_time column to message table
+	// private static final int DATABASE_VERSION = 3; // add rapidandroid_tally
+	// private static final int DATABASE_VERSION = 4; // add rapidandroid_choice
+	// private static final int DATABASE_VERSION = 5; // add hash,
+	// duplicate_of to message table
+	// private static final int DATABASE_VERSION = 6; // add is_deferred to
+	// message table
+	// private static final int DATABASE_VERSION = 7; // add normalized to
+	// message table
+	// private static final int DATABASE_VERSION = 8; // add
+	// rapidandroid_export_checkpoint
+	// private static final int DATABASE_VERSION = 9; // add
+	// rapidandroid_export_watermark
+	// private static final int DATABASE_VERSION = 10; // add
+	// rapidandroid_upload_session
+	// private static final int DATABASE_VERSION = 11; // add
+	// rapidandroid_message_pending
+	// private static final int DATABASE_VERSION = 12; // add
+	// rapidandroid_changelog
+	// private static final int DATABASE_VERSION = 13; // add
+	// rapidandroid_rollup
+	// private static final int DATABASE_VERSION = 14; // add
+	// rapidandroid_sketch
+	// private static final int DATABASE_VERSION = 15; // sketch the word
+	// fields too
+	private static final int DATABASE_VERSION = 16; // sketch the distinct
+													// reporters
 
 	// Sections lifted from the originating class SqliteOpenHelper.java
 	private SQLiteDatabase mDatabase = null;
@@ -105,7 +144,11 @@ public class SmsDbHelper extends SQLiteOpenHelper {
 				+ "\"is_sent\" integer NULL,"
 				+ "\"is_finalized\" integer NULL,"
 				+ "\"form_uri\" varchar(512) NULL," // TODO look up max chars for URI
-				+ "\"receive_time\" datetime NULL);";
+				+ "\"receive_time\" datetime NULL,"
+				+ "\"hash\" integer NULL,"
+				+ "\"duplicate_of\" integer NULL REFERENCES \"rapidandroid_message\" (\"id\"),"
+				+ "\"is_deferred\" bool DEFAULT '0' NOT NULL,"
+				+ "\"normalized\" varchar(160) NULL);";
 
 		String mCreateTable_Project = "CREATE TABLE \"rapidandroid_project\" ("
 				+ "\"_id\" integer NOT NULL PRIMARY KEY,"
@@ -163,12 +206,199 @@ public class SmsDbHelper extends SQLiteOpenHelper {
 		// "\"monitor_id\" integer NULL REFERENCES \"rapidandroid_monitor\" (\"id\"));";
 
 		db.execSQL(mCreateTable_Message);
+		db.execSQL(CREATE_INDEX_MESSAGE_HASH);
+		db.execSQL(CREATE_INDEX_MESSAGE_PENDING);
 		db.execSQL(mCreateTable_Project);
 		db.execSQL(mCreateTable_Survey);
 		db.execSQL(mCreateTable_Monitor);
 		db.execSQL(mCreateTable_Form);
 		db.execSQL(mCreateTable_FieldType);
 		db.execSQL(mCreateTable_Field);
+		db.execSQL(getCreateTableTally());
+		db.execSQL(getCreateTableChoice());
+		db.execSQL(getCreateTableExportCheckpoint());
+		db.execSQL(getCreateTableExportWatermark());
+		db.execSQL(getCreateTableUploadSession());
+		db.execSQL(getCreateTableChangelog());
+		createChangeTriggers(db, RapidSmsDBConstants.Message.TABLE);
+		createChangeTriggers(db, RapidSmsDBConstants.Monitor.TABLE);
+		db.execSQL(getCreateTableRollup());
+		db.execSQL(getCreateTableSketch());
+	}
+
+	private static final String CREATE_INDEX_MESSAGE_HASH = "CREATE INDEX \"rapidandroid_message_hash\" ON \"rapidandroid_message\" (\"hash\");";
+
+	/**
+	 * Lets SubmissionWorker find the finalized instances that haven't been
+	 * sent without scanning every message.
+	 */
+	private static final String CREATE_INDEX_MESSAGE_PENDING = "CREATE INDEX \"rapidandroid_message_pending\" ON \"rapidandroid_message\" (\"is_finalized\", \"is_sent\");";
+
+	private static String getCreateTableTally() {
+		return "CREATE TABLE \"rapidandroid_tally\" (" + "\"_id\" integer NOT NULL PRIMARY KEY,"
+				+ "\"form_id\" integer NOT NULL REFERENCES \"rapidandroid_form\" (\"id\"),"
+				+ "\"answer\" varchar(36) NOT NULL,"
+				+ "\"answer_count\" integer unsigned NOT NULL,"
+				+ "\"answer_sum\" float NOT NULL,"
+				+ "UNIQUE (\"form_id\", \"answer\"));";
+	}
+
+	private static String getCreateTableChoice() {
+		return "CREATE TABLE \"rapidandroid_choice\" (" + "\"_id\" integer NOT NULL PRIMARY KEY,"
+				+ "\"form_id\" integer NOT NULL REFERENCES \"rapidandroid_form\" (\"id\"),"
+				+ "\"sequence\" integer unsigned NOT NULL,"
+				+ "\"label\" varchar(512) NOT NULL);";
+	}
+
+	private static String getCreateTableExportCheckpoint() {
+		return "CREATE TABLE \"rapidandroid_export_checkpoint\" (" + "\"_id\" integer NOT NULL PRIMARY KEY,"
+				+ "\"job\" varchar(128) NOT NULL UNIQUE,"
+				+ "\"form_id\" integer NOT NULL REFERENCES \"rapidandroid_form\" (\"id\"),"
+				+ "\"last_message_id\" integer NOT NULL,"
+				+ "\"exported\" integer unsigned NOT NULL,"
+				+ "\"updated\" datetime NOT NULL);";
+	}
+
+	private static String getCreateTableExportWatermark() {
+		return "CREATE TABLE \"rapidandroid_export_watermark\" (" + "\"_id\" integer NOT NULL PRIMARY KEY,"
+				+ "\"form_id\" integer NOT NULL REFERENCES \"rapidandroid_form\" (\"id\"),"
+				+ "\"destination\" varchar(16) NOT NULL,"
+				+ "\"last_message_id\" integer NOT NULL,"
+				+ "\"last_time\" datetime NULL,"
+				+ "\"updated\" datetime NOT NULL,"
+				+ "UNIQUE (\"form_id\", \"destination\"));";
+	}
+
+	private static String getCreateTableUploadSession() {
+		return "CREATE TABLE \"rapidandroid_upload_session\" (" + "\"_id\" integer NOT NULL PRIMARY KEY,"
+				+ "\"token\" varchar(36) NOT NULL UNIQUE,"
+				+ "\"path\" text NOT NULL,"
+				+ "\"url\" text NOT NULL,"
+				+ "\"length\" integer NOT NULL,"
+				+ "\"chunk_size\" integer NOT NULL,"
+				+ "\"acked_offset\" integer NOT NULL DEFAULT 0,"
+				+ "\"status\" integer NOT NULL DEFAULT 0,"
+				+ "\"attempts\" integer NOT NULL DEFAULT 0,"
+				+ "\"created\" datetime NOT NULL,"
+				+ "\"updated\" datetime NOT NULL);";
+	}
+
+	private static String getCreateTableChangelog() {
+		// autoincrement so a sequence number is never handed out twice, even
+		// after the log has been trimmed
+		return "CREATE TABLE \"rapidandroid_changelog\" (" + "\"_id\" integer NOT NULL PRIMARY KEY AUTOINCREMENT,"
+				+ "\"table_name\" varchar(64) NOT NULL,"
+				+ "\"row_id\" integer NOT NULL,"
+				+ "\"op\" char(1) NOT NULL,"
+				+ "\"time\" datetime DEFAULT (datetime('now', 'localtime')) NOT NULL);";
+	}
+
+	private static String getCreateTableRollup() {
+		return "CREATE TABLE \"rapidandroid_rollup\" (" + "\"_id\" integer NOT NULL PRIMARY KEY,"
+				+ "\"form_id\" integer NOT NULL,"
+				+ "\"period\" char(1) NOT NULL,"
+				+ "\"bucket\" varchar(19) NOT NULL,"
+				+ "\"field\" varchar(32) NOT NULL,"
+				+ "\"value_count\" integer unsigned NOT NULL,"
+				+ "\"true_count\" integer unsigned NOT NULL,"
+				+ "\"false_count\" integer unsigned NOT NULL,"
+				+ "\"value_sum\" float NOT NULL,"
+				+ "\"value_min\" float NULL,"
+				+ "\"value_max\" float NULL,"
+				+ "UNIQUE (\"form_id\", \"period\", \"field\", \"bucket\"));";
+	}
+
+	private static String getCreateTableSketch() {
+		return "CREATE TABLE \"rapidandroid_sketch\" (" + "\"_id\" integer NOT NULL PRIMARY KEY,"
+				+ "\"form_id\" integer NOT NULL,"
+				+ "\"field\" varchar(32) NOT NULL,"
+				+ "\"kind\" char(1) NOT NULL,"
+				+ "\"day\" varchar(19) NOT NULL,"
+				+ "\"sketch\" blob NOT NULL,"
+				+ "UNIQUE (\"form_id\", \"field\", \"kind\", \"day\"));";
+	}
+
+	/**
+	 * Record every insert, update and delete on a table in
+	 * rapidandroid_changelog. The triggers go away with the table, so
+	 * formdata tables get theirs whenever they're generated.
+	 * 
+	 * @param db
+	 * @param table
+	 */
+	public static void createChangeTriggers(SQLiteDatabase db, String table) {
+		createChangeTrigger(db, table, "insert", "new", RapidSmsDBConstants.Change.OP_INSERT);
+		createChangeTrigger(db, table, "update", "new", RapidSmsDBConstants.Change.OP_UPDATE);
+		createChangeTrigger(db, table, "delete", "old", RapidSmsDBConstants.Change.OP_DELETE);
+	}
+
+	/**
+	 * Drop all but the newest Change.RETAINED rows of rapidandroid_changelog.
+	 * The newest row always stays, so max(_id) still says how far the log
+	 * has got.
+	 * 
+	 * @param db
+	 */
+	public static void trimChangelog(SQLiteDatabase db) {
+		db.execSQL("delete from " + RapidSmsDBConstants.Change.TABLE + " where _id <= (select max(_id) from "
+				+ RapidSmsDBConstants.Change.TABLE + ") - " + RapidSmsDBConstants.Change.RETAINED);
+	}
+
+	private static void createChangeTrigger(SQLiteDatabase db, String table, String event, String row, String op) {
+		db.execSQL("CREATE TRIGGER IF NOT EXISTS \"" + table + "_changelog_" + event + "\" AFTER " + event + " ON \""
+				+ table + "\" BEGIN INSERT INTO \"" + RapidSmsDBConstants.Change.TABLE + "\" (\""
+				+ RapidSmsDBConstants.Change.TABLE_NAME + "\", \"" + RapidSmsDBConstants.Change.ROW + "\", \""
+				+ RapidSmsDBConstants.Change.OP + "\") VALUES ('" + table + "', " + row + "._id, '" + op + "'); END;");
+	}
+
+	/**
+	 * Version 4 stores multiple choice answers as rows. Surveys created before
+	 * then only have them inside the form description, in the " 1. a,  2. b."
+	 * format QuestionChooser writes, so pull them out of there once.
+	 * 
+	 * @param db
+	 */
+	private static void migrateChoicesFromDescriptions(SQLiteDatabase db) {
+		Cursor formCursor = db.rawQuery("select _id, description from " + RapidSmsDBConstants.Form.TABLE
+				+ " where question_type = " + SurveyCreationConstants.QuestionTypes.MULTIPLECHOICE, null);
+		while (formCursor.moveToNext()) {
+			String description = formCursor.getString(1);
+			for (int j = 1; j <= 4; j++) {
+				int start = description.indexOf(j + ". ");
+				if (start == -1) {
+					break;
+				}
+				int end = description.indexOf(",  " + (j + 1) + ". ");
+				if (end == -1) {
+					end = description.indexOf(".", start + 3);
+				}
+				if (end == -1) {
+					break;
+				}
+				ContentValues cv = new ContentValues();
+				cv.put(RapidSmsDBConstants.Choice.FORM, formCursor.getInt(0));
+				cv.put(RapidSmsDBConstants.Choice.SEQUENCE, j);
+				cv.put(RapidSmsDBConstants.Choice.LABEL, description.substring(start + 3, end));
+				db.insert(RapidSmsDBConstants.Choice.TABLE, RapidSmsDBConstants.Choice.LABEL, cv);
+			}
+		}
+		formCursor.close();
+	}
+
+	/**
+	 * Messages saved before version 7 have no normalized text, compute it for
+	 * them so dispatch and validation never have to fall back to the raw body.
+	 * 
+	 * @param db
+	 */
+	private static void backfillNormalized(SQLiteDatabase db) {
+		Cursor cr = db.rawQuery("select _id, message from " + RapidSmsDBConstants.Message.TABLE, null);
+		while (cr.moveToNext()) {
+			ContentValues cv = new ContentValues();
+			cv.put(RapidSmsDBConstants.Message.NORMALIZED, MessageNormalizer.normalize(cr.getString(1)));
+			db.update(RapidSmsDBConstants.Message.TABLE, cv, "_id = " + cr.getInt(0), null);
+		}
+		cr.close();
 	}
 
 	/*
@@ -286,6 +516,32 @@ public class SmsDbHelper extends SQLiteOpenHelper {
 
 	}
 
+	@Override
+	public void onOpen(SQLiteDatabase db) {
+		super.onOpen(db);
+		if (db.isReadOnly()) {
+			return;
+		}
+		trimChangelog(db);
+		Cursor cr = db.rawQuery("select 1 from sqlite_master where type = 'table' and name = '"
+				+ REBUILD_MARKER_TABLE + "'", null);
+		boolean pending = cr.moveToFirst();
+		cr.close();
+		if (!pending) {
+			return;
+		}
+		Log.i(TAG, "Rebuilding rollups and sketches of a merged database");
+		db.beginTransaction();
+		try {
+			RollupDataLayer.rebuildAllRollups(db);
+			SketchDataLayer.rebuildAllSketches(db);
+			db.execSQL("drop table " + REBUILD_MARKER_TABLE);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
 		// Log.w(TAG, "Upgrading database from version " + oldVersion + " to " +
@@ -294,12 +550,78 @@ public class SmsDbHelper extends SQLiteOpenHelper {
 		// db.execSQL("DROP TABLE IF EXISTS notes");
 		// onCreate(db);
 
-		if (oldVersion == 1 && newVersion == 2) {
+		if (oldVersion < 2) {
 			// version 1 to 2 introduced the receive_time for the message
 			String messageAlterSql = "alter table rapidandroid_message add column receive_time datetime NULL";
 			db.execSQL(messageAlterSql);
 		}
+		if (oldVersion < 3) {
+			// version 3 keeps running answer tallies, seed them from the
+			// formdata that's already there
+			db.execSQL(getCreateTableTally());
+			TallyDataLayer.rebuildAllTallies(db);
+		}
+		if (oldVersion < 4) {
+			db.execSQL(getCreateTableChoice());
+			migrateChoicesFromDescriptions(db);
+		}
+		if (oldVersion < 5) {
+			// version 5 fingerprints messages for duplicate suppression.
+			// older messages are left unhashed, they're well outside any
+			// dedup window.
+			db.execSQL("alter table rapidandroid_message add column hash integer NULL");
+			db.execSQL("alter table rapidandroid_message add column duplicate_of integer NULL");
+			db.execSQL(CREATE_INDEX_MESSAGE_HASH);
+		}
+		if (oldVersion < 6) {
+			db.execSQL("alter table rapidandroid_message add column is_deferred bool DEFAULT '0' NOT NULL");
+		}
+		if (oldVersion < 7) {
+			db.execSQL("alter table rapidandroid_message add column normalized varchar(160) NULL");
+			backfillNormalized(db);
+		}
+		if (oldVersion < 8) {
+			db.execSQL(getCreateTableExportCheckpoint());
+		}
+		if (oldVersion < 9) {
+			db.execSQL(getCreateTableExportWatermark());
+		}
+		if (oldVersion < 10) {
+			db.execSQL(getCreateTableUploadSession());
+		}
+		if (oldVersion < 11) {
+			db.execSQL(CREATE_INDEX_MESSAGE_PENDING);
+		}
+		if (oldVersion < 12) {
+			// changes made before version 12 aren't in the log, consumers
+			// start from a full read
+			db.execSQL(getCreateTableChangelog());
+			createChangeTriggers(db, RapidSmsDBConstants.Message.TABLE);
+			createChangeTriggers(db, RapidSmsDBConstants.Monitor.TABLE);
+			Cursor cr = db.rawQuery("select name from sqlite_master where type = 'table' and name like '"
+					+ RapidSmsDBConstants.FormData.TABLE_PREFIX + "%'", null);
+			while (cr.moveToNext()) {
+				createChangeTriggers(db, cr.getString(0));
+			}
+			cr.close();
+		}
+		if (oldVersion < 13) {
+			// version 13 keeps the chart aggregates, seed them from the
+			// messages that are already there
+			db.execSQL(getCreateTableRollup());
+			RollupDataLayer.rebuildAllRollups(db);
+		}
+		if (oldVersion < 14) {
+			// version 14 keeps daily field statistics, seed them from the
+			// formdata that's already there
+			db.execSQL(getCreateTableSketch());
+		}
+		if (oldVersion < 16) {
+			// version 15 sketches the word fields as well and 16 the distinct
+			// reporters, (re)seed from the data that's already there
+			SketchDataLayer.rebuildAllSketches(db);
+		}
 
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidandroid.data.controller;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.rapidandroid.content.translation.MessageTranslator;
+import org.rapidandroid.content.translation.ModelTranslator;
+import org.rapidandroid.data.RapidSmsDBConstants;
+import org.rapidandroid.data.SmsDbHelper;
+import org.rapidsms.java.core.model.Field;
+import org.rapidsms.java.core.model.Form;
+import org.rapidsms.java.core.parser.CsvReader;
+import org.rapidsms.java.core.parser.IParseResult;
+import org.rapidsms.java.core.parser.MessageFingerprint;
+import org.rapidsms.java.core.parser.MessageNormalizer;
+import org.rapidsms.java.core.parser.service.ParsingService;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Bulk import of historical SMS logs, one message per CSV row as
+ * time,phone,message (the format of assets/testdata/rawdata.csv).<br>
+ * <br>
+ * The file is streamed BATCH_SIZE rows at a time. Each batch is normalized,
+ * matched to its form and parsed on a pool of worker threads while the
+ * previous batch is written, and written in one transaction: monitors,
+ * messages, formdata, tallies and chart rollups together. Monitors are looked
+ * up in a map loaded once, new ones are created as they turn up.<br>
+ * <br>
+ * Imported messages are history, they don't get replies or XForms and aren't
+ * checked for duplicates. A cancelled import keeps the batches it committed.
+ * run() blocks, call it off the UI thread.
+ *
+ */
+public class CorpusImporter {
+
+	private static final String TAG = "CorpusImporter";
+
+	public static final int BATCH_SIZE = 2000;
+
+	/**
+	 * Progress callback for imports, called from the importing thread after
+	 * each batch.
+	 */
+	public interface ImportProgressListener {
+		/**
+		 * @param imported
+		 *            messages written so far
+		 * @param bytesRead
+		 * @param totalBytes
+		 *            -1 if the length of the input isn't known
+		 */
+		void onProgress(int imported, long bytesRead, long totalBytes);
+	}
+
+	/**
+	 * A row on its way in
+	 */
+	private static class Pending {
+		String time;
+		String phone;
+		String body;
+		String normalized;
+		long hash;
+		Form form;
+		Vector<IParseResult> results;
+	}
+
+	private static class CountingInputStream extends FilterInputStream {
+		long count = 0;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int c = super.read();
+			if (c != -1) {
+				count++;
+			}
+			return c;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0) {
+				count += read;
+			}
+			return read;
+		}
+	}
+
+	private final Context mContext;
+	private ImportProgressListener mListener;
+	/**
+	 * Same format as Message's SQLDateFormatter. That one is shared with the
+	 * receiver on the main thread and SimpleDateFormat isn't thread safe, so
+	 * the import thread has its own.
+	 */
+	private final SimpleDateFormat mDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+	private volatile boolean mCancelled = false;
+
+	private Form[] mForms;
+	private String[] mPrefixes;
+	private HashMap<String, Long> mMonitors;
+	private int mImported;
+	private int mParsed;
+	private int mRejected;
+
+	public CorpusImporter(Context context) {
+		mContext = context;
+	}
+
+	public void setListener(ImportProgressListener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Stop after the batch in progress.
+	 */
+	public void cancel() {
+		mCancelled = true;
+	}
+
+	/**
+	 * @return messages written
+	 */
+	public int getImported() {
+		return mImported;
+	}
+
+	/**
+	 * @return messages that matched a form and got a formdata row
+	 */
+	public int getParsed() {
+		return mParsed;
+	}
+
+	/**
+	 * @return rows skipped for having no time, phone or message
+	 */
+	public int getRejected() {
+		return mRejected;
+	}
+
+	/**
+	 * Import every row of a CSV file.
+	 *
+	 * @param in
+	 *            closed when done
+	 * @param totalBytes
+	 *            length of in for progress, -1 if not known
+	 * @return false if it was cancelled
+	 * @throws IOException
+	 */
+	public boolean run(InputStream in, long totalBytes) throws IOException {
+		mForms = ModelTranslator.getAllForms();
+		mPrefixes = new String[mForms.length];
+		for (int i = 0; i < mForms.length; i++) {
+			mPrefixes[i] = MessageNormalizer.normalize(mForms[i].getPrefix());
+		}
+
+		CountingInputStream counted = new CountingInputStream(in);
+		CsvReader csv = new CsvReader(new InputStreamReader(counted, "UTF-8"));
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		SmsDbHelper mHelper = new SmsDbHelper(mContext);
+		long start = System.currentTimeMillis();
+		try {
+			SQLiteDatabase db = mHelper.getWritableDatabase();
+			loadMonitors(db);
+			SQLiteStatement insertMessage = db.compileStatement("insert into " + RapidSmsDBConstants.Message.TABLE
+					+ " (" + RapidSmsDBConstants.Message.MONITOR + ", " + RapidSmsDBConstants.Message.TIME + ", "
+					+ RapidSmsDBConstants.Message.MESSAGE + ", " + RapidSmsDBConstants.Message.NORMALIZED + ", "
+					+ RapidSmsDBConstants.Message.HASH + ", " + RapidSmsDBConstants.Message.RECEIVE_TIME + ", "
+					+ RapidSmsDBConstants.Message.IS_OUTGOING + ", " + RapidSmsDBConstants.Message.IS_VIRTUAL + ", "
+					+ RapidSmsDBConstants.Message.IS_SENT + ", " + RapidSmsDBConstants.Message.IS_FINALIZED
+					+ ") values (?, ?, ?, ?, ?, ?, 0, 0, 0, 0)");
+
+			// reading the next batch and parsing it overlap with writing the
+			// one before
+			ArrayList<Pending> batch = readBatch(csv);
+			List<Future<Void>> parsing = parse(pool, batch, threads);
+			while (batch.size() > 0 && !mCancelled) {
+				ArrayList<Pending> next = readBatch(csv);
+				await(parsing);
+				parsing = parse(pool, next, threads);
+				write(db, insertMessage, batch);
+				batch = next;
+				if (mListener != null) {
+					mListener.onProgress(mImported, counted.count, totalBytes);
+				}
+			}
+			insertMessage.close();
+		} finally {
+			pool.shutdownNow();
+			mHelper.close();
+			csv.close();
+		}
+
+		MessageTranslator.updateMonitorHash(mContext);
+		mContext.getContentResolver().notifyChange(RapidSmsDBConstants.Message.CONTENT_URI, null);
+		mContext.getContentResolver().notifyChange(RapidSmsDBConstants.Change.CONTENT_URI, null);
+		Log.i(TAG, "Imported " + mImported + " messages (" + mParsed + " parsed, " + mRejected + " rejected) in "
+				+ (System.currentTimeMillis() - start) + "ms");
+		return !mCancelled;
+	}
+
+	private ArrayList<Pending> readBatch(CsvReader csv) throws IOException {
+		ArrayList<Pending> batch = new ArrayList<Pending>(BATCH_SIZE);
+		String[] row;
+		while (batch.size() < BATCH_SIZE && !mCancelled && (row = csv.readRow()) != null) {
+			if (row.length < 3) {
+				mRejected++;
+				continue;
+			}
+			Date time;
+			try {
+				time = mDateFormat.parse(row[0].trim());
+			} catch (ParseException e) {
+				// most likely a header
+				mRejected++;
+				continue;
+			}
+			Pending p = new Pending();
+			p.time = mDateFormat.format(time);
+			p.phone = row[1].trim();
+			p.body = row[2];
+			// unquoted commas in the message split it up
+			for (int i = 3; i < row.length; i++) {
+				p.body += "," + row[i];
+			}
+			if (p.phone.length() == 0 || p.body.length() == 0) {
+				mRejected++;
+				continue;
+			}
+			batch.add(p);
+		}
+		return batch;
+	}
+
+	/**
+	 * Normalize, dispatch and parse a batch on the pool
+	 */
+	private List<Future<Void>> parse(ExecutorService pool, final ArrayList<Pending> batch, int threads) {
+		ArrayList<Future<Void>> ret = new ArrayList<Future<Void>>(threads);
+		int slice = (batch.size() + threads - 1) / threads;
+		for (int from = 0; from < batch.size(); from += slice) {
+			final int start = from;
+			final int end = Math.min(batch.size(), from + slice);
+			ret.add(pool.submit(new Callable<Void>() {
+				public Void call() {
+					for (int i = start; i < end; i++) {
+						Pending p = batch.get(i);
+						p.normalized = MessageNormalizer.normalize(p.body);
+						p.hash = MessageFingerprint.hashNormalized(p.phone, p.normalized);
+						p.form = determineForm(p.normalized);
+						if (p.form != null) {
+							p.results = ParsingService.ParseNormalizedMessage(p.form, p.normalized);
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		return ret;
+	}
+
+	private static void await(List<Future<Void>> futures) throws IOException {
+		try {
+			for (int i = 0; i < futures.size(); i++) {
+				futures.get(i).get();
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Import interrupted");
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private Form determineForm(String normalized) {
+		for (int i = 0; i < mPrefixes.length; i++) {
+			if (MessageNormalizer.hasPrefix(normalized, mPrefixes[i])) {
+				return mForms[i];
+			}
+		}
+		return null;
+	}
+
+	private void write(SQLiteDatabase db, SQLiteStatement insertMessage, ArrayList<Pending> batch) {
+		String now = mDateFormat.format(new Date());
+		SketchDataLayer.Batch sketches = new SketchDataLayer.Batch();
+		db.beginTransaction();
+		try {
+			for (int i = 0; i < batch.size(); i++) {
+				Pending p = batch.get(i);
+				long monitor = getMonitor(db, p.phone);
+				insertMessage.bindLong(1, monitor);
+				insertMessage.bindString(2, p.time);
+				insertMessage.bindString(3, p.body);
+				insertMessage.bindString(4, p.normalized);
+				insertMessage.bindLong(5, p.hash);
+				insertMessage.bindString(6, now);
+				long messageId = insertMessage.executeInsert();
+				RollupDataLayer.recordMessage(db, p.time);
+				sketches.addMessage(p.time, monitor);
+
+				if (p.form != null) {
+					ContentValues cv = new ContentValues();
+					cv.put(RapidSmsDBConstants.FormData.MESSAGE, messageId);
+					Field[] fields = p.form.getFields();
+					for (int j = 0; j < fields.length; j++) {
+						IParseResult res = p.results.get(j);
+						cv.put(RapidSmsDBConstants.FormData.COLUMN_PREFIX + fields[j].getName(), res != null ? res
+								.getValue().toString() : "");
+					}
+					db.insert(RapidSmsDBConstants.FormData.TABLE_PREFIX + p.form.getPrefix().replace("@", ""),
+								RapidSmsDBConstants.FormData.MESSAGE, cv);
+					TallyDataLayer.recordAnswer(db, p.form, cv);
+					RollupDataLayer.recordFormData(db, p.form, p.time, cv);
+					sketches.addFormData(p.form, p.time, monitor, cv);
+					mParsed++;
+				}
+			}
+			sketches.flush(db);
+			db.setTransactionSuccessful();
+			mImported += batch.size();
+		} finally {
+			db.endTransaction();
+		}
+		RollupDataLayer.invalidateAll();
+	}
+
+	private void loadMonitors(SQLiteDatabase db) {
+		mMonitors = new HashMap<String, Long>();
+		Cursor cr = db.rawQuery("select _id, " + RapidSmsDBConstants.Monitor.PHONE + " from "
+				+ RapidSmsDBConstants.Monitor.TABLE, null);
+		while (cr.moveToNext()) {
+			mMonitors.put(cr.getString(1), Long.valueOf(cr.getLong(0)));
+		}
+		cr.close();
+	}
+
+	/**
+	 * Monitor id for a phone number, creating the monitor the way the
+	 * content provider does if it's new
+	 */
+	private long getMonitor(SQLiteDatabase db, String phone) {
+		Long id = mMonitors.get(phone);
+		if (id == null) {
+			ContentValues cv = new ContentValues();
+			cv.put(RapidSmsDBConstants.Monitor.PHONE, phone);
+			cv.put(RapidSmsDBConstants.Monitor.ALIAS, phone);
+			cv.put(RapidSmsDBConstants.Monitor.EMAIL, "");
+			cv.put(RapidSmsDBConstants.Monitor.FIRST_NAME, "");
+			cv.put(RapidSmsDBConstants.Monitor.LAST_NAME, "");
+			cv.put(RapidSmsDBConstants.Monitor.INCOMING_MESSAGES, 0);
+			id = Long.valueOf(db.insert(RapidSmsDBConstants.Monitor.TABLE, RapidSmsDBConstants.Monitor.PHONE, cv));
+			mMonitors.put(phone, id);
+		}
+		return id.longValue();
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidandroid.data.controller;
+
+import java.util.Date;
+
+import org.rapidandroid.data.RapidSmsDBConstants;
+import org.rapidsms.java.core.model.Message;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Reads and advances the rapidandroid_export_watermark rows.<br>
+ * <br>
+ * Every export, full or incremental, advances the watermark of its form and
+ * destination to the newest message it wrote. Incremental exports only take
+ * messages past it. The watermark only ever moves forward, so a full
+ * re-export of old data doesn't make the next incremental one repeat itself.
+ *
+ */
+public class ExportWatermark {
+
+	private ExportWatermark() {
+	}
+
+	/**
+	 * @param db
+	 * @param formId
+	 * @param destination
+	 *            one of the RapidSmsDBConstants.ExportWatermark.DESTINATION_
+	 *            constants
+	 * @return the last message _id exported, 0 if the form has never been
+	 *         exported there
+	 */
+	public static int getLastMessageId(SQLiteDatabase db, int formId, String destination) {
+		Cursor cr = db.rawQuery("select " + RapidSmsDBConstants.ExportWatermark.LAST_MESSAGE + " from "
+				+ RapidSmsDBConstants.ExportWatermark.TABLE + " where " + RapidSmsDBConstants.ExportWatermark.FORM
+				+ " = " + formId + " and " + RapidSmsDBConstants.ExportWatermark.DESTINATION + " = ?",
+								new String[] { destination });
+		int lastMessageId = 0;
+		if (cr.moveToFirst()) {
+			lastMessageId = cr.getInt(0);
+		}
+		cr.close();
+		return lastMessageId;
+	}
+
+	/**
+	 * Move the watermark up to a message, if it isn't past it already. Call
+	 * it inside the transaction that commits the export's own bookkeeping so
+	 * the two can't disagree.
+	 *
+	 * @param db
+	 * @param formId
+	 * @param destination
+	 * @param lastMessageId
+	 * @param lastTime
+	 *            the message's time column
+	 */
+	public static void advance(SQLiteDatabase db, int formId, String destination, int lastMessageId,
+			String lastTime) {
+		Object[] args = new Object[] { Integer.valueOf(formId), destination, Integer.valueOf(lastMessageId),
+				lastTime, Message.SQLDateFormatter.format(new Date()) };
+		db.execSQL("insert or ignore into " + RapidSmsDBConstants.ExportWatermark.TABLE + " ("
+				+ RapidSmsDBConstants.ExportWatermark.FORM + ", " + RapidSmsDBConstants.ExportWatermark.DESTINATION
+				+ ", " + RapidSmsDBConstants.ExportWatermark.LAST_MESSAGE + ", "
+				+ RapidSmsDBConstants.ExportWatermark.LAST_TIME + ", " + RapidSmsDBConstants.ExportWatermark.UPDATED
+				+ ") values (?, ?, ?, ?, ?)", args);
+		db.execSQL("update " + RapidSmsDBConstants.ExportWatermark.TABLE + " set "
+				+ RapidSmsDBConstants.ExportWatermark.LAST_MESSAGE + " = ?, "
+				+ RapidSmsDBConstants.ExportWatermark.LAST_TIME + " = ?, "
+				+ RapidSmsDBConstants.ExportWatermark.UPDATED + " = ? where "
+				+ RapidSmsDBConstants.ExportWatermark.FORM + " = ? and "
+				+ RapidSmsDBConstants.ExportWatermark.DESTINATION + " = ? and "
+				+ RapidSmsDBConstants.ExportWatermark.LAST_MESSAGE + " < ?", new Object[] {
+				Integer.valueOf(lastMessageId), lastTime, args[4], Integer.valueOf(formId), destination,
+				Integer.valueOf(lastMessageId) });
+	}
+}
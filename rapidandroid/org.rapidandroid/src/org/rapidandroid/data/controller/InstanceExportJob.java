@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidandroid.data.controller;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.rapidandroid.content.translation.ModelTranslator;
+import org.rapidandroid.content.translation.OdkInstanceBatch;
+import org.rapidandroid.content.translation.OpenRosaInstanceWriter;
+import org.rapidandroid.content.translation.OpenRosaInstanceWriter.FormPlan;
+import org.rapidandroid.content.translation.OpenRosaInstanceWriter.InstanceRow;
+import org.rapidandroid.data.RapidSmsDBConstants;
+import org.rapidandroid.data.SmsDbHelper;
+import org.rapidsms.java.core.model.Form;
+import org.rapidsms.java.core.model.Message;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Regenerates the OpenRosa instances of every message a form (or every form of
+ * a survey) received in a date range, ie after the form changed or for a
+ * backlog that never got instances.<br>
+ * <br>
+ * Messages are read in chunks of CHUNK_SIZE, paginated on message _id rather
+ * than by offset so each chunk is an index range scan. The instances of a
+ * chunk are rendered in parallel on a small bounded pool, registered with ODK
+ * Collect together through OdkInstanceBatch, and then the message rows and the job's
+ * checkpoint are updated in one transaction. A job that is cancelled or dies
+ * starts after the last committed chunk when it's run again, at worst the
+ * chunk that was in flight gets registered with ODK twice.<br>
+ * <br>
+ * Each committed chunk also advances the form's XForm export watermark. An
+ * incremental job starts from the watermark instead of a checkpoint, so it
+ * only builds instances for messages no earlier job has exported. It also
+ * skips messages that already got their instance at ingest, which doesn't
+ * move the watermark.<br>
+ * <br>
+ * run() blocks, call it off the UI thread.
+ *
+ */
+public class InstanceExportJob {
+
+	private static final String TAG = "InstanceExportJob";
+
+	public static final int CHUNK_SIZE = 50;
+
+	/**
+	 * Rendering is mostly sdcard writes, more threads than this just contend
+	 * for the card.
+	 */
+	private static final int POOL_SIZE = 2;
+
+	private final Context mContext;
+	private final Form[] mForms;
+	private final Date mStartDate;
+	private final Date mEndDate;
+
+	private boolean mIncremental = false;
+
+	private volatile boolean mCancelled = false;
+	private volatile int mExported = 0;
+
+	private static class RenderedInstance {
+		InstanceRow row;
+		File file;
+		boolean wellFormed;
+	}
+
+	/**
+	 * @param context
+	 * @param f
+	 * @param startDate
+	 *            inclusive
+	 * @param endDate
+	 *            exclusive
+	 */
+	public InstanceExportJob(Context context, Form f, Date startDate, Date endDate) {
+		this(context, new Form[] { f }, startDate, endDate);
+	}
+
+	private InstanceExportJob(Context context, Form[] forms, Date startDate, Date endDate) {
+		mContext = context;
+		mForms = forms;
+		mStartDate = startDate;
+		mEndDate = endDate;
+	}
+
+	/**
+	 * A job over every question form of a survey.
+	 *
+	 * @param context
+	 * @param surveyId
+	 * @param startDate
+	 * @param endDate
+	 * @return
+	 */
+	public static InstanceExportJob forSurvey(Context context, int surveyId, Date startDate, Date endDate) {
+		Cursor formCursor = context.getContentResolver().query(RapidSmsDBConstants.Form.CONTENT_URI,
+																new String[] { RapidSmsDBConstants.Form._ID },
+																"survey_id = " + surveyId, null, "sequence ASC");
+		Vector<Form> forms = new Vector<Form>();
+		while (formCursor.moveToNext()) {
+			forms.add(ModelTranslator.getFormById(formCursor.getInt(0)));
+		}
+		formCursor.close();
+		return new InstanceExportJob(context, forms.toArray(new Form[forms.size()]), startDate, endDate);
+	}
+
+	/**
+	 * Only export messages past the forms' XForm watermarks that don't have an
+	 * instance yet. Incremental jobs don't keep a checkpoint, the watermark
+	 * already is one.
+	 *
+	 * @param incremental
+	 */
+	public void setIncremental(boolean incremental) {
+		mIncremental = incremental;
+	}
+
+	/**
+	 * Stop after the chunk that's in progress. The job can be resumed by
+	 * running a new one over the same forms and dates.
+	 */
+	public void cancel() {
+		mCancelled = true;
+	}
+
+	/**
+	 * @return instances registered so far, including any from earlier
+	 *         interrupted runs of the same job
+	 */
+	public int getExportedCount() {
+		return mExported;
+	}
+
+	/**
+	 * @return true if every matching message has an instance, false if the
+	 *         job was cancelled or failed and should be run again to finish
+	 */
+	public boolean run() {
+		SmsDbHelper mHelper = new SmsDbHelper(mContext);
+		SQLiteDatabase db = mHelper.getWritableDatabase();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 30, TimeUnit.SECONDS,
+															new ArrayBlockingQueue<Runnable>(CHUNK_SIZE),
+															new ThreadPoolExecutor.CallerRunsPolicy());
+		try {
+			for (int i = 0; i < mForms.length; i++) {
+				if (!exportForm(db, pool, mForms[i])) {
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			pool.shutdown();
+			mHelper.close();
+		}
+	}
+
+	private boolean exportForm(SQLiteDatabase db, ThreadPoolExecutor pool, Form f) {
+		FormPlan plan = OpenRosaInstanceWriter.getPlan(mContext, f);
+		String job = null;
+		int lastMessageId = 0;
+		int exported = 0;
+		if (mIncremental) {
+			lastMessageId = ExportWatermark.getLastMessageId(db, f.getFormId(),
+																RapidSmsDBConstants.ExportWatermark.DESTINATION_XFORM);
+		} else {
+			job = getJobKey(f);
+			Cursor checkpoint = db.rawQuery("select " + RapidSmsDBConstants.ExportCheckpoint.LAST_MESSAGE + ", "
+					+ RapidSmsDBConstants.ExportCheckpoint.EXPORTED + " from " + RapidSmsDBConstants.ExportCheckpoint.TABLE
+					+ " where " + RapidSmsDBConstants.ExportCheckpoint.JOB + " = ?", new String[] { job });
+			if (checkpoint.moveToFirst()) {
+				lastMessageId = checkpoint.getInt(0);
+				exported = checkpoint.getInt(1);
+				mExported += exported;
+				Log.i(TAG, "Resuming " + job + " after message " + lastMessageId);
+			}
+			checkpoint.close();
+		}
+
+		String query = getChunkQuery(f, plan, mIncremental);
+		String start = Message.SQLDateFormatter.format(mStartDate);
+		String end = Message.SQLDateFormatter.format(mEndDate);
+		while (!mCancelled) {
+			ArrayList<InstanceRow> rows = new ArrayList<InstanceRow>(CHUNK_SIZE);
+			Cursor cr = db.rawQuery(query, new String[] { start, end, String.valueOf(lastMessageId) });
+			while (cr.moveToNext()) {
+				rows.add(OpenRosaInstanceWriter.readJoinedRow(cr));
+			}
+			cr.close();
+
+			if (rows.size() == 0) {
+				if (job != null) {
+					db.delete(RapidSmsDBConstants.ExportCheckpoint.TABLE, RapidSmsDBConstants.ExportCheckpoint.JOB
+							+ " = ?", new String[] { job });
+				}
+				Log.i(TAG, "Finished form " + f.getFormId() + ", " + exported + " instances");
+				return true;
+			}
+
+			ArrayList<RenderedInstance> rendered = render(pool, plan, rows);
+			if (rendered == null || !register(db, f, plan, job, rendered, exported)) {
+				return false;
+			}
+			lastMessageId = rows.get(rows.size() - 1).messageId;
+			exported += rows.size();
+			mExported += rows.size();
+		}
+		Log.i(TAG, "Cancelled form " + f.getFormId() + " after message " + lastMessageId);
+		return false;
+	}
+
+	private String getJobKey(Form f) {
+		return "form:" + f.getFormId() + ":" + mStartDate.getTime() + "-" + mEndDate.getTime();
+	}
+
+	/**
+	 * @param incremental
+	 *            leave out messages that already have an instance
+	 */
+	private static String getChunkQuery(Form f, FormPlan plan, boolean incremental) {
+		StringBuilder query = new StringBuilder("select ");
+		for (int i = 0; i < OpenRosaInstanceWriter.MESSAGE_PROJECTION.length; i++) {
+			query.append("m.").append(OpenRosaInstanceWriter.MESSAGE_PROJECTION[i]).append(", ");
+		}
+		String[] columns = plan.getColumns();
+		for (int i = 0; i < columns.length; i++) {
+			query.append("fd.").append(columns[i]).append(", ");
+		}
+		query.setLength(query.length() - 2);
+		query.append(" from " + RapidSmsDBConstants.FormData.TABLE_PREFIX + f.getPrefix().replace("@", "")
+				+ " fd join " + RapidSmsDBConstants.Message.TABLE + " m on (fd."
+				+ RapidSmsDBConstants.FormData.MESSAGE + " = m._id)");
+		query.append(" where m." + RapidSmsDBConstants.Message.TIME + " >= ? and m."
+				+ RapidSmsDBConstants.Message.TIME + " < ? and m._id > ?");
+		if (incremental) {
+			query.append(" and m." + RapidSmsDBConstants.Message.FORM_URI + " is null");
+		}
+		query.append(" order by m._id asc limit " + CHUNK_SIZE);
+		return query.toString();
+	}
+
+	/**
+	 * Write the instance files of a chunk on the pool.
+	 *
+	 * @return the chunk in order, or null if any file couldn't be written
+	 */
+	private ArrayList<RenderedInstance> render(ThreadPoolExecutor pool, final FormPlan plan,
+			ArrayList<InstanceRow> rows) {
+		ArrayList<Future<RenderedInstance>> futures = new ArrayList<Future<RenderedInstance>>(rows.size());
+		for (int i = 0; i < rows.size(); i++) {
+			final InstanceRow row = rows.get(i);
+			futures.add(pool.submit(new Callable<RenderedInstance>() {
+				public RenderedInstance call() throws IOException {
+					RenderedInstance ret = new RenderedInstance();
+					ret.row = row;
+					ret.file = OpenRosaInstanceWriter.getInstanceFile(plan, row);
+					ret.wellFormed = OpenRosaInstanceWriter.writeInstanceFile(plan, row, ret.file);
+					return ret;
+				}
+			}));
+		}
+
+		ArrayList<RenderedInstance> rendered = new ArrayList<RenderedInstance>(rows.size());
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				rendered.add(futures.get(i).get());
+			} catch (ExecutionException e) {
+				Log.e(TAG, "Error writing instance for message " + rows.get(i).messageId + ": "
+						+ e.getCause().getMessage());
+				return null;
+			} catch (InterruptedException e) {
+				Log.e(TAG, "Interrupted writing instances");
+				return null;
+			}
+		}
+		return rendered;
+	}
+
+	/**
+	 * Hand a chunk's instances to ODK Collect and commit the message rows and
+	 * checkpoint that go with them.
+	 * 
+	 * @param job
+	 *            the checkpoint key, null for an incremental job
+	 */
+	private boolean register(SQLiteDatabase db, Form f, FormPlan plan, String job,
+			ArrayList<RenderedInstance> rendered, int exported) {
+		ArrayList<ContentValues> instances = new ArrayList<ContentValues>(rendered.size());
+		for (int i = 0; i < rendered.size(); i++) {
+			RenderedInstance instance = rendered.get(i);
+			instances.add(OpenRosaInstanceWriter.getOdkInstanceValues(plan, instance.file, instance.wellFormed));
+		}
+
+		Uri[] uris = OdkInstanceBatch.insert(mContext.getContentResolver(), instances);
+		if (uris == null) {
+			return false;
+		}
+
+		InstanceRow lastRow = rendered.get(rendered.size() - 1).row;
+		db.beginTransaction();
+		try {
+			for (int i = 0; i < uris.length; i++) {
+				RenderedInstance instance = rendered.get(i);
+				db.update(RapidSmsDBConstants.Message.TABLE,
+							OpenRosaInstanceWriter.getMessageValues(uris[i], instance.wellFormed), "_id = "
+									+ instance.row.messageId, null);
+			}
+			if (job != null) {
+				db.execSQL("insert or replace into " + RapidSmsDBConstants.ExportCheckpoint.TABLE + " ("
+						+ RapidSmsDBConstants.ExportCheckpoint.JOB + ", " + RapidSmsDBConstants.ExportCheckpoint.FORM
+						+ ", " + RapidSmsDBConstants.ExportCheckpoint.LAST_MESSAGE + ", "
+						+ RapidSmsDBConstants.ExportCheckpoint.EXPORTED + ", "
+						+ RapidSmsDBConstants.ExportCheckpoint.UPDATED + ") values (?, ?, ?, ?, ?)", new Object[] {
+						job, Integer.valueOf(f.getFormId()), Integer.valueOf(lastRow.messageId),
+						Integer.valueOf(exported + rendered.size()), Message.SQLDateFormatter.format(new Date()) });
+			}
+			ExportWatermark.advance(db, f.getFormId(), RapidSmsDBConstants.ExportWatermark.DESTINATION_XFORM,
+									lastRow.messageId, lastRow.time);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		return true;
+	}
+}
@@ -17,10 +17,13 @@
 
 package org.rapidandroid.data.controller;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.text.ParseException;
 import java.util.Calendar;
 import java.util.Date;
@@ -29,6 +32,9 @@ import java.util.zip.GZIPOutputStream;
 import org.rapidandroid.data.RapidSmsDBConstants;
 import org.rapidandroid.data.SmsDbHelper;
 import org.rapidsms.java.core.Constants;
+import org.rapidsms.java.core.export.ColumnarFormat;
+import org.rapidsms.java.core.export.ColumnarWriter;
+import org.rapidsms.java.core.model.Field;
 import org.rapidsms.java.core.model.Form;
 import org.rapidsms.java.core.model.Message;
 
@@ -115,115 +121,441 @@ public class ParsedDataReporter {
 		return ret;
 	}
 
+	/**
+	 * Rows are read this many at a time, keyed on the formdata _id, so even a
+	 * huge export never walks one giant cursor.
+	 */
+	private static final int CSV_CHUNK_SIZE = 1000;
+	private static final int CSV_BUFFER_SIZE = 64 * 1024;
+	private static final int CSV_PROGRESS_INTERVAL = 500;
+
+	/**
+	 * Progress callback for exports, called from the exporting thread.
+	 */
+	public interface ExportProgressListener {
+		void onProgress(int rowsWritten, int totalRows);
+	}
+
 	public synchronized static void exportFormDataToCSV(Context context, Form f, Calendar startDate, Calendar endDate) {
-		SmsDbHelper mHelper = new SmsDbHelper(context);
-		// build the query
-		StringBuilder query = new StringBuilder();
-		query.append("select " + RapidSmsDBConstants.FormData.TABLE_PREFIX);
-		query.append(f.getPrefix() + ".*");
-		query
-				.append(", rapidandroid_message.message,rapidandroid_message.time, rapidandroid_monitor._id as monitor_id, rapidandroid_monitor.phone as monitor_phone ");
-		query.append(" from " + RapidSmsDBConstants.FormData.TABLE_PREFIX + f.getPrefix());
-		query.append(" join rapidandroid_message on (");
-		query.append(RapidSmsDBConstants.FormData.TABLE_PREFIX + f.getPrefix());
-		query.append(".message_id = rapidandroid_message._id");
-		query.append(") ");
+		exportFormDataToCSV(context, f, startDate, endDate, false, false, null);
+	}
 
-		query.append(" join rapidandroid_monitor on (");
-		query.append("rapidandroid_monitor._id = rapidandroid_message.monitor_id");
-		query.append(") ");
+	/**
+	 * Write the formdata of a form, with the message and monitor of each row,
+	 * to a CSV file in rapidandroid/exports on the sdcard.<br>
+	 * <br>
+	 * The file is streamed in chunks through one buffered writer, so memory
+	 * use doesn't depend on the number of rows. Fields are quoted per RFC 4180
+	 * whenever they hold a comma, quote or line break.<br>
+	 * <br>
+	 * Once the file is complete the form's CSV watermark is moved up to the
+	 * newest message in it. An incremental export only takes messages past
+	 * the watermark, and writes no file at all if there aren't any.
+	 * 
+	 * @param context
+	 * @param f
+	 * @param startDate
+	 *            inclusive
+	 * @param endDate
+	 *            exclusive
+	 * @param gzip
+	 *            compress the file as it's written, it gets a .csv.gz name
+	 * @param incremental
+	 *            only export messages newer than the last CSV export
+	 * @param listener
+	 *            may be null
+	 * @return the file written, null if it couldn't be or there was nothing
+	 *         new to write
+	 */
+	public synchronized static File exportFormDataToCSV(Context context, Form f, Calendar startDate,
+			Calendar endDate, boolean gzip, boolean incremental, ExportProgressListener listener) {
+		String table = RapidSmsDBConstants.FormData.TABLE_PREFIX + f.getPrefix().replace("@", "");
+		String select = "select " + table + ".*"
+				+ ", rapidandroid_message.message,rapidandroid_message.time, rapidandroid_monitor._id as monitor_id, rapidandroid_monitor.phone as monitor_phone ";
+		return exportFormData(context, f, select, startDate, endDate, incremental,
+								RapidSmsDBConstants.ExportWatermark.DESTINATION_CSV, gzip ? ".csv.gz" : ".csv",
+								new CsvSink(gzip), listener);
+	}
+
+	/**
+	 * Write the same rows as exportFormDataToCSV to a columnar file in
+	 * rapidandroid/exports, see ColumnarFormat for the layout. Field values
+	 * are stored by the field's type rather than as text, so the file is a
+	 * fraction of the CSV's size and a reader can pull out a date range
+	 * through its block index.<br>
+	 * <br>
+	 * Values that don't parse as their field's type, ie the empty string
+	 * stored for a missing answer, are written as nulls. Watermarks and
+	 * incremental exports work as they do for CSV, under their own
+	 * destination.
+	 * 
+	 * @param context
+	 * @param f
+	 * @param startDate
+	 *            inclusive
+	 * @param endDate
+	 *            exclusive
+	 * @param incremental
+	 *            only export messages newer than the last columnar export
+	 * @param listener
+	 *            may be null
+	 * @return the file written, null if it couldn't be or there was nothing
+	 *         new to write
+	 */
+	public synchronized static File exportFormDataToColumnar(Context context, Form f, Calendar startDate,
+			Calendar endDate, boolean incremental, ExportProgressListener listener) {
+		String table = RapidSmsDBConstants.FormData.TABLE_PREFIX + f.getPrefix().replace("@", "");
+		Field[] fields = f.getFields();
+
+		// _id, message_id, the fields, then the message and monitor
+		int columns = fields.length + 6;
+		String[] names = new String[columns];
+		byte[] types = new byte[columns];
+		StringBuilder select = new StringBuilder();
+		select.append("select " + table + "._id, " + table + ".message_id");
+		names[0] = RapidSmsDBConstants.FormData._ID;
+		types[0] = ColumnarFormat.TYPE_INT;
+		names[1] = RapidSmsDBConstants.FormData.MESSAGE;
+		types[1] = ColumnarFormat.TYPE_INT;
+		for (int i = 0; i < fields.length; i++) {
+			String column = RapidSmsDBConstants.FormData.COLUMN_PREFIX + fields[i].getName();
+			select.append(", " + table + ".\"" + column + "\"");
+			names[i + 2] = column;
+			types[i + 2] = getColumnarType(fields[i].getFieldType().getParsedDataType());
+		}
+		select
+				.append(", rapidandroid_message.message, rapidandroid_message.time, rapidandroid_monitor._id, rapidandroid_monitor.phone");
+		int messageColumn = fields.length + 2;
+		names[messageColumn] = "message";
+		types[messageColumn] = ColumnarFormat.TYPE_STRING;
+		names[messageColumn + 1] = "time";
+		types[messageColumn + 1] = ColumnarFormat.TYPE_TIME;
+		names[messageColumn + 2] = "monitor_id";
+		types[messageColumn + 2] = ColumnarFormat.TYPE_INT;
+		names[messageColumn + 3] = "monitor_phone";
+		types[messageColumn + 3] = ColumnarFormat.TYPE_STRING;
+
+		return exportFormData(context, f, select.toString(), startDate, endDate, incremental,
+								RapidSmsDBConstants.ExportWatermark.DESTINATION_COLUMNAR, ".rcol", new ColumnarSink(
+										names, types), listener);
+	}
+
+	/**
+	 * Where an export's rows go, one file per export.
+	 */
+	private interface ExportSink {
+		void open(File file) throws IOException;
+
+		/**
+		 * Called once, before the first row.
+		 */
+		void writeHeader(String[] columns) throws IOException;
+
+		void writeRow(Cursor cr) throws IOException;
+
+		/**
+		 * Finish the file. Also called after a failure, to let go of it.
+		 */
+		void close() throws IOException;
+	}
+
+	private static class CsvSink implements ExportSink {
+		private final boolean mGzip;
+		private Writer mOut;
 
-		query.append("WHERE rapidandroid_message.time > '" + startDate.get(Calendar.YEAR) + "-"
-				+ (startDate.get(Calendar.MONTH) + 1) + "-" + startDate.get(Calendar.DATE) + "' AND ");
-		query.append(" rapidandroid_message.time < '" + endDate.get(Calendar.YEAR) + "-"
-				+ (1 + endDate.get(Calendar.MONTH)) + "-" + endDate.get(Calendar.DATE) + "';");
+		CsvSink(boolean gzip) {
+			mGzip = gzip;
+		}
+
+		public void open(File file) throws IOException {
+			OutputStream fOut = new FileOutputStream(file);
+			if (mGzip) {
+				fOut = new GZIPOutputStream(fOut, CSV_BUFFER_SIZE);
+			}
+			mOut = new BufferedWriter(new OutputStreamWriter(fOut, "UTF-8"), CSV_BUFFER_SIZE);
+		}
+
+		public void writeHeader(String[] columns) throws IOException {
+			for (int i = 0; i < columns.length; i++) {
+				if (i > 0) {
+					mOut.write(',');
+				}
+				writeCsvField(mOut, columns[i]);
+			}
+			mOut.write("\r\n");
+		}
+
+		public void writeRow(Cursor cr) throws IOException {
+			int colcount = cr.getColumnCount();
+			for (int i = 0; i < colcount; i++) {
+				if (i > 0) {
+					mOut.write(',');
+				}
+				writeCsvField(mOut, cr.getString(i));
+			}
+			mOut.write("\r\n");
+		}
+
+		public void close() throws IOException {
+			if (mOut != null) {
+				mOut.close();
+			}
+		}
+	}
+
+	private static class ColumnarSink implements ExportSink {
+		private final String[] mNames;
+		private final byte[] mTypes;
+		private ColumnarWriter mOut;
+
+		ColumnarSink(String[] names, byte[] types) {
+			mNames = names;
+			mTypes = types;
+		}
+
+		public void open(File file) throws IOException {
+			mOut = new ColumnarWriter(new FileOutputStream(file), mNames, mTypes);
+		}
+
+		public void writeHeader(String[] columns) {
+			// the names and types went in with the file's header
+		}
 
-		Cursor cr = mHelper.getReadableDatabase().rawQuery(query.toString(), null);
-		FileOutputStream fOut = null;
-		
+		public void writeRow(Cursor cr) throws IOException {
+			for (int i = 0; i < mTypes.length; i++) {
+				writeColumnarValue(mOut, i, mTypes[i], cr.getString(i));
+			}
+			mOut.endRow();
+		}
+
+		public void close() throws IOException {
+			if (mOut != null) {
+				mOut.close();
+			}
+		}
+	}
+
+	/**
+	 * The part every export shares: count, create the file, page through the
+	 * rows on the formdata _id, hand each to the sink and, once the file is
+	 * complete, advance the destination's watermark.
+	 * 
+	 * @param select
+	 *            the select clause, the formdata _id first and with
+	 *            message_id and the message's time among the columns
+	 * @param destination
+	 *            one of the ExportWatermark.DESTINATION_ constants
+	 * @param extension
+	 *            of the file written
+	 * @return the file written, null if it couldn't be or there was nothing
+	 *         new to write
+	 */
+	private static File exportFormData(Context context, Form f, String select, Calendar startDate,
+			Calendar endDate, boolean incremental, String destination, String extension, ExportSink sink,
+			ExportProgressListener listener) {
+		String table = RapidSmsDBConstants.FormData.TABLE_PREFIX + f.getPrefix().replace("@", "");
+		String from = getExportFrom(table);
+		String query = select + from + " and " + table + "._id > ? order by " + table + "._id asc limit "
+				+ CSV_CHUNK_SIZE;
+
+		String start = Message.SQLDateFormatter.format(startDate.getTime());
+		String end = Message.SQLDateFormatter.format(endDate.getTime());
+
+		SmsDbHelper mHelper = new SmsDbHelper(context);
+		SQLiteDatabase db = mHelper.getWritableDatabase();
+		boolean open = false;
+		File destinationfile = null;
 		try {
+			String watermark = "0";
+			if (incremental) {
+				watermark = String.valueOf(ExportWatermark.getLastMessageId(db, f.getFormId(), destination));
+			}
+
+			int total = 0;
+			Cursor countCursor = db.rawQuery("select count(*)" + from, new String[] { start, end, watermark });
+			if (countCursor.moveToFirst()) {
+				total = countCursor.getInt(0);
+			}
+			countCursor.close();
+			if (incremental && total == 0) {
+				if (listener != null) {
+					listener.onProgress(0, 0);
+				}
+				return null;
+			}
 
 			File sdcard = Environment.getExternalStorageDirectory();
 			File destinationdir = new File(sdcard, "rapidandroid/exports");
-			destinationdir.mkdir();
+			destinationdir.mkdirs();
 			Date now = new Date();
-			File destinationfile = new File(destinationdir, "formdata_" + f.getPrefix() + now.getYear()
-					+ now.getMonth() + now.getDate() + "-" + now.getHours() + now.getMinutes() + ".csv");
-			
-		
-			destinationfile.createNewFile();
-			fOut = new FileOutputStream(destinationfile);
-			String[] cols = cr.getColumnNames();
-			int colcount = cols.length;
-			StringBuilder sbrow = new StringBuilder();
-			for (int i = 0; i < colcount; i++) {
-				// sbrow.append(cols[i] + ",");
-				sbrow.append(cols[i]);
-				if (i < colcount - 1) {
-					sbrow.append(",");
-				} else {
-					sbrow.append("\n");
-				}
-			}
-			fOut.write(sbrow.toString().getBytes());
-			cr.moveToFirst();
-			do {
-				sbrow = new StringBuilder();
-				for (int i = 0; i < colcount; i++) {
-					// sbrow.append(cr.getString(i) + ",");
-					sbrow.append(cr.getString(i));
-					if (i < colcount - 1) {
-						sbrow.append(",");
-					} else {
-						sbrow.append("\n");
+			destinationfile = new File(destinationdir, "formdata_" + f.getPrefix() + now.getYear() + now.getMonth()
+					+ now.getDate() + "-" + now.getHours() + now.getMinutes() + extension);
+			open = true;
+			sink.open(destinationfile);
+
+			int written = 0;
+			long lastId = 0;
+			int lastMessageId = 0;
+			String lastMessageTime = null;
+			int messageIdColumn = -1;
+			int timeColumn = -1;
+			while (true) {
+				Cursor cr = db.rawQuery(query, new String[] { start, end, watermark, String.valueOf(lastId) });
+				try {
+					if (messageIdColumn == -1) {
+						sink.writeHeader(cr.getColumnNames());
+						messageIdColumn = cr.getColumnIndexOrThrow(RapidSmsDBConstants.FormData.MESSAGE);
+						// formdata columns are _id, message_id and col_ ones, the
+						// only time is the message's
+						timeColumn = cr.getColumnIndexOrThrow(RapidSmsDBConstants.Message.TIME);
 					}
+					if (!cr.moveToFirst()) {
+						break;
+					}
+					do {
+						sink.writeRow(cr);
+						if (cr.getInt(messageIdColumn) > lastMessageId) {
+							lastMessageId = cr.getInt(messageIdColumn);
+							lastMessageTime = cr.getString(timeColumn);
+						}
+						written++;
+						if (listener != null && written % CSV_PROGRESS_INTERVAL == 0) {
+							listener.onProgress(written, total);
+						}
+					} while (cr.moveToNext());
+					// the formdata _id is the first column
+					cr.moveToLast();
+					lastId = cr.getLong(0);
+				} finally {
+					cr.close();
 				}
-				fOut.write(sbrow.toString().getBytes());
-			} while (cr.moveToNext());
+			}
+			sink.close();
+			open = false;
+
+			// only now that the file is complete
+			if (lastMessageId > 0) {
+				ExportWatermark.advance(db, f.getFormId(), destination, lastMessageId, lastMessageTime);
+			}
+			if (listener != null) {
+				listener.onProgress(written, total);
+			}
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			e.printStackTrace();
+			destinationfile = null;
 		} finally {
-			cr.close();
-			mHelper.close();
-			if (fOut != null) {
+			if (open) {
 				try {
-					fOut.close();
+					sink.close();
 				} catch (IOException e) {
-					// TODO Auto-generated catch block
 					e.printStackTrace();
 				}
 			}
-			// compressFile(destinationfile);
+			mHelper.close();
 		}
+		return destinationfile;
+	}
+
+	/**
+	 * The joins and filters shared by the exports. Its arguments are the
+	 * start and end time and the watermark message _id.
+	 */
+	private static String getExportFrom(String table) {
+		StringBuilder from = new StringBuilder();
+		from.append(" from " + table);
+		from.append(" join rapidandroid_message on (");
+		from.append(table + ".message_id = rapidandroid_message._id");
+		from.append(") ");
+		from.append(" join rapidandroid_monitor on (");
+		from.append("rapidandroid_monitor._id = rapidandroid_message.monitor_id");
+		from.append(") ");
+		from.append(" where rapidandroid_message.time >= ? and rapidandroid_message.time < ?");
+		from.append(" and rapidandroid_message._id > ?");
+		return from.toString();
+	}
 
+	private static byte getColumnarType(String datatype) {
+		if (datatype.equals("integer")) {
+			return ColumnarFormat.TYPE_INT;
+		} else if (datatype.equals("number") || datatype.equals("ratio") || datatype.equals("float")) {
+			return ColumnarFormat.TYPE_FLOAT;
+		} else if (datatype.equals("boolean")) {
+			return ColumnarFormat.TYPE_BOOL;
+		}
+		return ColumnarFormat.TYPE_STRING;
 	}
 
-	void compressFile(File rawFile) {
-		FileInputStream fin = null;
-		GZIPOutputStream gz = null;
+	/**
+	 * Formdata values are all stored as text, convert one to its column's
+	 * type.
+	 */
+	private static void writeColumnarValue(ColumnarWriter out, int column, byte type, String value) {
+		if (value == null || (value.length() == 0 && type != ColumnarFormat.TYPE_STRING)) {
+			out.setNull(column);
+			return;
+		}
 		try {
-			fin = new FileInputStream(rawFile);
-			FileOutputStream fout = new FileOutputStream(rawFile.getAbsoluteFile() + ".gz");
-			gz = new GZIPOutputStream(fout);
-			byte[] buf = new byte[4096];
-			int readCount;
-			while ((readCount = fin.read(buf)) != -1) {
-				gz.write(buf, 0, readCount);
+			switch (type) {
+				case ColumnarFormat.TYPE_INT:
+					out.setLong(column, Long.parseLong(value));
+					break;
+				case ColumnarFormat.TYPE_FLOAT:
+					out.setDouble(column, Double.parseDouble(value));
+					break;
+				case ColumnarFormat.TYPE_BOOL:
+					if (value.equals("true") || value.equals("1")) {
+						out.setBoolean(column, true);
+					} else if (value.equals("false") || value.equals("0")) {
+						out.setBoolean(column, false);
+					} else {
+						out.setNull(column);
+					}
+					break;
+				case ColumnarFormat.TYPE_TIME:
+					out.setTime(column, Message.SQLDateFormatter.parse(value).getTime());
+					break;
+				default:
+					out.setString(column, value);
+					break;
 			}
+		} catch (NumberFormatException e) {
+			out.setNull(column);
+		} catch (ParseException e) {
+			out.setNull(column);
+		}
+	}
 
-		} catch (Exception ex) {
-		} finally {
-			// Close the BufferedInputStream
-			try {
-				if (fin != null)
-					fin.close();
-				if (gz != null)
-					gz.close();
-			} catch (IOException ex) {
-				ex.printStackTrace();
+	/**
+	 * Write one CSV field, quoted and with its quotes doubled if it holds a
+	 * comma, quote or line break (RFC 4180). Null is written as an empty
+	 * field.
+	 * 
+	 * @param out
+	 * @param value
+	 * @throws IOException
+	 */
+	public static void writeCsvField(Writer out, String value) throws IOException {
+		if (value == null) {
+			return;
+		}
+		int len = value.length();
+		boolean quote = false;
+		for (int i = 0; i < len && !quote; i++) {
+			char c = value.charAt(i);
+			quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+		}
+		if (!quote) {
+			out.write(value);
+			return;
+		}
+		out.write('"');
+		for (int i = 0; i < len; i++) {
+			char c = value.charAt(i);
+			if (c == '"') {
+				out.write('"');
 			}
-
+			out.write(c);
 		}
+		out.write('"');
 	}
 }
@@ -0,0 +1,495 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidandroid.data.controller;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.rapidandroid.data.RapidSmsDBConstants;
+import org.rapidandroid.data.SmsDbHelper;
+import org.rapidsms.java.core.model.Field;
+import org.rapidsms.java.core.model.Form;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Maintains the rapidandroid_rollup aggregates that back the charts.<br>
+ * <br>
+ * Every message bumps the hourly, daily and hour of day counts of all
+ * messages, every formdata row bumps the same counts for its form plus the
+ * hourly and daily statistics of its boolean and numeric fields. Like the
+ * tallies, the rollups are updated inside the insert's transaction, so a chart
+ * reads a row per bucket instead of grouping every message ever received.<br>
+ * <br>
+ * Buckets come from the message time, "yyyy-MM-dd HH:mm:ss". Messages whose
+ * time isn't in that format can't be bucketed and are left out, the same as
+ * the strftime() grouping the charts used to do.
+ *
+ */
+public class RollupDataLayer {
+
+	private static final String TAG = "RollupDataLayer";
+
+	/**
+	 * Bumped whenever a form's rollups change, so results computed from them
+	 * can tell they're stale. Forms not in the map are at sBaseGeneration.
+	 * This is per process, which is fine as the provider and the charts
+	 * share one.
+	 */
+	private static HashMap<Integer, Long> generations = new HashMap<Integer, Long>();
+	private static long sBaseGeneration = 0;
+	private static long sLastGeneration = 0;
+
+	private static final String[] PERIODS = new String[] { RapidSmsDBConstants.Rollup.PERIOD_HOUR,
+			RapidSmsDBConstants.Rollup.PERIOD_DAY, RapidSmsDBConstants.Rollup.PERIOD_HOUR_OF_DAY };
+
+	/**
+	 * strftime() expressions matching getBucket() for each of PERIODS, with
+	 * %s for the time column
+	 */
+	private static final String[] PERIOD_EXPRESSIONS = new String[] { "strftime('%%Y-%%m-%%d %%H:00:00', %s)",
+			"strftime('%%Y-%%m-%%d 00:00:00', %s)", "strftime('%%H', %s)" };
+
+	private static final String ENSURE_ROW = "insert or ignore into " + RapidSmsDBConstants.Rollup.TABLE + " ("
+			+ RapidSmsDBConstants.Rollup.FORM + ", " + RapidSmsDBConstants.Rollup.PERIOD + ", "
+			+ RapidSmsDBConstants.Rollup.FIELD + ", " + RapidSmsDBConstants.Rollup.BUCKET + ", "
+			+ RapidSmsDBConstants.Rollup.COUNT + ", " + RapidSmsDBConstants.Rollup.TRUE_COUNT + ", "
+			+ RapidSmsDBConstants.Rollup.FALSE_COUNT + ", " + RapidSmsDBConstants.Rollup.SUM
+			+ ") values (?, ?, ?, ?, 0, 0, 0, 0)";
+
+	private static final String ROW_WHERE = " where " + RapidSmsDBConstants.Rollup.FORM + " = ? and "
+			+ RapidSmsDBConstants.Rollup.PERIOD + " = ? and " + RapidSmsDBConstants.Rollup.FIELD + " = ? and "
+			+ RapidSmsDBConstants.Rollup.BUCKET + " = ?";
+
+	private static final String BUMP_COUNT = "update " + RapidSmsDBConstants.Rollup.TABLE + " set "
+			+ RapidSmsDBConstants.Rollup.COUNT + " = " + RapidSmsDBConstants.Rollup.COUNT + " + 1" + ROW_WHERE;
+
+	private static final String BUMP_BOOLEAN = "update " + RapidSmsDBConstants.Rollup.TABLE + " set "
+			+ RapidSmsDBConstants.Rollup.COUNT + " = " + RapidSmsDBConstants.Rollup.COUNT + " + 1, "
+			+ RapidSmsDBConstants.Rollup.TRUE_COUNT + " = " + RapidSmsDBConstants.Rollup.TRUE_COUNT + " + ?, "
+			+ RapidSmsDBConstants.Rollup.FALSE_COUNT + " = " + RapidSmsDBConstants.Rollup.FALSE_COUNT + " + ?"
+			+ ROW_WHERE;
+
+	private static final String BUMP_NUMERIC = "update " + RapidSmsDBConstants.Rollup.TABLE + " set "
+			+ RapidSmsDBConstants.Rollup.COUNT + " = " + RapidSmsDBConstants.Rollup.COUNT + " + 1, "
+			+ RapidSmsDBConstants.Rollup.SUM + " = " + RapidSmsDBConstants.Rollup.SUM + " + ?, "
+			+ RapidSmsDBConstants.Rollup.MIN + " = min(ifnull(" + RapidSmsDBConstants.Rollup.MIN + ", ?), ?), "
+			+ RapidSmsDBConstants.Rollup.MAX + " = max(ifnull(" + RapidSmsDBConstants.Rollup.MAX + ", ?), ?)"
+			+ ROW_WHERE;
+
+	/**
+	 * Count a freshly inserted message. Must be called inside the message
+	 * insert's transaction.
+	 *
+	 * @param db
+	 * @param time
+	 *            the message's time column
+	 */
+	public static void recordMessage(SQLiteDatabase db, String time) {
+		if (!isBucketable(time)) {
+			return;
+		}
+		Integer all = Integer.valueOf(RapidSmsDBConstants.Rollup.ALL_MESSAGES);
+		for (int i = 0; i < PERIODS.length; i++) {
+			Object[] key = new Object[] { all, PERIODS[i], "", getBucket(PERIODS[i], time) };
+			db.execSQL(ENSURE_ROW, key);
+			db.execSQL(BUMP_COUNT, key);
+		}
+	}
+
+	/**
+	 * Count a freshly inserted formdata row, looking up the time of its
+	 * message. Must be called with the same database the formdata was
+	 * inserted with, inside that insert's transaction.
+	 *
+	 * @param db
+	 * @param f
+	 * @param values
+	 *            the ContentValues that were inserted into formdata
+	 */
+	public static void recordFormData(SQLiteDatabase db, Form f, ContentValues values) {
+		recordFormData(db, f, getMessageTime(db, values), values);
+	}
+
+	/**
+	 * @param values
+	 *            the ContentValues of a formdata row
+	 * @return the time of the row's message, null if there's no such message
+	 */
+	public static String getMessageTime(SQLiteDatabase db, ContentValues values) {
+		Cursor cr = db.rawQuery("select " + RapidSmsDBConstants.Message.TIME + " from "
+				+ RapidSmsDBConstants.Message.TABLE + " where _id = "
+				+ values.getAsInteger(RapidSmsDBConstants.FormData.MESSAGE), null);
+		String time = null;
+		if (cr.moveToFirst()) {
+			time = cr.getString(0);
+		}
+		cr.close();
+		return time;
+	}
+
+	/**
+	 * Count a freshly inserted formdata row whose message time the caller
+	 * already has.
+	 *
+	 * @param db
+	 * @param f
+	 * @param time
+	 *            the message's time column
+	 * @param values
+	 *            the ContentValues that were inserted into formdata
+	 */
+	public static void recordFormData(SQLiteDatabase db, Form f, String time, ContentValues values) {
+		if (!isBucketable(time)) {
+			return;
+		}
+		Integer formId = Integer.valueOf(f.getFormId());
+		for (int i = 0; i < PERIODS.length; i++) {
+			Object[] key = new Object[] { formId, PERIODS[i], "", getBucket(PERIODS[i], time) };
+			db.execSQL(ENSURE_ROW, key);
+			db.execSQL(BUMP_COUNT, key);
+		}
+
+		Field[] fields = f.getFields();
+		for (int i = 0; i < fields.length; i++) {
+			String type = fields[i].getFieldType().getParsedDataType();
+			String value = values.getAsString(RapidSmsDBConstants.FormData.COLUMN_PREFIX + fields[i].getName());
+			if (isBoolean(type)) {
+				String answer = TallyDataLayer.getAnswerKey(value);
+				if (answer.length() == 0) {
+					continue;
+				}
+				Integer isTrue = Integer.valueOf(answer.equals("true") ? 1 : 0);
+				Integer isFalse = Integer.valueOf(answer.equals("false") ? 1 : 0);
+				// hour of day only has the message counts
+				for (int p = 0; p < 2; p++) {
+					String bucket = getBucket(PERIODS[p], time);
+					db.execSQL(ENSURE_ROW, new Object[] { formId, PERIODS[p], fields[i].getName(), bucket });
+					db.execSQL(BUMP_BOOLEAN, new Object[] { isTrue, isFalse, formId, PERIODS[p],
+							fields[i].getName(), bucket });
+				}
+			} else if (isNumeric(type)) {
+				Double number = getNumber(value);
+				if (number == null) {
+					continue;
+				}
+				for (int p = 0; p < 2; p++) {
+					String bucket = getBucket(PERIODS[p], time);
+					db.execSQL(ENSURE_ROW, new Object[] { formId, PERIODS[p], fields[i].getName(), bucket });
+					db.execSQL(BUMP_NUMERIC, new Object[] { number, number, number, number, number, formId,
+							PERIODS[p], fields[i].getName(), bucket });
+				}
+			}
+		}
+	}
+
+	/**
+	 * Recompute the rollups of one form from its formdata table, for data
+	 * that came in before the rollups existed, or if they ever drift.
+	 *
+	 * @param context
+	 * @param f
+	 */
+	public static void rebuildRollups(Context context, Form f) {
+		SmsDbHelper mHelper = new SmsDbHelper(context);
+		SQLiteDatabase db = mHelper.getWritableDatabase();
+		db.beginTransaction();
+		try {
+			rebuildRollups(db, f);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			mHelper.close();
+		}
+		invalidate(f.getFormId());
+	}
+
+	/**
+	 * Recompute the rollups of one form on a database the caller holds, ie
+	 * after deleting from its formdata table.
+	 *
+	 * @param db
+	 * @param f
+	 */
+	public static void rebuildRollups(SQLiteDatabase db, Form f) {
+		Field[] fields = f.getFields();
+		String[] names = new String[fields.length];
+		String[] types = new String[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			names[i] = fields[i].getName();
+			types[i] = fields[i].getFieldType().getParsedDataType();
+		}
+		rebuildFormRollups(db, f.getFormId(), f.getPrefix(), names, types);
+	}
+
+	/**
+	 * Recompute the counts of all messages.
+	 *
+	 * @param db
+	 */
+	public static void rebuildMessageRollups(SQLiteDatabase db) {
+		db.delete(RapidSmsDBConstants.Rollup.TABLE, RapidSmsDBConstants.Rollup.FORM + " = "
+				+ RapidSmsDBConstants.Rollup.ALL_MESSAGES, null);
+		for (int i = 0; i < PERIODS.length; i++) {
+			String bucket = String.format(PERIOD_EXPRESSIONS[i], RapidSmsDBConstants.Message.TIME);
+			db.execSQL(getRebuildInsert() + RapidSmsDBConstants.Rollup.ALL_MESSAGES + ", '" + PERIODS[i] + "', '', "
+					+ bucket + ", count(*), 0, 0, 0, null, null from " + RapidSmsDBConstants.Message.TABLE
+					+ " where " + bucket + " is not null group by " + bucket);
+		}
+	}
+
+	/**
+	 * Recompute every rollup. Only touches the db it's given, so it is safe to
+	 * call from SmsDbHelper.onUpgrade.
+	 *
+	 * @param db
+	 */
+	public static void rebuildAllRollups(SQLiteDatabase db) {
+		rebuildMessageRollups(db);
+
+		Cursor formCursor = db.rawQuery("select _id, prefix from " + RapidSmsDBConstants.Form.TABLE, null);
+		while (formCursor.moveToNext()) {
+			int formId = formCursor.getInt(0);
+			ArrayList<String> names = new ArrayList<String>();
+			ArrayList<String> types = new ArrayList<String>();
+			Cursor fieldCursor = db.rawQuery("select f.name, t.datatype from " + RapidSmsDBConstants.Field.TABLE
+					+ " f join " + RapidSmsDBConstants.FieldType.TABLE + " t on (f.fieldtype_id = t._id)"
+					+ " where f.form_id = " + formId + " order by f.sequence asc", null);
+			while (fieldCursor.moveToNext()) {
+				names.add(fieldCursor.getString(0));
+				types.add(fieldCursor.getString(1));
+			}
+			fieldCursor.close();
+			try {
+				rebuildFormRollups(db, formId, formCursor.getString(1), names.toArray(new String[names.size()]),
+									types.toArray(new String[types.size()]));
+			} catch (SQLException ex) {
+				// no formdata table for this form yet, nothing to count
+				Log.w(TAG, "Unable to rebuild rollups for form " + formId + ": " + ex.getMessage());
+			}
+		}
+		formCursor.close();
+	}
+
+	/**
+	 * @param formId
+	 *            or RapidSmsDBConstants.Rollup.ALL_MESSAGES
+	 * @return a number that changes every time the form's rollups do. The
+	 *         writers bump it after they commit, so anything computed under
+	 *         a generation saw at least that generation's data.
+	 */
+	public static synchronized long getGeneration(int formId) {
+		Long generation = generations.get(Integer.valueOf(formId));
+		if (generation == null) {
+			return sBaseGeneration;
+		}
+		return generation.longValue();
+	}
+
+	/**
+	 * Call after committing a change to a form's rollups.
+	 * 
+	 * @param formId
+	 *            or RapidSmsDBConstants.Rollup.ALL_MESSAGES
+	 */
+	public static synchronized void invalidate(int formId) {
+		generations.put(Integer.valueOf(formId), Long.valueOf(++sLastGeneration));
+	}
+
+	/**
+	 * Call after committing changes that touched more than one form.
+	 */
+	public static synchronized void invalidateAll() {
+		generations.clear();
+		sBaseGeneration = ++sLastGeneration;
+	}
+
+	/**
+	 * One rollup row being rebuilt
+	 */
+	private static class Bucket {
+		String period;
+		String field;
+		String bucket;
+		int count;
+		int trueCount;
+		int falseCount;
+		double sum;
+		Double min;
+		Double max;
+	}
+
+	/**
+	 * Goes through the same getBucket, getAnswerKey and getNumber as
+	 * recordFormData, so a rebuild comes out with the rows the inserts would
+	 * have left.
+	 */
+	private static void rebuildFormRollups(SQLiteDatabase db, int formId, String prefix, String[] names,
+			String[] types) {
+		String table = RapidSmsDBConstants.FormData.TABLE_PREFIX + prefix.replace("@", "");
+		StringBuilder query = new StringBuilder("select ");
+		query.append(RapidSmsDBConstants.Message.TABLE).append(".").append(RapidSmsDBConstants.Message.TIME);
+		for (int f = 0; f < names.length; f++) {
+			query.append(", ").append(RapidSmsDBConstants.FormData.COLUMN_PREFIX).append(names[f]);
+		}
+		query.append(" from ").append(table).append(" join ").append(RapidSmsDBConstants.Message.TABLE);
+		query.append(" on (").append(table).append(".message_id = ").append(RapidSmsDBConstants.Message.TABLE);
+		query.append("._id)");
+
+		HashMap<String, Bucket> buckets = new HashMap<String, Bucket>();
+		Cursor cr = db.rawQuery(query.toString(), null);
+		try {
+			while (cr.moveToNext()) {
+				String time = cr.getString(0);
+				if (!isBucketable(time)) {
+					continue;
+				}
+				for (int i = 0; i < PERIODS.length; i++) {
+					getBucket(buckets, PERIODS[i], "", time).count++;
+				}
+				for (int f = 0; f < names.length; f++) {
+					String value = cr.isNull(f + 1) ? null : cr.getString(f + 1);
+					if (isBoolean(types[f])) {
+						String answer = TallyDataLayer.getAnswerKey(value);
+						if (answer.length() == 0) {
+							continue;
+						}
+						// hour of day only has the message counts
+						for (int p = 0; p < 2; p++) {
+							Bucket b = getBucket(buckets, PERIODS[p], names[f], time);
+							b.count++;
+							b.trueCount += answer.equals("true") ? 1 : 0;
+							b.falseCount += answer.equals("false") ? 1 : 0;
+						}
+					} else if (isNumeric(types[f])) {
+						Double number = getNumber(value);
+						if (number == null) {
+							continue;
+						}
+						for (int p = 0; p < 2; p++) {
+							Bucket b = getBucket(buckets, PERIODS[p], names[f], time);
+							b.count++;
+							b.sum += number.doubleValue();
+							if (b.min == null || number.doubleValue() < b.min.doubleValue()) {
+								b.min = number;
+							}
+							if (b.max == null || number.doubleValue() > b.max.doubleValue()) {
+								b.max = number;
+							}
+						}
+					}
+				}
+			}
+		} finally {
+			cr.close();
+		}
+
+		db.delete(RapidSmsDBConstants.Rollup.TABLE, RapidSmsDBConstants.Rollup.FORM + " = " + formId, null);
+		ContentValues values = new ContentValues();
+		for (Iterator<Bucket> it = buckets.values().iterator(); it.hasNext();) {
+			Bucket b = it.next();
+			values.put(RapidSmsDBConstants.Rollup.FORM, Integer.valueOf(formId));
+			values.put(RapidSmsDBConstants.Rollup.PERIOD, b.period);
+			values.put(RapidSmsDBConstants.Rollup.FIELD, b.field);
+			values.put(RapidSmsDBConstants.Rollup.BUCKET, b.bucket);
+			values.put(RapidSmsDBConstants.Rollup.COUNT, Integer.valueOf(b.count));
+			values.put(RapidSmsDBConstants.Rollup.TRUE_COUNT, Integer.valueOf(b.trueCount));
+			values.put(RapidSmsDBConstants.Rollup.FALSE_COUNT, Integer.valueOf(b.falseCount));
+			values.put(RapidSmsDBConstants.Rollup.SUM, Double.valueOf(b.sum));
+			values.put(RapidSmsDBConstants.Rollup.MIN, b.min);
+			values.put(RapidSmsDBConstants.Rollup.MAX, b.max);
+			db.insert(RapidSmsDBConstants.Rollup.TABLE, null, values);
+		}
+		Log.d(TAG, "Rebuilt rollups for form " + formId);
+	}
+
+	private static Bucket getBucket(HashMap<String, Bucket> buckets, String period, String field, String time) {
+		String bucket = getBucket(period, time);
+		String key = period + "|" + field + "|" + bucket;
+		Bucket b = buckets.get(key);
+		if (b == null) {
+			b = new Bucket();
+			b.period = period;
+			b.field = field;
+			b.bucket = bucket;
+			buckets.put(key, b);
+		}
+		return b;
+	}
+
+	private static String getRebuildInsert() {
+		return "insert into " + RapidSmsDBConstants.Rollup.TABLE + " (" + RapidSmsDBConstants.Rollup.FORM + ", "
+				+ RapidSmsDBConstants.Rollup.PERIOD + ", " + RapidSmsDBConstants.Rollup.FIELD + ", "
+				+ RapidSmsDBConstants.Rollup.BUCKET + ", " + RapidSmsDBConstants.Rollup.COUNT + ", "
+				+ RapidSmsDBConstants.Rollup.TRUE_COUNT + ", " + RapidSmsDBConstants.Rollup.FALSE_COUNT + ", "
+				+ RapidSmsDBConstants.Rollup.SUM + ", " + RapidSmsDBConstants.Rollup.MIN + ", "
+				+ RapidSmsDBConstants.Rollup.MAX + ") select ";
+	}
+
+	/**
+	 * @param period
+	 *            one of the RapidSmsDBConstants.Rollup.PERIOD_ constants
+	 * @param time
+	 *            "yyyy-MM-dd HH:mm:ss"
+	 * @return the bucket time falls in
+	 */
+	public static String getBucket(String period, String time) {
+		if (period.equals(RapidSmsDBConstants.Rollup.PERIOD_HOUR)) {
+			return time.substring(0, 13) + ":00:00";
+		} else if (period.equals(RapidSmsDBConstants.Rollup.PERIOD_DAY)) {
+			return time.substring(0, 10) + " 00:00:00";
+		} else {
+			return time.substring(11, 13);
+		}
+	}
+
+	static boolean isBucketable(String time) {
+		return time != null && time.length() >= 13 && time.charAt(4) == '-' && time.charAt(7) == '-'
+				&& time.charAt(10) == ' ';
+	}
+
+	public static boolean isBoolean(String parsedDataType) {
+		return parsedDataType.equalsIgnoreCase("boolean") || parsedDataType.equalsIgnoreCase("yes/no");
+	}
+
+	public static boolean isNumeric(String parsedDataType) {
+		return parsedDataType.equalsIgnoreCase("number") || parsedDataType.equalsIgnoreCase("integer")
+				|| parsedDataType.equalsIgnoreCase("float");
+	}
+
+	public static boolean isWord(String parsedDataType) {
+		return parsedDataType.equalsIgnoreCase("word");
+	}
+
+	static Double getNumber(String value) {
+		if (value == null || value.trim().length() == 0) {
+			return null;
+		}
+		try {
+			return Double.valueOf(value.trim());
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,579 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidandroid.data.controller;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.rapidandroid.data.RapidSmsDBConstants;
+import org.rapidandroid.data.SmsDbHelper;
+import org.rapidsms.java.core.Constants;
+import org.rapidsms.java.core.model.Field;
+import org.rapidsms.java.core.model.Form;
+import org.rapidsms.java.core.stats.DistinctCountSketch;
+import org.rapidsms.java.core.stats.QuantileSketch;
+import org.rapidsms.java.core.stats.TopValuesSketch;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Maintains the rapidandroid_sketch field statistics.<br>
+ * <br>
+ * Every numeric field of every formdata row goes into the QuantileSketch of
+ * its form, field and day, and every word field into a TopValuesSketch,
+ * inside the insert's transaction like the rollups. getStatistics() and
+ * getTopValues() answer a range of days by merging their sketches, so a
+ * median or the most common answers never read the formdata itself.<br>
+ * <br>
+ * The monitor of every incoming message, and of every formdata row, goes
+ * into a DistinctCountSketch of its form (or ALL_MESSAGES) and day the same
+ * way, so how many people reported over any range is a merge of days rather
+ * than a count(distinct) over the messages.<br>
+ * <br>
+ * A sketch is read, added to and written back whole, so writers that insert
+ * many rows at once collect them in a Batch first and write each day once.
+ *
+ */
+public class SketchDataLayer {
+
+	private static final String TAG = "SketchDataLayer";
+
+	private static final String SELECT_SKETCH = "select " + RapidSmsDBConstants.Sketch.SKETCH + " from "
+			+ RapidSmsDBConstants.Sketch.TABLE + " where " + RapidSmsDBConstants.Sketch.FORM + " = ? and "
+			+ RapidSmsDBConstants.Sketch.FIELD + " = ? and " + RapidSmsDBConstants.Sketch.KIND + " = ? and "
+			+ RapidSmsDBConstants.Sketch.DAY + " = ?";
+
+	/**
+	 * Sketches for rows that haven't been written yet. Not thread safe, use
+	 * one per transaction.
+	 */
+	public static class Batch {
+		private final HashMap<String, Pending> mPending = new HashMap<String, Pending>();
+
+		private static class Pending {
+			int formId;
+			String field;
+			String kind;
+			String day;
+			/**
+			 * whichever one kind is
+			 */
+			QuantileSketch quantiles;
+			TopValuesSketch topValues;
+			DistinctCountSketch reporters;
+		}
+
+		/**
+		 * Add the sender of an incoming message to the ALL_MESSAGES
+		 * reporters.
+		 *
+		 * @param time
+		 *            the message's time column
+		 */
+		public void addMessage(String time, long monitor) {
+			if (!RollupDataLayer.isBucketable(time)) {
+				return;
+			}
+			addReporter(RapidSmsDBConstants.Rollup.ALL_MESSAGES, time, monitor);
+		}
+
+		/**
+		 * Add the numeric and word fields of a formdata row, and its sender to
+		 * the form's reporters.
+		 *
+		 * @param time
+		 *            the message's time column
+		 * @param monitor
+		 *            the message's monitor_id
+		 * @param values
+		 *            the ContentValues that were inserted into formdata
+		 */
+		public void addFormData(Form f, String time, long monitor, ContentValues values) {
+			if (!RollupDataLayer.isBucketable(time)) {
+				return;
+			}
+			addReporter(f.getFormId(), time, monitor);
+			Field[] fields = f.getFields();
+			for (int i = 0; i < fields.length; i++) {
+				String type = fields[i].getFieldType().getParsedDataType();
+				String value = values.getAsString(RapidSmsDBConstants.FormData.COLUMN_PREFIX + fields[i].getName());
+				if (RollupDataLayer.isNumeric(type)) {
+					Double number = RollupDataLayer.getNumber(value);
+					if (number != null) {
+						add(f.getFormId(), fields[i].getName(), time, number.doubleValue());
+					}
+				} else if (RollupDataLayer.isWord(type)) {
+					addWord(f.getFormId(), fields[i].getName(), time, value);
+				}
+			}
+		}
+
+		void add(int formId, String field, String time, double value) {
+			getPending(formId, field, RapidSmsDBConstants.Sketch.KIND_QUANTILE, time).quantiles.add(value);
+		}
+
+		void addWord(int formId, String field, String time, String value) {
+			if (value == null || value.length() == 0) {
+				return;
+			}
+			getPending(formId, field, RapidSmsDBConstants.Sketch.KIND_TOP_VALUES, time).topValues.add(value);
+		}
+
+		void addReporter(int formId, String time, long monitor) {
+			getPending(formId, "", RapidSmsDBConstants.Sketch.KIND_REPORTERS, time).reporters.add(monitor);
+		}
+
+		private Pending getPending(int formId, String field, String kind, String time) {
+			String day = RollupDataLayer.getBucket(RapidSmsDBConstants.Rollup.PERIOD_DAY, time);
+			String key = formId + "/" + field + "/" + kind + "/" + day;
+			Pending p = mPending.get(key);
+			if (p == null) {
+				p = new Pending();
+				p.formId = formId;
+				p.field = field;
+				p.kind = kind;
+				p.day = day;
+				if (kind.equals(RapidSmsDBConstants.Sketch.KIND_QUANTILE)) {
+					p.quantiles = new QuantileSketch();
+				} else if (kind.equals(RapidSmsDBConstants.Sketch.KIND_TOP_VALUES)) {
+					p.topValues = new TopValuesSketch();
+				} else {
+					p.reporters = new DistinctCountSketch();
+				}
+				mPending.put(key, p);
+			}
+			return p;
+		}
+
+		/**
+		 * Merge everything added into the stored sketches. Call inside the
+		 * transaction the rows were inserted in.
+		 */
+		public void flush(SQLiteDatabase db) {
+			Iterator<Pending> it = mPending.values().iterator();
+			while (it.hasNext()) {
+				Pending p = it.next();
+				byte[] stored = readSketch(db, p.formId, p.field, p.kind, p.day);
+				byte[] sketch;
+				if (p.quantiles != null) {
+					QuantileSketch storedQuantiles = parseQuantiles(stored);
+					if (storedQuantiles != null) {
+						p.quantiles.merge(storedQuantiles);
+					}
+					sketch = p.quantiles.toBytes();
+				} else if (p.topValues != null) {
+					TopValuesSketch storedValues = parseTopValues(stored);
+					if (storedValues != null) {
+						p.topValues.merge(storedValues);
+					}
+					sketch = p.topValues.toBytes();
+				} else {
+					DistinctCountSketch storedReporters = parseReporters(stored);
+					if (storedReporters != null) {
+						p.reporters.merge(storedReporters);
+					}
+					sketch = p.reporters.toBytes();
+				}
+				ContentValues cv = new ContentValues();
+				cv.put(RapidSmsDBConstants.Sketch.FORM, Integer.valueOf(p.formId));
+				cv.put(RapidSmsDBConstants.Sketch.FIELD, p.field);
+				cv.put(RapidSmsDBConstants.Sketch.KIND, p.kind);
+				cv.put(RapidSmsDBConstants.Sketch.DAY, p.day);
+				cv.put(RapidSmsDBConstants.Sketch.SKETCH, sketch);
+				db.replace(RapidSmsDBConstants.Sketch.TABLE, null, cv);
+			}
+			mPending.clear();
+		}
+	}
+
+	/**
+	 * Add a freshly inserted formdata row to the statistics. Must be called
+	 * inside the insert's transaction.
+	 *
+	 * @param time
+	 *            the message's time column
+	 * @param values
+	 *            the ContentValues that were inserted into formdata
+	 */
+	public static void recordFormData(SQLiteDatabase db, Form f, String time, ContentValues values) {
+		Cursor cr = db.rawQuery("select " + RapidSmsDBConstants.Message.MONITOR + " from "
+				+ RapidSmsDBConstants.Message.TABLE + " where _id = "
+				+ values.getAsInteger(RapidSmsDBConstants.FormData.MESSAGE), null);
+		long monitor = cr.moveToFirst() ? cr.getLong(0) : 0;
+		cr.close();
+		Batch batch = new Batch();
+		batch.addFormData(f, time, monitor, values);
+		batch.flush(db);
+	}
+
+	/**
+	 * Add a freshly inserted message to the reporters. Must be called inside
+	 * the insert's transaction.
+	 *
+	 * @param values
+	 *            the ContentValues that were inserted into the message table
+	 */
+	public static void recordMessage(SQLiteDatabase db, ContentValues values) {
+		Boolean outgoing = values.getAsBoolean(RapidSmsDBConstants.Message.IS_OUTGOING);
+		if (outgoing != null && outgoing.booleanValue()) {
+			// the monitor of an outgoing message is who it went to
+			return;
+		}
+		Batch batch = new Batch();
+		batch.addMessage(values.getAsString(RapidSmsDBConstants.Message.TIME), values
+				.getAsLong(RapidSmsDBConstants.Message.MONITOR).longValue());
+		batch.flush(db);
+	}
+
+	private static byte[] readSketch(SQLiteDatabase db, int formId, String field, String kind, String day) {
+		Cursor cr = db.rawQuery(SELECT_SKETCH, new String[] { String.valueOf(formId), field, kind, day });
+		byte[] sketch = null;
+		if (cr.moveToFirst()) {
+			sketch = cr.getBlob(0);
+		}
+		cr.close();
+		return sketch;
+	}
+
+	private static QuantileSketch parseQuantiles(byte[] bytes) {
+		if (bytes == null) {
+			return null;
+		}
+		try {
+			return QuantileSketch.fromBytes(bytes);
+		} catch (IllegalArgumentException ex) {
+			// a rebuild will bring it back
+			Log.w(TAG, "Unreadable sketch: " + ex.getMessage());
+			return null;
+		}
+	}
+
+	private static DistinctCountSketch parseReporters(byte[] bytes) {
+		if (bytes == null) {
+			return null;
+		}
+		try {
+			return DistinctCountSketch.fromBytes(bytes);
+		} catch (IllegalArgumentException ex) {
+			Log.w(TAG, "Unreadable sketch: " + ex.getMessage());
+			return null;
+		}
+	}
+
+	private static TopValuesSketch parseTopValues(byte[] bytes) {
+		if (bytes == null) {
+			return null;
+		}
+		try {
+			return TopValuesSketch.fromBytes(bytes);
+		} catch (IllegalArgumentException ex) {
+			Log.w(TAG, "Unreadable sketch: " + ex.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Statistics of a numeric field over whole days.
+	 *
+	 * @param formId
+	 * @param field
+	 *            the field name
+	 * @param startDate
+	 *            the first day to include, NULLDATE for no limit
+	 * @param endDate
+	 *            the last day to include, NULLDATE for no limit
+	 * @return the merged sketch, empty if there were no values
+	 */
+	public static QuantileSketch getStatistics(SQLiteDatabase db, int formId, String field, Date startDate,
+			Date endDate) {
+		QuantileSketch merged = new QuantileSketch();
+		Cursor cr = queryDays(db, formId, field, startDate, endDate);
+		while (cr.moveToNext()) {
+			QuantileSketch day = parseQuantiles(cr.getBlob(1));
+			if (day != null) {
+				merged.merge(day);
+			}
+		}
+		cr.close();
+		return merged;
+	}
+
+	/**
+	 * getStatistics() for callers without a database of their own, ie the
+	 * auto replies.
+	 */
+	public static QuantileSketch getStatistics(Context context, int formId, String field, Date startDate,
+			Date endDate) {
+		SmsDbHelper mHelper = new SmsDbHelper(context);
+		try {
+			return getStatistics(mHelper.getReadableDatabase(), formId, field, startDate, endDate);
+		} finally {
+			mHelper.close();
+		}
+	}
+
+	/**
+	 * The most common answers to a word field over whole days.
+	 *
+	 * @param startDate
+	 *            the first day to include, NULLDATE for no limit
+	 * @param endDate
+	 *            the last day to include, NULLDATE for no limit
+	 * @return the merged sketch, empty if there were no answers
+	 */
+	public static TopValuesSketch getTopValues(SQLiteDatabase db, int formId, String field, Date startDate,
+			Date endDate) {
+		TopValuesSketch merged = new TopValuesSketch();
+		Cursor cr = queryDays(db, formId, field, RapidSmsDBConstants.Sketch.KIND_TOP_VALUES, startDate, endDate);
+		while (cr.moveToNext()) {
+			TopValuesSketch day = parseTopValues(cr.getBlob(1));
+			if (day != null) {
+				merged.merge(day);
+			}
+		}
+		cr.close();
+		return merged;
+	}
+
+	/**
+	 * How many monitors reported over whole days.
+	 *
+	 * @param formId
+	 *            or RapidSmsDBConstants.Rollup.ALL_MESSAGES for the senders of
+	 *            any incoming message
+	 * @param startDate
+	 *            the first day to include, NULLDATE for no limit
+	 * @param endDate
+	 *            the last day to include, NULLDATE for no limit
+	 * @return the merged sketch, empty if nobody reported
+	 */
+	public static DistinctCountSketch getReporters(SQLiteDatabase db, int formId, Date startDate, Date endDate) {
+		DistinctCountSketch merged = new DistinctCountSketch();
+		Cursor cr = queryReporterDays(db, formId, startDate, endDate);
+		while (cr.moveToNext()) {
+			DistinctCountSketch day = parseReporterDay(cr);
+			if (day != null) {
+				merged.merge(day);
+			}
+		}
+		cr.close();
+		return merged;
+	}
+
+	/**
+	 * The daily reporter sketches of a form in day order, for callers that
+	 * group days themselves. Read them with parseReporterDay().
+	 *
+	 * @param formId
+	 *            or RapidSmsDBConstants.Rollup.ALL_MESSAGES
+	 * @return a cursor of (day, sketch)
+	 */
+	public static Cursor queryReporterDays(SQLiteDatabase db, int formId, Date startDate, Date endDate) {
+		return queryDays(db, formId, "", RapidSmsDBConstants.Sketch.KIND_REPORTERS, startDate, endDate);
+	}
+
+	/**
+	 * @param cr
+	 *            positioned on a row of queryReporterDays()
+	 * @return the row's sketch, null if it can't be read
+	 */
+	public static DistinctCountSketch parseReporterDay(Cursor cr) {
+		return parseReporters(cr.getBlob(1));
+	}
+
+	/**
+	 * The daily sketches of a numeric field in day order, for callers that
+	 * group days themselves. Read them with parseDay().
+	 *
+	 * @return a cursor of (day, sketch)
+	 */
+	public static Cursor queryDays(SQLiteDatabase db, int formId, String field, Date startDate, Date endDate) {
+		return queryDays(db, formId, field, RapidSmsDBConstants.Sketch.KIND_QUANTILE, startDate, endDate);
+	}
+
+	private static Cursor queryDays(SQLiteDatabase db, int formId, String field, String kind, Date startDate,
+			Date endDate) {
+		SimpleDateFormat dayFormat = new SimpleDateFormat("yyyy-MM-dd 00:00:00");
+		StringBuilder query = new StringBuilder();
+		query.append("select ").append(RapidSmsDBConstants.Sketch.DAY).append(", ");
+		query.append(RapidSmsDBConstants.Sketch.SKETCH).append(" from ").append(RapidSmsDBConstants.Sketch.TABLE);
+		query.append(" where ").append(RapidSmsDBConstants.Sketch.FORM).append(" = ? and ");
+		query.append(RapidSmsDBConstants.Sketch.FIELD).append(" = ? and ");
+		query.append(RapidSmsDBConstants.Sketch.KIND).append(" = ?");
+		ArrayList<String> args = new ArrayList<String>();
+		args.add(String.valueOf(formId));
+		args.add(field);
+		args.add(kind);
+		if (startDate.compareTo(Constants.NULLDATE) != 0) {
+			query.append(" and ").append(RapidSmsDBConstants.Sketch.DAY).append(" >= ?");
+			args.add(dayFormat.format(startDate));
+		}
+		if (endDate.compareTo(Constants.NULLDATE) != 0) {
+			query.append(" and ").append(RapidSmsDBConstants.Sketch.DAY).append(" <= ?");
+			args.add(dayFormat.format(endDate));
+		}
+		query.append(" order by ").append(RapidSmsDBConstants.Sketch.DAY);
+		return db.rawQuery(query.toString(), args.toArray(new String[args.size()]));
+	}
+
+	/**
+	 * @param cr
+	 *            positioned on a row of queryDays()
+	 * @return the row's sketch, null if it can't be read
+	 */
+	public static QuantileSketch parseDay(Cursor cr) {
+		return parseQuantiles(cr.getBlob(1));
+	}
+
+	/**
+	 * Recompute the statistics of one form from its formdata table.
+	 */
+	public static void rebuildSketches(Context context, Form f) {
+		SmsDbHelper mHelper = new SmsDbHelper(context);
+		SQLiteDatabase db = mHelper.getWritableDatabase();
+		db.beginTransaction();
+		try {
+			rebuildSketches(db, f);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			mHelper.close();
+		}
+	}
+
+	/**
+	 * Recompute the statistics of one form on a database the caller holds, ie
+	 * after deleting from its formdata table.
+	 */
+	public static void rebuildSketches(SQLiteDatabase db, Form f) {
+		ArrayList<String> names = new ArrayList<String>();
+		ArrayList<String> types = new ArrayList<String>();
+		Field[] fields = f.getFields();
+		for (int i = 0; i < fields.length; i++) {
+			names.add(fields[i].getName());
+			types.add(fields[i].getFieldType().getParsedDataType());
+		}
+		rebuildFormSketches(db, f.getFormId(), f.getPrefix(), names, types);
+	}
+
+	/**
+	 * Recompute every form's statistics and the reporters of all messages.
+	 * Only touches the db it's given, so it is safe to call from
+	 * SmsDbHelper.onUpgrade.
+	 */
+	public static void rebuildAllSketches(SQLiteDatabase db) {
+		db.delete(RapidSmsDBConstants.Sketch.TABLE, RapidSmsDBConstants.Sketch.FORM + " = "
+				+ RapidSmsDBConstants.Rollup.ALL_MESSAGES, null);
+		Batch messages = new Batch();
+		Cursor messageCursor = db.rawQuery("select " + RapidSmsDBConstants.Message.TIME + ", "
+				+ RapidSmsDBConstants.Message.MONITOR + " from " + RapidSmsDBConstants.Message.TABLE + " where "
+				+ RapidSmsDBConstants.Message.IS_OUTGOING + " = 0", null);
+		while (messageCursor.moveToNext()) {
+			messages.addMessage(messageCursor.getString(0), messageCursor.getLong(1));
+		}
+		messageCursor.close();
+		messages.flush(db);
+
+		Cursor formCursor = db.rawQuery("select _id, prefix from " + RapidSmsDBConstants.Form.TABLE, null);
+		while (formCursor.moveToNext()) {
+			int formId = formCursor.getInt(0);
+			ArrayList<String> names = new ArrayList<String>();
+			ArrayList<String> types = new ArrayList<String>();
+			Cursor fieldCursor = db.rawQuery("select f.name, t.datatype from " + RapidSmsDBConstants.Field.TABLE
+					+ " f join " + RapidSmsDBConstants.FieldType.TABLE + " t on (f.fieldtype_id = t._id)"
+					+ " where f.form_id = " + formId + " order by f.sequence asc", null);
+			while (fieldCursor.moveToNext()) {
+				names.add(fieldCursor.getString(0));
+				types.add(fieldCursor.getString(1));
+			}
+			fieldCursor.close();
+			try {
+				rebuildFormSketches(db, formId, formCursor.getString(1), names, types);
+			} catch (SQLException ex) {
+				// no formdata table for this form yet, nothing to add up
+				Log.w(TAG, "Unable to rebuild sketches for form " + formId + ": " + ex.getMessage());
+			}
+		}
+		formCursor.close();
+	}
+
+	/**
+	 * @param names
+	 *            every field of the form
+	 * @param types
+	 *            their parsed data types, only numeric and word fields are
+	 *            sketched
+	 */
+	private static void rebuildFormSketches(SQLiteDatabase db, int formId, String prefix, ArrayList<String> names,
+			ArrayList<String> types) {
+		db.delete(RapidSmsDBConstants.Sketch.TABLE, RapidSmsDBConstants.Sketch.FORM + " = " + formId, null);
+		ArrayList<String> sketched = new ArrayList<String>();
+		ArrayList<Boolean> numeric = new ArrayList<Boolean>();
+		for (int i = 0; i < names.size(); i++) {
+			if (RollupDataLayer.isNumeric(types.get(i))) {
+				sketched.add(names.get(i));
+				numeric.add(Boolean.TRUE);
+			} else if (RollupDataLayer.isWord(types.get(i))) {
+				sketched.add(names.get(i));
+				numeric.add(Boolean.FALSE);
+			}
+		}
+		String table = RapidSmsDBConstants.FormData.TABLE_PREFIX + prefix.replace("@", "");
+		StringBuilder query = new StringBuilder("select ");
+		query.append(RapidSmsDBConstants.Message.TABLE).append(".").append(RapidSmsDBConstants.Message.TIME);
+		query.append(", ").append(RapidSmsDBConstants.Message.TABLE).append(".");
+		query.append(RapidSmsDBConstants.Message.MONITOR);
+		for (int i = 0; i < sketched.size(); i++) {
+			query.append(", ").append(RapidSmsDBConstants.FormData.COLUMN_PREFIX).append(sketched.get(i));
+		}
+		query.append(" from ").append(table).append(" join ").append(RapidSmsDBConstants.Message.TABLE);
+		query.append(" on (").append(table).append(".message_id = ").append(RapidSmsDBConstants.Message.TABLE);
+		query.append("._id)");
+
+		Batch batch = new Batch();
+		Cursor cr = db.rawQuery(query.toString(), null);
+		while (cr.moveToNext()) {
+			String time = cr.getString(0);
+			if (!RollupDataLayer.isBucketable(time)) {
+				continue;
+			}
+			batch.addReporter(formId, time, cr.getLong(1));
+			for (int i = 0; i < sketched.size(); i++) {
+				if (numeric.get(i).booleanValue()) {
+					Double number = RollupDataLayer.getNumber(cr.getString(i + 2));
+					if (number != null) {
+						batch.add(formId, sketched.get(i), time, number.doubleValue());
+					}
+				} else {
+					batch.addWord(formId, sketched.get(i), time, cr.getString(i + 2));
+				}
+			}
+		}
+		cr.close();
+		batch.flush(db);
+		Log.d(TAG, "Rebuilt sketches for form " + formId);
+	}
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidandroid.data.controller;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.rapidandroid.content.translation.OdkInstanceBatch;
+import org.rapidandroid.content.translation.OpenRosaInstanceWriter;
+import org.rapidandroid.data.RapidSmsDBConstants;
+import org.rapidandroid.data.SmsDbHelper;
+import org.rapidsms.java.core.upload.InstanceSubmitter;
+import org.rapidsms.java.core.upload.SubmissionMetrics;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Drains the finalized ODK instances that haven't been sent yet.<br>
+ * <br>
+ * Pending messages are read BATCH_SIZE at a time off the
+ * (is_finalized, is_sent) index, paginated on _id. The instance files and
+ * submission uris of a batch come from ODK Collect in one query, the instances
+ * are posted over one kept-alive connection, and is_sent is set for every
+ * accepted one in a single transaction. Instances the server refuses stay
+ * pending for the next run.<br>
+ * <br>
+ * Throughput is kept in a SubmissionMetrics shared by every run, and
+ * getBacklog() counts what's still waiting. run() blocks, call it off the UI
+ * thread.
+ *
+ */
+public class SubmissionWorker {
+
+	private static final String TAG = "SubmissionWorker";
+
+	public static final int BATCH_SIZE = 20;
+
+	private static final String PENDING = RapidSmsDBConstants.Message.IS_FINALIZED + " = 1 and "
+			+ RapidSmsDBConstants.Message.IS_SENT + " = 0 and " + RapidSmsDBConstants.Message.FORM_URI
+			+ " is not null";
+
+	private static final InstanceSubmitter submitter = new InstanceSubmitter();
+
+	private final Context mContext;
+	private volatile boolean mCancelled = false;
+
+	public SubmissionWorker(Context context) {
+		mContext = context;
+	}
+
+	/**
+	 * @return totals over every run since the app started
+	 */
+	public static SubmissionMetrics getMetrics() {
+		return submitter.getMetrics();
+	}
+
+	/**
+	 * @param context
+	 * @return finalized instances waiting to be sent
+	 */
+	public static int getBacklog(Context context) {
+		SmsDbHelper mHelper = new SmsDbHelper(context);
+		try {
+			Cursor cr = mHelper.getReadableDatabase().rawQuery("select count(*) from "
+					+ RapidSmsDBConstants.Message.TABLE + " where " + PENDING, null);
+			int backlog = cr.moveToFirst() ? cr.getInt(0) : 0;
+			cr.close();
+			return backlog;
+		} finally {
+			mHelper.close();
+		}
+	}
+
+	/**
+	 * Stop after the batch in progress.
+	 */
+	public void cancel() {
+		mCancelled = true;
+	}
+
+	/**
+	 * Submit every pending instance once.
+	 *
+	 * @return instances the server accepted
+	 */
+	public int run() {
+		SmsDbHelper mHelper = new SmsDbHelper(mContext);
+		SQLiteDatabase db = mHelper.getWritableDatabase();
+		int sent = 0;
+		try {
+			int lastId = 0;
+			while (!mCancelled) {
+				ArrayList<Integer> messageIds = new ArrayList<Integer>(BATCH_SIZE);
+				ArrayList<String> formUris = new ArrayList<String>(BATCH_SIZE);
+				Cursor cr = db.rawQuery("select _id, " + RapidSmsDBConstants.Message.FORM_URI + " from "
+						+ RapidSmsDBConstants.Message.TABLE + " where " + PENDING + " and _id > ? order by _id asc limit "
+						+ BATCH_SIZE, new String[] { String.valueOf(lastId) });
+				while (cr.moveToNext()) {
+					messageIds.add(Integer.valueOf(cr.getInt(0)));
+					formUris.add(cr.getString(1));
+				}
+				cr.close();
+				if (messageIds.size() == 0) {
+					break;
+				}
+				lastId = messageIds.get(messageIds.size() - 1).intValue();
+				sent += submitBatch(db, messageIds, formUris);
+			}
+		} finally {
+			mHelper.close();
+		}
+		Log.i(TAG, "Submitted " + sent + " instances");
+		return sent;
+	}
+
+	private int submitBatch(SQLiteDatabase db, ArrayList<Integer> messageIds, ArrayList<String> formUris) {
+		HashMap<String, String[]> instances = getOdkInstances(formUris);
+
+		// a batch almost always shares one submission uri, but each instance
+		// carries its own
+		HashMap<String, ArrayList<Integer>> byUri = new HashMap<String, ArrayList<Integer>>();
+		for (int i = 0; i < messageIds.size(); i++) {
+			String[] instance = instances.get(formUris.get(i));
+			if (instance == null) {
+				Log.w(TAG, "Message " + messageIds.get(i) + " has no ODK instance " + formUris.get(i));
+				continue;
+			}
+			String uri = instance[1] != null ? instance[1] : OpenRosaInstanceWriter.SUBMISSION_URI;
+			ArrayList<Integer> group = byUri.get(uri);
+			if (group == null) {
+				group = new ArrayList<Integer>();
+				byUri.put(uri, group);
+			}
+			group.add(Integer.valueOf(i));
+		}
+
+		ArrayList<Integer> accepted = new ArrayList<Integer>(messageIds.size());
+		ArrayList<String> submitted = new ArrayList<String>(messageIds.size());
+		for (Iterator<String> it = byUri.keySet().iterator(); it.hasNext();) {
+			String uri = it.next();
+			ArrayList<Integer> group = byUri.get(uri);
+			File[] files = new File[group.size()];
+			for (int i = 0; i < files.length; i++) {
+				files[i] = new File(instances.get(formUris.get(group.get(i).intValue()))[0]);
+			}
+			int[] codes = submitter.submitBatch(uri, files);
+			for (int i = 0; i < codes.length; i++) {
+				int index = group.get(i).intValue();
+				if (InstanceSubmitter.isAccepted(codes[i])) {
+					accepted.add(messageIds.get(index));
+					submitted.add(formUris.get(index));
+				} else {
+					Log.w(TAG, "Message " + messageIds.get(index) + " was refused with " + codes[i]);
+				}
+			}
+		}
+		if (accepted.size() == 0) {
+			return 0;
+		}
+
+		StringBuilder ids = new StringBuilder();
+		for (int i = 0; i < accepted.size(); i++) {
+			ids.append(i > 0 ? "," : "").append(accepted.get(i));
+		}
+		db.beginTransaction();
+		try {
+			db.execSQL("update " + RapidSmsDBConstants.Message.TABLE + " set " + RapidSmsDBConstants.Message.IS_SENT
+					+ " = 1 where _id in (" + ids + ")");
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+
+		// so ODK Collect doesn't offer to send them again, it's only
+		// bookkeeping on their side
+		ContentValues status = new ContentValues();
+		status.put("status", "submitted");
+		try {
+			if (!OdkInstanceBatch.update(mContext.getContentResolver(), submitted, status)) {
+				Log.w(TAG, "Couldn't mark instances submitted in ODK Collect");
+			}
+		} catch (Exception e) {
+			Log.w(TAG, "Couldn't mark instances submitted in ODK Collect: " + e.getMessage());
+		}
+		return accepted.size();
+	}
+
+	/**
+	 * @return instance file path and submission uri by ODK instance id
+	 */
+	private HashMap<String, String[]> getOdkInstances(ArrayList<String> formUris) {
+		HashMap<String, String[]> ret = new HashMap<String, String[]>();
+		StringBuilder ids = new StringBuilder();
+		for (int i = 0; i < formUris.size(); i++) {
+			ids.append(i > 0 ? ",?" : "?");
+		}
+		Cursor cr = mContext.getContentResolver().query(Uri.parse(OpenRosaInstanceWriter.ODK_INSTANCES),
+														new String[] { "_id", "instanceFilePath", "submissionUri" },
+														"_id in (" + ids + ")",
+														formUris.toArray(new String[formUris.size()]), null);
+		if (cr == null) {
+			Log.w(TAG, "ODK Collect isn't installed");
+			return ret;
+		}
+		while (cr.moveToNext()) {
+			ret.put(cr.getString(0), new String[] { cr.getString(1), cr.getString(2) });
+		}
+		cr.close();
+		return ret;
+	}
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidandroid.data.controller;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.rapidandroid.data.RapidSmsDBConstants;
+import org.rapidandroid.data.SmsDbHelper;
+import org.rapidandroid.data.SurveyCreationConstants;
+import org.rapidsms.java.core.model.Form;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Maintains the rapidandroid_tally counters that back the survey auto replies.
+ * <br>
+ * <br>
+ * Every survey question form keeps one row per distinct answer to its first
+ * field holding the number of responses, plus the running sum for rating
+ * questions. The counters are bumped inside the same transaction as the
+ * formdata insert, so the reply only has to read a handful of rows instead of
+ * scanning every answer ever received.
+ *
+ */
+public class TallyDataLayer {
+
+	private static final String TAG = "TallyDataLayer";
+
+	/**
+	 * rapidandroid_form.question_type by form id, 0 for forms that aren't
+	 * survey questions.
+	 */
+	private static HashMap<Integer, Integer> questionTypeCache = new HashMap<Integer, Integer>();
+
+	/**
+	 * Count the answer in a freshly inserted formdata row. Must be called with
+	 * the same database the formdata was inserted with, inside that insert's
+	 * transaction.
+	 *
+	 * @param db
+	 * @param f
+	 * @param values
+	 *            the ContentValues that were inserted into formdata
+	 */
+	public static void recordAnswer(SQLiteDatabase db, Form f, ContentValues values) {
+		int questionType = getQuestionType(db, f.getFormId());
+		if (questionType == 0 || f.getFields().length == 0) {
+			return;
+		}
+
+		String answer = getAnswerKey(values.getAsString(RapidSmsDBConstants.FormData.COLUMN_PREFIX
+				+ f.getFields()[0].getName()));
+		int sum = 0;
+		if (questionType == SurveyCreationConstants.QuestionTypes.RATING) {
+			sum = getRatingValue(answer);
+		}
+
+		db.execSQL("insert or ignore into " + RapidSmsDBConstants.Tally.TABLE + " ("
+				+ RapidSmsDBConstants.Tally.FORM + ", " + RapidSmsDBConstants.Tally.ANSWER + ", "
+				+ RapidSmsDBConstants.Tally.COUNT + ", " + RapidSmsDBConstants.Tally.SUM + ") values (?, ?, 0, 0)",
+					new Object[] { Integer.valueOf(f.getFormId()), answer });
+		db.execSQL("update " + RapidSmsDBConstants.Tally.TABLE + " set " + RapidSmsDBConstants.Tally.COUNT + " = "
+				+ RapidSmsDBConstants.Tally.COUNT + " + 1, " + RapidSmsDBConstants.Tally.SUM + " = "
+				+ RapidSmsDBConstants.Tally.SUM + " + ? where " + RapidSmsDBConstants.Tally.FORM + " = ? and "
+				+ RapidSmsDBConstants.Tally.ANSWER + " = ?",
+					new Object[] { Integer.valueOf(sum), Integer.valueOf(f.getFormId()), answer });
+	}
+
+	/**
+	 * Recompute the tallies of one form from its formdata table. This is the
+	 * rebuild for data that came in before the tallies existed, or if they
+	 * ever drift.
+	 *
+	 * @param context
+	 * @param f
+	 */
+	public static void rebuildTallies(Context context, Form f) {
+		SmsDbHelper mHelper = new SmsDbHelper(context);
+		SQLiteDatabase db = mHelper.getWritableDatabase();
+		db.beginTransaction();
+		try {
+			rebuildTallies(db, f);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			mHelper.close();
+		}
+	}
+
+	/**
+	 * Same as rebuildTallies(Context, Form) on a db the caller already has
+	 * open, for recounting inside the transaction that changed the formdata.
+	 *
+	 * @param db
+	 * @param f
+	 */
+	public static void rebuildTallies(SQLiteDatabase db, Form f) {
+		int questionType = getQuestionType(db, f.getFormId());
+		if (questionType != 0 && f.getFields().length > 0) {
+			rebuildTally(db, f.getFormId(), f.getPrefix(), questionType, f.getFields()[0].getName());
+		}
+	}
+
+	/**
+	 * Recompute the tallies of every survey question form. Only touches the
+	 * db it's given, so it is safe to call from SmsDbHelper.onUpgrade.
+	 *
+	 * @param db
+	 */
+	public static void rebuildAllTallies(SQLiteDatabase db) {
+		Cursor formCursor = db.rawQuery("select _id, prefix, question_type from " + RapidSmsDBConstants.Form.TABLE
+				+ " where question_type is not null", null);
+		while (formCursor.moveToNext()) {
+			int formId = formCursor.getInt(0);
+			Cursor fieldCursor = db.rawQuery("select name from " + RapidSmsDBConstants.Field.TABLE
+					+ " where form_id = " + formId + " order by sequence asc limit 1", null);
+			if (fieldCursor.moveToFirst()) {
+				try {
+					rebuildTally(db, formId, formCursor.getString(1), formCursor.getInt(2), fieldCursor.getString(0));
+				} catch (SQLException ex) {
+					// no formdata table for this form yet, nothing to count
+					Log.w(TAG, "Unable to rebuild tally for form " + formId + ": " + ex.getMessage());
+				}
+			}
+			fieldCursor.close();
+		}
+		formCursor.close();
+	}
+
+	/**
+	 * Goes through getAnswerKey and getRatingValue like recordAnswer does, so
+	 * a rebuild comes out with the same rows the inserts would have left.
+	 */
+	private static void rebuildTally(SQLiteDatabase db, int formId, String prefix, int questionType,
+			String fieldName) {
+		// answer -> {count, sum}
+		HashMap<String, int[]> tallies = new HashMap<String, int[]>();
+		Cursor cr = db.rawQuery("select " + RapidSmsDBConstants.FormData.COLUMN_PREFIX + fieldName + " from "
+				+ RapidSmsDBConstants.FormData.TABLE_PREFIX + prefix.replace("@", ""), null);
+		try {
+			while (cr.moveToNext()) {
+				String answer = getAnswerKey(cr.isNull(0) ? null : cr.getString(0));
+				int[] tally = tallies.get(answer);
+				if (tally == null) {
+					tally = new int[2];
+					tallies.put(answer, tally);
+				}
+				tally[0]++;
+				if (questionType == SurveyCreationConstants.QuestionTypes.RATING) {
+					tally[1] += getRatingValue(answer);
+				}
+			}
+		} finally {
+			cr.close();
+		}
+
+		db.delete(RapidSmsDBConstants.Tally.TABLE, RapidSmsDBConstants.Tally.FORM + " = " + formId, null);
+		ContentValues values = new ContentValues();
+		for (Map.Entry<String, int[]> entry : tallies.entrySet()) {
+			values.put(RapidSmsDBConstants.Tally.FORM, Integer.valueOf(formId));
+			values.put(RapidSmsDBConstants.Tally.ANSWER, entry.getKey());
+			values.put(RapidSmsDBConstants.Tally.COUNT, Integer.valueOf(entry.getValue()[0]));
+			values.put(RapidSmsDBConstants.Tally.SUM, Integer.valueOf(entry.getValue()[1]));
+			db.insert(RapidSmsDBConstants.Tally.TABLE, null, values);
+		}
+		Log.d(TAG, "Rebuilt tally for form " + formId);
+	}
+
+	private static synchronized int getQuestionType(SQLiteDatabase db, int formId) {
+		Integer formInt = Integer.valueOf(formId);
+		if (questionTypeCache.containsKey(formInt)) {
+			return questionTypeCache.get(formInt).intValue();
+		}
+
+		int questionType = 0;
+		Cursor cr = db.rawQuery("select question_type from " + RapidSmsDBConstants.Form.TABLE + " where _id = "
+				+ formId, null);
+		if (cr.moveToFirst() && !cr.isNull(0)) {
+			questionType = cr.getInt(0);
+		}
+		cr.close();
+		questionTypeCache.put(formInt, Integer.valueOf(questionType));
+		return questionType;
+	}
+
+	/**
+	 * Tally rows are keyed on the lowercased, trimmed answer so that "True"
+	 * and "true" land in the same bucket.
+	 *
+	 * @param value
+	 * @return
+	 */
+	public static String getAnswerKey(String value) {
+		if (value == null) {
+			return "";
+		}
+		return value.trim().toLowerCase();
+	}
+
+	/**
+	 * Ratings only count towards the sum when they're on the 0-10 scale.
+	 *
+	 * @param answer
+	 * @return
+	 */
+	public static int getRatingValue(String answer) {
+		try {
+			int rating = Integer.parseInt(answer);
+			if (rating >= 0 && rating <= 10) {
+				return rating;
+			}
+		} catch (NumberFormatException ex) {
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidandroid.data.controller;
+
+import java.io.File;
+import java.util.Date;
+import java.util.UUID;
+import java.util.Vector;
+
+import org.rapidandroid.data.RapidSmsDBConstants;
+import org.rapidandroid.data.SmsDbHelper;
+import org.rapidsms.java.core.model.Message;
+import org.rapidsms.java.core.upload.ChunkedUploader;
+import org.rapidsms.java.core.upload.IUploadSessionStore;
+import org.rapidsms.java.core.upload.UploadSession;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Keeps ChunkedUploader's sessions in rapidandroid_upload_session, so an
+ * upload that dies with the connection or the app resumes from the last
+ * chunk the server acknowledged.<br>
+ * <br>
+ * Holds its database open until close() is called, progress is saved after
+ * every chunk.
+ *
+ */
+public class UploadSessionDataLayer implements IUploadSessionStore {
+
+	private static final String[] COLUMNS = new String[] { RapidSmsDBConstants.UploadSession._ID,
+			RapidSmsDBConstants.UploadSession.TOKEN, RapidSmsDBConstants.UploadSession.PATH,
+			RapidSmsDBConstants.UploadSession.URL, RapidSmsDBConstants.UploadSession.LENGTH,
+			RapidSmsDBConstants.UploadSession.CHUNK_SIZE, RapidSmsDBConstants.UploadSession.ACKED_OFFSET,
+			RapidSmsDBConstants.UploadSession.STATUS, RapidSmsDBConstants.UploadSession.ATTEMPTS };
+
+	private final SmsDbHelper mHelper;
+	private final SQLiteDatabase mDb;
+
+	public UploadSessionDataLayer(Context context) {
+		mHelper = new SmsDbHelper(context);
+		mDb = mHelper.getWritableDatabase();
+	}
+
+	/**
+	 * The pending session uploading this file to this url, or a new one if
+	 * there isn't one or the file has changed since it started.
+	 *
+	 * @param f
+	 * @param url
+	 * @return
+	 */
+	public UploadSession getSession(File f, String url) {
+		Cursor cr = mDb.query(RapidSmsDBConstants.UploadSession.TABLE, COLUMNS,
+								RapidSmsDBConstants.UploadSession.PATH + " = ? and "
+										+ RapidSmsDBConstants.UploadSession.URL + " = ? and "
+										+ RapidSmsDBConstants.UploadSession.STATUS + " = "
+										+ UploadSession.STATUS_PENDING + " and "
+										+ RapidSmsDBConstants.UploadSession.LENGTH + " = " + f.length(),
+								new String[] { f.getPath(), url }, null, null, RapidSmsDBConstants.UploadSession._ID
+										+ " desc", "1");
+		try {
+			if (cr.moveToFirst()) {
+				return readSession(cr);
+			}
+		} finally {
+			cr.close();
+		}
+
+		String now = Message.SQLDateFormatter.format(new Date());
+		String token = UUID.randomUUID().toString();
+		ContentValues cv = new ContentValues();
+		cv.put(RapidSmsDBConstants.UploadSession.TOKEN, token);
+		cv.put(RapidSmsDBConstants.UploadSession.PATH, f.getPath());
+		cv.put(RapidSmsDBConstants.UploadSession.URL, url);
+		cv.put(RapidSmsDBConstants.UploadSession.LENGTH, f.length());
+		cv.put(RapidSmsDBConstants.UploadSession.CHUNK_SIZE, ChunkedUploader.DEFAULT_CHUNK_SIZE);
+		cv.put(RapidSmsDBConstants.UploadSession.CREATED, now);
+		cv.put(RapidSmsDBConstants.UploadSession.UPDATED, now);
+		long id = mDb.insert(RapidSmsDBConstants.UploadSession.TABLE, null, cv);
+		return new UploadSession(id, token, f.getPath(), url, f.length(), ChunkedUploader.DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * @return every session that hasn't completed or failed, oldest first
+	 */
+	public Vector<UploadSession> getPendingSessions() {
+		Vector<UploadSession> ret = new Vector<UploadSession>();
+		Cursor cr = mDb.query(RapidSmsDBConstants.UploadSession.TABLE, COLUMNS,
+								RapidSmsDBConstants.UploadSession.STATUS + " = " + UploadSession.STATUS_PENDING, null,
+								null, null, RapidSmsDBConstants.UploadSession._ID + " asc");
+		while (cr.moveToNext()) {
+			ret.add(readSession(cr));
+		}
+		cr.close();
+		return ret;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * org.rapidsms.java.core.upload.IUploadSessionStore#saveProgress(org.rapidsms
+	 * .java.core.upload.UploadSession)
+	 */
+	public void saveProgress(UploadSession session) {
+		ContentValues cv = new ContentValues();
+		cv.put(RapidSmsDBConstants.UploadSession.ACKED_OFFSET, session.getAckedOffset());
+		cv.put(RapidSmsDBConstants.UploadSession.STATUS, session.getStatus());
+		cv.put(RapidSmsDBConstants.UploadSession.ATTEMPTS, session.getAttempts());
+		cv.put(RapidSmsDBConstants.UploadSession.UPDATED, Message.SQLDateFormatter.format(new Date()));
+		mDb.update(RapidSmsDBConstants.UploadSession.TABLE, cv, RapidSmsDBConstants.UploadSession._ID + " = "
+				+ session.getId(), null);
+	}
+
+	public void close() {
+		mHelper.close();
+	}
+
+	private static UploadSession readSession(Cursor cr) {
+		UploadSession session = new UploadSession(cr.getLong(0), cr.getString(1), cr.getString(2), cr.getString(3),
+													cr.getLong(4), cr.getInt(5));
+		session.setAckedOffset(cr.getLong(6));
+		session.setStatus(cr.getInt(7));
+		session.setAttempts(cr.getInt(8));
+		return session;
+	}
+}
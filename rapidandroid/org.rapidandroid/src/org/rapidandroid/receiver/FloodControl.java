@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidandroid.receiver;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.rapidandroid.ApplicationGlobals;
+
+import android.util.Log;
+
+/**
+ * Per monitor token buckets for the ingestion path.<br>
+ * <br>
+ * Every phone gets its own bucket of ApplicationGlobals.getFloodBurst()
+ * tokens that refills at ApplicationGlobals.getFloodRefillPerHour(). A message
+ * that finds its sender's bucket empty is still saved, but marked deferred so
+ * SmsParseReceiver skips the auto reply and the XForm for it. Since buckets are
+ * per phone, one runaway sender only ever throttles itself.
+ *
+ */
+public class FloodControl {
+
+	private static final String TAG = "FloodControl";
+
+	/**
+	 * Buckets for the most recently heard from phones. A phone that falls out
+	 * just starts over with a full bucket.
+	 */
+	private static final int MAX_BUCKETS = 1024;
+
+	private static class TokenBucket {
+		double tokens;
+		long lastRefill;
+		int throttled;
+
+		TokenBucket(double tokens, long now) {
+			this.tokens = tokens;
+			this.lastRefill = now;
+		}
+	}
+
+	private static final LinkedHashMap<Integer, TokenBucket> buckets = new LinkedHashMap<Integer, TokenBucket>(
+			64, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, TokenBucket> eldest) {
+			return size() > MAX_BUCKETS;
+		}
+	};
+
+	private static int mAcceptedTotal = 0;
+	private static int mThrottledTotal = 0;
+
+	private FloodControl() {
+	}
+
+	/**
+	 * Take a token for a message from this monitor.
+	 *
+	 * @param monitorId
+	 * @param nowMillis
+	 * @return false if the monitor is over its limit and the message should be
+	 *         deferred
+	 */
+	public static synchronized boolean tryAcquire(int monitorId, long nowMillis) {
+		int burst = ApplicationGlobals.getFloodBurst();
+		if (burst <= 0) {
+			// flood control is off
+			mAcceptedTotal++;
+			return true;
+		}
+		double refillPerMilli = ApplicationGlobals.getFloodRefillPerHour() / 3600000.0;
+
+		Integer monitorInt = Integer.valueOf(monitorId);
+		TokenBucket bucket = buckets.get(monitorInt);
+		if (bucket == null) {
+			bucket = new TokenBucket(burst, nowMillis);
+			buckets.put(monitorInt, bucket);
+		} else if (nowMillis > bucket.lastRefill) {
+			bucket.tokens = Math.min(burst, bucket.tokens + (nowMillis - bucket.lastRefill) * refillPerMilli);
+			bucket.lastRefill = nowMillis;
+		}
+
+		if (bucket.tokens >= 1) {
+			bucket.tokens -= 1;
+			mAcceptedTotal++;
+			return true;
+		}
+		bucket.throttled++;
+		mThrottledTotal++;
+		Log.w(TAG, "Monitor " + monitorId + " is over its message limit, deferring (" + bucket.throttled
+				+ " deferred so far)");
+		return false;
+	}
+
+	/**
+	 * @return messages let through since the process started
+	 */
+	public static synchronized int getAcceptedCount() {
+		return mAcceptedTotal;
+	}
+
+	/**
+	 * @return messages deferred since the process started
+	 */
+	public static synchronized int getThrottledCount() {
+		return mThrottledTotal;
+	}
+
+	/**
+	 * @return monitor id -> messages deferred, for every phone that has been
+	 *         throttled
+	 */
+	public static synchronized HashMap<Integer, Integer> getThrottledByMonitor() {
+		HashMap<Integer, Integer> ret = new HashMap<Integer, Integer>();
+		for (Map.Entry<Integer, TokenBucket> entry : buckets.entrySet()) {
+			if (entry.getValue().throttled > 0) {
+				ret.put(entry.getKey(), Integer.valueOf(entry.getValue().throttled));
+			}
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidandroid.receiver;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.rapidandroid.ApplicationGlobals;
+import org.rapidandroid.data.RapidSmsDBConstants;
+import org.rapidsms.java.core.model.Message;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+/**
+ * Dedup stage that runs in SmsReceiver before a message is saved.<br>
+ * <br>
+ * A message is a duplicate when an earlier message with the same fingerprint
+ * (see MessageFingerprint) arrived within the dedup window. Recent
+ * fingerprints are kept in a small LRU keyed on the fingerprint and the window
+ * bucket of the message time, anything that falls out of it is looked up on the
+ * indexed hash column of rapidandroid_message.
+ *
+ */
+public class MessageDeduplicator {
+
+	private static final String TAG = "MessageDeduplicator";
+
+	private static final int RECENT_CAPACITY = 256;
+
+	/**
+	 * "hash:bucket" -> {message id, message time millis}
+	 */
+	private static final LinkedHashMap<String, long[]> recentMessages = new LinkedHashMap<String, long[]>(
+			RECENT_CAPACITY, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+			return size() > RECENT_CAPACITY;
+		}
+	};
+
+	private MessageDeduplicator() {
+	}
+
+	/**
+	 * Find the message that a new message duplicates.
+	 *
+	 * @param context
+	 * @param hash
+	 *            the new message's fingerprint
+	 * @param timeMillis
+	 *            the new message's timestamp
+	 * @return the _id of the original message, or -1 if it's not a duplicate
+	 */
+	public static synchronized int findOriginal(Context context, long hash, long timeMillis) {
+		long window = ApplicationGlobals.getDedupWindowSeconds() * 1000L;
+		if (window <= 0) {
+			return -1;
+		}
+
+		long bucket = timeMillis / window;
+		for (long b = bucket; b >= bucket - 1; b--) {
+			long[] seen = recentMessages.get(hash + ":" + b);
+			if (seen != null && Math.abs(timeMillis - seen[1]) <= window) {
+				return (int) seen[0];
+			}
+		}
+
+		// Not in the LRU, the process may have been restarted since the
+		// original came in.
+		String since = Message.SQLDateFormatter.format(new Date(timeMillis - window));
+		Cursor cr = context.getContentResolver().query(RapidSmsDBConstants.Message.CONTENT_URI,
+														new String[] { RapidSmsDBConstants.Message._ID },
+														RapidSmsDBConstants.Message.HASH + " = ? AND "
+																+ RapidSmsDBConstants.Message.DUPLICATE_OF
+																+ " is null AND " + RapidSmsDBConstants.Message.TIME
+																+ " >= ?",
+														new String[] { String.valueOf(hash), since },
+														RapidSmsDBConstants.Message._ID + " DESC");
+		int original = -1;
+		if (cr.moveToFirst()) {
+			original = cr.getInt(0);
+			remember(hash, timeMillis, original);
+		}
+		cr.close();
+		return original;
+	}
+
+	/**
+	 * Record a message that was saved as an original.
+	 *
+	 * @param hash
+	 * @param timeMillis
+	 * @param messageId
+	 */
+	public static synchronized void remember(long hash, long timeMillis, int messageId) {
+		long window = ApplicationGlobals.getDedupWindowSeconds() * 1000L;
+		if (window <= 0) {
+			return;
+		}
+		recentMessages.put(hash + ":" + (timeMillis / window), new long[] { messageId, timeMillis });
+		Log.d(TAG, "remembering message " + messageId);
+	}
+}
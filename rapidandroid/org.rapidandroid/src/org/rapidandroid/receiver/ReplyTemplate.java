@@ -0,0 +1,119 @@
+package org.rapidandroid.receiver;
+
+import org.rapidandroid.data.SurveyCreationConstants;
+import org.rapidsms.java.core.stats.QuantileSketch;
+
+import android.database.Cursor;
+
+/**
+ * The auto reply for one survey question, compiled once when the form is
+ * loaded into the registry. Rendering only has to fill the percentages in from
+ * the answer tallies, nothing is looked up or parsed per message.
+ *
+ * @see org.rapidandroid.content.translation.ModelTranslator#getReplyTemplate(int)
+ */
+public class ReplyTemplate {
+
+	private static final String REPLY_HEADER = "Thanks for your response! Currently, your community has responded: ";
+
+	private final int mQuestionType;
+
+	/**
+	 * For multiple choice, the text that follows each choice's percentage,
+	 * ie "% Red, ". The last one closes the sentence.
+	 */
+	private final String[] mChoiceSuffixes;
+
+	public ReplyTemplate(int questionType, String[] choices) {
+		mQuestionType = questionType;
+		mChoiceSuffixes = new String[choices.length];
+		for (int i = 0; i < choices.length; i++) {
+			mChoiceSuffixes[i] = "% " + choices[i] + (i == choices.length - 1 ? "." : ", ");
+		}
+	}
+
+	public int getQuestionType() {
+		return mQuestionType;
+	}
+
+	/**
+	 * Build the reply text.
+	 *
+	 * @param tallies
+	 *            rows of (answer, answer_count, answer_sum) for the form, as
+	 *            returned by the tally/[form_id] uri
+	 * @return
+	 */
+	public String render(Cursor tallies) {
+		return render(tallies, null);
+	}
+
+	/**
+	 * Build the reply text, rating replies also give the median.
+	 *
+	 * @param tallies
+	 *            rows of (answer, answer_count, answer_sum) for the form, as
+	 *            returned by the tally/[form_id] uri
+	 * @param statistics
+	 *            the rating field's statistics from SketchDataLayer, or null
+	 * @return
+	 */
+	public String render(Cursor tallies, QuantileSketch statistics) {
+		StringBuilder reply = new StringBuilder(REPLY_HEADER);
+
+		if (mQuestionType == SurveyCreationConstants.QuestionTypes.MULTIPLECHOICE) {
+			if (mChoiceSuffixes.length == 0) {
+				return reply.toString();
+			}
+			int[] tally = new int[mChoiceSuffixes.length];
+			int total = 0;
+			while (tallies.moveToNext()) {
+				int selection;
+				try {
+					selection = Integer.parseInt(tallies.getString(0));
+				} catch (NumberFormatException ex) {
+					continue;
+				}
+				if (selection >= 1 && selection <= tally.length) {
+					tally[selection - 1] += tallies.getInt(1);
+					total += tallies.getInt(1);
+				}
+			}
+			for (int i = 0; i < tally.length; i++) {
+				reply.append(getPercent(tally[i], total)).append(mChoiceSuffixes[i]);
+			}
+		} else if (mQuestionType == SurveyCreationConstants.QuestionTypes.YESNO) {
+			int yesTally = 0;
+			int total = 0;
+			while (tallies.moveToNext()) {
+				if (tallies.getString(0).equals("true")) {
+					yesTally += tallies.getInt(1);
+				}
+				total += tallies.getInt(1);
+			}
+			reply.append(getPercent(yesTally, total)).append("% Yes, ");
+			reply.append(getPercent(total - yesTally, total)).append("% No.");
+		} else if (mQuestionType == SurveyCreationConstants.QuestionTypes.RATING) {
+			int tally = 0;
+			int total = 0;
+			while (tallies.moveToNext()) {
+				tally += tallies.getInt(2);
+				total += tallies.getInt(1);
+			}
+			if (statistics != null && statistics.getCount() > 0) {
+				// the average stays the tallies', which leave out ratings
+				// outside 0-10
+				reply.append("Average Rating ").append(String.format("%.2g", (double) tally / (double) total))
+						.append(".");
+				reply.append(" Median Rating ").append(String.format("%.2g", statistics.getQuantile(0.5))).append(".");
+			} else {
+				reply.append("Average Rating ").append(String.format("%.2g%n", (double) tally / (double) total)).append(".");
+			}
+		}
+		return reply.toString();
+	}
+
+	private static int getPercent(int count, int total) {
+		return (int) Math.floor(100 * (double) count / (double) total);
+	}
+}
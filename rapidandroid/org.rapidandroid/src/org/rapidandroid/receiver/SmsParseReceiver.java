@@ -29,10 +29,14 @@ import org.rapidandroid.content.translation.ParsedDataTranslator;
 import org.rapidandroid.content.translation.XMLTranslator;
 import org.rapidandroid.data.RapidSmsDBConstants;
 import org.rapidandroid.data.SurveyCreationConstants;
+import org.rapidandroid.data.controller.SketchDataLayer;
+import org.rapidsms.java.core.Constants;
 import org.rapidsms.java.core.model.Form;
 import org.rapidsms.java.core.model.Monitor;
 import org.rapidsms.java.core.parser.IParseResult;
+import org.rapidsms.java.core.parser.MessageNormalizer;
 import org.rapidsms.java.core.parser.service.ParsingService;
+import org.rapidsms.java.core.stats.QuantileSketch;
 
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
@@ -67,28 +71,22 @@ public class SmsParseReceiver extends BroadcastReceiver {
 		forms = ModelTranslator.getAllForms();
 		prefixes = new String[forms.length];
 		for (int i = 0; i < forms.length; i++) {
-			prefixes[i] = forms[i].getPrefix();
+			// prefixes go through the same normalization as the messages, so
+			// matching is a plain startsWith
+			prefixes[i] = MessageNormalizer.normalize(forms[i].getPrefix());
+			ModelTranslator.getReplyTemplate(forms[i].getFormId());
 		}
 	}
 
-	private Form determineForm(String message) {
-		for (int i = 0; i < forms.length; i++) {
-			if (forms[i] == null) {
-				Log.i("SmsParseReceiver", "form " + i + " is null");
-			} else {
-				Log.i("SmsParseReceiver", "form " + i + " is " + forms[i].getFormName());
-			}
-		}
-		
+	/**
+	 * @param normalized
+	 *            message text from MessageNormalizer
+	 * @return
+	 */
+	private Form determineForm(String normalized) {
 		int len = prefixes.length;
-		Log.i("SmsParseReceiver", "num prefixes: " + len);
 		for (int i = 0; i < len; i++) {
-			Log.i("SmsParseReceiver", "prefix: " + prefixes[i].toLowerCase());
-			String prefix = prefixes[i];
-			Log.i("SmsParseReceiver", "beginning of message: " + message.toLowerCase().trim().substring(0, prefixes[i].length()));
-			// TODO changed this to be any case.
-			if (message.toLowerCase().trim().startsWith(prefix.toLowerCase() + " ")) {
-				Log.i("SmsParseReceiver", "match! returning form " + i);
+			if (MessageNormalizer.hasPrefix(normalized, prefixes[i])) {
 				return forms[i];
 			}
 		}
@@ -113,16 +111,17 @@ public class SmsParseReceiver extends BroadcastReceiver {
 		Log.i("SmsParseReciever", "Initialized form cache");
 		
 		// TODO Auto-generated method stub
-		String body = intent.getStringExtra("body");
-
-		if (body.startsWith("notifications@dimagi.com /  / ")) {
-			body = body.replace("notifications@dimagi.com /  / ", "");
-			Log.d("SmsParseReceiver", "Debug, snipping out the email address");
+		// SmsReceiver normalized the body when it saved it, gateway prefix
+		// and all
+		String normalized = intent.getStringExtra("normalized");
+		if (normalized == null) {
+			normalized = MessageNormalizer.normalize(intent.getStringExtra("body"));
 		}
 
 		int msgid = intent.getIntExtra("msgid", 0);
+		boolean deferred = intent.getBooleanExtra("deferred", false);
 		Log.i("SmsParseReciever", "msgid " + msgid);
-		Form form = determineForm(body);
+		Form form = determineForm(normalized);
 		Log.i("SmsParseReciever", "form " + form);
 		if (form == null) {			
 			/*if (ApplicationGlobals.doReplyOnFail()) {
@@ -148,153 +147,39 @@ public class SmsParseReceiver extends BroadcastReceiver {
 			//broadcast.putExtra(SmsReplyReceiver.KEY_MESSAGE, reply);
 			//context.sendBroadcast(broadcast);
 			//}
-			Vector<IParseResult> results = ParsingService.ParseMessage(form, body);
+			Vector<IParseResult> results = ParsingService.ParseNormalizedMessage(form, normalized);
 			Log.i("SmsParseReceiver", "made it through parsingservice call");
 			ParsedDataTranslator.InsertFormData(context, form, msgid, results);
 			Log.i("SmsParseReceiver", "made it through insertformdata");
 			
 			
+			if (deferred) {
+				// the sender is flood controlled, the data is kept but it
+				// doesn't get a reply or an XForm
+				Log.i("SmsParseReceiver", "message " + msgid + " is deferred, skipping reply and xform");
+				return;
+			}
+			
 			// Nicole: Code to reply to a received text with well formed prefix
 						ContentResolver contentResolver = context.getContentResolver();
 						
-						Log.i("SmsParseReceiver", "looking for form id " + form.getFormId());
-						//String[] args = {form.getFormName()};
-						Cursor formRow = contentResolver.query(RapidSmsDBConstants.Form.CONTENT_URI, 
-								null,
-								"_id = " + form.getFormId(), 
-								null, 
-								null);
-						
-						if (formRow == null) {
-							Log.i("SmsParseReceiver", "formRow null");
-						} else if (formRow.getCount() == 0) {
-							Log.i("SmsParseReceiver", "formRow nonexistant");
-						}
-						formRow.moveToFirst();
-						
-						Log.i("SmsParseReceiver", "getting question type");
-						int questionType = formRow.getInt(formRow.getColumnIndex("question_type"));
-						
-						Log.i("SmsParseReceiver", "getting description");
-						String description = formRow.getString(formRow.getColumnIndex("description"));
-						
-						Log.i("SmsParseReceiver", "description " + description);
-						// Cut off the "Reply ___" part of the text
-						int endIndex = description.indexOf("Reply");
-						
-						Log.i("SmsParseReceiver", "endIndex " + endIndex);
-						String question = description.substring(0, endIndex);
-						
-						//String reply = "Thank you for answering the question: " + question;
-						String reply = "Thanks for your response! ";
-						reply += "Currently, your community has responded: ";
-								
-						// Now get the currently collected responses.
-						String uriString = RapidSmsDBConstants.FormData.CONTENT_URI_PREFIX
-								+ form.getFormId();
-						Log.i("SmsParseReceiver", "querying for all form data, uri string: " + uriString);
-						Log.i("SmsParseReceiver", "uri string " + RapidSmsDBConstants.Form.CONTENT_URI_STRING);
-						Cursor allFormData = contentResolver.query(Uri.parse(uriString), 
-								null, 
-								null, 
-								null, 
-								null);
-						
-						allFormData.moveToFirst();
-						if (questionType == SurveyCreationConstants.QuestionTypes.MULTIPLECHOICE) {
-							
-							// TODO this code is repeated in three places. Here, XMLTranslator, and QuestionVerifier.
-							// should modularize.
-							
-							// This gets the field names we're choosing between for multiple choice.
-							String[] selects = new String[4];
-							for (int j = 1; j <= 4; j++) {
-								if (description.contains(j + ". ")) {
-									int k = j + 1;
-									if (description.contains(k + ". ")) {
-										selects[j-1] = description.substring(description.indexOf("" + j + ". ") + 3, 
-																			description.indexOf(",  " + k + ". "));
-									} else {
-										selects[j-1] = description.substring(description.indexOf("" + j + ". ") + 3, 
-												description.indexOf(".", description.indexOf("" + j + ". ") +3));
-									}
-								}
-							}
-								
-							
-							int k = 0;
-							while (k < 4 && selects[k] != null) {
-								k++;
-							}
-							Log.i("label",""+ k);
-							String[] labels = new String[k];
-							for (int i = 0; i < k; i++) {
-								
-								labels[i] = selects[i];
-								Log.i("label", labels[i]);
-							}
-							
-							// Count up all the responses
-							int[] tally = new int[k];
-							int total = 0;
-							while (!allFormData.isAfterLast()) {
-								Log.i("SmsParseReceiver", "Iteration of tallying");
-								int selection = allFormData.getInt(2);
-								if (selection <= k) {
-									tally[selection - 1]++;
-									total++;
-								}
-								allFormData.moveToNext();
-							}
-							
-							
-							// Build our reply
-							int i;
-							for (i = 0; i < k - 1; i++) {
-								
-								int percent = (int) Math.floor(100 * (double) tally[i]/ (double) total);
-								reply += percent + "% " + labels[i] + ", ";
-							}
-							int percent = (int) Math.floor(100 * (double) tally[i]/ (double) total);
-							reply += percent + "% " + labels[i] + ".";
-							
-							
-						} else if (questionType == SurveyCreationConstants.QuestionTypes.YESNO) {
-							
-							int yesTally = 0;
-							int noTally = 0;
-							int total = 0;
-							
-							while (!allFormData.isAfterLast()) {
-								if (allFormData.getString(2).toLowerCase().equals("true")) {
-									yesTally++;
-								} else {
-									noTally++;
-								}
-								total++;
-								allFormData.moveToNext();
-							}
-							
-							int yesPercent = (int) Math.floor(100 * (double) yesTally/ (double) total);
-							int noPercent = (int) Math.floor(100 * (double) noTally/ (double) total);
-
-							reply += yesPercent + "% Yes, " + noPercent + "% No.";
-							
-						} else if (questionType == SurveyCreationConstants.QuestionTypes.RATING) {
-							int tally = 0;
-							int total = 0;
-							while (!allFormData.isAfterLast()) {
-								int rating = allFormData.getInt(2);
-								if (rating <= 10 && rating >= 0) {
-									tally += rating;
-								}
-								total++;
-								allFormData.moveToNext();
-							}
-							
-							reply += "Average Rating " + String.format("%.2g%n", (double) tally/ (double) total) + ".";
-							
+						// The template was compiled when the form was loaded, and the
+						// currently collected responses are the running tallies kept in
+						// step with the formdata inserts, so this is one row per answer
+						// rather than per message.
+						ReplyTemplate template = ModelTranslator.getReplyTemplate(form.getFormId());
+						Cursor tallies = contentResolver.query(Uri.parse(RapidSmsDBConstants.Tally.CONTENT_URI_PREFIX
+								+ form.getFormId()), new String[] { RapidSmsDBConstants.Tally.ANSWER,
+								RapidSmsDBConstants.Tally.COUNT, RapidSmsDBConstants.Tally.SUM }, null, null, null);
+						QuantileSketch statistics = null;
+						if (template.getQuestionType() == SurveyCreationConstants.QuestionTypes.RATING) {
+							// a survey question has the one field
+							String field = form.getFields()[0].getName();
+							statistics = SketchDataLayer.getStatistics(context, form.getFormId(), field,
+																		Constants.NULLDATE, Constants.NULLDATE);
 						}
+						String reply = template.render(tallies, statistics);
+						tallies.close();
 						Log.i("SmsParseReceiver", "sending reply text: " + reply);
 						
 						SmsManager smsManager = SmsManager.getDefault();
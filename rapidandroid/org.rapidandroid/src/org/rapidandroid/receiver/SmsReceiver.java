@@ -26,10 +26,13 @@ import java.io.IOException;
 import java.sql.Timestamp;
 import java.util.Date;
 
+import org.rapidandroid.ApplicationGlobals;
 import org.rapidandroid.content.translation.MessageTranslator;
 import org.rapidandroid.data.RapidSmsDBConstants;
 import org.rapidsms.java.core.model.Message;
 import org.rapidsms.java.core.model.Monitor;
+import org.rapidsms.java.core.parser.MessageFingerprint;
+import org.rapidsms.java.core.parser.MessageNormalizer;
 
 import android.content.BroadcastReceiver;
 import android.content.ContentValues;
@@ -81,10 +84,33 @@ public class SmsReceiver extends BroadcastReceiver {
 		ContentValues messageValues = new ContentValues();
 		messageValues.put(RapidSmsDBConstants.Message.MESSAGE, mesg.getMessageBody());
 
+		// Normalize once here, everything downstream reads this text rather
+		// than cleaning up the raw body again.
+		String normalized = MessageNormalizer.normalize(mesg.getMessageBody());
+		messageValues.put(RapidSmsDBConstants.Message.NORMALIZED, normalized);
+
 		Timestamp ts = new Timestamp(mesg.getTimestampMillis());
 
 		Monitor monitor = MessageTranslator.GetMonitorAndInsertIfNew(context, mesg.getOriginatingAddress());
 
+		// Dedup before anything gets saved. Redeliveries and resends are kept
+		// for the record, pointing at the original, but go no further.
+		long hash = MessageFingerprint.hashNormalized(mesg.getOriginatingAddress(), normalized);
+		int originalId = MessageDeduplicator.findOriginal(context, hash, mesg.getTimestampMillis());
+		messageValues.put(RapidSmsDBConstants.Message.HASH, hash);
+		if (originalId != -1) {
+			Log.d("SmsReceiver", "Duplicate of message " + originalId + " from " + mesg.getOriginatingAddress());
+			messageValues.put(RapidSmsDBConstants.Message.DUPLICATE_OF, originalId);
+		}
+
+		// Flood control, a sender over its limit still gets its message saved
+		// but doesn't get to trigger replies and XForms.
+		boolean deferred = false;
+		if (originalId == -1 && !FloodControl.tryAcquire(monitor.getID(), System.currentTimeMillis())) {
+			deferred = true;
+		}
+		messageValues.put(RapidSmsDBConstants.Message.IS_DEFERRED, deferred);
+
 		messageValues.put(RapidSmsDBConstants.Message.MONITOR, monitor.getID());
 		messageValues.put(RapidSmsDBConstants.Message.TIME, Message.SQLDateFormatter.format(ts)); // expensive
 																									// string
@@ -113,11 +139,15 @@ public class SmsReceiver extends BroadcastReceiver {
 
 		}
 
-		if (successfulSave) {
+		if (successfulSave && originalId == -1) {
+			MessageDeduplicator.remember(hash, mesg.getTimestampMillis(),
+											Integer.valueOf(msgUri.getPathSegments().get(1)).intValue());
 			Intent broadcast = new Intent("org.rapidandroid.intents.SMS_SAVED");
 			broadcast.putExtra("from", mesg.getOriginatingAddress());
 			broadcast.putExtra("body", mesg.getMessageBody());
+			broadcast.putExtra("normalized", normalized);
 			broadcast.putExtra("msgid", Integer.valueOf(msgUri.getPathSegments().get(1)));
+			broadcast.putExtra("deferred", deferred);
 			//DeleteSMSFromInbox(context, mesg);
 			context.sendBroadcast(broadcast);
 		}
@@ -230,6 +260,7 @@ private void buildOpenRosaXform(Context context, SmsMessage mesg) {
 			return;
 		}
 
+		ApplicationGlobals.initGlobals(context);
 		SmsMessage msgs[] = getMessagesFromIntent(intent);
 
 		for (int i = 0; i < msgs.length; i++) {
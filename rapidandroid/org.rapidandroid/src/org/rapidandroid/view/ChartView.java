@@ -0,0 +1,656 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidandroid.view;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.rapidandroid.activity.chart.NativeChart;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.os.Build;
+import android.util.AttributeSet;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+/**
+ * Draws a NativeChart straight onto a Canvas, the alternative to handing the
+ * chart to flot in a WebView.<br>
+ * <br>
+ * Lines, bars over time and category histograms are drawn with plain Canvas
+ * calls that hardware acceleration handles, and nothing is allocated per
+ * point. A line with more points in view than there are pixel columns is
+ * drawn a column at a time through its first, lowest, highest and last
+ * point, so a long series costs about as much to draw as the width of the
+ * screen and keeps its spikes.<br>
+ * <br>
+ * Dragging pans along x, double tap zooms in around the tap, pinching zooms
+ * where the platform has it (Android 2.2 on) and a long press zooms back out.
+ * The y axis fits whatever is in view.
+ * 
+ */
+public class ChartView extends View {
+
+	/**
+	 * Told once a chart given to setChart() has been on screen.
+	 */
+	public interface OnChartDrawnListener {
+		void onChartDrawn(ChartView view, int request);
+	}
+
+	/**
+	 * flot's default series colors, so both renderers look alike
+	 */
+	private static final int[] COLORS = new int[] { 0xffedc240, 0xffafd8f8, 0xffcb4b4b, 0xff4da74d, 0xff9440ed };
+	private static final int Y_TICKS = 5;
+	private static final long HOUR = 60 * 60 * 1000L;
+	private static final long DAY = 24 * HOUR;
+	private static final long[] TIME_STEPS = new long[] { HOUR, 2 * HOUR, 3 * HOUR, 6 * HOUR, 12 * HOUR, DAY,
+			2 * DAY, 7 * DAY, 14 * DAY, 30 * DAY, 91 * DAY, 182 * DAY, 365 * DAY };
+
+	private NativeChart mChart;
+	private int mRequest;
+	private boolean mDrawn = true;
+	private OnChartDrawnListener mListener;
+	private SimpleDateFormat mDateFormat;
+	private final Date mTickDate = new Date();
+
+	private double mFullMinX;
+	private double mFullMaxX;
+	private double mMinSpan;
+	private double mViewMinX;
+	private double mViewMaxX;
+	private double mViewMinY;
+	private double mViewMaxY;
+	private double mStepY;
+
+	private final float mDensity;
+	private final Paint mSeriesPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final Paint mGridPaint = new Paint();
+	private final Paint mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final Paint mLegendPaint = new Paint();
+	private final RectF mPlot = new RectF();
+	private final RectF mRect = new RectF();
+
+	private float[] mSegments = new float[1024];
+	private int mSegmentCount;
+	private boolean mHasLast;
+	private float mLastX;
+	private float mLastY;
+
+	private final GestureDetector mGestures;
+	private PinchZoom mPinch;
+
+	public ChartView(Context context) {
+		this(context, null);
+	}
+
+	public ChartView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+		mDensity = context.getResources().getDisplayMetrics().density;
+		mSeriesPaint.setStrokeWidth(2 * mDensity);
+		mGridPaint.setColor(0xffdddddd);
+		mTextPaint.setColor(0xff545454);
+		mTextPaint.setTextSize(11 * context.getResources().getDisplayMetrics().scaledDensity);
+		mLegendPaint.setColor(0xd0ffffff);
+		mGestures = new GestureDetector(context, new Gestures());
+		if (Build.VERSION.SDK_INT >= 8) {
+			mPinch = new PinchZoom(context);
+		}
+	}
+
+	public void setOnChartDrawnListener(OnChartDrawnListener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Shows a newly loaded chart, zoomed all the way out.
+	 * 
+	 * @param request
+	 *            handed back to the OnChartDrawnListener once it's drawn
+	 */
+	public void setChart(int request, NativeChart chart) {
+		mChart = chart;
+		mRequest = request;
+		mDrawn = false;
+		mDateFormat = chart.isTimeAxis() ? new SimpleDateFormat(chart.getTimeFormat()) : null;
+		computeExtents();
+		resetView();
+		invalidate();
+	}
+
+	/**
+	 * Swaps in new data for the chart on display. Keeps the zoom if there is
+	 * one, otherwise the new points come into view.
+	 */
+	public void updateChart(NativeChart chart) {
+		boolean zoomed = isZoomed();
+		double viewMin = mViewMinX;
+		double viewMax = mViewMaxX;
+		mChart = chart;
+		computeExtents();
+		resetView();
+		if (zoomed) {
+			mViewMinX = viewMin;
+			mViewMaxX = viewMax;
+			clampView();
+		}
+		invalidate();
+	}
+
+	private void computeExtents() {
+		if (mChart.isEmpty()) {
+			mFullMinX = 0;
+			mFullMaxX = 1;
+			mMinSpan = 1;
+			return;
+		}
+		double gap = mChart.getMinGap();
+		double pad = 0;
+		NativeChart.Series[] series = mChart.getSeries();
+		for (int i = 0; i < series.length; i++) {
+			if (series[i].getStyle() == NativeChart.Style.BARS) {
+				// bars are centered on their x
+				pad = gap / 2;
+			}
+		}
+		if (mChart.getMaxX() == mChart.getMinX()) {
+			pad = Math.max(pad, mChart.isTimeAxis() ? DAY : 1);
+		}
+		mFullMinX = mChart.getMinX() - pad;
+		mFullMaxX = mChart.getMaxX() + pad;
+		mMinSpan = Math.min(mFullMaxX - mFullMinX, Math.max(gap * 4, (mFullMaxX - mFullMinX) / 10000));
+	}
+
+	private void resetView() {
+		mViewMinX = mFullMinX;
+		mViewMaxX = mFullMaxX;
+	}
+
+	private boolean isZoomed() {
+		return mViewMaxX - mViewMinX < mFullMaxX - mFullMinX;
+	}
+
+	private void clampView() {
+		double span = Math.min(mViewMaxX - mViewMinX, mFullMaxX - mFullMinX);
+		if (mViewMinX < mFullMinX) {
+			mViewMinX = mFullMinX;
+		}
+		mViewMaxX = mViewMinX + span;
+		if (mViewMaxX > mFullMaxX) {
+			mViewMaxX = mFullMaxX;
+			mViewMinX = mViewMaxX - span;
+		}
+	}
+
+	private void zoom(double factor, float focusPx) {
+		double span = mViewMaxX - mViewMinX;
+		double newSpan = Math.max(mMinSpan, Math.min(mFullMaxX - mFullMinX, span * factor));
+		double focus = toX(focusPx);
+		mViewMinX = focus - (focus - mViewMinX) / span * newSpan;
+		mViewMaxX = mViewMinX + newSpan;
+		clampView();
+		invalidate();
+	}
+
+	private void pan(float distancePx) {
+		if (mPlot.width() <= 0) {
+			return;
+		}
+		double dx = distancePx / mPlot.width() * (mViewMaxX - mViewMinX);
+		mViewMinX += dx;
+		mViewMaxX += dx;
+		clampView();
+		invalidate();
+	}
+
+	@Override
+	public boolean onTouchEvent(MotionEvent event) {
+		if (mChart == null || mChart.isEmpty()) {
+			return super.onTouchEvent(event);
+		}
+		if (mPinch != null && mPinch.onTouchEvent(event)) {
+			return true;
+		}
+		return mGestures.onTouchEvent(event) || super.onTouchEvent(event);
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		canvas.drawColor(Color.WHITE);
+		if (mChart == null) {
+			return;
+		}
+		if (!mChart.isEmpty()) {
+			fitY();
+			layoutPlot();
+			drawYAxis(canvas);
+			drawXAxis(canvas);
+
+			canvas.save();
+			canvas.clipRect(mPlot);
+			NativeChart.Series[] series = mChart.getSeries();
+			for (int i = 0; i < series.length; i++) {
+				mSeriesPaint.setColor(COLORS[i % COLORS.length]);
+				if (series[i].getStyle() == NativeChart.Style.BARS) {
+					drawBars(canvas, series[i]);
+				} else {
+					drawLines(canvas, series[i]);
+				}
+			}
+			canvas.restore();
+			if (mChart.showsLegend()) {
+				drawLegend(canvas);
+			}
+		}
+		if (!mDrawn) {
+			mDrawn = true;
+			if (mListener != null) {
+				mListener.onChartDrawn(this, mRequest);
+			}
+		}
+	}
+
+	/**
+	 * Fits the y axis around the points in view, on round numbers.
+	 */
+	private void fitY() {
+		double min = Double.NaN;
+		double max = Double.NaN;
+		boolean bars = false;
+		NativeChart.Series[] series = mChart.getSeries();
+		for (int i = 0; i < series.length; i++) {
+			double[] ys = series[i].getYs();
+			int hi = getLastVisible(series[i]);
+			for (int j = getFirstVisible(series[i]); j <= hi; j++) {
+				if (Double.isNaN(ys[j])) {
+					continue;
+				}
+				if (Double.isNaN(min) || ys[j] < min) {
+					min = ys[j];
+				}
+				if (Double.isNaN(max) || ys[j] > max) {
+					max = ys[j];
+				}
+			}
+			bars |= series[i].getStyle() == NativeChart.Style.BARS;
+		}
+		if (Double.isNaN(min)) {
+			min = 0;
+			max = 1;
+		}
+		if (bars) {
+			min = Math.min(0, min);
+			max = Math.max(0, max);
+		}
+		if (max == min) {
+			max = min + Math.max(1, Math.abs(min));
+		}
+		mStepY = getNiceStep(max - min, Y_TICKS);
+		mViewMinY = Math.floor(min / mStepY) * mStepY;
+		mViewMaxY = Math.ceil(max / mStepY) * mStepY;
+	}
+
+	private void layoutPlot() {
+		float labelWidth = Math.max(mTextPaint.measureText(formatNumber(mViewMinY, mStepY)), mTextPaint
+				.measureText(formatNumber(mViewMaxY, mStepY)));
+		float gap = 6 * mDensity;
+		mPlot.set(gap + labelWidth + gap, gap * 2, getWidth() - gap * 2, getHeight() - mTextPaint.getTextSize()
+				- gap * 2);
+	}
+
+	private void drawYAxis(Canvas canvas) {
+		mTextPaint.setTextAlign(Paint.Align.RIGHT);
+		float baseline = mTextPaint.getTextSize() / 3;
+		for (double v = mViewMinY; v <= mViewMaxY + mStepY / 2; v += mStepY) {
+			float y = toPy(v);
+			canvas.drawLine(mPlot.left, y, mPlot.right, y, mGridPaint);
+			canvas.drawText(formatNumber(v, mStepY), mPlot.left - 6 * mDensity, y + baseline, mTextPaint);
+		}
+	}
+
+	private void drawXAxis(Canvas canvas) {
+		mTextPaint.setTextAlign(Paint.Align.CENTER);
+		float baseline = mPlot.bottom + mTextPaint.getTextSize() + 4 * mDensity;
+		double span = mViewMaxX - mViewMinX;
+		String[] categories = mChart.getCategories();
+		if (categories != null) {
+			float widest = 0;
+			for (int i = 0; i < categories.length; i++) {
+				if (categories[i] != null) {
+					widest = Math.max(widest, mTextPaint.measureText(categories[i]));
+				}
+			}
+			// every nth label, so they don't run into each other
+			int every = Math.max(1, (int) Math.ceil((widest + 8 * mDensity) / (mPlot.width() / span)));
+			for (int i = Math.max(0, (int) Math.ceil(mViewMinX)); i <= mViewMaxX && i < categories.length; i++) {
+				if (i % every == 0 && categories[i] != null) {
+					canvas.drawText(categories[i], toPx(i), baseline, mTextPaint);
+				}
+			}
+		} else if (mDateFormat != null) {
+			mTickDate.setTime((long) mViewMinX);
+			float labelWidth = mTextPaint.measureText(mDateFormat.format(mTickDate)) + 12 * mDensity;
+			double maxTicks = Math.max(1, mPlot.width() / labelWidth);
+			long step = TIME_STEPS[TIME_STEPS.length - 1];
+			for (int i = TIME_STEPS.length - 1; i >= 0 && span / TIME_STEPS[i] <= maxTicks; i--) {
+				step = TIME_STEPS[i];
+			}
+			if (span / step > maxTicks) {
+				step *= (long) Math.ceil(span / step / maxTicks);
+			}
+			// on local midnights and hours, not UTC ones
+			long offset = TimeZone.getDefault().getOffset((long) mViewMinX);
+			long first = (long) Math.ceil((mViewMinX + offset) / step) * step - offset;
+			for (long t = first; t <= mViewMaxX; t += step) {
+				float x = toPx(t);
+				canvas.drawLine(x, mPlot.top, x, mPlot.bottom, mGridPaint);
+				mTickDate.setTime(t);
+				canvas.drawText(mDateFormat.format(mTickDate), x, baseline, mTextPaint);
+			}
+		} else {
+			float labelWidth = mTextPaint.measureText(formatNumber(mViewMaxX, 1)) + 12 * mDensity;
+			double step = getNiceStep(span, (int) Math.max(1, mPlot.width() / labelWidth));
+			for (double v = Math.ceil(mViewMinX / step) * step; v <= mViewMaxX; v += step) {
+				canvas.drawText(formatNumber(v, step), toPx(v), baseline, mTextPaint);
+			}
+		}
+	}
+
+	private void drawLines(Canvas canvas, NativeChart.Series s) {
+		double[] xs = s.getXs();
+		double[] ys = s.getYs();
+		int lo = getFirstVisible(s);
+		int hi = getLastVisible(s);
+		mSegmentCount = 0;
+		mHasLast = false;
+		int columns = (int) mPlot.width();
+		if (hi - lo + 1 > 2 * columns) {
+			// more points than pixels: each pixel column goes through its
+			// first, lowest, highest and last point
+			int column = Integer.MIN_VALUE;
+			boolean inColumn = false;
+			float columnX = 0;
+			float first = 0;
+			float low = 0;
+			float high = 0;
+			float last = 0;
+			for (int i = lo; i <= hi; i++) {
+				if (Double.isNaN(ys[i])) {
+					if (inColumn) {
+						addColumn(columnX, first, low, high, last);
+						inColumn = false;
+					}
+					mHasLast = false;
+					continue;
+				}
+				float px = toPx(xs[i]);
+				float py = toPy(ys[i]);
+				if (!inColumn || (int) px != column) {
+					if (inColumn) {
+						addColumn(columnX, first, low, high, last);
+					}
+					column = (int) px;
+					columnX = px;
+					first = py;
+					low = py;
+					high = py;
+					inColumn = true;
+				}
+				// screen y grows downwards
+				low = Math.max(low, py);
+				high = Math.min(high, py);
+				last = py;
+			}
+			if (inColumn) {
+				addColumn(columnX, first, low, high, last);
+			}
+		} else {
+			for (int i = lo; i <= hi; i++) {
+				if (Double.isNaN(ys[i])) {
+					mHasLast = false;
+				} else {
+					lineTo(toPx(xs[i]), toPy(ys[i]));
+				}
+			}
+		}
+		mSeriesPaint.setStyle(Paint.Style.STROKE);
+		canvas.drawLines(mSegments, 0, mSegmentCount, mSeriesPaint);
+
+		if ((mChart.showsPoints() || s.size() == 1) && hi - lo < columns / 4) {
+			mSeriesPaint.setStyle(Paint.Style.FILL);
+			for (int i = lo; i <= hi; i++) {
+				if (!Double.isNaN(ys[i])) {
+					canvas.drawCircle(toPx(xs[i]), toPy(ys[i]), 3 * mDensity, mSeriesPaint);
+				}
+			}
+		}
+	}
+
+	private void addColumn(float x, float first, float low, float high, float last) {
+		lineTo(x, first);
+		lineTo(x, low);
+		lineTo(x, high);
+		lineTo(x, last);
+	}
+
+	private void lineTo(float x, float y) {
+		if (mHasLast) {
+			if (mSegmentCount + 4 > mSegments.length) {
+				float[] bigger = new float[mSegments.length * 2];
+				System.arraycopy(mSegments, 0, bigger, 0, mSegmentCount);
+				mSegments = bigger;
+			}
+			mSegments[mSegmentCount++] = mLastX;
+			mSegments[mSegmentCount++] = mLastY;
+			mSegments[mSegmentCount++] = x;
+			mSegments[mSegmentCount++] = y;
+		}
+		mLastX = x;
+		mLastY = y;
+		mHasLast = true;
+	}
+
+	private void drawBars(Canvas canvas, NativeChart.Series s) {
+		double[] xs = s.getXs();
+		double[] ys = s.getYs();
+		double halfWidth = mChart.getMinGap() * 0.4;
+		float zero = toPy(0);
+		mSeriesPaint.setStyle(Paint.Style.FILL);
+		int hi = getLastVisible(s);
+		for (int i = getFirstVisible(s); i <= hi; i++) {
+			if (Double.isNaN(ys[i])) {
+				continue;
+			}
+			float y = toPy(ys[i]);
+			mRect.set(toPx(xs[i] - halfWidth), Math.min(y, zero), toPx(xs[i] + halfWidth), Math.max(y, zero));
+			if (mRect.width() < 1) {
+				mRect.right = mRect.left + 1;
+			}
+			canvas.drawRect(mRect, mSeriesPaint);
+		}
+	}
+
+	private void drawLegend(Canvas canvas) {
+		NativeChart.Series[] series = mChart.getSeries();
+		float widest = 0;
+		int rows = 0;
+		for (int i = 0; i < series.length; i++) {
+			if (series[i].getLabel() != null) {
+				widest = Math.max(widest, mTextPaint.measureText(series[i].getLabel()));
+				rows++;
+			}
+		}
+		if (rows == 0) {
+			return;
+		}
+		float pad = 4 * mDensity;
+		float row = mTextPaint.getTextSize() + pad;
+		float swatch = mTextPaint.getTextSize();
+		float left = mPlot.left + pad * 2;
+		float top = mPlot.top + pad * 2;
+		mRect.set(left, top, left + pad * 3 + swatch + widest, top + pad + rows * row);
+		canvas.drawRect(mRect, mLegendPaint);
+		mTextPaint.setTextAlign(Paint.Align.LEFT);
+		mSeriesPaint.setStyle(Paint.Style.FILL);
+		float y = top + pad;
+		for (int i = 0; i < series.length; i++) {
+			if (series[i].getLabel() == null) {
+				continue;
+			}
+			mSeriesPaint.setColor(COLORS[i % COLORS.length]);
+			mRect.set(left + pad, y, left + pad + swatch, y + swatch);
+			canvas.drawRect(mRect, mSeriesPaint);
+			canvas.drawText(series[i].getLabel(), left + pad * 2 + swatch, y + swatch - pad / 2, mTextPaint);
+			y += row;
+		}
+	}
+
+	/**
+	 * @return the index of the last point left of the view, so lines come in
+	 *         from the edge
+	 */
+	private int getFirstVisible(NativeChart.Series s) {
+		return Math.max(0, getLowerBound(s.getXs(), mViewMinX) - 1);
+	}
+
+	/**
+	 * @return the index of the first point right of the view
+	 */
+	private int getLastVisible(NativeChart.Series s) {
+		return Math.min(s.size() - 1, getLowerBound(s.getXs(), mViewMaxX));
+	}
+
+	/**
+	 * @return the first index whose x is at least x, xs.length if there isn't
+	 *         one
+	 */
+	private static int getLowerBound(double[] xs, double x) {
+		int lo = 0;
+		int hi = xs.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (xs[mid] < x) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private float toPx(double x) {
+		return mPlot.left + (float) ((x - mViewMinX) / (mViewMaxX - mViewMinX) * mPlot.width());
+	}
+
+	private float toPy(double y) {
+		return mPlot.bottom - (float) ((y - mViewMinY) / (mViewMaxY - mViewMinY) * mPlot.height());
+	}
+
+	private double toX(float px) {
+		return mViewMinX + (px - mPlot.left) / mPlot.width() * (mViewMaxX - mViewMinX);
+	}
+
+	/**
+	 * @return 1, 2 or 5 times a power of ten, about range / ticks
+	 */
+	private static double getNiceStep(double range, int ticks) {
+		double raw = range / ticks;
+		double magnitude = Math.pow(10, Math.floor(Math.log10(raw)));
+		double residual = raw / magnitude;
+		if (residual > 5) {
+			return 10 * magnitude;
+		} else if (residual > 2) {
+			return 5 * magnitude;
+		} else if (residual > 1) {
+			return 2 * magnitude;
+		}
+		return magnitude;
+	}
+
+	/**
+	 * @return value with as many decimals as step needs
+	 */
+	private static String formatNumber(double value, double step) {
+		if (step >= 1) {
+			return String.valueOf(Math.round(value));
+		}
+		int decimals = (int) Math.ceil(-Math.log10(step));
+		double scale = Math.pow(10, decimals);
+		return String.valueOf(Math.round(value * scale) / scale);
+	}
+
+	private class Gestures extends GestureDetector.SimpleOnGestureListener {
+		@Override
+		public boolean onDown(MotionEvent e) {
+			return true;
+		}
+
+		@Override
+		public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+			pan(distanceX);
+			return true;
+		}
+
+		@Override
+		public boolean onDoubleTap(MotionEvent e) {
+			zoom(0.5, e.getX());
+			return true;
+		}
+
+		@Override
+		public void onLongPress(MotionEvent e) {
+			resetView();
+			invalidate();
+		}
+	}
+
+	/**
+	 * Only created on Android 2.2 and later, older ones don't have
+	 * ScaleGestureDetector.
+	 */
+	private class PinchZoom extends ScaleGestureDetector.SimpleOnScaleGestureListener {
+		private final ScaleGestureDetector mDetector;
+
+		PinchZoom(Context context) {
+			mDetector = new ScaleGestureDetector(context, this);
+		}
+
+		/**
+		 * @return true while a pinch is going on
+		 */
+		boolean onTouchEvent(MotionEvent event) {
+			mDetector.onTouchEvent(event);
+			return mDetector.isInProgress();
+		}
+
+		@Override
+		public boolean onScale(ScaleGestureDetector detector) {
+			zoom(1 / detector.getScaleFactor(), detector.getFocusX());
+			return true;
+		}
+	}
+}
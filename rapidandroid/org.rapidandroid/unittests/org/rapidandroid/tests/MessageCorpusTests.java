@@ -21,27 +21,26 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
-import java.text.ParseException;
-import java.util.Date;
 import java.util.StringTokenizer;
 import java.util.Vector;
 
 import org.rapidandroid.ModelBootstrap;
-import org.rapidandroid.content.translation.MessageTranslator;
 import org.rapidandroid.content.translation.ModelTranslator;
-import org.rapidandroid.content.translation.ParsedDataTranslator;
 import org.rapidandroid.data.RapidSmsDBConstants;
 import org.rapidandroid.data.SmsDbHelper;
+import org.rapidandroid.data.controller.CorpusImporter;
+import org.rapidandroid.data.controller.RollupDataLayer;
+import org.rapidandroid.data.controller.SketchDataLayer;
+import org.rapidsms.java.core.Constants;
+import org.rapidsms.java.core.model.Field;
 import org.rapidsms.java.core.model.Form;
-import org.rapidsms.java.core.model.Message;
-import org.rapidsms.java.core.model.Monitor;
-import org.rapidsms.java.core.parser.IParseResult;
-import org.rapidsms.java.core.parser.service.ParsingService;
+import org.rapidsms.java.core.stats.QuantileSketch;
+import org.rapidsms.java.core.stats.TopValuesSketch;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.telephony.gsm.SmsManager;
 import android.test.AndroidTestCase;
@@ -161,33 +160,6 @@ public class MessageCorpusTests extends AndroidTestCase {
 		return null;
 	}
 
-	/**
-	 * Retains the dates in a given message
-	 * 
-	 * @param phone
-	 * @param date
-	 * @param text
-	 */
-	private void injectMessageDirect(String phone, Date date, String text) {
-		Uri writeMessageUri = RapidSmsDBConstants.Message.CONTENT_URI;
-		Monitor monitor = MessageTranslator.GetMonitorAndInsertIfNew(getContext(), phone);
-
-		ContentValues messageValues = new ContentValues();
-		messageValues.put(RapidSmsDBConstants.Message.MESSAGE, text);
-		messageValues.put(RapidSmsDBConstants.Message.MONITOR, monitor.getID());
-
-		messageValues.put(RapidSmsDBConstants.Message.TIME, Message.SQLDateFormatter.format(date));
-		messageValues.put(RapidSmsDBConstants.Message.RECEIVE_TIME, Message.SQLDateFormatter.format(date));
-		messageValues.put(RapidSmsDBConstants.Message.IS_OUTGOING, false);
-
-		Uri msgUri = null;
-		Form mForm = determineForm(text);
-		msgUri = getContext().getContentResolver().insert(writeMessageUri, messageValues);
-		Vector<IParseResult> results = ParsingService.ParseMessage(mForm, text);
-		ParsedDataTranslator.InsertFormData(getContext(), mForm, Integer.valueOf(msgUri.getPathSegments().get(1))
-																		.intValue(), results);
-	}
-
 	private String loadAssetFile(String filename) {
 		try {
 			InputStream is = getContext().getAssets().open(filename);
@@ -218,31 +190,141 @@ public class MessageCorpusTests extends AndroidTestCase {
 
 	public void testInsertDirect() {
 		Vector<String[]> rawMessages = readRawMessages();
-		int len = rawMessages.size();
 
-		for (int i = 0; i < len; i++) {
-			String[] line = rawMessages.get(i);
-			assertEquals(3, line.length);
+		CorpusImporter importer = new CorpusImporter(getContext());
+		try {
+			assertTrue(importer.run(getContext().getAssets().open("testdata/rawdata.csv"), -1));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		assertEquals(rawMessages.size(), importer.getImported());
+		assertEquals(0, importer.getRejected());
 
-			String datestr = line[0];
+		Cursor cr = getContext().getContentResolver().query(RapidSmsDBConstants.Message.CONTENT_URI, null, null, null,
+															null);
+		assertEquals(cr.getCount(), rawMessages.size());
+	}
 
-			Date dateval = new Date();
-			try {
-				dateval = Message.SQLDateFormatter.parse(datestr);
-			} catch (ParseException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-				assertTrue(false);
+	public void testRollupsMatchMessages() {
+		testInsertDirect();
+		SQLiteDatabase db = mHelper.getReadableDatabase();
+		String[] periods = new String[] { RapidSmsDBConstants.Rollup.PERIOD_HOUR,
+				RapidSmsDBConstants.Rollup.PERIOD_DAY, RapidSmsDBConstants.Rollup.PERIOD_HOUR_OF_DAY };
+		for (int i = 0; i < periods.length; i++) {
+			Cursor cr = db.rawQuery("select sum(value_count) from rapidandroid_rollup where form_id = "
+					+ RapidSmsDBConstants.Rollup.ALL_MESSAGES + " and period = '" + periods[i]
+					+ "' and field = ''", null);
+			cr.moveToFirst();
+			assertEquals(readRawMessages().size(), cr.getInt(0));
+			cr.close();
+		}
+
+		// and a rebuild comes out the same as what the inserts kept
+		Cursor before = db.rawQuery("select count(*), sum(value_count), sum(value_sum) from rapidandroid_rollup",
+									null);
+		before.moveToFirst();
+		RollupDataLayer.rebuildAllRollups(mHelper.getWritableDatabase());
+		Cursor after = db.rawQuery("select count(*), sum(value_count), sum(value_sum) from rapidandroid_rollup",
+									null);
+		after.moveToFirst();
+		assertEquals(before.getInt(0), after.getInt(0));
+		assertEquals(before.getInt(1), after.getInt(1));
+		assertEquals(before.getDouble(2), after.getDouble(2), 0.001);
+		before.close();
+		after.close();
+	}
+
+	public void testSketchesMatchRollups() {
+		testInsertDirect();
+		SQLiteDatabase db = mHelper.getReadableDatabase();
+		for (int i = 0; i < forms.length; i++) {
+			Field[] fields = forms[i].getFields();
+			for (int j = 0; j < fields.length; j++) {
+				if (!RollupDataLayer.isNumeric(fields[j].getFieldType().getParsedDataType())) {
+					continue;
+				}
+				Cursor cr = db.rawQuery("select sum(value_count), sum(value_sum), min(value_min), max(value_max)"
+						+ " from rapidandroid_rollup where form_id = " + forms[i].getFormId() + " and period = '"
+						+ RapidSmsDBConstants.Rollup.PERIOD_DAY + "' and field = '" + fields[j].getName() + "'",
+										null);
+				cr.moveToFirst();
+				QuantileSketch stats = SketchDataLayer.getStatistics(db, forms[i].getFormId(), fields[j].getName(),
+																		Constants.NULLDATE, Constants.NULLDATE);
+				assertEquals(cr.getInt(0), stats.getCount());
+				if (stats.getCount() > 0) {
+					assertEquals(cr.getDouble(1), stats.getSum(), 0.001);
+					assertEquals(cr.getDouble(2), stats.getMin(), 0);
+					assertEquals(cr.getDouble(3), stats.getMax(), 0);
+					assertTrue(stats.getQuantile(0.5) >= stats.getMin());
+					assertTrue(stats.getQuantile(0.5) <= stats.getMax());
+				}
+				cr.close();
+
+				// and a rebuild comes out the same
+				SketchDataLayer.rebuildSketches(mHelper.getWritableDatabase(), forms[i]);
+				QuantileSketch rebuilt = SketchDataLayer.getStatistics(db, forms[i].getFormId(), fields[j]
+						.getName(), Constants.NULLDATE, Constants.NULLDATE);
+				assertEquals(stats.getCount(), rebuilt.getCount());
+				assertEquals(stats.getSum(), rebuilt.getSum(), 0.001);
 			}
-			String sender = line[1];
-			String text = line[2];
+		}
+	}
 
-			injectMessageDirect(sender, dateval, text);
+	public void testTopValuesMatchGroupBy() {
+		testInsertDirect();
+		SQLiteDatabase db = mHelper.getReadableDatabase();
+		for (int i = 0; i < forms.length; i++) {
+			Field[] fields = forms[i].getFields();
+			for (int j = 0; j < fields.length; j++) {
+				if (!RollupDataLayer.isWord(fields[j].getFieldType().getParsedDataType())) {
+					continue;
+				}
+				String column = RapidSmsDBConstants.FormData.COLUMN_PREFIX + fields[j].getName();
+				Cursor cr = db.rawQuery("select " + column + ", count(*) from "
+						+ RapidSmsDBConstants.FormData.TABLE_PREFIX + forms[i].getPrefix().replace("@", "")
+						+ " where " + column + " <> '' group by " + column + " order by count(*) desc, " + column,
+										null);
+				TopValuesSketch sketch = SketchDataLayer.getTopValues(db, forms[i].getFormId(), fields[j].getName(),
+																		Constants.NULLDATE, Constants.NULLDATE);
+				// the corpus has fewer distinct answers than a sketch keeps,
+				// so the counts are exact
+				assertTrue(cr.getCount() < TopValuesSketch.DEFAULT_CAPACITY);
+				TopValuesSketch.Entry[] top = sketch.getTop(cr.getCount());
+				assertEquals(cr.getCount(), top.length);
+				int k = 0;
+				while (cr.moveToNext()) {
+					assertEquals(cr.getString(0), top[k].getValue());
+					assertEquals(cr.getInt(1), top[k].getCount());
+					k++;
+				}
+				cr.close();
+			}
 		}
+	}
 
-		Cursor cr = getContext().getContentResolver().query(RapidSmsDBConstants.Message.CONTENT_URI, null, null, null,
-															null);
-		assertEquals(cr.getCount(), rawMessages.size());
+	public void testReportersMatchCountDistinct() {
+		testInsertDirect();
+		SQLiteDatabase db = mHelper.getReadableDatabase();
+		Cursor cr = db.rawQuery("select count(distinct monitor_id) from rapidandroid_message where is_outgoing = 0",
+								null);
+		cr.moveToFirst();
+		long estimate = SketchDataLayer.getReporters(db, RapidSmsDBConstants.Rollup.ALL_MESSAGES,
+														Constants.NULLDATE, Constants.NULLDATE).getEstimate();
+		assertTrue("estimated " + estimate + " for " + cr.getInt(0), Math.abs(estimate - cr.getInt(0)) <= Math
+				.max(1, cr.getInt(0) / 20));
+		cr.close();
+
+		for (int i = 0; i < forms.length; i++) {
+			String table = RapidSmsDBConstants.FormData.TABLE_PREFIX + forms[i].getPrefix().replace("@", "");
+			cr = db.rawQuery("select count(distinct monitor_id) from " + table
+					+ " join rapidandroid_message on (" + table + ".message_id = rapidandroid_message._id)", null);
+			cr.moveToFirst();
+			estimate = SketchDataLayer.getReporters(db, forms[i].getFormId(), Constants.NULLDATE,
+													Constants.NULLDATE).getEstimate();
+			assertTrue("estimated " + estimate + " for " + cr.getInt(0), Math.abs(estimate - cr.getInt(0)) <= Math
+					.max(1, cr.getInt(0) / 20));
+			cr.close();
+		}
 	}
 
 	// public void testInsertViaSendSMS() {
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidandroid.tests;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.rapidandroid.content.translation.ModelTranslator;
+import org.rapidandroid.content.translation.OpenRosaInstanceWriter;
+import org.rapidsms.java.core.model.Form;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Renders instances without going through the database, the plan comes from
+ * the first bootstrapped form.
+ */
+public class OpenRosaInstanceWriterTests extends AndroidTestCase {
+
+	private String render(String message) throws IOException {
+		Form form = ModelTranslator.getAllForms()[0];
+		OpenRosaInstanceWriter.FormPlan plan = OpenRosaInstanceWriter.getPlan(getContext(), form);
+		OpenRosaInstanceWriter.InstanceRow row = new OpenRosaInstanceWriter.InstanceRow();
+		row.messageId = 42;
+		row.phone = "6176453230";
+		row.time = "2009-01-23 10:00:00";
+		row.receiveTime = "2009-01-23 10:00:00";
+		row.message = message;
+		row.normalized = message;
+		row.values = new String[plan.getColumns().length];
+		StringWriter out = new StringWriter();
+		OpenRosaInstanceWriter.render(plan, row, out);
+		return out.toString();
+	}
+
+	public void testRawTextFollowsMeta() throws IOException {
+		String xml = render("bednets nyc 100 30 80");
+		assertTrue(xml, xml.indexOf("</meta><rawtext>bednets nyc 100 30 80</rawtext>") >= 0);
+	}
+
+	public void testRawTextIsEscaped() throws IOException {
+		String xml = render("bednets a&b <3 100");
+		assertTrue(xml, xml.indexOf("<rawtext>bednets a&amp;b &lt;3 100</rawtext>") >= 0);
+	}
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.chart;
+
+/**
+ * Reduces a line series to a fixed number of points with
+ * Largest-Triangle-Three-Buckets, so a chart never has to plot more points
+ * than it has pixels.<br>
+ * <br>
+ * Points are added one at a time in x order. The first and last points are
+ * always kept, the rest are split into threshold - 2 equal buckets and the
+ * point of each bucket that makes the largest triangle with the point kept
+ * before it and the average of the next bucket is kept. Only the bucket
+ * being decided and the one after it are held, so memory is proportional to
+ * the bucket size, not the series.<br>
+ * <br>
+ * Each kept point also carries the lowest and highest y of its bucket, for
+ * drawing an envelope around the line so spikes the triangles dropped are
+ * still visible.
+ *
+ */
+public class LttbDownsampler {
+
+	private final int mThreshold;
+	private final int mCount;
+	private final boolean mPassThrough;
+	private final double mEvery;
+
+	private int mAdded = 0;
+
+	// the bucket being decided
+	private double[] mBucketX;
+	private double[] mBucketY;
+	private int mBucketSize = 0;
+	private int mBucketIndex = 0;
+
+	// the bucket after it, only its average is needed until it's decided
+	private double[] mNextX;
+	private double[] mNextY;
+	private int mNextSize = 0;
+
+	private double mPrevX;
+	private double mPrevY;
+
+	private final double[] mOutX;
+	private final double[] mOutY;
+	private final double[] mOutMin;
+	private final double[] mOutMax;
+	private int mOutSize = 0;
+
+	/**
+	 * @param threshold
+	 *            how many points to keep, series with this many points or
+	 *            fewer are passed through untouched
+	 * @param count
+	 *            how many points will be added
+	 */
+	public LttbDownsampler(int threshold, int count) {
+		mCount = count;
+		mPassThrough = threshold < 3 || count <= threshold;
+		mThreshold = mPassThrough ? count : threshold;
+		mEvery = mPassThrough ? 1 : (double) (count - 2) / (threshold - 2);
+
+		int bucketCapacity = (int) Math.ceil(mEvery) + 1;
+		mBucketX = new double[bucketCapacity];
+		mBucketY = new double[bucketCapacity];
+		mNextX = new double[bucketCapacity];
+		mNextY = new double[bucketCapacity];
+
+		mOutX = new double[mThreshold];
+		mOutY = new double[mThreshold];
+		mOutMin = new double[mThreshold];
+		mOutMax = new double[mThreshold];
+	}
+
+	/**
+	 * Adds the next point of the series. x must not go down.
+	 */
+	public void add(double x, double y) {
+		if (mAdded >= mCount) {
+			throw new IllegalStateException("More than the " + mCount + " points promised");
+		}
+		int index = mAdded++;
+		if (mPassThrough || index == 0) {
+			keep(x, y, y, y);
+			mPrevX = x;
+			mPrevY = y;
+			return;
+		}
+		if (index == mCount - 1) {
+			// the last point, everything before it can be decided
+			if (mBucketSize > 0) {
+				if (mNextSize > 0) {
+					decide(average(mNextX, mNextSize), average(mNextY, mNextSize));
+					swap();
+				}
+				decide(x, y);
+			}
+			keep(x, y, y, y);
+			return;
+		}
+
+		if (index < getBucketEnd(mBucketIndex)) {
+			mBucketX[mBucketSize] = x;
+			mBucketY[mBucketSize] = y;
+			mBucketSize++;
+		} else if (index < getBucketEnd(mBucketIndex + 1)) {
+			mNextX[mNextSize] = x;
+			mNextY[mNextSize] = y;
+			mNextSize++;
+		} else {
+			// the next bucket is complete, so the current one can be decided
+			decide(average(mNextX, mNextSize), average(mNextY, mNextSize));
+			swap();
+			mNextX[0] = x;
+			mNextY[0] = y;
+			mNextSize = 1;
+		}
+	}
+
+	/**
+	 * @return the index just past the last point of bucket b, the last
+	 *         bucket runs up to the final point
+	 */
+	private int getBucketEnd(int b) {
+		if (b >= mThreshold - 3) {
+			return mCount - 1;
+		}
+		return (int) Math.floor((b + 1) * mEvery) + 1;
+	}
+
+	private static double average(double[] values, int size) {
+		double sum = 0;
+		for (int i = 0; i < size; i++) {
+			sum += values[i];
+		}
+		return sum / size;
+	}
+
+	/**
+	 * Keep the point of the current bucket making the largest triangle with
+	 * the last kept point and (nextX, nextY).
+	 */
+	private void decide(double nextX, double nextY) {
+		int best = 0;
+		double bestArea = -1;
+		double min = mBucketY[0];
+		double max = mBucketY[0];
+		for (int i = 0; i < mBucketSize; i++) {
+			double area = Math.abs((mPrevX - nextX) * (mBucketY[i] - mPrevY) - (mPrevX - mBucketX[i])
+					* (nextY - mPrevY));
+			if (area > bestArea) {
+				bestArea = area;
+				best = i;
+			}
+			min = Math.min(min, mBucketY[i]);
+			max = Math.max(max, mBucketY[i]);
+		}
+		keep(mBucketX[best], mBucketY[best], min, max);
+		mPrevX = mBucketX[best];
+		mPrevY = mBucketY[best];
+	}
+
+	/**
+	 * The next bucket becomes the current one.
+	 */
+	private void swap() {
+		double[] tmp = mBucketX;
+		mBucketX = mNextX;
+		mNextX = tmp;
+		tmp = mBucketY;
+		mBucketY = mNextY;
+		mNextY = tmp;
+		mBucketSize = mNextSize;
+		mNextSize = 0;
+		mBucketIndex++;
+	}
+
+	private void keep(double x, double y, double min, double max) {
+		mOutX[mOutSize] = x;
+		mOutY[mOutSize] = y;
+		mOutMin[mOutSize] = min;
+		mOutMax[mOutSize] = max;
+		mOutSize++;
+	}
+
+	/**
+	 * @return points kept so far, all of them once every promised point has
+	 *         been added
+	 */
+	public int size() {
+		return mOutSize;
+	}
+
+	public double getX(int i) {
+		return mOutX[i];
+	}
+
+	public double getY(int i) {
+		return mOutY[i];
+	}
+
+	/**
+	 * @return the lowest y in the bucket point i was picked from
+	 */
+	public double getMinY(int i) {
+		return mOutMin[i];
+	}
+
+	/**
+	 * @return the highest y in the bucket point i was picked from
+	 */
+	public double getMaxY(int i) {
+		return mOutMax[i];
+	}
+}
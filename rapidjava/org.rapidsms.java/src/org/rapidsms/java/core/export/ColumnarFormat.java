@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.export;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Layout of the columnar formdata export, written by ColumnarWriter and read
+ * back by ColumnarReader.<br>
+ * <br>
+ * A file is a header, a run of blocks, a block index and a trailer:
+ *
+ * <pre>
+ * header:  MAGIC, VERSION, column count (short), then per column its name
+ *          (writeUTF) and TYPE_ byte
+ * block:   row count (varint), then per column a null flag byte, the null
+ *          bitmap if the flag is set, and the column's values
+ * index:   block count (varint), then per block its offset (long), row count
+ *          (varint) and the min and max of its first TYPE_TIME column (long)
+ * trailer: offset of the index (long), MAGIC
+ * </pre>
+ *
+ * Every block stands on its own, so a reader can seek straight to the blocks
+ * of a time range through the index without decoding the rest. Within a block
+ * only non-null rows carry a value:
+ * <ul>
+ * <li>TYPE_INT is a zigzag varint, ids and counts rarely need more than two
+ * bytes</li>
+ * <li>TYPE_FLOAT is a plain 8 byte double</li>
+ * <li>TYPE_BOOL is a bitmap with one bit per row</li>
+ * <li>TYPE_TIME is epoch millis as zigzag varint deltas from the previous
+ * value, so a run of messages a few seconds apart costs two or three bytes
+ * each</li>
+ * <li>TYPE_STRING is a dictionary of the block's distinct values followed by a
+ * varint index per row, so a monitor phone or a repeated answer is stored
+ * once per block</li>
+ * </ul>
+ *
+ */
+public class ColumnarFormat {
+
+	public static final byte[] MAGIC = { 'R', 'C', 'O', 'L' };
+	public static final int VERSION = 1;
+
+	public static final byte TYPE_INT = 1;
+	public static final byte TYPE_FLOAT = 2;
+	public static final byte TYPE_BOOL = 3;
+	public static final byte TYPE_STRING = 4;
+	public static final byte TYPE_TIME = 5;
+
+	/**
+	 * Rows per block unless the writer is told otherwise. Big enough that the
+	 * string dictionaries pay off, small enough that a block decodes in a few
+	 * hundred KB.
+	 */
+	public static final int DEFAULT_BLOCK_ROWS = 4096;
+
+	/**
+	 * Length of the trailer, the index offset and MAGIC.
+	 */
+	static final int TRAILER_LENGTH = 8 + 4;
+
+	private ColumnarFormat() {
+	}
+
+	/**
+	 * @param type
+	 * @return whether type is one of the TYPE_ constants
+	 */
+	public static boolean isValidType(byte type) {
+		return type >= TYPE_INT && type <= TYPE_TIME;
+	}
+
+	static void writeVarLong(DataOutput out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	static long readVarLong(DataInput in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	static void writeVarInt(DataOutput out, int value) throws IOException {
+		writeVarLong(out, value & 0xFFFFFFFFL);
+	}
+
+	static int readVarInt(DataInput in) throws IOException {
+		long value = readVarLong(in);
+		if (value > Integer.MAX_VALUE) {
+			throw new IOException("Varint out of range: " + value);
+		}
+		return (int) value;
+	}
+
+	static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	static int bitmapLength(int rows) {
+		return (rows + 7) / 8;
+	}
+}
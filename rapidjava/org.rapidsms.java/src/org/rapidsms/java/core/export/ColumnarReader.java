@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.export;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+/**
+ * Reads a file written by ColumnarWriter.<br>
+ * <br>
+ * Opening a file only reads its header and block index. Blocks are read and
+ * decoded one at a time with readBlock(), use findBlocks() to get just the
+ * blocks of a time range.
+ *
+ */
+public class ColumnarReader {
+
+	private final RandomAccessFile mFile;
+	private final String[] mNames;
+	private final byte[] mTypes;
+
+	private final long[] mBlockOffsets;
+	private final int[] mBlockRows;
+	private final long[] mBlockMinTimes;
+	private final long[] mBlockMaxTimes;
+	private final long mIndexOffset;
+	private final int mRowCount;
+
+	/**
+	 * One decoded block. Row numbers are relative to the block.
+	 */
+	public static class Block {
+		private final int mRows;
+		private final byte[] mTypes;
+		private final boolean[][] mNulls;
+		private final long[][] mLongs;
+		private final double[][] mDoubles;
+		private final String[][] mStrings;
+
+		private Block(int rows, byte[] types) {
+			mRows = rows;
+			mTypes = types;
+			mNulls = new boolean[types.length][];
+			mLongs = new long[types.length][];
+			mDoubles = new double[types.length][];
+			mStrings = new String[types.length][];
+		}
+
+		public int getRowCount() {
+			return mRows;
+		}
+
+		public boolean isNull(int column, int row) {
+			return mNulls[column][row];
+		}
+
+		public long getLong(int column, int row) {
+			checkType(column, ColumnarFormat.TYPE_INT);
+			return mLongs[column][row];
+		}
+
+		public double getDouble(int column, int row) {
+			checkType(column, ColumnarFormat.TYPE_FLOAT);
+			return mDoubles[column][row];
+		}
+
+		public boolean getBoolean(int column, int row) {
+			checkType(column, ColumnarFormat.TYPE_BOOL);
+			return mLongs[column][row] != 0;
+		}
+
+		/**
+		 * @return epoch millis
+		 */
+		public long getTime(int column, int row) {
+			checkType(column, ColumnarFormat.TYPE_TIME);
+			return mLongs[column][row];
+		}
+
+		/**
+		 * @return the value, null if it's null
+		 */
+		public String getString(int column, int row) {
+			checkType(column, ColumnarFormat.TYPE_STRING);
+			return mStrings[column][row];
+		}
+
+		private void checkType(int column, byte type) {
+			if (mTypes[column] != type) {
+				throw new IllegalArgumentException("Column " + column + " is type " + mTypes[column] + ", not "
+						+ type);
+			}
+		}
+	}
+
+	public ColumnarReader(File file) throws IOException {
+		mFile = new RandomAccessFile(file, "r");
+		try {
+			byte[] magic = new byte[ColumnarFormat.MAGIC.length];
+			mFile.readFully(magic);
+			checkMagic(magic);
+			int version = mFile.readUnsignedByte();
+			if (version != ColumnarFormat.VERSION) {
+				throw new IOException("Unsupported version " + version);
+			}
+			int columns = mFile.readUnsignedShort();
+			mNames = new String[columns];
+			mTypes = new byte[columns];
+			for (int i = 0; i < columns; i++) {
+				mNames[i] = mFile.readUTF();
+				mTypes[i] = mFile.readByte();
+				if (!ColumnarFormat.isValidType(mTypes[i])) {
+					throw new IOException("Unknown type " + mTypes[i] + " for column " + mNames[i]);
+				}
+			}
+
+			long length = mFile.length();
+			if (length < mFile.getFilePointer() + ColumnarFormat.TRAILER_LENGTH) {
+				throw new IOException("Truncated file, no index");
+			}
+			mFile.seek(length - ColumnarFormat.TRAILER_LENGTH);
+			mIndexOffset = mFile.readLong();
+			mFile.readFully(magic);
+			checkMagic(magic);
+
+			mFile.seek(mIndexOffset);
+			int blocks = ColumnarFormat.readVarInt(mFile);
+			mBlockOffsets = new long[blocks];
+			mBlockRows = new int[blocks];
+			mBlockMinTimes = new long[blocks];
+			mBlockMaxTimes = new long[blocks];
+			int rows = 0;
+			for (int i = 0; i < blocks; i++) {
+				mBlockOffsets[i] = mFile.readLong();
+				mBlockRows[i] = ColumnarFormat.readVarInt(mFile);
+				mBlockMinTimes[i] = mFile.readLong();
+				mBlockMaxTimes[i] = mFile.readLong();
+				rows += mBlockRows[i];
+			}
+			mRowCount = rows;
+		} catch (IOException e) {
+			mFile.close();
+			throw e;
+		}
+	}
+
+	public int getColumnCount() {
+		return mNames.length;
+	}
+
+	public String getColumnName(int column) {
+		return mNames[column];
+	}
+
+	/**
+	 * @return a ColumnarFormat.TYPE_
+	 */
+	public byte getColumnType(int column) {
+		return mTypes[column];
+	}
+
+	/**
+	 * @param name
+	 * @return the column's index, -1 if there's no such column
+	 */
+	public int getColumnIndex(String name) {
+		for (int i = 0; i < mNames.length; i++) {
+			if (mNames[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public int getRowCount() {
+		return mRowCount;
+	}
+
+	public int getBlockCount() {
+		return mBlockOffsets.length;
+	}
+
+	public int getBlockRowCount(int block) {
+		return mBlockRows[block];
+	}
+
+	/**
+	 * Blocks holding a value of the first time column anywhere in [from, to).
+	 * A file without a time column, or blocks where it's all null, never
+	 * match.
+	 *
+	 * @param from
+	 *            epoch millis, inclusive
+	 * @param to
+	 *            epoch millis, exclusive
+	 * @return block numbers in file order
+	 */
+	public int[] findBlocks(long from, long to) {
+		ArrayList<Integer> found = new ArrayList<Integer>();
+		for (int i = 0; i < mBlockOffsets.length; i++) {
+			if (mBlockMinTimes[i] < to && mBlockMaxTimes[i] >= from) {
+				found.add(Integer.valueOf(i));
+			}
+		}
+		int[] ret = new int[found.size()];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = found.get(i).intValue();
+		}
+		return ret;
+	}
+
+	/**
+	 * @param block
+	 * @return the decoded block
+	 * @throws IOException
+	 */
+	public Block readBlock(int block) throws IOException {
+		long end = block + 1 < mBlockOffsets.length ? mBlockOffsets[block + 1] : mIndexOffset;
+		byte[] bytes = new byte[(int) (end - mBlockOffsets[block])];
+		mFile.seek(mBlockOffsets[block]);
+		mFile.readFully(bytes);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+
+		int rows = ColumnarFormat.readVarInt(in);
+		if (rows != mBlockRows[block]) {
+			throw new IOException("Block " + block + " has " + rows + " rows, the index says " + mBlockRows[block]);
+		}
+		Block ret = new Block(rows, mTypes);
+		for (int c = 0; c < mTypes.length; c++) {
+			boolean[] nulls = in.readByte() != 0 ? readBitmap(in, rows) : new boolean[rows];
+			ret.mNulls[c] = nulls;
+
+			switch (mTypes[c]) {
+				case ColumnarFormat.TYPE_INT:
+					long[] longs = new long[rows];
+					for (int r = 0; r < rows; r++) {
+						if (!nulls[r]) {
+							longs[r] = ColumnarFormat.unzigzag(ColumnarFormat.readVarLong(in));
+						}
+					}
+					ret.mLongs[c] = longs;
+					break;
+				case ColumnarFormat.TYPE_FLOAT:
+					double[] doubles = new double[rows];
+					for (int r = 0; r < rows; r++) {
+						if (!nulls[r]) {
+							doubles[r] = in.readDouble();
+						}
+					}
+					ret.mDoubles[c] = doubles;
+					break;
+				case ColumnarFormat.TYPE_BOOL:
+					boolean[] bits = readBitmap(in, rows);
+					long[] bools = new long[rows];
+					for (int r = 0; r < rows; r++) {
+						bools[r] = bits[r] ? 1 : 0;
+					}
+					ret.mLongs[c] = bools;
+					break;
+				case ColumnarFormat.TYPE_TIME:
+					long[] times = new long[rows];
+					long previous = 0;
+					for (int r = 0; r < rows; r++) {
+						if (!nulls[r]) {
+							previous += ColumnarFormat.unzigzag(ColumnarFormat.readVarLong(in));
+							times[r] = previous;
+						}
+					}
+					ret.mLongs[c] = times;
+					break;
+				case ColumnarFormat.TYPE_STRING:
+					String[] dictionary = new String[ColumnarFormat.readVarInt(in)];
+					for (int i = 0; i < dictionary.length; i++) {
+						byte[] utf8 = new byte[ColumnarFormat.readVarInt(in)];
+						in.readFully(utf8);
+						dictionary[i] = new String(utf8, "UTF-8");
+					}
+					String[] strings = new String[rows];
+					for (int r = 0; r < rows; r++) {
+						if (!nulls[r]) {
+							int code = ColumnarFormat.readVarInt(in);
+							if (code >= dictionary.length) {
+								throw new IOException("Bad dictionary code " + code + " in block " + block);
+							}
+							strings[r] = dictionary[code];
+						}
+					}
+					ret.mStrings[c] = strings;
+					break;
+			}
+		}
+		return ret;
+	}
+
+	public void close() throws IOException {
+		mFile.close();
+	}
+
+	private static boolean[] readBitmap(DataInputStream in, int rows) throws IOException {
+		byte[] bitmap = new byte[ColumnarFormat.bitmapLength(rows)];
+		in.readFully(bitmap);
+		boolean[] bits = new boolean[rows];
+		for (int r = 0; r < rows; r++) {
+			bits[r] = (bitmap[r >> 3] & (1 << (r & 7))) != 0;
+		}
+		return bits;
+	}
+
+	private static void checkMagic(byte[] magic) throws IOException {
+		for (int i = 0; i < magic.length; i++) {
+			if (magic[i] != ColumnarFormat.MAGIC[i]) {
+				throw new IOException("Not a columnar export");
+			}
+		}
+	}
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.export;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Streams rows into the columnar format described in ColumnarFormat.<br>
+ * <br>
+ * Only the current block is held in memory. Set the values of a row with the
+ * set methods, any column left unset is null, then call endRow(). close()
+ * flushes the last block and writes the index, the file isn't readable
+ * without it.
+ *
+ */
+public class ColumnarWriter {
+
+	private final DataOutputStream mOut;
+	private final byte[] mTypes;
+	private final int mBlockRows;
+	private final int mTimeColumn;
+
+	private final boolean[][] mNulls;
+	private final long[][] mLongs;
+	private final double[][] mDoubles;
+	private final String[][] mStrings;
+
+	private final ByteArrayOutputStream mBlockBuffer = new ByteArrayOutputStream();
+	private final ArrayList<long[]> mIndex = new ArrayList<long[]>();
+
+	private long mOffset = 0;
+	private int mRow = 0;
+	private int mRowCount = 0;
+	private boolean mClosed = false;
+
+	/**
+	 * @param out
+	 *            closed along with the writer
+	 * @param names
+	 * @param types
+	 *            a ColumnarFormat.TYPE_ per column
+	 * @throws IOException
+	 */
+	public ColumnarWriter(OutputStream out, String[] names, byte[] types) throws IOException {
+		this(out, names, types, ColumnarFormat.DEFAULT_BLOCK_ROWS);
+	}
+
+	public ColumnarWriter(OutputStream out, String[] names, byte[] types, int blockRows) throws IOException {
+		if (names.length != types.length) {
+			throw new IllegalArgumentException("Got " + names.length + " names for " + types.length + " types");
+		}
+		if (blockRows < 1) {
+			throw new IllegalArgumentException("Blocks need at least one row");
+		}
+		int timeColumn = -1;
+		for (int i = 0; i < types.length; i++) {
+			if (!ColumnarFormat.isValidType(types[i])) {
+				throw new IllegalArgumentException("Unknown type " + types[i] + " for column " + names[i]);
+			}
+			if (timeColumn == -1 && types[i] == ColumnarFormat.TYPE_TIME) {
+				timeColumn = i;
+			}
+		}
+		mOut = new DataOutputStream(new BufferedOutputStream(out, 16 * 1024));
+		mTypes = types.clone();
+		mBlockRows = blockRows;
+		mTimeColumn = timeColumn;
+
+		int columns = types.length;
+		mNulls = new boolean[columns][];
+		mLongs = new long[columns][];
+		mDoubles = new double[columns][];
+		mStrings = new String[columns][];
+		for (int i = 0; i < columns; i++) {
+			mNulls[i] = new boolean[blockRows];
+			switch (types[i]) {
+				case ColumnarFormat.TYPE_FLOAT:
+					mDoubles[i] = new double[blockRows];
+					break;
+				case ColumnarFormat.TYPE_STRING:
+					mStrings[i] = new String[blockRows];
+					break;
+				default:
+					// ints, booleans (0 or 1) and times
+					mLongs[i] = new long[blockRows];
+					break;
+			}
+		}
+		clearRow();
+
+		mOut.write(ColumnarFormat.MAGIC);
+		mOut.writeByte(ColumnarFormat.VERSION);
+		mOut.writeShort(columns);
+		for (int i = 0; i < columns; i++) {
+			mOut.writeUTF(names[i]);
+			mOut.writeByte(types[i]);
+		}
+		mOffset = mOut.size();
+	}
+
+	public void setNull(int column) {
+		mNulls[column][mRow] = true;
+	}
+
+	public void setLong(int column, long value) {
+		checkType(column, ColumnarFormat.TYPE_INT);
+		mLongs[column][mRow] = value;
+		mNulls[column][mRow] = false;
+	}
+
+	public void setDouble(int column, double value) {
+		checkType(column, ColumnarFormat.TYPE_FLOAT);
+		mDoubles[column][mRow] = value;
+		mNulls[column][mRow] = false;
+	}
+
+	public void setBoolean(int column, boolean value) {
+		checkType(column, ColumnarFormat.TYPE_BOOL);
+		mLongs[column][mRow] = value ? 1 : 0;
+		mNulls[column][mRow] = false;
+	}
+
+	/**
+	 * @param column
+	 * @param millis
+	 *            epoch millis
+	 */
+	public void setTime(int column, long millis) {
+		checkType(column, ColumnarFormat.TYPE_TIME);
+		mLongs[column][mRow] = millis;
+		mNulls[column][mRow] = false;
+	}
+
+	/**
+	 * @param column
+	 * @param value
+	 *            null sets the column null
+	 */
+	public void setString(int column, String value) {
+		checkType(column, ColumnarFormat.TYPE_STRING);
+		mStrings[column][mRow] = value;
+		mNulls[column][mRow] = value == null;
+	}
+
+	/**
+	 * Finish the current row, writing out the block if it's full.
+	 *
+	 * @throws IOException
+	 */
+	public void endRow() throws IOException {
+		if (mClosed) {
+			throw new IllegalStateException("Writer is closed");
+		}
+		mRow++;
+		mRowCount++;
+		if (mRow == mBlockRows) {
+			flushBlock();
+		}
+		clearRow();
+	}
+
+	/**
+	 * @return rows ended so far
+	 */
+	public int getRowCount() {
+		return mRowCount;
+	}
+
+	/**
+	 * Write the last block, the index and the trailer, and close the stream.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (mClosed) {
+			return;
+		}
+		mClosed = true;
+		try {
+			if (mRow > 0) {
+				flushBlock();
+			}
+			long indexOffset = mOffset;
+			ColumnarFormat.writeVarInt(mOut, mIndex.size());
+			for (int i = 0; i < mIndex.size(); i++) {
+				long[] entry = mIndex.get(i);
+				mOut.writeLong(entry[0]);
+				ColumnarFormat.writeVarInt(mOut, (int) entry[1]);
+				mOut.writeLong(entry[2]);
+				mOut.writeLong(entry[3]);
+			}
+			mOut.writeLong(indexOffset);
+			mOut.write(ColumnarFormat.MAGIC);
+		} finally {
+			mOut.close();
+		}
+	}
+
+	private void checkType(int column, byte type) {
+		if (mTypes[column] != type) {
+			throw new IllegalArgumentException("Column " + column + " is type " + mTypes[column] + ", not " + type);
+		}
+	}
+
+	private void clearRow() {
+		for (int i = 0; i < mTypes.length; i++) {
+			mNulls[i][mRow] = true;
+			if (mStrings[i] != null) {
+				mStrings[i][mRow] = null;
+			}
+		}
+	}
+
+	private void flushBlock() throws IOException {
+		int rows = mRow;
+		long minTime = Long.MAX_VALUE;
+		long maxTime = Long.MIN_VALUE;
+
+		mBlockBuffer.reset();
+		DataOutputStream block = new DataOutputStream(mBlockBuffer);
+		ColumnarFormat.writeVarInt(block, rows);
+		for (int c = 0; c < mTypes.length; c++) {
+			boolean[] nulls = mNulls[c];
+			boolean hasNulls = false;
+			for (int r = 0; r < rows && !hasNulls; r++) {
+				hasNulls = nulls[r];
+			}
+			block.writeByte(hasNulls ? 1 : 0);
+			if (hasNulls) {
+				writeBitmap(block, nulls, rows);
+			}
+
+			switch (mTypes[c]) {
+				case ColumnarFormat.TYPE_INT:
+					for (int r = 0; r < rows; r++) {
+						if (!nulls[r]) {
+							ColumnarFormat.writeVarLong(block, ColumnarFormat.zigzag(mLongs[c][r]));
+						}
+					}
+					break;
+				case ColumnarFormat.TYPE_FLOAT:
+					for (int r = 0; r < rows; r++) {
+						if (!nulls[r]) {
+							block.writeDouble(mDoubles[c][r]);
+						}
+					}
+					break;
+				case ColumnarFormat.TYPE_BOOL:
+					boolean[] values = new boolean[rows];
+					for (int r = 0; r < rows; r++) {
+						values[r] = !nulls[r] && mLongs[c][r] != 0;
+					}
+					writeBitmap(block, values, rows);
+					break;
+				case ColumnarFormat.TYPE_TIME:
+					long previous = 0;
+					for (int r = 0; r < rows; r++) {
+						if (!nulls[r]) {
+							long value = mLongs[c][r];
+							ColumnarFormat.writeVarLong(block, ColumnarFormat.zigzag(value - previous));
+							previous = value;
+							if (c == mTimeColumn) {
+								minTime = Math.min(minTime, value);
+								maxTime = Math.max(maxTime, value);
+							}
+						}
+					}
+					break;
+				case ColumnarFormat.TYPE_STRING:
+					writeStrings(block, mStrings[c], nulls, rows);
+					break;
+			}
+		}
+		block.flush();
+
+		mIndex.add(new long[] { mOffset, rows, minTime, maxTime });
+		mBlockBuffer.writeTo(mOut);
+		mOffset += mBlockBuffer.size();
+		mRow = 0;
+	}
+
+	private static void writeBitmap(DataOutputStream out, boolean[] bits, int rows) throws IOException {
+		byte[] bitmap = new byte[ColumnarFormat.bitmapLength(rows)];
+		for (int r = 0; r < rows; r++) {
+			if (bits[r]) {
+				bitmap[r >> 3] |= 1 << (r & 7);
+			}
+		}
+		out.write(bitmap);
+	}
+
+	private static void writeStrings(DataOutputStream out, String[] values, boolean[] nulls, int rows)
+			throws IOException {
+		HashMap<String, Integer> codes = new HashMap<String, Integer>();
+		ArrayList<String> dictionary = new ArrayList<String>();
+		int[] indexes = new int[rows];
+		for (int r = 0; r < rows; r++) {
+			if (nulls[r]) {
+				continue;
+			}
+			Integer code = codes.get(values[r]);
+			if (code == null) {
+				code = Integer.valueOf(dictionary.size());
+				codes.put(values[r], code);
+				dictionary.add(values[r]);
+			}
+			indexes[r] = code.intValue();
+		}
+
+		ColumnarFormat.writeVarInt(out, dictionary.size());
+		for (int i = 0; i < dictionary.size(); i++) {
+			byte[] utf8 = dictionary.get(i).getBytes("UTF-8");
+			ColumnarFormat.writeVarInt(out, utf8.length);
+			out.write(utf8);
+		}
+		for (int r = 0; r < rows; r++) {
+			if (!nulls[r]) {
+				ColumnarFormat.writeVarInt(out, indexes[r]);
+			}
+		}
+	}
+}
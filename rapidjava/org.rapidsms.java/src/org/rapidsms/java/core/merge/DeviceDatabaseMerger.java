@@ -0,0 +1,828 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.merge;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.rapidsms.java.core.model.Message;
+import org.rapidsms.java.core.parser.MessageFingerprint;
+
+/**
+ * Merges the rapidandroid.db files of several phones into one database.<br>
+ * <br>
+ * The output starts as a copy of the first device's database with its data
+ * cleared, so it has the schema, forms and field types the app expects. Each
+ * source's messages are then read in time order and merged through a
+ * KWayMerge, so only one row per source is held at a time:
+ * <ul>
+ * <li>monitors are matched across devices on their normalized phone number
+ * and message monitor ids remapped to the merged ones</li>
+ * <li>formdata_[prefix] tables are matched on form prefix and their columns on
+ * field name. Forms and fields a device has that the output doesn't are added
+ * to it.</li>
+ * <li>a message whose hash was already merged within the duplicate window is
+ * dropped along with its formdata</li>
+ * </ul>
+ * Formdata rows are streamed alongside their source's messages in the same
+ * order and joined as they go, so memory is bounded by the number of devices,
+ * forms and monitors and by the duplicate window, not by the size of the
+ * databases. Tallies are rebuilt at the end and the changelog starts out
+ * empty. The chart rollups and sketches are cleared and left for the app to
+ * rebuild from the merged data the first time it opens the database, see
+ * REBUILD_MARKER_TABLE.<br>
+ * <br>
+ * Needs an SQLite JDBC driver (ie org.xerial sqlite-jdbc) on the classpath.
+ *
+ */
+public class DeviceDatabaseMerger {
+
+	public static final String JDBC_PREFIX = "jdbc:sqlite:";
+
+	/**
+	 * Same as the app's default dedup window
+	 */
+	public static final long DEFAULT_WINDOW_MS = 600 * 1000L;
+
+	private static final int COMMIT_EVERY = 1000;
+
+	/**
+	 * SurveyCreationConstants.QuestionTypes.RATING on the phone
+	 */
+	private static final int QUESTION_TYPE_RATING = 5;
+
+	private static final String MESSAGE_TABLE = "rapidandroid_message";
+	private static final String MONITOR_TABLE = "rapidandroid_monitor";
+
+	/**
+	 * The message cursor's column with the phone of the message's monitor
+	 */
+	private static final String SENDER_PHONE = "monitor_phone";
+	private static final String FORM_TABLE = "rapidandroid_form";
+	private static final String FIELD_TABLE = "rapidandroid_field";
+	private static final String TALLY_TABLE = "rapidandroid_tally";
+	private static final String ROLLUP_TABLE = "rapidandroid_rollup";
+	private static final String SKETCH_TABLE = "rapidandroid_sketch";
+	private static final String CHANGELOG_TABLE = "rapidandroid_changelog";
+	private static final String FORMDATA_PREFIX = "formdata_";
+	private static final String COLUMN_PREFIX = "col_";
+
+	/**
+	 * SmsDbHelper.REBUILD_MARKER_TABLE on the phone, while it's there the app
+	 * rebuilds the rollups and sketches when it opens the database
+	 */
+	public static final String REBUILD_MARKER_TABLE = "rapidandroid_rebuild_pending";
+
+	/**
+	 * Device specific bookkeeping that means nothing in the merged database,
+	 * and aggregates of the first device's data
+	 */
+	private static final String[] CLEARED_TABLES = new String[] { MESSAGE_TABLE, MONITOR_TABLE, TALLY_TABLE,
+			ROLLUP_TABLE, SKETCH_TABLE, "rapidandroid_export_checkpoint", "rapidandroid_export_watermark",
+			"rapidandroid_upload_session" };
+
+	/**
+	 * One row of a source table, values in column order
+	 */
+	private static class Row {
+		final String[] columns;
+		final Object[] values;
+
+		Row(String[] columns, Object[] values) {
+			this.columns = columns;
+			this.values = values;
+		}
+
+		Object get(String column) {
+			for (int i = 0; i < columns.length; i++) {
+				if (columns[i].equalsIgnoreCase(column)) {
+					return values[i];
+				}
+			}
+			return null;
+		}
+
+		long getLong(String column) {
+			Object value = get(column);
+			return value instanceof Number ? ((Number) value).longValue() : Long.parseLong(String.valueOf(value));
+		}
+	}
+
+	/**
+	 * Streams a query's rows
+	 */
+	private static class RowCursor implements Iterator<Row> {
+		private final Statement mStatement;
+		private final ResultSet mResults;
+		private final String[] mColumns;
+		private Row mNext;
+
+		RowCursor(Connection conn, String sql) throws SQLException {
+			mStatement = conn.createStatement();
+			mResults = mStatement.executeQuery(sql);
+			ResultSetMetaData meta = mResults.getMetaData();
+			mColumns = new String[meta.getColumnCount()];
+			for (int i = 0; i < mColumns.length; i++) {
+				mColumns[i] = meta.getColumnName(i + 1);
+			}
+			fetch();
+		}
+
+		private void fetch() throws SQLException {
+			if (mResults.next()) {
+				Object[] values = new Object[mColumns.length];
+				for (int i = 0; i < values.length; i++) {
+					values[i] = mResults.getObject(i + 1);
+				}
+				mNext = new Row(mColumns, values);
+			} else {
+				mNext = null;
+			}
+		}
+
+		Row peek() {
+			return mNext;
+		}
+
+		public boolean hasNext() {
+			return mNext != null;
+		}
+
+		public Row next() {
+			if (mNext == null) {
+				throw new NoSuchElementException();
+			}
+			Row ret = mNext;
+			try {
+				fetch();
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
+			}
+			return ret;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		void close() throws SQLException {
+			mResults.close();
+			mStatement.close();
+		}
+	}
+
+	/**
+	 * A source formdata table, read in its messages' order
+	 */
+	private static class FormCursor {
+		RowCursor rows;
+		String outTable;
+		PreparedStatement insert;
+		String[] columns;
+	}
+
+	private static final Comparator<Row> MESSAGE_ORDER = new Comparator<Row>() {
+		public int compare(Row a, Row b) {
+			int c = String.valueOf(a.get("time")).compareTo(String.valueOf(b.get("time")));
+			if (c != 0) {
+				return c;
+			}
+			long ida = a.getLong("_id");
+			long idb = b.getLong("_id");
+			return ida < idb ? -1 : (ida == idb ? 0 : 1);
+		}
+	};
+
+	private final File mOutput;
+	private final File[] mInputs;
+	private long mWindowMs = DEFAULT_WINDOW_MS;
+
+	private Connection mOut;
+	private final HashMap<String, Long> mMonitorsByPhone = new HashMap<String, Long>();
+	private final HashMap<String, Long> mFormsByPrefix = new HashMap<String, Long>();
+	private int mMerged;
+	private int mDuplicates;
+	private int mFormRows;
+
+	/**
+	 * @param output
+	 *            must not exist yet
+	 * @param inputs
+	 *            device databases, at least one
+	 */
+	public DeviceDatabaseMerger(File output, File[] inputs) {
+		if (inputs.length == 0) {
+			throw new IllegalArgumentException("Nothing to merge");
+		}
+		mOutput = output;
+		mInputs = inputs;
+	}
+
+	/**
+	 * @param windowMs
+	 *            messages with the same hash this close together are
+	 *            duplicates, 0 only drops exact copies
+	 */
+	public void setWindow(long windowMs) {
+		mWindowMs = windowMs;
+	}
+
+	public int getMerged() {
+		return mMerged;
+	}
+
+	public int getDuplicates() {
+		return mDuplicates;
+	}
+
+	public int getFormRows() {
+		return mFormRows;
+	}
+
+	public void merge() throws IOException, SQLException {
+		if (mOutput.exists()) {
+			throw new IOException(mOutput + " already exists");
+		}
+		copyFile(mInputs[0], mOutput);
+
+		Connection[] sources = new Connection[mInputs.length];
+		RowCursor[] messages = new RowCursor[mInputs.length];
+		ArrayList<ArrayList<FormCursor>> forms = new ArrayList<ArrayList<FormCursor>>();
+		ArrayList<HashMap<Long, Long>> monitors = new ArrayList<HashMap<Long, Long>>();
+		mOut = DriverManager.getConnection(JDBC_PREFIX + mOutput.getPath());
+		try {
+			mOut.setAutoCommit(false);
+			clearOutput();
+			String[] outMessageColumns = getColumns(mOut, MESSAGE_TABLE);
+
+			for (int i = 0; i < mInputs.length; i++) {
+				sources[i] = DriverManager.getConnection(JDBC_PREFIX + mInputs[i].getPath());
+				monitors.add(mergeMonitors(sources[i]));
+				forms.add(openForms(sources[i]));
+				// the app doesn't fill in the message's own phone, the sender's
+				// number is on its monitor
+				messages[i] = new RowCursor(sources[i], "select m.*, mo.phone as " + SENDER_PHONE + " from "
+						+ MESSAGE_TABLE + " m left join " + MONITOR_TABLE + " mo on mo._id = m.monitor_id"
+						+ " order by m.time, m._id");
+			}
+			mOut.commit();
+
+			KWayMerge<Row> merge = new KWayMerge<Row>(messages, MESSAGE_ORDER);
+			DuplicateWindow window = new DuplicateWindow(mWindowMs);
+			PreparedStatement lastId = mOut.prepareStatement("select last_insert_rowid()");
+			HashMap<String, PreparedStatement> messageInserts = new HashMap<String, PreparedStatement>();
+			while (merge.hasNext()) {
+				Row message = merge.next();
+				int source = merge.getLastSource();
+				long sourceId = message.getLong("_id");
+
+				long newId = -1;
+				if (window.isDuplicate(getKey(message), getTime(message))) {
+					mDuplicates++;
+				} else {
+					newId = insertMessage(message, monitors.get(source), outMessageColumns, messageInserts, lastId);
+					mMerged++;
+				}
+
+				ArrayList<FormCursor> sourceForms = forms.get(source);
+				for (int i = 0; i < sourceForms.size(); i++) {
+					FormCursor form = sourceForms.get(i);
+					while (form.rows.hasNext() && form.rows.peek().getLong("message_id") == sourceId) {
+						Row row = form.rows.next();
+						if (newId != -1) {
+							insertFormRow(form, row, newId);
+						}
+					}
+				}
+
+				if ((mMerged + mDuplicates) % COMMIT_EVERY == 0) {
+					mOut.commit();
+				}
+			}
+
+			rebuildTallies();
+			if (tableExists(mOut, ROLLUP_TABLE) || tableExists(mOut, SKETCH_TABLE)) {
+				// rebuilding them takes the app's own bucketing and sketches
+				execute(mOut, "create table if not exists " + REBUILD_MARKER_TABLE + " (_id integer primary key)");
+			}
+			if (tableExists(mOut, CHANGELOG_TABLE)) {
+				execute(mOut, "delete from " + CHANGELOG_TABLE);
+			}
+			mOut.commit();
+		} finally {
+			for (int i = 0; i < forms.size(); i++) {
+				for (int j = 0; j < forms.get(i).size(); j++) {
+					forms.get(i).get(j).rows.close();
+				}
+			}
+			for (int i = 0; i < sources.length; i++) {
+				if (messages[i] != null) {
+					messages[i].close();
+				}
+				if (sources[i] != null) {
+					sources[i].close();
+				}
+			}
+			mOut.close();
+		}
+	}
+
+	private void clearOutput() throws SQLException {
+		for (int i = 0; i < CLEARED_TABLES.length; i++) {
+			if (tableExists(mOut, CLEARED_TABLES[i])) {
+				execute(mOut, "delete from " + CLEARED_TABLES[i]);
+			}
+		}
+		RowCursor tables = new RowCursor(mOut, "select name from sqlite_master where type = 'table' and name like '"
+				+ FORMDATA_PREFIX + "%'");
+		ArrayList<String> names = new ArrayList<String>();
+		while (tables.hasNext()) {
+			names.add((String) tables.next().values[0]);
+		}
+		tables.close();
+		for (int i = 0; i < names.size(); i++) {
+			execute(mOut, "delete from \"" + names.get(i) + "\"");
+		}
+
+		RowCursor cr = new RowCursor(mOut, "select _id, prefix from " + FORM_TABLE);
+		while (cr.hasNext()) {
+			Row form = cr.next();
+			mFormsByPrefix.put((String) form.get("prefix"), Long.valueOf(form.getLong("_id")));
+		}
+		cr.close();
+	}
+
+	/**
+	 * Copy a device's monitors into the output, merging those with the same
+	 * normalized phone number.
+	 *
+	 * @return output monitor id by source monitor id
+	 */
+	private HashMap<Long, Long> mergeMonitors(Connection src) throws SQLException {
+		HashMap<Long, Long> ret = new HashMap<Long, Long>();
+		RowCursor cr = new RowCursor(src, "select * from " + MONITOR_TABLE);
+		while (cr.hasNext()) {
+			Row monitor = cr.next();
+			String phone = MessageFingerprint.normalizePhone((String) monitor.get("phone"));
+			Long outId = mMonitorsByPhone.get(phone);
+			if (outId != null) {
+				PreparedStatement update = mOut.prepareStatement("update " + MONITOR_TABLE
+						+ " set incoming_messages = incoming_messages + ? where _id = ?");
+				update.setObject(1, monitor.get("incoming_messages"));
+				update.setLong(2, outId.longValue());
+				update.executeUpdate();
+				update.close();
+			} else {
+				try {
+					outId = Long.valueOf(insertRow(MONITOR_TABLE, monitor));
+				} catch (SQLException e) {
+					// the alias is taken by someone else on another device
+					monitor.values[indexOf(monitor.columns, "alias")] = monitor.get("alias") + "-" + phone;
+					outId = Long.valueOf(insertRow(MONITOR_TABLE, monitor));
+				}
+				mMonitorsByPhone.put(phone, outId);
+			}
+			ret.put(Long.valueOf(monitor.getLong("_id")), outId);
+		}
+		cr.close();
+		return ret;
+	}
+
+	/**
+	 * Make sure the output has each of a device's forms, with a formdata
+	 * column for each of its fields, and open its formdata in message order.
+	 */
+	private ArrayList<FormCursor> openForms(Connection src) throws SQLException {
+		ArrayList<FormCursor> ret = new ArrayList<FormCursor>();
+		ArrayList<Row> srcForms = new ArrayList<Row>();
+		RowCursor cr = new RowCursor(src, "select * from " + FORM_TABLE);
+		while (cr.hasNext()) {
+			srcForms.add(cr.next());
+		}
+		cr.close();
+
+		for (int i = 0; i < srcForms.size(); i++) {
+			Row form = srcForms.get(i);
+			String prefix = (String) form.get("prefix");
+			String table = FORMDATA_PREFIX + prefix.replace("@", "");
+			if (!tableExists(src, table)) {
+				continue;
+			}
+			long srcFormId = form.getLong("_id");
+			Long outFormId = mFormsByPrefix.get(prefix);
+			if (outFormId == null) {
+				outFormId = Long.valueOf(addForm(src, form, srcFormId, table));
+				mFormsByPrefix.put(prefix, outFormId);
+			}
+			alignFields(src, srcFormId, outFormId.longValue(), table);
+
+			FormCursor fc = new FormCursor();
+			fc.outTable = table;
+			fc.rows = new RowCursor(src, "select f.* from \"" + table + "\" f join " + MESSAGE_TABLE
+					+ " m on f.message_id = m._id order by m.time, m._id, f._id");
+			ret.add(fc);
+		}
+		return ret;
+	}
+
+	private long addForm(Connection src, Row form, long srcFormId, String table) throws SQLException {
+		long id;
+		try {
+			id = insertRow(FORM_TABLE, form);
+		} catch (SQLException e) {
+			// another form already has this name
+			form.values[indexOf(form.columns, "formname")] = form.get("formname") + " (" + form.get("prefix") + ")";
+			id = insertRow(FORM_TABLE, form);
+		}
+
+		ArrayList<Row> fields = new ArrayList<Row>();
+		RowCursor cr = new RowCursor(src, "select * from " + FIELD_TABLE + " where form_id = " + srcFormId);
+		while (cr.hasNext()) {
+			fields.add(cr.next());
+		}
+		cr.close();
+		for (int i = 0; i < fields.size(); i++) {
+			Row field = fields.get(i);
+			field.values[indexOf(field.columns, "form_id")] = Long.valueOf(id);
+			insertRow(FIELD_TABLE, field);
+		}
+
+		// the table as the device created it, and its changelog triggers if
+		// the output keeps a changelog
+		String types = tableExists(mOut, CHANGELOG_TABLE) ? "'table', 'index', 'trigger'" : "'table', 'index'";
+		cr = new RowCursor(src, "select sql from sqlite_master where tbl_name = '" + table + "' and type in ("
+				+ types + ") and sql is not null order by case type when 'table' then 0 else 1 end");
+		while (cr.hasNext()) {
+			execute(mOut, (String) cr.next().values[0]);
+		}
+		cr.close();
+		return id;
+	}
+
+	/**
+	 * Add the fields a device has for a form that the output doesn't, matched
+	 * on name, along with their formdata columns.
+	 */
+	private void alignFields(Connection src, long srcFormId, long outFormId, String table) throws SQLException {
+		String[] outColumns = getColumns(mOut, table);
+		RowCursor cr = new RowCursor(src, "select * from " + FIELD_TABLE + " where form_id = " + srcFormId
+				+ " order by sequence");
+		while (cr.hasNext()) {
+			Row field = cr.next();
+			String column = COLUMN_PREFIX + field.get("name");
+			if (indexOf(outColumns, column) != -1) {
+				continue;
+			}
+			String type = "text";
+			RowCursor info = new RowCursor(src, "pragma table_info(\"" + table + "\")");
+			while (info.hasNext()) {
+				Row col = info.next();
+				if (column.equals(col.get("name"))) {
+					type = (String) col.get("type");
+				}
+			}
+			info.close();
+			execute(mOut, "alter table \"" + table + "\" add column \"" + column + "\" " + type);
+
+			RowCursor max = new RowCursor(mOut, "select ifnull(max(sequence), 0) + 1 from " + FIELD_TABLE
+					+ " where form_id = " + outFormId);
+			field.values[indexOf(field.columns, "sequence")] = max.next().values[0];
+			max.close();
+			field.values[indexOf(field.columns, "form_id")] = Long.valueOf(outFormId);
+			insertRow(FIELD_TABLE, field);
+		}
+		cr.close();
+	}
+
+	private long insertMessage(Row message, HashMap<Long, Long> monitors, String[] outColumns,
+			HashMap<String, PreparedStatement> inserts, PreparedStatement lastId) throws SQLException {
+		ArrayList<String> columns = new ArrayList<String>();
+		ArrayList<Object> values = new ArrayList<Object>();
+		for (int i = 0; i < message.columns.length; i++) {
+			String column = message.columns[i];
+			if (column.equals("_id") || column.equals("duplicate_of") || indexOf(outColumns, column) == -1) {
+				continue;
+			}
+			Object value = message.values[i];
+			if (column.equals("monitor_id") && value != null) {
+				value = monitors.get(Long.valueOf(((Number) value).longValue()));
+			} else if (column.equals("hash") && value == null) {
+				value = Long.valueOf(getKey(message));
+			}
+			columns.add(column);
+			values.add(value);
+		}
+
+		String sql = getInsertSql(MESSAGE_TABLE, columns);
+		PreparedStatement insert = inserts.get(sql);
+		if (insert == null) {
+			insert = mOut.prepareStatement(sql);
+			inserts.put(sql, insert);
+		}
+		for (int i = 0; i < values.size(); i++) {
+			insert.setObject(i + 1, values.get(i));
+		}
+		insert.executeUpdate();
+		ResultSet rs = lastId.executeQuery();
+		rs.next();
+		long id = rs.getLong(1);
+		rs.close();
+		return id;
+	}
+
+	private void insertFormRow(FormCursor form, Row row, long messageId) throws SQLException {
+		if (form.insert == null) {
+			ArrayList<String> columns = new ArrayList<String>();
+			for (int i = 0; i < row.columns.length; i++) {
+				if (!row.columns[i].equals("_id")) {
+					columns.add(row.columns[i]);
+				}
+			}
+			form.columns = columns.toArray(new String[columns.size()]);
+			form.insert = mOut.prepareStatement(getInsertSql(form.outTable, columns));
+		}
+		for (int i = 0; i < form.columns.length; i++) {
+			Object value = form.columns[i].equals("message_id") ? Long.valueOf(messageId) : row.get(form.columns[i]);
+			form.insert.setObject(i + 1, value);
+		}
+		form.insert.executeUpdate();
+		mFormRows++;
+	}
+
+	/**
+	 * Same as TallyDataLayer.rebuildAllTallies on the phone.
+	 */
+	private void rebuildTallies() throws SQLException {
+		if (!tableExists(mOut, TALLY_TABLE)) {
+			return;
+		}
+		ArrayList<Row> questions = new ArrayList<Row>();
+		RowCursor cr = new RowCursor(mOut, "select f._id, f.prefix, f.question_type, (select name from "
+				+ FIELD_TABLE + " where form_id = f._id order by sequence limit 1) as field from " + FORM_TABLE
+				+ " f where f.question_type is not null");
+		while (cr.hasNext()) {
+			questions.add(cr.next());
+		}
+		cr.close();
+
+		for (int i = 0; i < questions.size(); i++) {
+			Row q = questions.get(i);
+			String table = FORMDATA_PREFIX + ((String) q.get("prefix")).replace("@", "");
+			if (q.get("field") == null || !tableExists(mOut, table)) {
+				continue;
+			}
+			boolean rating = q.getLong("question_type") == QUESTION_TYPE_RATING;
+			// answer -> {count, sum}
+			HashMap<String, long[]> tallies = new HashMap<String, long[]>();
+			cr = new RowCursor(mOut, "select \"" + COLUMN_PREFIX + q.get("field") + "\" from \"" + table + "\"");
+			while (cr.hasNext()) {
+				Object value = cr.next().values[0];
+				String answer = getAnswerKey(value == null ? null : String.valueOf(value));
+				long[] tally = tallies.get(answer);
+				if (tally == null) {
+					tally = new long[2];
+					tallies.put(answer, tally);
+				}
+				tally[0]++;
+				if (rating) {
+					tally[1] += getRatingValue(answer);
+				}
+			}
+			cr.close();
+
+			PreparedStatement insert = mOut.prepareStatement("insert into " + TALLY_TABLE
+					+ " (form_id, answer, answer_count, answer_sum) values (?, ?, ?, ?)");
+			try {
+				for (Map.Entry<String, long[]> entry : tallies.entrySet()) {
+					insert.setLong(1, q.getLong("_id"));
+					insert.setString(2, entry.getKey());
+					insert.setLong(3, entry.getValue()[0]);
+					insert.setLong(4, entry.getValue()[1]);
+					insert.executeUpdate();
+				}
+			} finally {
+				insert.close();
+			}
+		}
+	}
+
+	/**
+	 * Same as TallyDataLayer.getAnswerKey on the phone.
+	 */
+	private static String getAnswerKey(String value) {
+		if (value == null) {
+			return "";
+		}
+		return value.trim().toLowerCase();
+	}
+
+	/**
+	 * Same as TallyDataLayer.getRatingValue on the phone.
+	 */
+	private static int getRatingValue(String answer) {
+		try {
+			int rating = Integer.parseInt(answer);
+			if (rating >= 0 && rating <= 10) {
+				return rating;
+			}
+		} catch (NumberFormatException ex) {
+		}
+		return 0;
+	}
+
+	/**
+	 * Insert a row's values except _id, leaving out columns the output
+	 * doesn't have
+	 *
+	 * @return the new row's id
+	 */
+	private long insertRow(String table, Row row) throws SQLException {
+		String[] outColumns = getColumns(mOut, table);
+		ArrayList<String> columns = new ArrayList<String>();
+		ArrayList<Object> values = new ArrayList<Object>();
+		for (int i = 0; i < row.columns.length; i++) {
+			if (!row.columns[i].equals("_id") && indexOf(outColumns, row.columns[i]) != -1) {
+				columns.add(row.columns[i]);
+				values.add(row.values[i]);
+			}
+		}
+		PreparedStatement insert = mOut.prepareStatement(getInsertSql(table, columns));
+		try {
+			for (int i = 0; i < values.size(); i++) {
+				insert.setObject(i + 1, values.get(i));
+			}
+			insert.executeUpdate();
+		} finally {
+			insert.close();
+		}
+		RowCursor cr = new RowCursor(mOut, "select last_insert_rowid()");
+		long id = ((Number) cr.next().values[0]).longValue();
+		cr.close();
+		return id;
+	}
+
+	/**
+	 * Duplicate key of a message: its fingerprint, told apart by direction.
+	 * Messages from before the hash column have theirs computed from their
+	 * monitor's phone.
+	 */
+	private static long getKey(Row message) {
+		Object hash = message.get("hash");
+		long key;
+		if (hash instanceof Number) {
+			key = ((Number) hash).longValue();
+		} else {
+			Object phone = message.get("phone");
+			if (phone == null) {
+				phone = message.get(SENDER_PHONE);
+			}
+			key = MessageFingerprint.hash((String) phone, (String) message.get("message"));
+		}
+		Object outgoing = message.get("is_outgoing");
+		if (outgoing != null && !"0".equals(String.valueOf(outgoing)) && !"false".equals(String.valueOf(outgoing))) {
+			key = ~key;
+		}
+		return key;
+	}
+
+	private static long getTime(Row message) {
+		Object time = message.get("time");
+		if (time instanceof Number) {
+			return ((Number) time).longValue();
+		}
+		try {
+			return Message.SQLDateFormatter.parse(String.valueOf(time)).getTime();
+		} catch (ParseException e) {
+			return 0;
+		}
+	}
+
+	private static String getInsertSql(String table, ArrayList<String> columns) {
+		StringBuilder sql = new StringBuilder("insert into \"" + table + "\" (");
+		StringBuilder params = new StringBuilder();
+		for (int i = 0; i < columns.size(); i++) {
+			sql.append(i > 0 ? ", " : "").append('"').append(columns.get(i)).append('"');
+			params.append(i > 0 ? ", ?" : "?");
+		}
+		return sql.append(") values (").append(params).append(")").toString();
+	}
+
+	private static String[] getColumns(Connection conn, String table) throws SQLException {
+		ArrayList<String> ret = new ArrayList<String>();
+		RowCursor cr = new RowCursor(conn, "pragma table_info(\"" + table + "\")");
+		while (cr.hasNext()) {
+			ret.add((String) cr.next().get("name"));
+		}
+		cr.close();
+		return ret.toArray(new String[ret.size()]);
+	}
+
+	private static boolean tableExists(Connection conn, String table) throws SQLException {
+		RowCursor cr = new RowCursor(conn, "select 1 from sqlite_master where type = 'table' and name = '" + table
+				+ "'");
+		boolean ret = cr.hasNext();
+		cr.close();
+		return ret;
+	}
+
+	private static void execute(Connection conn, String sql) throws SQLException {
+		Statement st = conn.createStatement();
+		try {
+			st.executeUpdate(sql);
+		} finally {
+			st.close();
+		}
+	}
+
+	private static int indexOf(String[] columns, String column) {
+		for (int i = 0; i < columns.length; i++) {
+			if (columns[i].equalsIgnoreCase(column)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static void copyFile(File from, File to) throws IOException {
+		InputStream in = new FileInputStream(from);
+		try {
+			OutputStream out = new FileOutputStream(to);
+			try {
+				byte[] buf = new byte[8192];
+				int read;
+				while ((read = in.read(buf)) != -1) {
+					out.write(buf, 0, read);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * DeviceDatabaseMerger [-window seconds] merged.db phone1.db phone2.db ...
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) throws Exception {
+		int arg = 0;
+		long windowMs = DEFAULT_WINDOW_MS;
+		if (args.length > 1 && args[0].equals("-window")) {
+			windowMs = Long.parseLong(args[1]) * 1000;
+			arg = 2;
+		}
+		if (args.length - arg < 2) {
+			System.err.println("usage: DeviceDatabaseMerger [-window seconds] merged.db phone1.db [phone2.db ...]");
+			System.exit(2);
+		}
+		File output = new File(args[arg]);
+		File[] inputs = new File[args.length - arg - 1];
+		for (int i = 0; i < inputs.length; i++) {
+			inputs[i] = new File(args[arg + 1 + i]);
+		}
+
+		Class.forName("org.sqlite.JDBC");
+		DeviceDatabaseMerger merger = new DeviceDatabaseMerger(output, inputs);
+		merger.setWindow(windowMs);
+		long start = System.currentTimeMillis();
+		merger.merge();
+		System.out.println("Merged " + merger.getMerged() + " messages and " + merger.getFormRows()
+				+ " form rows from " + inputs.length + " devices, dropped " + merger.getDuplicates()
+				+ " duplicates in " + (System.currentTimeMillis() - start) + "ms");
+	}
+}
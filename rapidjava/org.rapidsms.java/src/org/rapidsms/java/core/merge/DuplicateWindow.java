@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.merge;
+
+import java.util.HashSet;
+import java.util.LinkedList;
+
+/**
+ * Remembers the keys seen in the last windowMs of a time ordered stream, the
+ * same rule the phone applies to incoming messages. Memory is bounded by how
+ * many keys arrive within one window, not by the length of the stream.
+ *
+ */
+public class DuplicateWindow {
+
+	private final long mWindowMs;
+	private final LinkedList<long[]> mOrder = new LinkedList<long[]>();
+	private final HashSet<Long> mKeys = new HashSet<Long>();
+
+	/**
+	 * @param windowMs
+	 *            how far apart two equal keys can be and still be duplicates
+	 */
+	public DuplicateWindow(long windowMs) {
+		mWindowMs = windowMs;
+	}
+
+	/**
+	 * Times must not go backwards between calls.
+	 *
+	 * @param key
+	 * @param time
+	 * @return true if the key was seen within the window before time, in
+	 *         which case it isn't remembered again
+	 */
+	public boolean isDuplicate(long key, long time) {
+		while (!mOrder.isEmpty() && mOrder.getFirst()[1] < time - mWindowMs) {
+			mKeys.remove(Long.valueOf(mOrder.removeFirst()[0]));
+		}
+
+		if (!mKeys.add(Long.valueOf(key))) {
+			return true;
+		}
+		mOrder.addLast(new long[] { key, time });
+		return false;
+	}
+
+	/**
+	 * @return keys currently held
+	 */
+	public int size() {
+		return mOrder.size();
+	}
+}
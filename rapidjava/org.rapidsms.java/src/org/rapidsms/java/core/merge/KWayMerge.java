@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.merge;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merges any number of sorted iterators into one sorted sequence, holding only
+ * the head of each source at a time.<br>
+ * <br>
+ * Elements that compare equal come out in source order, so the merge is
+ * stable and repeatable.
+ *
+ * @param <T>
+ */
+public class KWayMerge<T> implements Iterator<T> {
+
+	private class Head {
+		final int source;
+		final T value;
+
+		Head(int source, T value) {
+			this.source = source;
+			this.value = value;
+		}
+	}
+
+	private final Iterator<? extends T>[] mSources;
+	private final PriorityQueue<Head> mHeap;
+	private int mLastSource = -1;
+
+	/**
+	 * @param sources
+	 *            each already sorted by comparator
+	 * @param comparator
+	 */
+	public KWayMerge(Iterator<? extends T>[] sources, final Comparator<? super T> comparator) {
+		mSources = sources;
+		mHeap = new PriorityQueue<Head>(Math.max(1, sources.length), new Comparator<Head>() {
+			public int compare(Head a, Head b) {
+				int c = comparator.compare(a.value, b.value);
+				return c != 0 ? c : a.source - b.source;
+			}
+		});
+		for (int i = 0; i < sources.length; i++) {
+			advance(i);
+		}
+	}
+
+	private void advance(int source) {
+		if (mSources[source].hasNext()) {
+			mHeap.add(new Head(source, mSources[source].next()));
+		}
+	}
+
+	public boolean hasNext() {
+		return !mHeap.isEmpty();
+	}
+
+	public T next() {
+		Head head = mHeap.poll();
+		if (head == null) {
+			throw new NoSuchElementException();
+		}
+		mLastSource = head.source;
+		advance(head.source);
+		return head.value;
+	}
+
+	/**
+	 * @return index of the source the last next() came from
+	 */
+	public int getLastSource() {
+		return mLastSource;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+}
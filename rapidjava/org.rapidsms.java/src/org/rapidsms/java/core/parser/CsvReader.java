@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.parser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+
+/**
+ * Reads CSV one row at a time, so a file of any size can be streamed.<br>
+ * <br>
+ * Fields may be quoted per RFC 4180, the way the CSV exports write them: a
+ * quoted field can hold commas, line breaks and doubled quotes. Lines may end
+ * in LF or CRLF, and blank lines are skipped.
+ *
+ */
+public class CsvReader {
+
+	private final Reader mIn;
+	private final StringBuilder mField = new StringBuilder(160);
+	private final ArrayList<String> mRow = new ArrayList<String>();
+	private int mPushback = -2;
+	private int mLine = 0;
+
+	public CsvReader(Reader in) {
+		mIn = in instanceof BufferedReader ? in : new BufferedReader(in, 16 * 1024);
+	}
+
+	private int read() throws IOException {
+		if (mPushback != -2) {
+			int c = mPushback;
+			mPushback = -2;
+			return c;
+		}
+		return mIn.read();
+	}
+
+	/**
+	 * @return the next row's fields, or null at the end of the input
+	 * @throws IOException
+	 */
+	public String[] readRow() throws IOException {
+		mRow.clear();
+		mField.setLength(0);
+		boolean quoted = false;
+		boolean wasQuoted = false;
+		int c;
+		while (true) {
+			c = read();
+			if (c == -1) {
+				if (quoted) {
+					throw new IOException("Unterminated quoted field on line " + (mLine + 1));
+				}
+				if (mRow.size() == 0 && mField.length() == 0 && !wasQuoted) {
+					return null;
+				}
+				break;
+			}
+			if (quoted) {
+				if (c == '"') {
+					int next = read();
+					if (next == '"') {
+						mField.append('"');
+					} else {
+						quoted = false;
+						mPushback = next;
+					}
+				} else {
+					if (c == '\n') {
+						mLine++;
+					}
+					mField.append((char) c);
+				}
+			} else if (c == '"' && mField.length() == 0) {
+				quoted = true;
+				wasQuoted = true;
+			} else if (c == ',') {
+				mRow.add(mField.toString());
+				mField.setLength(0);
+				wasQuoted = false;
+			} else if (c == '\r' || c == '\n') {
+				if (c == '\r') {
+					int next = read();
+					if (next != '\n') {
+						mPushback = next;
+					}
+				}
+				mLine++;
+				if (mRow.size() == 0 && mField.length() == 0 && !wasQuoted) {
+					// blank line
+					continue;
+				}
+				break;
+			} else {
+				mField.append((char) c);
+			}
+		}
+		mRow.add(mField.toString());
+		return mRow.toArray(new String[mRow.size()]);
+	}
+
+	/**
+	 * @return lines read so far, for error messages
+	 */
+	public int getLineNumber() {
+		return mLine;
+	}
+
+	public void close() throws IOException {
+		mIn.close();
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.parser;
+
+/**
+ * Identity of an incoming message for duplicate detection: the sender's
+ * normalized phone number and the message body, hashed down to 64 bits.<br>
+ * <br>
+ * Carriers that redeliver a message, and reporters that resend one when no
+ * reply comes back, produce the same fingerprint even if the number comes in
+ * with a different country code or the body with different spacing or case.
+ *
+ */
+public class MessageFingerprint {
+
+	/**
+	 * Numbers are compared on their last this many digits, which drops country
+	 * and trunk prefixes.
+	 */
+	public static final int SIGNIFICANT_DIGITS = 10;
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private MessageFingerprint() {
+	}
+
+	/**
+	 * Strip everything but the digits of a phone number and keep the last
+	 * SIGNIFICANT_DIGITS of them. "+1 (617) 555-1212" and "6175551212" come out
+	 * the same.
+	 *
+	 * @param phone
+	 * @return
+	 */
+	public static String normalizePhone(String phone) {
+		if (phone == null) {
+			return "";
+		}
+		StringBuilder digits = new StringBuilder(phone.length());
+		for (int i = 0; i < phone.length(); i++) {
+			char c = phone.charAt(i);
+			if (c >= '0' && c <= '9') {
+				digits.append(c);
+			}
+		}
+		if (digits.length() > SIGNIFICANT_DIGITS) {
+			return digits.substring(digits.length() - SIGNIFICANT_DIGITS);
+		}
+		return digits.toString();
+	}
+
+	/**
+	 * Bodies are compared on their MessageNormalizer text, so that resends
+	 * typed a little differently still match.
+	 *
+	 * @param body
+	 * @return
+	 */
+	public static String normalizeBody(String body) {
+		return MessageNormalizer.normalize(body);
+	}
+
+	/**
+	 * 64 bit FNV-1a hash of the normalized phone and body.
+	 *
+	 * @param phone
+	 * @param body
+	 * @return
+	 */
+	public static long hash(String phone, String body) {
+		return hashNormalized(phone, normalizeBody(body));
+	}
+
+	/**
+	 * Same as hash(), for a body that has already been through
+	 * MessageNormalizer.
+	 *
+	 * @param phone
+	 * @param normalizedBody
+	 * @return
+	 */
+	public static long hashNormalized(String phone, String normalizedBody) {
+		long h = FNV_OFFSET_BASIS;
+		h = update(h, normalizePhone(phone));
+		h = (h ^ '\n') * FNV_PRIME;
+		h = update(h, normalizedBody);
+		return h;
+	}
+
+	private static long update(long h, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			h = (h ^ (c & 0xff)) * FNV_PRIME;
+			h = (h ^ (c >>> 8)) * FNV_PRIME;
+		}
+		return h;
+	}
+}
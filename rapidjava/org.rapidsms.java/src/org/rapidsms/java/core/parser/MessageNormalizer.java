@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.parser;
+
+import java.util.Locale;
+
+/**
+ * The one place an incoming message body gets cleaned up. SmsReceiver runs it
+ * once when the message is saved and stores the result in the normalized
+ * column of rapidandroid_message, everything downstream (form dispatch,
+ * parsing, XForm validation, dedup) works off that text instead of lowercasing
+ * and trimming the raw body all over again.<br>
+ * <br>
+ * Normalized text has any known gateway prefix removed, is case folded, and
+ * has every run of whitespace collapsed to a single space with none leading or
+ * trailing. So its tokens are exactly the substrings between single spaces.
+ *
+ */
+public class MessageNormalizer {
+
+	/**
+	 * Text that email to SMS gateways put in front of the actual message.
+	 */
+	public static final String[] GATEWAY_PREFIXES = { "notifications@dimagi.com /  / " };
+
+	private MessageNormalizer() {
+	}
+
+	/**
+	 * @param body
+	 *            the message body as it came off the radio
+	 * @return the normalized text, never null
+	 */
+	public static String normalize(String body) {
+		if (body == null) {
+			return "";
+		}
+		int start = 0;
+		for (int i = 0; i < GATEWAY_PREFIXES.length; i++) {
+			if (body.regionMatches(true, 0, GATEWAY_PREFIXES[i], 0, GATEWAY_PREFIXES[i].length())) {
+				start = GATEWAY_PREFIXES[i].length();
+				break;
+			}
+		}
+
+		StringBuilder sb = new StringBuilder(body.length() - start);
+		boolean pendingSpace = false;
+		for (int i = start; i < body.length(); i++) {
+			char c = body.charAt(i);
+			if (Character.isWhitespace(c) || Character.isSpaceChar(c)) {
+				pendingSpace = sb.length() > 0;
+			} else {
+				if (pendingSpace) {
+					sb.append(' ');
+					pendingSpace = false;
+				}
+				sb.append(c);
+			}
+		}
+		// upper then lower folds the characters that only have a case
+		// insensitive match that way, ie the final sigma or the german sharp s.
+		// Locale is pinned so a turkish phone doesn't dot its i's.
+		return sb.toString().toUpperCase(Locale.ENGLISH).toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Number of space separated tokens in normalized text, the prefix included.
+	 *
+	 * @param normalized
+	 *            text returned by normalize()
+	 * @return
+	 */
+	public static int countTokens(String normalized) {
+		if (normalized == null || normalized.length() == 0) {
+			return 0;
+		}
+		int count = 1;
+		for (int i = 0; i < normalized.length(); i++) {
+			if (normalized.charAt(i) == ' ') {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Does normalized text belong to the form with this prefix.
+	 *
+	 * @param normalized
+	 *            text returned by normalize()
+	 * @param prefix
+	 *            the form prefix, itself normalized
+	 * @return
+	 */
+	public static boolean hasPrefix(String normalized, String prefix) {
+		return normalized.length() > prefix.length() && normalized.charAt(prefix.length()) == ' '
+				&& normalized.startsWith(prefix);
+	}
+}
@@ -64,6 +64,18 @@ public class SimpleRegexParser implements IMessageParser {
 	}
 
 	public Vector<IParseResult> ParseMessage(Form f, String input) {
+		return ParseNormalizedMessage(f, MessageNormalizer.normalize(input));
+	}
+
+	/**
+	 * ParseMessage for text that has already been through MessageNormalizer,
+	 * ie the normalized column of a saved message.
+	 * 
+	 * @param f
+	 * @param input
+	 * @return
+	 */
+	public Vector<IParseResult> ParseNormalizedMessage(Form f, String input) {
 		// System.out.println("");
 		// System.out.println("");
 		// System.out.println("********** begin ParseMessage ************");
@@ -71,12 +83,11 @@ public class SimpleRegexParser implements IMessageParser {
 		// ok, for this iteration, we're going to greedily determine if this is
 		// a message we can fracking parse.
 
-		String prefix = f.getPrefix();
+		String prefix = MessageNormalizer.normalize(f.getPrefix());
 		// System.out.println("what's the fracking form prefix: " + prefix);
-		input = input.toLowerCase().trim();
-		if (input.startsWith(prefix.toLowerCase() + " ")) {
+		if (MessageNormalizer.hasPrefix(input, prefix)) {
 			Log.i("SimpleRegexParsingService", "input started with prefix, input: " + input);
-			input = input.substring(prefix.length()).trim();
+			input = input.substring(prefix.length() + 1);
 		} else {
 			
 			return null;
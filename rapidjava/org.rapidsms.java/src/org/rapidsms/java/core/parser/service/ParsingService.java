@@ -55,4 +55,20 @@ public class ParsingService {
 				throw new IllegalArgumentException("that parser does not exist");
 		}
 	}
+
+	/**
+	 * ParseMessage for text that has already been through MessageNormalizer.
+	 * 
+	 * @param form
+	 * @param normalized
+	 * @return
+	 */
+	public static Vector<IParseResult> ParseNormalizedMessage(Form form, String normalized) {
+		switch (form.getParserType()) {
+			case SIMPLEREGEX:
+				return simpleRegexParser.ParseNormalizedMessage(form, normalized);
+			default:
+				throw new IllegalArgumentException("that parser does not exist");
+		}
+	}
 }
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidsms.java.core.stats;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Approximate number of distinct ids in a stream in a fixed 2^precision
+ * bytes.<br>
+ * <br>
+ * This is HyperLogLog: each id is hashed, the first precision bits of the
+ * hash pick a register, and the register keeps the longest run of leading
+ * zeros seen in the rest. The estimate is within about 1.04/sqrt(2^precision)
+ * (3% at the default precision), and small counts are nearly exact through
+ * the linear counting correction.<br>
+ * <br>
+ * Sketches of separate streams merge into the sketch of both by keeping the
+ * larger of each register, so an id seen on several days is still only
+ * counted once over the range. Mostly empty sketches, ie a day with a handful
+ * of reporters, are stored as just their non-zero registers.
+ *
+ */
+public class DistinctCountSketch {
+
+	public static final int DEFAULT_PRECISION = 10;
+
+	private static final byte FORMAT_VERSION = 1;
+	private static final byte DENSE = 0;
+	private static final byte SPARSE = 1;
+
+	private final int mPrecision;
+	private final byte[] mRegisters;
+
+	public DistinctCountSketch() {
+		this(DEFAULT_PRECISION);
+	}
+
+	/**
+	 * @param precision
+	 *            log2 of the number of registers, from 4 to 16
+	 */
+	public DistinctCountSketch(int precision) {
+		if (precision < 4 || precision > 16) {
+			throw new IllegalArgumentException("precision must be from 4 to 16, was " + precision);
+		}
+		mPrecision = precision;
+		mRegisters = new byte[1 << precision];
+	}
+
+	public void add(long id) {
+		long hash = mix(id);
+		int index = (int) (hash >>> (64 - mPrecision));
+		// the sentinel bit caps the run for a hash of all zeros
+		long rest = (hash << mPrecision) | (1L << (mPrecision - 1));
+		byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+		if (rank > mRegisters[index]) {
+			mRegisters[index] = rank;
+		}
+	}
+
+	/**
+	 * Adds everything other has seen to this sketch. other is left as it was.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the two have different precisions
+	 */
+	public void merge(DistinctCountSketch other) {
+		if (other.mPrecision != mPrecision) {
+			throw new IllegalArgumentException("Can't merge precision " + other.mPrecision + " into "
+					+ mPrecision);
+		}
+		for (int i = 0; i < mRegisters.length; i++) {
+			if (other.mRegisters[i] > mRegisters[i]) {
+				mRegisters[i] = other.mRegisters[i];
+			}
+		}
+	}
+
+	/**
+	 * @return the estimated number of distinct ids added
+	 */
+	public long getEstimate() {
+		int m = mRegisters.length;
+		double sum = 0;
+		int zeros = 0;
+		for (int i = 0; i < m; i++) {
+			sum += 1.0 / (1L << mRegisters[i]);
+			if (mRegisters[i] == 0) {
+				zeros++;
+			}
+		}
+		double estimate = getAlpha(m) * m * m / sum;
+		if (estimate <= 2.5 * m && zeros > 0) {
+			estimate = m * Math.log((double) m / zeros);
+		}
+		return Math.round(estimate);
+	}
+
+	public boolean isEmpty() {
+		for (int i = 0; i < mRegisters.length; i++) {
+			if (mRegisters[i] != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int getPrecision() {
+		return mPrecision;
+	}
+
+	/**
+	 * Serializes the sketch for storage, read it back with fromBytes().
+	 */
+	public byte[] toBytes() {
+		int used = 0;
+		for (int i = 0; i < mRegisters.length; i++) {
+			if (mRegisters[i] != 0) {
+				used++;
+			}
+		}
+		// a sparse register takes 3 bytes against 1 for a dense one
+		boolean sparse = used * 3 < mRegisters.length;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(6 + (sparse ? used * 3 : mRegisters.length));
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(FORMAT_VERSION);
+			out.writeByte(mPrecision);
+			if (sparse) {
+				out.writeByte(SPARSE);
+				out.writeShort(used);
+				for (int i = 0; i < mRegisters.length; i++) {
+					if (mRegisters[i] != 0) {
+						out.writeShort(i);
+						out.writeByte(mRegisters[i]);
+					}
+				}
+			} else {
+				out.writeByte(DENSE);
+				out.write(mRegisters);
+			}
+			out.flush();
+		} catch (IOException e) {
+			// can't happen writing to memory
+			throw new IllegalStateException(e.getMessage());
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if bytes didn't come from toBytes()
+	 */
+	public static DistinctCountSketch fromBytes(byte[] bytes) {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		try {
+			byte version = in.readByte();
+			if (version != FORMAT_VERSION) {
+				throw new IllegalArgumentException("Unknown sketch format " + version);
+			}
+			DistinctCountSketch sketch = new DistinctCountSketch(in.readByte());
+			byte layout = in.readByte();
+			if (layout == SPARSE) {
+				int used = in.readUnsignedShort();
+				for (int i = 0; i < used; i++) {
+					int index = in.readUnsignedShort();
+					if (index >= sketch.mRegisters.length) {
+						throw new IllegalArgumentException("Register " + index + " out of range");
+					}
+					sketch.mRegisters[index] = in.readByte();
+				}
+			} else if (layout == DENSE) {
+				in.readFully(sketch.mRegisters);
+			} else {
+				throw new IllegalArgumentException("Unknown sketch layout " + layout);
+			}
+			return sketch;
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Truncated sketch: " + e.getMessage());
+		}
+	}
+
+	private static double getAlpha(int m) {
+		switch (m) {
+			case 16:
+				return 0.673;
+			case 32:
+				return 0.697;
+			case 64:
+				return 0.709;
+			default:
+				return 0.7213 / (1 + 1.079 / m);
+		}
+	}
+
+	/**
+	 * Spreads sequential ids over all 64 bits, the murmur3 finalizer.
+	 */
+	private static long mix(long id) {
+		long h = id;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.stats;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Approximate quantiles of a stream of numbers in bounded space, plus the
+ * exact count, sum, min and max.<br>
+ * <br>
+ * This is a KLL sketch: values go into level 0, and whenever the sketch is
+ * over capacity the lowest full level is sorted and every other value of it
+ * is promoted to the next level, where each value stands for twice as many.
+ * Levels get smaller going down by a factor of 2/3, so the whole sketch holds
+ * about 3k values however many it has seen, and a quantile is off by roughly
+ * 1.7/k in rank (1% at the default k).<br>
+ * <br>
+ * Sketches of separate streams merge into the sketch of both, which is what
+ * lets a day's sketches be stored and any range of days answered by merging
+ * them. The offset of the values kept alternates rather than being random, so
+ * the same input always gives the same sketch.
+ *
+ */
+public class QuantileSketch {
+
+	public static final int DEFAULT_K = 200;
+
+	private static final byte FORMAT_VERSION = 1;
+	private static final double LEVEL_RATIO = 2.0 / 3.0;
+
+	private final int mK;
+
+	private double[][] mLevels = new double[1][];
+	private int[] mSizes = new int[1];
+	private int mRetained = 0;
+	private int mMaxRetained;
+	private boolean mOddOffset = false;
+
+	private long mCount = 0;
+	private double mSum = 0;
+	private double mMin = Double.NaN;
+	private double mMax = Double.NaN;
+
+	public QuantileSketch() {
+		this(DEFAULT_K);
+	}
+
+	/**
+	 * @param k
+	 *            the capacity of the top level, accuracy and size both grow
+	 *            linearly with it
+	 */
+	public QuantileSketch(int k) {
+		if (k < 8) {
+			throw new IllegalArgumentException("k must be at least 8, was " + k);
+		}
+		mK = k;
+		mLevels[0] = new double[getCapacity(0)];
+		mMaxRetained = getMaxRetained();
+	}
+
+	public void add(double value) {
+		if (Double.isNaN(value)) {
+			return;
+		}
+		if (mCount == 0) {
+			mMin = value;
+			mMax = value;
+		} else {
+			mMin = Math.min(mMin, value);
+			mMax = Math.max(mMax, value);
+		}
+		mCount++;
+		mSum += value;
+		append(0, value);
+		mRetained++;
+		if (mRetained >= mMaxRetained) {
+			compress();
+		}
+	}
+
+	/**
+	 * Adds everything other has seen to this sketch. other is left as it was.
+	 */
+	public void merge(QuantileSketch other) {
+		if (other.mCount == 0) {
+			return;
+		}
+		if (mCount == 0) {
+			mMin = other.mMin;
+			mMax = other.mMax;
+		} else {
+			mMin = Math.min(mMin, other.mMin);
+			mMax = Math.max(mMax, other.mMax);
+		}
+		mCount += other.mCount;
+		mSum += other.mSum;
+
+		while (mLevels.length < other.mLevels.length) {
+			grow();
+		}
+		for (int h = 0; h < other.mLevels.length; h++) {
+			for (int i = 0; i < other.mSizes[h]; i++) {
+				append(h, other.mLevels[h][i]);
+			}
+			mRetained += other.mSizes[h];
+		}
+		while (mRetained >= mMaxRetained) {
+			compress();
+		}
+	}
+
+	/**
+	 * @param q
+	 *            between 0 and 1, ie 0.5 for the median
+	 * @return an approximation of the value at rank q, NaN if nothing has
+	 *         been added
+	 */
+	public double getQuantile(double q) {
+		if (mCount == 0) {
+			return Double.NaN;
+		}
+		if (q <= 0) {
+			return mMin;
+		}
+		if (q >= 1) {
+			return mMax;
+		}
+		double[] values = new double[mRetained];
+		long[] weights = new long[mRetained];
+		int n = 0;
+		for (int h = 0; h < mLevels.length; h++) {
+			for (int i = 0; i < mSizes[h]; i++) {
+				values[n] = mLevels[h][i];
+				weights[n] = 1L << h;
+				n++;
+			}
+		}
+		sortTogether(values, weights, n);
+
+		long total = 0;
+		for (int i = 0; i < n; i++) {
+			total += weights[i];
+		}
+		double target = q * total;
+		long seen = 0;
+		for (int i = 0; i < n; i++) {
+			seen += weights[i];
+			if (seen >= target) {
+				return values[i];
+			}
+		}
+		return mMax;
+	}
+
+	public long getCount() {
+		return mCount;
+	}
+
+	public double getSum() {
+		return mSum;
+	}
+
+	/**
+	 * @return NaN if nothing has been added
+	 */
+	public double getMean() {
+		return mCount == 0 ? Double.NaN : mSum / mCount;
+	}
+
+	/**
+	 * @return NaN if nothing has been added
+	 */
+	public double getMin() {
+		return mMin;
+	}
+
+	/**
+	 * @return NaN if nothing has been added
+	 */
+	public double getMax() {
+		return mMax;
+	}
+
+	/**
+	 * @return how many values the sketch is holding on to
+	 */
+	public int getRetained() {
+		return mRetained;
+	}
+
+	/**
+	 * Serializes the sketch for storage, read it back with fromBytes().
+	 */
+	public byte[] toBytes() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(40 + mRetained * 8);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(FORMAT_VERSION);
+			out.writeInt(mK);
+			out.writeLong(mCount);
+			out.writeDouble(mSum);
+			out.writeDouble(mMin);
+			out.writeDouble(mMax);
+			out.writeBoolean(mOddOffset);
+			out.writeInt(mLevels.length);
+			for (int h = 0; h < mLevels.length; h++) {
+				out.writeInt(mSizes[h]);
+				for (int i = 0; i < mSizes[h]; i++) {
+					out.writeDouble(mLevels[h][i]);
+				}
+			}
+			out.flush();
+		} catch (IOException e) {
+			// can't happen writing to memory
+			throw new IllegalStateException(e.getMessage());
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if bytes didn't come from toBytes()
+	 */
+	public static QuantileSketch fromBytes(byte[] bytes) {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		try {
+			byte version = in.readByte();
+			if (version != FORMAT_VERSION) {
+				throw new IllegalArgumentException("Unknown sketch format " + version);
+			}
+			QuantileSketch sketch = new QuantileSketch(in.readInt());
+			sketch.mCount = in.readLong();
+			sketch.mSum = in.readDouble();
+			sketch.mMin = in.readDouble();
+			sketch.mMax = in.readDouble();
+			sketch.mOddOffset = in.readBoolean();
+			int levels = in.readInt();
+			while (sketch.mLevels.length < levels) {
+				sketch.grow();
+			}
+			for (int h = 0; h < levels; h++) {
+				int size = in.readInt();
+				for (int i = 0; i < size; i++) {
+					sketch.append(h, in.readDouble());
+				}
+				sketch.mRetained += size;
+			}
+			return sketch;
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Truncated sketch: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Level h of the current levels holds k * (2/3)^(depth below the top)
+	 * values, but never fewer than 2.
+	 */
+	private int getCapacity(int h) {
+		int depth = mLevels.length - h - 1;
+		return Math.max(2, (int) Math.ceil(mK * Math.pow(LEVEL_RATIO, depth)));
+	}
+
+	private int getMaxRetained() {
+		int total = 0;
+		for (int h = 0; h < mLevels.length; h++) {
+			total += getCapacity(h);
+		}
+		return total;
+	}
+
+	private void grow() {
+		int levels = mLevels.length + 1;
+		double[][] newLevels = new double[levels][];
+		int[] newSizes = new int[levels];
+		System.arraycopy(mLevels, 0, newLevels, 0, mLevels.length);
+		System.arraycopy(mSizes, 0, newSizes, 0, mSizes.length);
+		newLevels[levels - 1] = new double[2];
+		mLevels = newLevels;
+		mSizes = newSizes;
+		mMaxRetained = getMaxRetained();
+	}
+
+	private void append(int h, double value) {
+		if (mSizes[h] == mLevels[h].length) {
+			double[] bigger = new double[Math.max(4, mLevels[h].length * 2)];
+			System.arraycopy(mLevels[h], 0, bigger, 0, mSizes[h]);
+			mLevels[h] = bigger;
+		}
+		mLevels[h][mSizes[h]++] = value;
+	}
+
+	/**
+	 * Compacts the lowest level that's at capacity into the one above it,
+	 * and the ones above that too if the sketch is still over.
+	 */
+	private void compress() {
+		for (int h = 0; h < mLevels.length; h++) {
+			if (mSizes[h] < getCapacity(h)) {
+				continue;
+			}
+			if (h + 1 >= mLevels.length) {
+				grow();
+			}
+			double[] level = mLevels[h];
+			int size = mSizes[h];
+			Arrays.sort(level, 0, size);
+			// an odd value out stays behind at this level
+			int pairs = size / 2;
+			int start = size - pairs * 2;
+			int offset = mOddOffset ? 1 : 0;
+			mOddOffset = !mOddOffset;
+			for (int i = 0; i < pairs; i++) {
+				append(h + 1, level[start + i * 2 + offset]);
+			}
+			mSizes[h] = start;
+			mRetained -= pairs;
+			if (mRetained < mMaxRetained) {
+				break;
+			}
+		}
+	}
+
+	private static void sortTogether(double[] values, long[] weights, int n) {
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = Integer.valueOf(i);
+		}
+		final double[] keys = values;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(keys[a.intValue()], keys[b.intValue()]);
+			}
+		});
+		double[] sortedValues = new double[n];
+		long[] sortedWeights = new long[n];
+		for (int i = 0; i < n; i++) {
+			sortedValues[i] = values[order[i].intValue()];
+			sortedWeights[i] = weights[order[i].intValue()];
+		}
+		System.arraycopy(sortedValues, 0, values, 0, n);
+		System.arraycopy(sortedWeights, 0, weights, 0, n);
+	}
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidsms.java.core.stats;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * The most frequent values of a stream of strings in bounded space, plus the
+ * exact number of values seen.<br>
+ * <br>
+ * This is the space saving algorithm: up to capacity values are counted, and
+ * a value that isn't counted yet takes over the counter of the least frequent
+ * one, inheriting its count as error. Any value more frequent than
+ * count/capacity is always among the counters, and a counter overstates its
+ * value by at most its error. While fewer distinct values than the capacity
+ * have been seen the counts are exact.<br>
+ * <br>
+ * Sketches of separate streams merge into the sketch of both. A value one
+ * side isn't counting gets that side's smallest count added as both count
+ * and error, so the bounds still hold after merging. Ties always go to the
+ * alphabetically first value, so the same input gives the same sketch.
+ *
+ */
+public class TopValuesSketch {
+
+	public static final int DEFAULT_CAPACITY = 64;
+
+	private static final byte FORMAT_VERSION = 1;
+
+	/**
+	 * One counted value.
+	 */
+	public static class Entry {
+		private final String mValue;
+		private long mCount;
+		private long mError;
+
+		Entry(String value, long count, long error) {
+			mValue = value;
+			mCount = count;
+			mError = error;
+		}
+
+		public String getValue() {
+			return mValue;
+		}
+
+		/**
+		 * @return how many times the value was seen, overstated by at most
+		 *         getError()
+		 */
+		public long getCount() {
+			return mCount;
+		}
+
+		public long getError() {
+			return mError;
+		}
+	}
+
+	/**
+	 * Most frequent first, ties alphabetically.
+	 */
+	private static final Comparator<Entry> BY_COUNT = new Comparator<Entry>() {
+		public int compare(Entry a, Entry b) {
+			if (a.mCount != b.mCount) {
+				return a.mCount > b.mCount ? -1 : 1;
+			}
+			return a.mValue.compareTo(b.mValue);
+		}
+	};
+
+	private final int mCapacity;
+	private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+	private long mTotal = 0;
+
+	public TopValuesSketch() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            how many values are counted, a value is only sure to be kept
+	 *            if it is more than 1/capacity of the stream
+	 */
+	public TopValuesSketch(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be at least 1, was " + capacity);
+		}
+		mCapacity = capacity;
+	}
+
+	public void add(String value) {
+		if (value == null) {
+			return;
+		}
+		mTotal++;
+		Entry e = mEntries.get(value);
+		if (e != null) {
+			e.mCount++;
+		} else if (mEntries.size() < mCapacity) {
+			mEntries.put(value, new Entry(value, 1, 0));
+		} else {
+			Entry smallest = getSmallest();
+			mEntries.remove(smallest.mValue);
+			mEntries.put(value, new Entry(value, smallest.mCount + 1, smallest.mCount));
+		}
+	}
+
+	/**
+	 * Adds everything other has seen to this sketch. other is left as it was.
+	 */
+	public void merge(TopValuesSketch other) {
+		if (other.mTotal == 0) {
+			return;
+		}
+		long floor = getFloor();
+		long otherFloor = other.getFloor();
+
+		HashMap<String, Entry> merged = new HashMap<String, Entry>();
+		Iterator<Entry> it = mEntries.values().iterator();
+		while (it.hasNext()) {
+			Entry e = it.next();
+			Entry o = other.mEntries.get(e.mValue);
+			if (o != null) {
+				merged.put(e.mValue, new Entry(e.mValue, e.mCount + o.mCount, e.mError + o.mError));
+			} else {
+				merged.put(e.mValue, new Entry(e.mValue, e.mCount + otherFloor, e.mError + otherFloor));
+			}
+		}
+		it = other.mEntries.values().iterator();
+		while (it.hasNext()) {
+			Entry o = it.next();
+			if (!merged.containsKey(o.mValue)) {
+				merged.put(o.mValue, new Entry(o.mValue, o.mCount + floor, o.mError + floor));
+			}
+		}
+
+		mEntries.clear();
+		Entry[] sorted = sort(merged.values());
+		for (int i = 0; i < sorted.length && i < mCapacity; i++) {
+			mEntries.put(sorted[i].mValue, sorted[i]);
+		}
+		mTotal += other.mTotal;
+	}
+
+	/**
+	 * @return the n most frequent values, most frequent first, fewer if the
+	 *         sketch isn't counting that many
+	 */
+	public Entry[] getTop(int n) {
+		Entry[] sorted = sort(mEntries.values());
+		if (sorted.length <= n) {
+			return sorted;
+		}
+		Entry[] top = new Entry[n];
+		System.arraycopy(sorted, 0, top, 0, n);
+		return top;
+	}
+
+	/**
+	 * @return how many values have been added, exactly
+	 */
+	public long getTotal() {
+		return mTotal;
+	}
+
+	/**
+	 * @return how many distinct values are being counted
+	 */
+	public int getSize() {
+		return mEntries.size();
+	}
+
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	/**
+	 * Serializes the sketch for storage, read it back with fromBytes().
+	 */
+	public byte[] toBytes() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(20 + mEntries.size() * 24);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(FORMAT_VERSION);
+			out.writeInt(mCapacity);
+			out.writeLong(mTotal);
+			Entry[] sorted = sort(mEntries.values());
+			out.writeInt(sorted.length);
+			for (int i = 0; i < sorted.length; i++) {
+				out.writeUTF(sorted[i].mValue);
+				out.writeLong(sorted[i].mCount);
+				out.writeLong(sorted[i].mError);
+			}
+			out.flush();
+		} catch (IOException e) {
+			// can't happen writing to memory
+			throw new IllegalStateException(e.getMessage());
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if bytes didn't come from toBytes()
+	 */
+	public static TopValuesSketch fromBytes(byte[] bytes) {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		try {
+			byte version = in.readByte();
+			if (version != FORMAT_VERSION) {
+				throw new IllegalArgumentException("Unknown sketch format " + version);
+			}
+			TopValuesSketch sketch = new TopValuesSketch(in.readInt());
+			sketch.mTotal = in.readLong();
+			int size = in.readInt();
+			if (size > sketch.mCapacity) {
+				throw new IllegalArgumentException("Sketch holds " + size + " values, more than its capacity");
+			}
+			for (int i = 0; i < size; i++) {
+				String value = in.readUTF();
+				sketch.mEntries.put(value, new Entry(value, in.readLong(), in.readLong()));
+			}
+			return sketch;
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Truncated sketch: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the smallest count if every counter is taken, otherwise 0 as any
+	 *         value not counted was never seen
+	 */
+	private long getFloor() {
+		if (mEntries.size() < mCapacity) {
+			return 0;
+		}
+		return getSmallest().mCount;
+	}
+
+	private Entry getSmallest() {
+		Entry smallest = null;
+		Iterator<Entry> it = mEntries.values().iterator();
+		while (it.hasNext()) {
+			Entry e = it.next();
+			if (smallest == null || BY_COUNT.compare(e, smallest) > 0) {
+				smallest = e;
+			}
+		}
+		return smallest;
+	}
+
+	private static Entry[] sort(Collection<Entry> entries) {
+		Entry[] sorted = entries.toArray(new Entry[entries.size()]);
+		Arrays.sort(sorted, BY_COUNT);
+		return sorted;
+	}
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.upload;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import android.util.Log;
+
+/**
+ * Uploads a file in fixed size chunks with retry and resume.<br>
+ * <br>
+ * Each chunk is gzipped and POSTed on its own, with headers saying which
+ * upload and which bytes it is:
+ *
+ * <pre>
+ * X-Upload-Session: the session token
+ * X-Upload-Name:    the file's name
+ * Content-Range:    bytes first-last/length, of the uncompressed file
+ * Content-Encoding: gzip
+ * </pre>
+ *
+ * Any 2xx means the chunk is stored. The server may answer with
+ * X-Upload-Offset, the number of bytes it holds, and the next chunk starts
+ * there. That's how a chunk the server stored but whose response was lost
+ * gets skipped, and a 409 with X-Upload-Offset moves the upload to wherever
+ * the server actually is. 5xx, 408, 429, I/O errors and answers whose offset
+ * doesn't get past the chunk that was sent are retried with exponential
+ * backoff, any other 4xx fails the session for good.<br>
+ * <br>
+ * Only one chunk is ever in memory, the next one isn't read off the card
+ * until the server has acknowledged the last. Connections are kept alive
+ * between chunks and reused by HttpURLConnection's pool. upload() blocks,
+ * call it off the UI thread.
+ *
+ */
+public class ChunkedUploader {
+
+	private static final String TAG = "ChunkedUploader";
+
+	public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+	public static final int DEFAULT_MAX_ATTEMPTS = 8;
+	public static final long DEFAULT_INITIAL_BACKOFF_MS = 1000;
+	public static final long DEFAULT_MAX_BACKOFF_MS = 5 * 60 * 1000;
+
+	public static final String HEADER_SESSION = "X-Upload-Session";
+	public static final String HEADER_NAME = "X-Upload-Name";
+	public static final String HEADER_OFFSET = "X-Upload-Offset";
+
+	private static final int CONNECT_TIMEOUT_MS = 30 * 1000;
+	private static final int READ_TIMEOUT_MS = 60 * 1000;
+
+	private final IUploadSessionStore mStore;
+	private final Random mRandom = new Random();
+
+	private int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private long mInitialBackoff = DEFAULT_INITIAL_BACKOFF_MS;
+	private long mMaxBackoff = DEFAULT_MAX_BACKOFF_MS;
+
+	private volatile boolean mCancelled = false;
+
+	public ChunkedUploader(IUploadSessionStore store) {
+		mStore = store;
+	}
+
+	/**
+	 * @param maxAttempts
+	 *            failed requests in a row before upload() gives up, the
+	 *            session stays pending and can be resumed
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		mMaxAttempts = maxAttempts;
+	}
+
+	/**
+	 * @param initialBackoff
+	 *            ms to wait after the first failure, doubled after each one
+	 * @param maxBackoff
+	 *            ms the wait is capped at
+	 */
+	public void setBackoff(long initialBackoff, long maxBackoff) {
+		mInitialBackoff = initialBackoff;
+		mMaxBackoff = maxBackoff;
+	}
+
+	/**
+	 * Stop after the request in flight. The session stays pending.
+	 */
+	public void cancel() {
+		mCancelled = true;
+	}
+
+	/**
+	 * Upload whatever the server hasn't acknowledged yet.
+	 *
+	 * @param session
+	 * @return true once the server has the whole file, false if the upload
+	 *         failed, was cancelled or ran out of attempts. Check the
+	 *         session's status to tell them apart.
+	 */
+	public boolean upload(UploadSession session) {
+		if (session.getStatus() == UploadSession.STATUS_COMPLETE) {
+			return true;
+		}
+		File file = new File(session.getPath());
+		if (!file.exists() || file.length() != session.getLength()) {
+			Log.e(TAG, "File " + session.getPath() + " is gone or has changed, failing upload");
+			return fail(session);
+		}
+
+		RandomAccessFile in = null;
+		try {
+			in = new RandomAccessFile(file, "r");
+			byte[] chunk = new byte[session.getChunkSize()];
+			while (session.getAckedOffset() < session.getLength()) {
+				if (mCancelled) {
+					return false;
+				}
+				long start = session.getAckedOffset();
+				int len = (int) Math.min(chunk.length, session.getLength() - start);
+				in.seek(start);
+				in.readFully(chunk, 0, len);
+				byte[] body = gzip(chunk, len);
+
+				int code;
+				long serverOffset;
+				try {
+					HttpURLConnection conn = post(session, file.getName(), start, len, body);
+					code = conn.getResponseCode();
+					serverOffset = conn.getHeaderFieldInt(HEADER_OFFSET, -1);
+					drain(conn);
+				} catch (IOException e) {
+					Log.w(TAG, "Chunk at " + start + " of " + session.getToken() + " failed: " + e.getMessage());
+					if (!retry(session)) {
+						return false;
+					}
+					continue;
+				}
+
+				if (code >= 200 && code < 300) {
+					session.setAckedOffset(serverOffset >= 0 ? serverOffset : start + len);
+					if (session.getAckedOffset() <= start) {
+						// took the chunk but didn't keep it, sending it again
+						// right away would go round forever
+						Log.w(TAG, "Chunk at " + start + " of " + session.getToken() + " wasn't kept, server has "
+								+ serverOffset);
+						if (!retry(session)) {
+							return false;
+						}
+						continue;
+					}
+					session.setAttempts(0);
+					if (session.getAckedOffset() >= session.getLength()) {
+						session.setAckedOffset(session.getLength());
+						session.setStatus(UploadSession.STATUS_COMPLETE);
+					}
+					mStore.saveProgress(session);
+				} else if (code == HttpURLConnection.HTTP_CONFLICT && serverOffset == start) {
+					Log.w(TAG, "Server wants " + start + " of " + session.getToken() + ", which is what we sent");
+					if (!retry(session)) {
+						return false;
+					}
+				} else if (code == HttpURLConnection.HTTP_CONFLICT && serverOffset >= 0
+						&& serverOffset <= session.getLength()) {
+					Log.i(TAG, "Server has " + serverOffset + " bytes of " + session.getToken() + ", we had "
+							+ start);
+					session.setAckedOffset(serverOffset);
+					mStore.saveProgress(session);
+				} else if (code >= 500 || code == HttpURLConnection.HTTP_CLIENT_TIMEOUT || code == 429) {
+					Log.w(TAG, "Chunk at " + start + " of " + session.getToken() + " got " + code);
+					if (!retry(session)) {
+						return false;
+					}
+				} else {
+					Log.e(TAG, "Upload " + session.getToken() + " rejected with " + code);
+					return fail(session);
+				}
+			}
+			if (session.getStatus() != UploadSession.STATUS_COMPLETE) {
+				// an empty file
+				session.setStatus(UploadSession.STATUS_COMPLETE);
+				mStore.saveProgress(session);
+			}
+			return true;
+		} catch (IOException e) {
+			Log.e(TAG, "Error reading " + session.getPath() + ": " + e.getMessage());
+			return false;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private HttpURLConnection post(UploadSession session, String name, long start, int len, byte[] body)
+			throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL(session.getUrl()).openConnection();
+		conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+		conn.setReadTimeout(READ_TIMEOUT_MS);
+		conn.setDoOutput(true);
+		conn.setRequestMethod("POST");
+		conn.setFixedLengthStreamingMode(body.length);
+		conn.setRequestProperty("Content-Type", "application/octet-stream");
+		conn.setRequestProperty("Content-Encoding", "gzip");
+		conn.setRequestProperty("Content-Range", "bytes " + start + "-" + (start + len - 1) + "/"
+				+ session.getLength());
+		conn.setRequestProperty(HEADER_SESSION, session.getToken());
+		conn.setRequestProperty(HEADER_NAME, name);
+		OutputStream out = conn.getOutputStream();
+		out.write(body);
+		out.close();
+		return conn;
+	}
+
+	/**
+	 * Read off the response body, the connection only goes back in the
+	 * keep-alive pool once it's fully consumed.
+	 */
+	static void drain(HttpURLConnection conn) throws IOException {
+		InputStream in = conn.getErrorStream();
+		if (in == null) {
+			try {
+				in = conn.getInputStream();
+			} catch (IOException e) {
+				return;
+			}
+		}
+		byte[] buf = new byte[512];
+		while (in.read(buf) != -1) {
+		}
+		in.close();
+	}
+
+	private static byte[] gzip(byte[] chunk, int len) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(len / 2 + 64);
+		GZIPOutputStream out = new GZIPOutputStream(bytes);
+		out.write(chunk, 0, len);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Count a failed request and wait out its backoff.
+	 *
+	 * @return false if the upload should stop
+	 */
+	private boolean retry(UploadSession session) {
+		session.setAttempts(session.getAttempts() + 1);
+		mStore.saveProgress(session);
+		if (session.getAttempts() >= mMaxAttempts) {
+			Log.w(TAG, "Giving up on " + session.getToken() + " for now at " + session.getAckedOffset());
+			return false;
+		}
+		// jittered, so a room full of phones coming back online don't all
+		// retry in step
+		long backoff = Math.min(mMaxBackoff, mInitialBackoff << Math.min(session.getAttempts() - 1, 20));
+		long wait = backoff / 2 + (long) (mRandom.nextDouble() * (backoff / 2));
+		try {
+			Thread.sleep(wait);
+		} catch (InterruptedException e) {
+			return false;
+		}
+		return !mCancelled;
+	}
+
+	private boolean fail(UploadSession session) {
+		session.setStatus(UploadSession.STATUS_FAILED);
+		mStore.saveProgress(session);
+		return false;
+	}
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidsms.java.core.upload;
+
+/**
+ * Where ChunkedUploader persists its sessions.
+ *
+ */
+public interface IUploadSessionStore {
+
+	/**
+	 * Save the session's acked offset, status and attempts. Called after
+	 * every chunk and every failed request, keep it cheap.
+	 *
+	 * @param session
+	 */
+	void saveProgress(UploadSession session);
+}
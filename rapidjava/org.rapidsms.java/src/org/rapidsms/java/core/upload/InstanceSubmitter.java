@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.upload;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import android.util.Log;
+
+/**
+ * Posts OpenRosa instance files to a submission endpoint, the way ODK Collect
+ * does: a multipart/form-data body with the instance as its
+ * xml_submission_file part.<br>
+ * <br>
+ * Requests are sent with a fixed length and their responses read to the end,
+ * so HttpURLConnection keeps the connection alive and every submission of a
+ * batch goes over the same socket. Every batch is recorded in the
+ * submitter's SubmissionMetrics.
+ *
+ */
+public class InstanceSubmitter {
+
+	private static final String TAG = "InstanceSubmitter";
+
+	private static final String BOUNDARY = "----rapidandroid-instance-boundary";
+	private static final String LINE = "\r\n";
+	private static final int CONNECT_TIMEOUT_MS = 30 * 1000;
+	private static final int READ_TIMEOUT_MS = 60 * 1000;
+
+	/**
+	 * Returned by submit() when there was no HTTP response at all.
+	 */
+	public static final int NO_RESPONSE = -1;
+
+	private final SubmissionMetrics mMetrics = new SubmissionMetrics();
+
+	public SubmissionMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	/**
+	 * @param code
+	 *            what submit() returned
+	 * @return whether the server has the instance. OpenRosa servers answer
+	 *         201, some older ones 200 or 202.
+	 */
+	public static boolean isAccepted(int code) {
+		return code >= 200 && code < 300;
+	}
+
+	/**
+	 * Submit a batch of instances, one request each.
+	 *
+	 * @param submissionUri
+	 * @param instances
+	 * @return the status code of each submission, NO_RESPONSE for ones that
+	 *         failed before the server answered
+	 */
+	public int[] submitBatch(String submissionUri, File[] instances) {
+		long start = System.currentTimeMillis();
+		int[] codes = new int[instances.length];
+		int accepted = 0;
+		long bytes = 0;
+		for (int i = 0; i < instances.length; i++) {
+			codes[i] = submit(submissionUri, instances[i]);
+			if (isAccepted(codes[i])) {
+				accepted++;
+				bytes += instances[i].length();
+			}
+		}
+		mMetrics.recordBatch(accepted, instances.length - accepted, bytes, System.currentTimeMillis() - start);
+		return codes;
+	}
+
+	/**
+	 * Submit one instance.
+	 *
+	 * @param submissionUri
+	 * @param instance
+	 * @return the response's status code, or NO_RESPONSE
+	 */
+	public int submit(String submissionUri, File instance) {
+		byte[] head;
+		byte[] tail;
+		try {
+			String partHeader = "--" + BOUNDARY + LINE
+					+ "Content-Disposition: form-data; name=\"xml_submission_file\"; filename=\"" + instance.getName()
+					+ "\"" + LINE + "Content-Type: text/xml; charset=utf-8" + LINE + LINE;
+			head = partHeader.getBytes("UTF-8");
+			tail = (LINE + "--" + BOUNDARY + "--" + LINE).getBytes("UTF-8");
+		} catch (IOException e) {
+			// UTF-8 is always there
+			throw new RuntimeException(e);
+		}
+
+		InputStream in = null;
+		try {
+			in = new FileInputStream(instance);
+			HttpURLConnection conn = (HttpURLConnection) new URL(submissionUri).openConnection();
+			conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+			conn.setReadTimeout(READ_TIMEOUT_MS);
+			conn.setDoOutput(true);
+			conn.setRequestMethod("POST");
+			conn.setFixedLengthStreamingMode((int) (head.length + instance.length() + tail.length));
+			conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+			conn.setRequestProperty("X-OpenRosa-Version", "1.0");
+
+			OutputStream out = new BufferedOutputStream(conn.getOutputStream(), 8192);
+			out.write(head);
+			byte[] buf = new byte[4096];
+			int read;
+			while ((read = in.read(buf)) != -1) {
+				out.write(buf, 0, read);
+			}
+			out.write(tail);
+			out.close();
+
+			int code = conn.getResponseCode();
+			ChunkedUploader.drain(conn);
+			return code;
+		} catch (IOException e) {
+			Log.w(TAG, "Submitting " + instance.getName() + " failed: " + e.getMessage());
+			return NO_RESPONSE;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.upload;
+
+/**
+ * Running totals of an InstanceSubmitter, safe to read from any thread while
+ * it works.
+ *
+ */
+public class SubmissionMetrics {
+
+	private int mBatches;
+	private int mSubmitted;
+	private int mFailed;
+	private long mBytes;
+	private long mElapsed;
+	private long mLastBatchTime;
+	private int mLastBatchSubmitted;
+	private int mLastBatchFailed;
+
+	synchronized void recordBatch(int submitted, int failed, long bytes, long elapsed) {
+		mBatches++;
+		mSubmitted += submitted;
+		mFailed += failed;
+		mBytes += bytes;
+		mElapsed += elapsed;
+		mLastBatchTime = System.currentTimeMillis();
+		mLastBatchSubmitted = submitted;
+		mLastBatchFailed = failed;
+	}
+
+	public synchronized int getBatches() {
+		return mBatches;
+	}
+
+	/**
+	 * @return instances the server accepted
+	 */
+	public synchronized int getSubmitted() {
+		return mSubmitted;
+	}
+
+	/**
+	 * @return submissions that were refused or got no answer, an instance
+	 *         that failed in two batches counts twice
+	 */
+	public synchronized int getFailed() {
+		return mFailed;
+	}
+
+	/**
+	 * @return size of the accepted instance files
+	 */
+	public synchronized long getBytes() {
+		return mBytes;
+	}
+
+	/**
+	 * @return ms spent submitting, not counting time between batches
+	 */
+	public synchronized long getElapsed() {
+		return mElapsed;
+	}
+
+	/**
+	 * @return accepted instances per minute of submitting, 0 before the
+	 *         first batch
+	 */
+	public synchronized double getSubmissionsPerMinute() {
+		if (mElapsed == 0) {
+			return mSubmitted == 0 ? 0 : Double.POSITIVE_INFINITY;
+		}
+		return mSubmitted * 60000.0 / mElapsed;
+	}
+
+	/**
+	 * @return when the last batch finished, 0 if there hasn't been one
+	 */
+	public synchronized long getLastBatchTime() {
+		return mLastBatchTime;
+	}
+
+	public synchronized int getLastBatchSubmitted() {
+		return mLastBatchSubmitted;
+	}
+
+	public synchronized int getLastBatchFailed() {
+		return mLastBatchFailed;
+	}
+}
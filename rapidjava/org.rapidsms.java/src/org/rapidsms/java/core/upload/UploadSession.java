@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidsms.java.core.upload;
+
+/**
+ * The persistent state of one file upload. ChunkedUploader moves the acked
+ * offset forward as the server acknowledges chunks and hands the session to
+ * its IUploadSessionStore after every change, so an upload that's interrupted
+ * can pick up where the server left off.
+ *
+ */
+public class UploadSession {
+
+	public static final int STATUS_PENDING = 0;
+	public static final int STATUS_COMPLETE = 1;
+	public static final int STATUS_FAILED = 2;
+
+	private long mId;
+	private String mToken;
+	private String mPath;
+	private String mUrl;
+	private long mLength;
+	private int mChunkSize;
+	private long mAckedOffset;
+	private int mStatus = STATUS_PENDING;
+	private int mAttempts;
+
+	/**
+	 * @param id
+	 *            the store's key for the session
+	 * @param token
+	 *            sent with every chunk, identifies the upload to the server
+	 * @param path
+	 *            the file being uploaded
+	 * @param url
+	 * @param length
+	 *            the file's length when the session started
+	 * @param chunkSize
+	 *            uncompressed bytes per chunk
+	 */
+	public UploadSession(long id, String token, String path, String url, long length, int chunkSize) {
+		mId = id;
+		mToken = token;
+		mPath = path;
+		mUrl = url;
+		mLength = length;
+		mChunkSize = chunkSize;
+	}
+
+	public long getId() {
+		return mId;
+	}
+
+	public String getToken() {
+		return mToken;
+	}
+
+	public String getPath() {
+		return mPath;
+	}
+
+	public String getUrl() {
+		return mUrl;
+	}
+
+	public long getLength() {
+		return mLength;
+	}
+
+	public int getChunkSize() {
+		return mChunkSize;
+	}
+
+	/**
+	 * @return bytes of the file the server has acknowledged
+	 */
+	public long getAckedOffset() {
+		return mAckedOffset;
+	}
+
+	public void setAckedOffset(long ackedOffset) {
+		mAckedOffset = ackedOffset;
+	}
+
+	/**
+	 * @return one of the STATUS_ constants
+	 */
+	public int getStatus() {
+		return mStatus;
+	}
+
+	public void setStatus(int status) {
+		mStatus = status;
+	}
+
+	/**
+	 * @return failed requests since the last acknowledged chunk
+	 */
+	public int getAttempts() {
+		return mAttempts;
+	}
+
+	public void setAttempts(int attempts) {
+		mAttempts = attempts;
+	}
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+import org.rapidsms.java.core.upload.ChunkedUploader;
+import org.rapidsms.java.core.upload.IUploadSessionStore;
+import org.rapidsms.java.core.upload.UploadSession;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class ChunkedUploaderTests extends TestCase {
+
+	private static final int CHUNK = 16 * 1024;
+	private static final int LENGTH = 10 * CHUNK + 123;
+
+	/**
+	 * Stands in for the upload server. Keeps what it has received of the one
+	 * upload and fails requests when told to.
+	 */
+	private static class StubServer implements HttpHandler {
+		final ByteArrayOutputStream received = new ByteArrayOutputStream();
+		final ArrayList<Long> starts = new ArrayList<Long>();
+		long wireBytes = 0;
+		int requests = 0;
+
+		/** fail every nth request with a 503, 0 never */
+		int failEvery = 0;
+		/** close the connection without answering on this request, 0 never */
+		int dropOn = 0;
+		/** store this request's chunk, then answer 500 */
+		int loseAckOn = 0;
+		/** answer 503 to everything once this many bytes are stored */
+		long downAfter = Long.MAX_VALUE;
+		/** answer every request with this code */
+		int rejectWith = 0;
+		/** answer every request with a 409 at this offset, -1 never */
+		long stuckAt = -1;
+
+		public void handle(HttpExchange exchange) throws IOException {
+			requests++;
+			byte[] body = readAll(exchange.getRequestBody());
+			wireBytes += body.length;
+			assertEquals("gzip", exchange.getRequestHeaders().getFirst("Content-Encoding"));
+			assertEquals("upload-token", exchange.getRequestHeaders().getFirst(ChunkedUploader.HEADER_SESSION));
+
+			if (requests == dropOn) {
+				exchange.close();
+				return;
+			}
+			if (rejectWith != 0) {
+				respond(exchange, rejectWith);
+				return;
+			}
+			if (stuckAt >= 0) {
+				exchange.getResponseHeaders().set(ChunkedUploader.HEADER_OFFSET, String.valueOf(stuckAt));
+				exchange.sendResponseHeaders(409, -1);
+				exchange.close();
+				return;
+			}
+			if ((failEvery > 0 && requests % failEvery == 0) || received.size() >= downAfter) {
+				respond(exchange, 503);
+				return;
+			}
+
+			String range = exchange.getRequestHeaders().getFirst("Content-Range");
+			long start = Long.parseLong(range.substring("bytes ".length(), range.indexOf('-')));
+			starts.add(Long.valueOf(start));
+			byte[] data = readAll(new GZIPInputStream(new java.io.ByteArrayInputStream(body)));
+			if (start > received.size()) {
+				respond(exchange, 409);
+				return;
+			}
+			int skip = (int) (received.size() - start);
+			if (skip < data.length) {
+				received.write(data, skip, data.length - skip);
+			}
+			respond(exchange, requests == loseAckOn ? 500 : 200);
+		}
+
+		private void respond(HttpExchange exchange, int code) throws IOException {
+			exchange.getResponseHeaders().set(ChunkedUploader.HEADER_OFFSET, String.valueOf(received.size()));
+			exchange.sendResponseHeaders(code, -1);
+			exchange.close();
+		}
+	}
+
+	private static class MemoryStore implements IUploadSessionStore {
+		int saves = 0;
+
+		public void saveProgress(UploadSession session) {
+			saves++;
+		}
+	}
+
+	private HttpServer mHttp;
+	private StubServer mServer;
+	private File mFile;
+	private byte[] mData;
+	private MemoryStore mStore;
+
+	@Override
+	protected void setUp() throws Exception {
+		mServer = new StubServer();
+		mHttp = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		mHttp.createContext("/upload", mServer);
+		mHttp.start();
+
+		// compressible, like the CSV exports it will mostly carry
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; sb.length() < LENGTH; i++) {
+			sb.append(i).append(",bednets nyc ").append(i % 97).append(",6175551212\r\n");
+		}
+		mData = sb.substring(0, LENGTH).getBytes("US-ASCII");
+		mFile = File.createTempFile("upload", ".csv");
+		FileOutputStream out = new FileOutputStream(mFile);
+		out.write(mData);
+		out.close();
+		mStore = new MemoryStore();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mHttp.stop(0);
+		mFile.delete();
+	}
+
+	private UploadSession newSession() {
+		return new UploadSession(1, "upload-token", mFile.getPath(), "http://127.0.0.1:"
+				+ mHttp.getAddress().getPort() + "/upload", mFile.length(), CHUNK);
+	}
+
+	private ChunkedUploader newUploader() {
+		ChunkedUploader uploader = new ChunkedUploader(mStore);
+		uploader.setBackoff(1, 4);
+		return uploader;
+	}
+
+	public void testUploadsCompressedChunks() {
+		UploadSession session = newSession();
+		assertTrue(newUploader().upload(session));
+		assertEquals(UploadSession.STATUS_COMPLETE, session.getStatus());
+		assertEquals(LENGTH, session.getAckedOffset());
+		assertTrue(Arrays.equals(mData, mServer.received.toByteArray()));
+		assertEquals(11, mServer.requests);
+		assertTrue(mServer.wireBytes < LENGTH / 2);
+		assertEquals(11, mStore.saves);
+	}
+
+	public void testRetriesInjectedFailures() {
+		mServer.failEvery = 3;
+		mServer.dropOn = 5;
+		UploadSession session = newSession();
+		assertTrue(newUploader().upload(session));
+		assertTrue(Arrays.equals(mData, mServer.received.toByteArray()));
+		assertEquals(0, session.getAttempts());
+	}
+
+	public void testLostAckIsNotResent() {
+		mServer.loseAckOn = 4;
+		UploadSession session = newSession();
+		assertTrue(newUploader().upload(session));
+		assertTrue(Arrays.equals(mData, mServer.received.toByteArray()));
+		// the retry of the 4th chunk is answered with the server's offset,
+		// the upload carries on from the 5th
+		assertEquals(12, mServer.requests);
+	}
+
+	public void testResumesFromAckedOffset() {
+		mServer.downAfter = 4 * CHUNK;
+		UploadSession session = newSession();
+		ChunkedUploader uploader = newUploader();
+		uploader.setMaxAttempts(3);
+		assertFalse(uploader.upload(session));
+		assertEquals(UploadSession.STATUS_PENDING, session.getStatus());
+		assertEquals(4 * CHUNK, session.getAckedOffset());
+		assertEquals(3, session.getAttempts());
+
+		mServer.downAfter = Long.MAX_VALUE;
+		mServer.starts.clear();
+		assertTrue(newUploader().upload(session));
+		assertEquals(Long.valueOf(4 * CHUNK), mServer.starts.get(0));
+		assertEquals(7, mServer.starts.size());
+		assertTrue(Arrays.equals(mData, mServer.received.toByteArray()));
+	}
+
+	public void testConflictMovesToServerOffset() {
+		UploadSession session = newSession();
+		// thinks it got further than the server did
+		session.setAckedOffset(3 * CHUNK);
+		assertTrue(newUploader().upload(session));
+		assertEquals(Long.valueOf(0), mServer.starts.get(1));
+		assertTrue(Arrays.equals(mData, mServer.received.toByteArray()));
+	}
+
+	public void testStuckConflictRunsOutOfAttempts() {
+		mServer.stuckAt = CHUNK;
+		UploadSession session = newSession();
+		ChunkedUploader uploader = newUploader();
+		uploader.setMaxAttempts(3);
+		assertFalse(uploader.upload(session));
+		assertEquals(UploadSession.STATUS_PENDING, session.getStatus());
+		assertEquals(CHUNK, session.getAckedOffset());
+		assertEquals(3, session.getAttempts());
+		// the first conflict moves to the server's offset, the rest don't
+		// move it at all
+		assertEquals(4, mServer.requests);
+	}
+
+	public void testAckThatDoesNotAdvanceIsRetried() {
+		// takes every chunk and keeps none of it
+		mServer.rejectWith = 200;
+		UploadSession session = newSession();
+		ChunkedUploader uploader = newUploader();
+		uploader.setMaxAttempts(3);
+		assertFalse(uploader.upload(session));
+		assertEquals(UploadSession.STATUS_PENDING, session.getStatus());
+		assertEquals(0, session.getAckedOffset());
+		assertEquals(3, mServer.requests);
+	}
+
+	public void testRejectionFailsSession() {
+		mServer.rejectWith = 403;
+		UploadSession session = newSession();
+		assertFalse(newUploader().upload(session));
+		assertEquals(UploadSession.STATUS_FAILED, session.getStatus());
+		assertEquals(1, mServer.requests);
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int read;
+		while ((read = in.read(buf)) != -1) {
+			out.write(buf, 0, read);
+		}
+		return out.toByteArray();
+	}
+}
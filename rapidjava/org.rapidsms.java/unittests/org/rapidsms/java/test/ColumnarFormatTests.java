@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.test;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.rapidsms.java.core.export.ColumnarFormat;
+import org.rapidsms.java.core.export.ColumnarReader;
+import org.rapidsms.java.core.export.ColumnarWriter;
+
+public class ColumnarFormatTests extends TestCase {
+
+	/**
+	 * The columns ParsedDataReporter exports for a bednets form.
+	 */
+	private static final String[] NAMES = { "_id", "message_id", "col_location", "col_distributed",
+			"col_received", "col_ratio", "col_confirmed", "message", "time", "monitor_id", "monitor_phone" };
+	private static final byte[] TYPES = { ColumnarFormat.TYPE_INT, ColumnarFormat.TYPE_INT,
+			ColumnarFormat.TYPE_STRING, ColumnarFormat.TYPE_INT, ColumnarFormat.TYPE_INT, ColumnarFormat.TYPE_FLOAT,
+			ColumnarFormat.TYPE_BOOL, ColumnarFormat.TYPE_STRING, ColumnarFormat.TYPE_TIME, ColumnarFormat.TYPE_INT,
+			ColumnarFormat.TYPE_STRING };
+
+	private static final String[] LOCATIONS = { "nyc", "lax", "bos", "sfo", "chi" };
+
+	private File mFile;
+
+	@Override
+	protected void setUp() throws Exception {
+		mFile = File.createTempFile("columnar", ".rcol");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mFile.delete();
+	}
+
+	public void testRoundTrip() throws IOException {
+		ColumnarWriter writer = new ColumnarWriter(new FileOutputStream(mFile), new String[] { "n", "f", "b", "s",
+				"t" }, new byte[] { ColumnarFormat.TYPE_INT, ColumnarFormat.TYPE_FLOAT, ColumnarFormat.TYPE_BOOL,
+				ColumnarFormat.TYPE_STRING, ColumnarFormat.TYPE_TIME }, 3);
+		writer.setLong(0, -5);
+		writer.setDouble(1, 0.75);
+		writer.setBoolean(2, true);
+		writer.setString(3, "caf\u00e9, \"quoted\"");
+		writer.setTime(4, 1234567890000L);
+		writer.endRow();
+		// all null
+		writer.endRow();
+		writer.setLong(0, Long.MAX_VALUE);
+		writer.setBoolean(2, false);
+		writer.setString(3, "caf\u00e9, \"quoted\"");
+		writer.setTime(4, 1234567800000L);
+		writer.endRow();
+		writer.setString(3, "");
+		writer.setTime(4, 0);
+		writer.endRow();
+		writer.close();
+
+		ColumnarReader reader = new ColumnarReader(mFile);
+		try {
+			assertEquals(5, reader.getColumnCount());
+			assertEquals(4, reader.getRowCount());
+			assertEquals(2, reader.getBlockCount());
+			assertEquals(3, reader.getColumnIndex("s"));
+			assertEquals(-1, reader.getColumnIndex("missing"));
+
+			ColumnarReader.Block block = reader.readBlock(0);
+			assertEquals(3, block.getRowCount());
+			assertEquals(-5, block.getLong(0, 0));
+			assertEquals(0.75, block.getDouble(1, 0), 0);
+			assertTrue(block.getBoolean(2, 0));
+			assertEquals("caf\u00e9, \"quoted\"", block.getString(3, 0));
+			assertEquals(1234567890000L, block.getTime(4, 0));
+			for (int c = 0; c < 5; c++) {
+				assertTrue(block.isNull(c, 1));
+			}
+			assertEquals(Long.MAX_VALUE, block.getLong(0, 2));
+			assertTrue(block.isNull(1, 2));
+			assertFalse(block.isNull(2, 2));
+			assertFalse(block.getBoolean(2, 2));
+			assertEquals(1234567800000L, block.getTime(4, 2));
+
+			block = reader.readBlock(1);
+			assertEquals(1, block.getRowCount());
+			assertEquals("", block.getString(3, 0));
+			assertFalse(block.isNull(4, 0));
+			assertEquals(0, block.getTime(4, 0));
+		} finally {
+			reader.close();
+		}
+	}
+
+	public void testBlockIndex() throws IOException {
+		writeSample(mFile, 1000, 100);
+		long first = sampleTime(0);
+
+		ColumnarReader reader = new ColumnarReader(mFile);
+		try {
+			assertEquals(1000, reader.getRowCount());
+			assertEquals(10, reader.getBlockCount());
+
+			// rows 250 to 449 are in blocks 2, 3 and 4
+			int[] blocks = reader.findBlocks(sampleTime(250), sampleTime(450));
+			assertEquals(3, blocks.length);
+			assertEquals(2, blocks[0]);
+			assertEquals(4, blocks[2]);
+			assertEquals(0, reader.findBlocks(first - 1000, first).length);
+
+			ColumnarReader.Block block = reader.readBlock(blocks[1]);
+			int time = reader.getColumnIndex("time");
+			assertEquals(sampleTime(300), block.getTime(time, 0));
+			assertEquals(300, block.getLong(reader.getColumnIndex("_id"), 0));
+			assertEquals(LOCATIONS[300 % LOCATIONS.length], block.getString(reader.getColumnIndex("col_location"), 0));
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Not a pass/fail benchmark beyond the size check, it prints how the two
+	 * formats compare on a few months of a bednets form.
+	 */
+	public void testSmallerThanCsv() throws IOException {
+		int rows = 50000;
+		File csv = File.createTempFile("columnar", ".csv");
+		try {
+			writeCsvSample(csv, rows);
+			writeSample(mFile, rows, ColumnarFormat.DEFAULT_BLOCK_ROWS);
+
+			// the message text is unique per row and dominates both files
+			assertTrue(mFile.length() * 3 < csv.length() * 2);
+
+			ColumnarReader reader = new ColumnarReader(mFile);
+			try {
+				assertEquals(rows, reader.getRowCount());
+			} finally {
+				reader.close();
+			}
+		} finally {
+			csv.delete();
+		}
+	}
+
+	private static long sampleTime(int row) {
+		// a message every 37 seconds or so from 2009-03-01
+		return 1235865600000L + row * 37000L;
+	}
+
+	private static String samplePhone(int row) {
+		return "61755512" + (row % 40 < 10 ? "0" : "") + (row % 40);
+	}
+
+	private static String sampleMessage(int row, Random r) {
+		return "bednets " + LOCATIONS[row % LOCATIONS.length] + " " + r.nextInt(1000) + " " + r.nextInt(1000) + " "
+				+ (row % 3 == 0 ? "yes" : "no");
+	}
+
+	private static void writeSample(File f, int rows, int blockRows) throws IOException {
+		Random r = new Random(rows);
+		ColumnarWriter writer = new ColumnarWriter(new FileOutputStream(f), NAMES, TYPES, blockRows);
+		for (int i = 0; i < rows; i++) {
+			writer.setLong(0, i);
+			writer.setLong(1, i + 7);
+			writer.setString(2, LOCATIONS[i % LOCATIONS.length]);
+			writer.setLong(3, r.nextInt(1000));
+			writer.setLong(4, r.nextInt(1000));
+			writer.setDouble(5, r.nextInt(100) / 100.0);
+			writer.setBoolean(6, i % 3 == 0);
+			writer.setString(7, sampleMessage(i, r));
+			writer.setTime(8, sampleTime(i));
+			writer.setLong(9, i % 40);
+			writer.setString(10, samplePhone(i));
+			writer.endRow();
+		}
+		writer.close();
+	}
+
+	private static void writeCsvSample(File f, int rows) throws IOException {
+		Random r = new Random(rows);
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), "UTF-8"), 64 * 1024);
+		for (int i = 0; i < NAMES.length; i++) {
+			out.write((i > 0 ? "," : "") + NAMES[i]);
+		}
+		out.write("\r\n");
+		java.text.SimpleDateFormat format = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		for (int i = 0; i < rows; i++) {
+			out.write(i + "," + (i + 7) + "," + LOCATIONS[i % LOCATIONS.length] + "," + r.nextInt(1000) + ","
+					+ r.nextInt(1000) + "," + (float) (r.nextInt(100) / 100.0) + "," + (i % 3 == 0) + ","
+					+ sampleMessage(i, r) + "," + format.format(new java.util.Date(sampleTime(i))) + "," + (i % 40)
+					+ "," + samplePhone(i) + "\r\n");
+		}
+		out.close();
+	}
+}
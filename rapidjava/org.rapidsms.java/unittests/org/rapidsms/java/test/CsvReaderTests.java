@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+import org.rapidsms.java.core.parser.CsvReader;
+
+public class CsvReaderTests extends TestCase {
+
+	private static void assertRow(String[] expected, String[] actual) {
+		assertNotNull(actual);
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], actual[i]);
+		}
+	}
+
+	public void testPlainRows() throws IOException {
+		CsvReader csv = new CsvReader(new StringReader("2008-08-08 14:22:48,+23464364869,bednets Kano 352 378 1974\n"
+				+ "2008-08-09 14:22:48,+23464335274,bednets Bichi 124 17 857"));
+		assertRow(new String[] { "2008-08-08 14:22:48", "+23464364869", "bednets Kano 352 378 1974" }, csv.readRow());
+		assertRow(new String[] { "2008-08-09 14:22:48", "+23464335274", "bednets Bichi 124 17 857" }, csv.readRow());
+		assertNull(csv.readRow());
+	}
+
+	public void testQuotedFields() throws IOException {
+		CsvReader csv = new CsvReader(new StringReader("a,\"b, c\",\"say \"\"hi\"\"\"\r\n\"two\nlines\",,\"\"\r\n"));
+		assertRow(new String[] { "a", "b, c", "say \"hi\"" }, csv.readRow());
+		assertRow(new String[] { "two\nlines", "", "" }, csv.readRow());
+		assertNull(csv.readRow());
+		assertEquals(3, csv.getLineNumber());
+	}
+
+	public void testBlankLinesAndEmptyFields() throws IOException {
+		CsvReader csv = new CsvReader(new StringReader("\n\na,,\r\n\r\n,\n\"\"\n"));
+		assertRow(new String[] { "a", "", "" }, csv.readRow());
+		assertRow(new String[] { "", "" }, csv.readRow());
+		assertRow(new String[] { "" }, csv.readRow());
+		assertNull(csv.readRow());
+	}
+
+	public void testUnterminatedQuote() {
+		CsvReader csv = new CsvReader(new StringReader("a,\"b\n"));
+		try {
+			csv.readRow();
+			fail("unterminated quote wasn't reported");
+		} catch (IOException e) {
+		}
+	}
+}
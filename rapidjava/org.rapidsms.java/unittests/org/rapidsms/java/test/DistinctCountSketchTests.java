@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidsms.java.test;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.rapidsms.java.core.stats.DistinctCountSketch;
+
+public class DistinctCountSketchTests extends TestCase {
+
+	public void testEmpty() {
+		DistinctCountSketch sketch = new DistinctCountSketch();
+		assertTrue(sketch.isEmpty());
+		assertEquals(0, sketch.getEstimate());
+	}
+
+	public void testSmallCountsAreNearlyExact() {
+		DistinctCountSketch sketch = new DistinctCountSketch();
+		for (int repeat = 0; repeat < 5; repeat++) {
+			for (long id = 1; id <= 40; id++) {
+				sketch.add(id);
+			}
+		}
+		assertFalse(sketch.isEmpty());
+		assertTrue("estimated " + sketch.getEstimate(), Math.abs(sketch.getEstimate() - 40) <= 1);
+	}
+
+	public void testLargeCountsAreWithinTheErrorBound() {
+		int[] counts = new int[] { 1000, 20000, 300000 };
+		for (int c = 0; c < counts.length; c++) {
+			DistinctCountSketch sketch = new DistinctCountSketch();
+			for (long id = 0; id < counts[c]; id++) {
+				// the odd repeat shouldn't change anything
+				sketch.add(id * 7919);
+				sketch.add((id / 2) * 7919);
+			}
+			double error = Math.abs(sketch.getEstimate() - counts[c]) / (double) counts[c];
+			assertTrue("off by " + error + " at " + counts[c], error < 0.1);
+		}
+	}
+
+	public void testMergedDaysCountEachIdOnce() {
+		DistinctCountSketch merged = new DistinctCountSketch();
+		for (int day = 0; day < 30; day++) {
+			DistinctCountSketch daily = new DistinctCountSketch();
+			// the same 500 reporters every day, and 20 new ones
+			for (long id = 0; id < 500; id++) {
+				daily.add(id);
+			}
+			for (long id = 0; id < 20; id++) {
+				daily.add(1000 + day * 20 + id);
+			}
+			merged.merge(DistinctCountSketch.fromBytes(daily.toBytes()));
+		}
+		double error = Math.abs(merged.getEstimate() - 1100) / 1100.0;
+		assertTrue("estimated " + merged.getEstimate(), error < 0.1);
+	}
+
+	public void testBytesRoundTrip() {
+		DistinctCountSketch sparse = new DistinctCountSketch();
+		for (long id = 0; id < 12; id++) {
+			sparse.add(id);
+		}
+		byte[] sparseBytes = sparse.toBytes();
+		assertTrue(sparseBytes.length < 64);
+		DistinctCountSketch copy = DistinctCountSketch.fromBytes(sparseBytes);
+		assertEquals(sparse.getEstimate(), copy.getEstimate());
+		assertTrue(Arrays.equals(sparseBytes, copy.toBytes()));
+
+		DistinctCountSketch dense = new DistinctCountSketch();
+		for (long id = 0; id < 5000; id++) {
+			dense.add(id);
+		}
+		byte[] denseBytes = dense.toBytes();
+		assertEquals(3 + (1 << DistinctCountSketch.DEFAULT_PRECISION), denseBytes.length);
+		assertEquals(dense.getEstimate(), DistinctCountSketch.fromBytes(denseBytes).getEstimate());
+	}
+
+	public void testRejectsGarbage() {
+		try {
+			DistinctCountSketch.fromBytes(new byte[] { 9, 0, 0 });
+			fail("an unknown format was read");
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			new DistinctCountSketch(10).merge(new DistinctCountSketch(12));
+			fail("sketches of different precisions were merged");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.test;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.rapidsms.java.core.chart.LttbDownsampler;
+
+public class DownsamplerTests extends TestCase {
+
+	/**
+	 * The textbook LTTB over the whole series at once
+	 */
+	private static int[] referenceLttb(double[] x, double[] y, int threshold) {
+		int[] kept = new int[threshold];
+		double every = (double) (x.length - 2) / (threshold - 2);
+		int a = 0;
+		kept[0] = 0;
+		for (int i = 0; i < threshold - 2; i++) {
+			int nextStart = (int) Math.floor((i + 1) * every) + 1;
+			int nextEnd = Math.min((int) Math.floor((i + 2) * every) + 1, x.length);
+			if (i == threshold - 3) {
+				nextStart = x.length - 1;
+				nextEnd = x.length;
+			}
+			double avgX = 0;
+			double avgY = 0;
+			for (int j = nextStart; j < nextEnd; j++) {
+				avgX += x[j];
+				avgY += y[j];
+			}
+			avgX /= nextEnd - nextStart;
+			avgY /= nextEnd - nextStart;
+
+			int start = (int) Math.floor(i * every) + 1;
+			int end = (int) Math.floor((i + 1) * every) + 1;
+			double maxArea = -1;
+			int best = start;
+			for (int j = start; j < end; j++) {
+				double area = Math.abs((x[a] - avgX) * (y[j] - y[a]) - (x[a] - x[j]) * (avgY - y[a]));
+				if (area > maxArea) {
+					maxArea = area;
+					best = j;
+				}
+			}
+			kept[i + 1] = best;
+			a = best;
+		}
+		kept[threshold - 1] = x.length - 1;
+		return kept;
+	}
+
+	private static LttbDownsampler downsample(double[] x, double[] y, int threshold) {
+		LttbDownsampler lttb = new LttbDownsampler(threshold, x.length);
+		for (int i = 0; i < x.length; i++) {
+			lttb.add(x[i], y[i]);
+		}
+		return lttb;
+	}
+
+	public void testShortSeriesPassThrough() {
+		double[] x = new double[] { 1, 2, 3, 4 };
+		double[] y = new double[] { 5, 3, 8, 1 };
+		LttbDownsampler lttb = downsample(x, y, 10);
+		assertEquals(4, lttb.size());
+		for (int i = 0; i < x.length; i++) {
+			assertEquals(x[i], lttb.getX(i), 0);
+			assertEquals(y[i], lttb.getY(i), 0);
+			assertEquals(y[i], lttb.getMinY(i), 0);
+			assertEquals(y[i], lttb.getMaxY(i), 0);
+		}
+	}
+
+	public void testMatchesWholeSeriesLttb() {
+		Random r = new Random(42);
+		int[] lengths = new int[] { 11, 100, 997, 5000, 20001 };
+		int[] thresholds = new int[] { 3, 10, 64, 320, 480 };
+		for (int l = 0; l < lengths.length; l++) {
+			for (int t = 0; t < thresholds.length; t++) {
+				if (thresholds[t] >= lengths[l]) {
+					continue;
+				}
+				double[] x = new double[lengths[l]];
+				double[] y = new double[lengths[l]];
+				for (int i = 0; i < x.length; i++) {
+					x[i] = i * 1000.0 + r.nextInt(1000);
+					y[i] = Math.sin(i / 50.0) * 100 + r.nextGaussian() * 10;
+				}
+				LttbDownsampler lttb = downsample(x, y, thresholds[t]);
+				int[] expected = referenceLttb(x, y, thresholds[t]);
+				assertEquals(thresholds[t], lttb.size());
+				for (int i = 0; i < expected.length; i++) {
+					assertEquals(x[expected[i]], lttb.getX(i), 0);
+					assertEquals(y[expected[i]], lttb.getY(i), 0);
+				}
+			}
+		}
+	}
+
+	public void testEnvelopeKeepsExtremes() {
+		double[] x = new double[1000];
+		double[] y = new double[1000];
+		for (int i = 0; i < x.length; i++) {
+			x[i] = i;
+			y[i] = 10;
+		}
+		y[500] = 90;
+		y[501] = -50;
+		LttbDownsampler lttb = downsample(x, y, 20);
+		double min = Double.MAX_VALUE;
+		double max = -Double.MAX_VALUE;
+		for (int i = 0; i < lttb.size(); i++) {
+			min = Math.min(min, lttb.getMinY(i));
+			max = Math.max(max, lttb.getMaxY(i));
+			assertTrue(lttb.getMinY(i) <= lttb.getY(i));
+			assertTrue(lttb.getMaxY(i) >= lttb.getY(i));
+		}
+		assertEquals(-50, min, 0);
+		assertEquals(90, max, 0);
+	}
+
+	public void testTooManyPoints() {
+		LttbDownsampler lttb = new LttbDownsampler(3, 2);
+		lttb.add(0, 0);
+		lttb.add(1, 1);
+		try {
+			lttb.add(2, 2);
+			fail("a point past the promised count was accepted");
+		} catch (IllegalStateException e) {
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import junit.framework.TestCase;
+
+import org.rapidsms.java.core.upload.InstanceSubmitter;
+import org.rapidsms.java.core.upload.SubmissionMetrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class InstanceSubmitterTests extends TestCase {
+
+	/**
+	 * Stands in for an OpenRosa submission endpoint. Keeps the instances it
+	 * accepts and the client ports it saw them on.
+	 */
+	private static class StubEndpoint implements HttpHandler {
+		final ArrayList<String> instances = new ArrayList<String>();
+		final HashSet<Integer> ports = new HashSet<Integer>();
+		/** refuse instances whose file name contains this */
+		String refuse = null;
+
+		public void handle(HttpExchange exchange) throws IOException {
+			ports.add(Integer.valueOf(exchange.getRemoteAddress().getPort()));
+			assertEquals("1.0", exchange.getRequestHeaders().getFirst("X-OpenRosa-Version"));
+			String type = exchange.getRequestHeaders().getFirst("Content-Type");
+			assertTrue(type.startsWith("multipart/form-data; boundary="));
+			String boundary = type.substring(type.indexOf('=') + 1);
+
+			String body = new String(readAll(exchange.getRequestBody()), "UTF-8");
+			assertTrue(body.startsWith("--" + boundary + "\r\n"));
+			assertTrue(body.endsWith("\r\n--" + boundary + "--\r\n"));
+			assertTrue(body.indexOf("name=\"xml_submission_file\"") > 0);
+			int start = body.indexOf("\r\n\r\n") + 4;
+			int end = body.lastIndexOf("\r\n--" + boundary);
+
+			int code = 201;
+			if (refuse != null && body.indexOf(refuse) > 0) {
+				code = 500;
+			} else {
+				instances.add(body.substring(start, end));
+			}
+			byte[] response = "<OpenRosaResponse/>".getBytes("UTF-8");
+			exchange.sendResponseHeaders(code, response.length);
+			exchange.getResponseBody().write(response);
+			exchange.close();
+		}
+	}
+
+	private HttpServer mHttp;
+	private StubEndpoint mEndpoint;
+	private String mUri;
+	private File[] mFiles;
+
+	@Override
+	protected void setUp() throws Exception {
+		mEndpoint = new StubEndpoint();
+		mHttp = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		mHttp.createContext("/submission", mEndpoint);
+		mHttp.start();
+		mUri = "http://127.0.0.1:" + mHttp.getAddress().getPort() + "/submission";
+
+		mFiles = new File[5];
+		for (int i = 0; i < mFiles.length; i++) {
+			mFiles[i] = File.createTempFile("instance" + i + "_", ".xml");
+			FileOutputStream out = new FileOutputStream(mFiles[i]);
+			out.write(("<?xml version='1.0' encoding='UTF-8' ?><data><text1>bednets " + i
+					+ "</text1></data>").getBytes("UTF-8"));
+			out.close();
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mHttp.stop(0);
+		for (int i = 0; i < mFiles.length; i++) {
+			mFiles[i].delete();
+		}
+	}
+
+	public void testSubmitsBatchOverOneConnection() {
+		InstanceSubmitter submitter = new InstanceSubmitter();
+		int[] codes = submitter.submitBatch(mUri, mFiles);
+		for (int i = 0; i < codes.length; i++) {
+			assertEquals(201, codes[i]);
+		}
+		assertEquals(5, mEndpoint.instances.size());
+		assertTrue(mEndpoint.instances.get(3).endsWith("<text1>bednets 3</text1></data>"));
+		assertEquals(1, mEndpoint.ports.size());
+	}
+
+	public void testRefusedInstancesAreReported() {
+		mEndpoint.refuse = "bednets 2<";
+		InstanceSubmitter submitter = new InstanceSubmitter();
+		int[] codes = submitter.submitBatch(mUri, mFiles);
+		assertEquals(500, codes[2]);
+		assertFalse(InstanceSubmitter.isAccepted(codes[2]));
+		assertTrue(InstanceSubmitter.isAccepted(codes[3]));
+		assertEquals(4, mEndpoint.instances.size());
+	}
+
+	public void testNoEndpoint() {
+		mHttp.stop(0);
+		InstanceSubmitter submitter = new InstanceSubmitter();
+		assertEquals(InstanceSubmitter.NO_RESPONSE, submitter.submit(mUri, mFiles[0]));
+	}
+
+	public void testMetrics() {
+		InstanceSubmitter submitter = new InstanceSubmitter();
+		SubmissionMetrics metrics = submitter.getMetrics();
+		assertEquals(0, metrics.getBatches());
+		assertEquals(0.0, metrics.getSubmissionsPerMinute(), 0);
+
+		submitter.submitBatch(mUri, mFiles);
+		mEndpoint.refuse = "bednets 4<";
+		submitter.submitBatch(mUri, new File[] { mFiles[0], mFiles[4] });
+
+		assertEquals(2, metrics.getBatches());
+		assertEquals(6, metrics.getSubmitted());
+		assertEquals(1, metrics.getFailed());
+		assertEquals(1, metrics.getLastBatchSubmitted());
+		assertEquals(1, metrics.getLastBatchFailed());
+		assertEquals(5 * mFiles[1].length() + mFiles[0].length(), metrics.getBytes());
+		assertTrue(metrics.getLastBatchTime() > 0);
+		assertTrue(metrics.getSubmissionsPerMinute() > 0);
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int read;
+		while ((read = in.read(buf)) != -1) {
+			out.write(buf, 0, read);
+		}
+		return out.toByteArray();
+	}
+}
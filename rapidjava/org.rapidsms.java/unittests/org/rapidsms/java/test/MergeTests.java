@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.rapidsms.java.core.merge.DeviceDatabaseMerger;
+import org.rapidsms.java.core.merge.DuplicateWindow;
+import org.rapidsms.java.core.merge.KWayMerge;
+
+public class MergeTests extends TestCase {
+
+	private static final Comparator<Long> NATURAL = new Comparator<Long>() {
+		public int compare(Long a, Long b) {
+			return a.compareTo(b);
+		}
+	};
+
+	@SuppressWarnings("unchecked")
+	private static Iterator<Long>[] sources(long[][] values) {
+		Iterator<Long>[] ret = (Iterator<Long>[]) new Iterator<?>[values.length];
+		for (int i = 0; i < values.length; i++) {
+			ArrayList<Long> list = new ArrayList<Long>();
+			for (int j = 0; j < values[i].length; j++) {
+				list.add(Long.valueOf(values[i][j]));
+			}
+			ret[i] = list.iterator();
+		}
+		return ret;
+	}
+
+	public void testMergesInOrder() {
+		Random r = new Random(39);
+		long[][] values = new long[7][];
+		ArrayList<Long> all = new ArrayList<Long>();
+		for (int i = 0; i < values.length; i++) {
+			values[i] = new long[r.nextInt(500)];
+			for (int j = 0; j < values[i].length; j++) {
+				values[i][j] = r.nextInt(10000);
+				all.add(Long.valueOf(values[i][j]));
+			}
+			Arrays.sort(values[i]);
+		}
+
+		KWayMerge<Long> merge = new KWayMerge<Long>(sources(values), NATURAL);
+		long last = Long.MIN_VALUE;
+		int count = 0;
+		while (merge.hasNext()) {
+			long next = merge.next().longValue();
+			assertTrue(next >= last);
+			last = next;
+			count++;
+		}
+		assertEquals(all.size(), count);
+	}
+
+	public void testTiesComeOutInSourceOrder() {
+		KWayMerge<Long> merge = new KWayMerge<Long>(sources(new long[][] { { 1, 5 }, {}, { 1, 5 }, { 0, 5 } }),
+														NATURAL);
+		int[] expected = new int[] { 3, 0, 2, 0, 2, 3 };
+		for (int i = 0; i < expected.length; i++) {
+			merge.next();
+			assertEquals(expected[i], merge.getLastSource());
+		}
+		assertFalse(merge.hasNext());
+	}
+
+	public void testWindowDropsRepeatsInsideIt() {
+		DuplicateWindow window = new DuplicateWindow(600 * 1000L);
+		assertFalse(window.isDuplicate(42, 0));
+		assertFalse(window.isDuplicate(43, 1000));
+		assertTrue(window.isDuplicate(42, 600 * 1000L));
+		// the window runs from the first one, repeats don't extend it
+		assertFalse(window.isDuplicate(42, 600 * 1000L + 1));
+		assertTrue(window.isDuplicate(42, 900 * 1000L));
+	}
+
+	public void testWindowIsBounded() {
+		DuplicateWindow window = new DuplicateWindow(10 * 1000L);
+		for (int i = 0; i < 100000; i++) {
+			// one a second, every key different
+			assertFalse(window.isDuplicate(i, i * 1000L));
+		}
+		assertEquals(11, window.size());
+
+		DuplicateWindow exact = new DuplicateWindow(0);
+		assertFalse(exact.isDuplicate(7, 5000));
+		assertTrue(exact.isDuplicate(7, 5000));
+		assertFalse(exact.isDuplicate(7, 6000));
+	}
+
+	public void testSameAnswerFromTwoSendersIsKept() throws Exception {
+		Class.forName("org.sqlite.JDBC");
+		File phone1 = createDevice(new String[] { "6175551212", "6175550000" }, new String[][] {
+				{ "0", "2009-03-01 10:00:00", "bednets 5 6" }, { "1", "2009-03-01 10:01:00", "bednets 5 6" } });
+		File phone2 = createDevice(new String[] { "+1 617 555 1212" }, new String[][] { { "0",
+				"2009-03-01 10:02:00", "bednets  5 6" } });
+		File merged = File.createTempFile("merged", ".db");
+		merged.delete();
+		try {
+			DeviceDatabaseMerger merger = new DeviceDatabaseMerger(merged, new File[] { phone1, phone2 });
+			merger.merge();
+			// only the second phone's resend of the first sender's answer goes
+			assertEquals(2, merger.getMerged());
+			assertEquals(1, merger.getDuplicates());
+			assertEquals(2, merger.getFormRows());
+			assertEquals(2, count(merged, "select count(*) from formdata_bednets"));
+			assertEquals(2, count(merged, "select count(distinct hash) from rapidandroid_message"));
+		} finally {
+			phone1.delete();
+			phone2.delete();
+			merged.delete();
+		}
+	}
+
+	/**
+	 * A device database from before the hash column was filled in: messages
+	 * have no hash and no phone of their own.
+	 *
+	 * @param phones
+	 *            the monitors' numbers
+	 * @param messages
+	 *            monitor index, time and body of each message
+	 */
+	private static File createDevice(String[] phones, String[][] messages) throws IOException, SQLException {
+		File file = File.createTempFile("device", ".db");
+		file.delete();
+		Connection conn = DriverManager.getConnection(DeviceDatabaseMerger.JDBC_PREFIX + file.getPath());
+		try {
+			Statement st = conn.createStatement();
+			st.executeUpdate("create table rapidandroid_message (_id integer primary key, phone varchar(30) null, "
+					+ "monitor_id integer null, time datetime not null, message varchar(160) not null, "
+					+ "is_outgoing bool not null, is_virtual bool not null, hash integer null, "
+					+ "duplicate_of integer null)");
+			st.executeUpdate("create table rapidandroid_monitor (_id integer primary key, first_name varchar(50) "
+					+ "not null, last_name varchar(50) not null, alias varchar(16) not null unique, phone "
+					+ "varchar(30) not null, email varchar(75) not null, incoming_messages integer not null)");
+			st.executeUpdate("create table rapidandroid_form (_id integer primary key, formname varchar(32) not "
+					+ "null unique, prefix varchar(16) not null unique, description varchar(512) not null, "
+					+ "parsemethod varchar(128) not null)");
+			st.executeUpdate("create table rapidandroid_field (_id integer primary key, form_id integer not null, "
+					+ "sequence integer not null, name varchar(32) not null, prompt varchar(1028) not null, "
+					+ "fieldtype_id integer not null)");
+			st.executeUpdate("create table formdata_bednets (_id integer primary key, message_id integer not null, "
+					+ "col_count integer)");
+			st.executeUpdate("insert into rapidandroid_form values (1, 'bednets', 'bednets', '', 'simpleregex')");
+			st.executeUpdate("insert into rapidandroid_field values (1, 1, 1, 'count', 'count', 1)");
+			for (int i = 0; i < phones.length; i++) {
+				st.executeUpdate("insert into rapidandroid_monitor values (" + (i + 1) + ", '', '', 'm" + phones[i]
+						+ "', '" + phones[i] + "', '', 1)");
+			}
+			for (int i = 0; i < messages.length; i++) {
+				st.executeUpdate("insert into rapidandroid_message (_id, monitor_id, time, message, is_outgoing, "
+						+ "is_virtual) values (" + (i + 1) + ", " + (Integer.parseInt(messages[i][0]) + 1) + ", '"
+						+ messages[i][1] + "', '" + messages[i][2] + "', 0, 0)");
+				st.executeUpdate("insert into formdata_bednets (message_id, col_count) values (" + (i + 1) + ", 5)");
+			}
+			st.close();
+		} finally {
+			conn.close();
+		}
+		return file;
+	}
+
+	private static int count(File db, String sql) throws SQLException {
+		Connection conn = DriverManager.getConnection(DeviceDatabaseMerger.JDBC_PREFIX + db.getPath());
+		try {
+			Statement st = conn.createStatement();
+			ResultSet rs = st.executeQuery(sql);
+			rs.next();
+			int ret = rs.getInt(1);
+			st.close();
+			return ret;
+		} finally {
+			conn.close();
+		}
+	}
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.test;
+
+import junit.framework.TestCase;
+
+import org.rapidsms.java.core.parser.MessageFingerprint;
+import org.rapidsms.java.core.parser.MessageNormalizer;
+
+public class MessageNormalizerTests extends TestCase {
+
+	public void testWhitespaceAndCase() {
+		assertEquals("bednets 5 yes", MessageNormalizer.normalize("  BedNets\t 5\n\nYes  "));
+		assertEquals("bednets 5", MessageNormalizer.normalize("bednets\u00a05"));
+		assertEquals("", MessageNormalizer.normalize("   "));
+		assertEquals("", MessageNormalizer.normalize(null));
+	}
+
+	public void testGatewayPrefix() {
+		assertEquals("bednets 5", MessageNormalizer.normalize("notifications@dimagi.com /  / Bednets 5"));
+		assertEquals("bednets 5", MessageNormalizer.normalize("NOTIFICATIONS@dimagi.com /  / bednets 5"));
+	}
+
+	public void testCountTokens() {
+		assertEquals(0, MessageNormalizer.countTokens(""));
+		assertEquals(1, MessageNormalizer.countTokens("bednets"));
+		assertEquals(3, MessageNormalizer.countTokens(MessageNormalizer.normalize(" bednets  5   yes ")));
+	}
+
+	public void testHasPrefix() {
+		assertTrue(MessageNormalizer.hasPrefix("bednets 5", "bednets"));
+		assertFalse(MessageNormalizer.hasPrefix("bednets", "bednets"));
+		assertFalse(MessageNormalizer.hasPrefix("bednetsx 5", "bednets"));
+	}
+
+	public void testFingerprintUsesNormalizedText() {
+		long hash = MessageFingerprint.hash("+1 (617) 555-1212", "Bednets  5");
+		assertEquals(hash, MessageFingerprint.hashNormalized("6175551212", "bednets 5"));
+		assertEquals(hash, MessageFingerprint.hash("6175551212", "notifications@dimagi.com /  / bednets 5"));
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.rapidsms.java.core.stats.QuantileSketch;
+
+public class QuantileSketchTests extends TestCase {
+
+	private static final double[] QUANTILES = new double[] { 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99 };
+
+	/**
+	 * @return how far from q the rank of value is in sorted, as a fraction
+	 */
+	private static double getRankError(double[] sorted, double value, double q) {
+		int below = 0;
+		while (below < sorted.length && sorted[below] < value) {
+			below++;
+		}
+		int atOrBelow = below;
+		while (atOrBelow < sorted.length && sorted[atOrBelow] <= value) {
+			atOrBelow++;
+		}
+		double target = q * sorted.length;
+		if (target < below) {
+			return (below - target) / sorted.length;
+		} else if (target > atOrBelow) {
+			return (target - atOrBelow) / sorted.length;
+		}
+		return 0;
+	}
+
+	public void testEmpty() {
+		QuantileSketch sketch = new QuantileSketch();
+		assertEquals(0, sketch.getCount());
+		assertTrue(Double.isNaN(sketch.getQuantile(0.5)));
+		assertTrue(Double.isNaN(sketch.getMean()));
+		assertTrue(Double.isNaN(sketch.getMin()));
+	}
+
+	public void testSmallStreamIsExact() {
+		QuantileSketch sketch = new QuantileSketch();
+		for (int i = 99; i >= 1; i--) {
+			sketch.add(i);
+		}
+		assertEquals(99, sketch.getCount());
+		assertEquals(4950, sketch.getSum(), 0);
+		assertEquals(50, sketch.getMean(), 0);
+		assertEquals(1, sketch.getMin(), 0);
+		assertEquals(99, sketch.getMax(), 0);
+		assertEquals(50, sketch.getQuantile(0.5), 0);
+		assertEquals(90, sketch.getQuantile(0.9), 0);
+		assertEquals(1, sketch.getQuantile(0), 0);
+		assertEquals(99, sketch.getQuantile(1), 0);
+	}
+
+	public void testLargeStreamIsAccurateAndBounded() {
+		Random r = new Random(7);
+		double[] values = new double[200000];
+		QuantileSketch sketch = new QuantileSketch();
+		for (int i = 0; i < values.length; i++) {
+			values[i] = r.nextGaussian() * 15 + 60;
+			sketch.add(values[i]);
+		}
+		Arrays.sort(values);
+		for (int i = 0; i < QUANTILES.length; i++) {
+			double error = getRankError(values, sketch.getQuantile(QUANTILES[i]), QUANTILES[i]);
+			assertTrue("rank error " + error + " at " + QUANTILES[i], error < 0.02);
+		}
+		assertTrue("holding " + sketch.getRetained(), sketch.getRetained() < 4 * QuantileSketch.DEFAULT_K);
+		assertEquals(values[0], sketch.getMin(), 0);
+		assertEquals(values[values.length - 1], sketch.getMax(), 0);
+	}
+
+	public void testMergedDaysMatchTheWholeRange() {
+		Random r = new Random(11);
+		QuantileSketch merged = new QuantileSketch();
+		double[] all = new double[30 * 2000];
+		double sum = 0;
+		int n = 0;
+		for (int day = 0; day < 30; day++) {
+			QuantileSketch daily = new QuantileSketch();
+			// the days drift, so a bad merge shows up
+			for (int i = 0; i < 2000; i++) {
+				double value = r.nextInt(10) + day;
+				daily.add(value);
+				all[n++] = value;
+				sum += value;
+			}
+			merged.merge(QuantileSketch.fromBytes(daily.toBytes()));
+		}
+		Arrays.sort(all);
+		assertEquals(all.length, merged.getCount());
+		assertEquals(sum, merged.getSum(), 0.001);
+		assertEquals(all[0], merged.getMin(), 0);
+		assertEquals(all[all.length - 1], merged.getMax(), 0);
+		for (int i = 0; i < QUANTILES.length; i++) {
+			double error = getRankError(all, merged.getQuantile(QUANTILES[i]), QUANTILES[i]);
+			assertTrue("rank error " + error + " at " + QUANTILES[i], error < 0.02);
+		}
+	}
+
+	public void testBytesRoundTrip() {
+		QuantileSketch sketch = new QuantileSketch(64);
+		for (int i = 0; i < 5000; i++) {
+			sketch.add((i * 37) % 1001);
+		}
+		QuantileSketch copy = QuantileSketch.fromBytes(sketch.toBytes());
+		assertEquals(sketch.getCount(), copy.getCount());
+		assertEquals(sketch.getRetained(), copy.getRetained());
+		for (int i = 0; i < QUANTILES.length; i++) {
+			assertEquals(sketch.getQuantile(QUANTILES[i]), copy.getQuantile(QUANTILES[i]), 0);
+		}
+		assertTrue(Arrays.equals(sketch.toBytes(), copy.toBytes()));
+
+		// and keeps going the same way
+		sketch.add(3);
+		copy.add(3);
+		assertTrue(Arrays.equals(sketch.toBytes(), copy.toBytes()));
+	}
+
+	public void testRejectsGarbage() {
+		try {
+			QuantileSketch.fromBytes(new byte[] { 9, 0, 0 });
+			fail("an unknown format was read");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+}
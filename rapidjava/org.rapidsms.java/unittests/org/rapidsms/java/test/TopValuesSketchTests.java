@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidsms.java.test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.rapidsms.java.core.stats.TopValuesSketch;
+
+public class TopValuesSketchTests extends TestCase {
+
+	/**
+	 * @return a word whose frequency falls off like 1/rank
+	 */
+	private static String getZipfWord(Random r, int words) {
+		double u = r.nextDouble();
+		int rank = (int) Math.floor(Math.exp(u * Math.log(words)));
+		return "w" + rank;
+	}
+
+	public void testEmpty() {
+		TopValuesSketch sketch = new TopValuesSketch();
+		assertEquals(0, sketch.getTotal());
+		assertEquals(0, sketch.getTop(10).length);
+	}
+
+	public void testFewValuesAreExact() {
+		TopValuesSketch sketch = new TopValuesSketch(8);
+		String[] words = new String[] { "red", "green", "blue", "green", "red", "green", null };
+		for (int i = 0; i < words.length; i++) {
+			sketch.add(words[i]);
+		}
+		assertEquals(6, sketch.getTotal());
+		TopValuesSketch.Entry[] top = sketch.getTop(10);
+		assertEquals(3, top.length);
+		assertEquals("green", top[0].getValue());
+		assertEquals(3, top[0].getCount());
+		assertEquals("red", top[1].getValue());
+		assertEquals(2, top[1].getCount());
+		assertEquals("blue", top[2].getValue());
+		assertEquals(0, top[2].getError());
+		assertEquals(2, sketch.getTop(2).length);
+	}
+
+	public void testHeavyValuesSurviveALongTail() {
+		Random r = new Random(5);
+		HashMap<String, Integer> exact = new HashMap<String, Integer>();
+		TopValuesSketch sketch = new TopValuesSketch(32);
+		for (int i = 0; i < 100000; i++) {
+			String word = getZipfWord(r, 5000);
+			sketch.add(word);
+			Integer seen = exact.get(word);
+			exact.put(word, Integer.valueOf(seen == null ? 1 : seen.intValue() + 1));
+		}
+		assertTrue(exact.size() > 1000);
+		assertEquals(32, sketch.getSize());
+		assertEquals(100000, sketch.getTotal());
+
+		// anything over total/capacity is sure to be counted
+		TopValuesSketch.Entry[] top = sketch.getTop(32);
+		Iterator<String> it = exact.keySet().iterator();
+		while (it.hasNext()) {
+			String word = it.next();
+			if (exact.get(word).intValue() > sketch.getTotal() / 32) {
+				assertTrue(word + " was dropped", isCounted(top, word));
+			}
+		}
+		for (int i = 0; i < top.length; i++) {
+			long actual = exact.get(top[i].getValue()).intValue();
+			assertTrue(top[i].getCount() >= actual);
+			assertTrue(top[i].getCount() - top[i].getError() <= actual);
+		}
+		assertEquals("w1", top[0].getValue());
+	}
+
+	private static boolean isCounted(TopValuesSketch.Entry[] top, String value) {
+		for (int i = 0; i < top.length; i++) {
+			if (top[i].getValue().equals(value)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void testMergedDaysFindTheSameTopValues() {
+		Random r = new Random(9);
+		TopValuesSketch whole = new TopValuesSketch(32);
+		TopValuesSketch merged = new TopValuesSketch(32);
+		HashMap<String, Integer> exact = new HashMap<String, Integer>();
+		for (int day = 0; day < 30; day++) {
+			TopValuesSketch daily = new TopValuesSketch(32);
+			for (int i = 0; i < 1000; i++) {
+				String word = getZipfWord(r, 2000);
+				daily.add(word);
+				whole.add(word);
+				Integer seen = exact.get(word);
+				exact.put(word, Integer.valueOf(seen == null ? 1 : seen.intValue() + 1));
+			}
+			merged.merge(TopValuesSketch.fromBytes(daily.toBytes()));
+		}
+		assertEquals(whole.getTotal(), merged.getTotal());
+		TopValuesSketch.Entry[] top = merged.getTop(3);
+		for (int i = 0; i < top.length; i++) {
+			assertEquals(whole.getTop(3)[i].getValue(), top[i].getValue());
+			long actual = exact.get(top[i].getValue()).intValue();
+			assertTrue(top[i].getCount() >= actual);
+			assertTrue(top[i].getCount() - top[i].getError() <= actual);
+		}
+	}
+
+	public void testMergingExactSketchesStaysExact() {
+		TopValuesSketch a = new TopValuesSketch(8);
+		TopValuesSketch b = new TopValuesSketch(8);
+		a.add("yes");
+		a.add("no");
+		a.add("yes");
+		b.add("yes");
+		b.add("maybe");
+		a.merge(b);
+		assertEquals(5, a.getTotal());
+		TopValuesSketch.Entry[] top = a.getTop(10);
+		assertEquals(3, top.length);
+		assertEquals("yes", top[0].getValue());
+		assertEquals(3, top[0].getCount());
+		assertEquals(0, top[0].getError());
+		assertEquals("maybe", top[1].getValue());
+		assertEquals(1, top[1].getCount());
+	}
+
+	public void testBytesRoundTrip() {
+		TopValuesSketch sketch = new TopValuesSketch(16);
+		for (int i = 0; i < 3000; i++) {
+			sketch.add("v" + ((i * 37) % 101) + "\u00e9");
+		}
+		TopValuesSketch copy = TopValuesSketch.fromBytes(sketch.toBytes());
+		assertEquals(sketch.getTotal(), copy.getTotal());
+		assertEquals(sketch.getSize(), copy.getSize());
+		TopValuesSketch.Entry[] expected = sketch.getTop(16);
+		TopValuesSketch.Entry[] actual = copy.getTop(16);
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i].getValue(), actual[i].getValue());
+			assertEquals(expected[i].getCount(), actual[i].getCount());
+			assertEquals(expected[i].getError(), actual[i].getError());
+		}
+
+		// and keeps going the same way
+		sketch.add("new");
+		copy.add("new");
+		assertTrue(Arrays.equals(sketch.toBytes(), copy.toBytes()));
+	}
+
+	public void testRejectsGarbage() {
+		try {
+			TopValuesSketch.fromBytes(new byte[] { 9, 0, 0 });
+			fail("an unknown format was read");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+}